@@ -10,6 +10,8 @@ public abstract class BaseTokenImpl implements BaseToken {
 
     private int row;
     private int col;
+    // position among the children of the parent node when they were last numbered, see TagNode
+    transient int childIndexHint;
     
     protected BaseTokenImpl(){
     	
@@ -84,7 +84,7 @@ public class BrowserCompactXmlSerializer extends XmlSerializer {
                         content = content.trim();
                         if (content.length() != 0) {
                             boolean hasPrevContent = false;
-                            int order = tagChildren.indexOf(item);
+                            int order = childrenIt.previousIndex();
                             if (order >= 2) {
                                 Object prev = tagChildren.get(order-1);
                                 hasPrevContent = isContentOrInline(prev);
@@ -35,6 +35,7 @@ package org.htmlcleaner;
 
 import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
 import java.util.TreeSet;
@@ -63,6 +64,9 @@ class CleanTimeValues {
     Set<ITagNodeCondition> pruneTagSet = new HashSet<ITagNodeCondition>();
     Set<TagNode> pruneNodeSet = new HashSet<TagNode>();
     Set<ITagNodeCondition> allowTagSet;
+    // the two sets above compiled when cleaning starts
+    TagNodeConditionSet pruneConditions;
+    TagNodeConditionSet allowConditions;
     
     /**
      * A stack of namespaces for currently open tags. Every xmlns declaration
@@ -71,4 +75,21 @@ class CleanTimeValues {
      * belongs to.
      */
     transient Stack<String> namespace = new Stack<String>();
+
+    /**
+     * Source offsets of the tokens (start inclusive, end exclusive), recorded only if not null.
+     * @see IncrementalDocument
+     */
+    Map<BaseToken, int[]> sourceSpans;
+
+    /**
+     * End tokens that explicitly closed start tag tokens, recorded together with the source spans.
+     */
+    Map<TagNode, EndTagToken> closingTokens;
+
+    /**
+     * Receives the nodes as they are completed when not null, the tree is not built then.
+     * @see StreamingExtractor
+     */
+    StreamingExtractor.Extraction extraction;
 }
\ No newline at end of file
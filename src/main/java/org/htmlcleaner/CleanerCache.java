@@ -0,0 +1,276 @@
+/*  Copyright (c) 2006-2014, HTMLCleaner project
+    All rights reserved.
+
+    Redistribution and use of this software in source and binary forms,
+    with or without modification, are permitted provided that the following
+    conditions are met:
+
+    * Redistributions of source code must retain the above
+      copyright notice, this list of conditions and the
+      following disclaimer.
+
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the
+      following disclaimer in the documentation and/or other
+      materials provided with the distribution.
+
+    * The name of HtmlCleaner may not be used to endorse or promote
+      products derived from this software without specific prior
+      written permission.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+    AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+    IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+    ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+    LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+    CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+    SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+    INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+    CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+    ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+    POSSIBILITY OF SUCH DAMAGE.
+
+    http://htmlcleaner.sourceforge.net/
+*/
+
+package org.htmlcleaner;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ *      Cache of cleaned trees keyed by the cleaned content and the settings of the cleaner, for
+ *      workloads where the same documents or snippets are cleaned over and over. Attach it with
+ *      {@link HtmlCleaner#setCache(CleanerCache)}; one cache can be shared by any number of
+ *      cleaners and threads.
+ * </p>
+ * <p>
+ *      Entries are found by a 64 bit hash of the content, the content itself is kept to rule out
+ *      collisions. Two cleaners share entries if they are of the same class and their properties
+ *      have the same settings. The tag info provider, transformations and prune or allow
+ *      conditions are compared by identity, so after changing any of them in place the cache has
+ *      to be cleared.
+ * </p>
+ * <p>
+ *      Trees are stored frozen. Depending on the constructor, a hit returns either the frozen tree
+ *      itself or a modifiable copy made by {@link TagNode#thaw()}, which copies just the parts
+ *      that are accessed. The least recently used entries are evicted once the estimated memory
+ *      use of contents and trees exceeds the limit. Modification listeners of the properties are
+ *      not notified on a hit, since nothing is cleaned.
+ * </p>
+ */
+public class CleanerCache {
+
+    // rough sizes of objects on a 64 bit JVM, used to estimate the memory taken by a tree
+    private static final int NODE_SIZE = 96;
+    private static final int STRING_SIZE = 40;
+    private static final int ENTRY_SIZE = 128;
+
+    private final long maxSize;
+    private final boolean returnFrozen;
+    private final Map<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private long size;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    /**
+     * Creates a cache that returns modifiable copies of the cached trees.
+     *
+     * @param maxSize maximal estimated memory use in bytes
+     */
+    public CleanerCache(long maxSize) {
+        this(maxSize, false);
+    }
+
+    /**
+     * @param maxSize maximal estimated memory use in bytes
+     * @param returnFrozen true if the cached frozen trees should be returned as they are
+     */
+    public CleanerCache(long maxSize, boolean returnFrozen) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Negative cache size: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.returnFrozen = returnFrozen;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public boolean isReturningFrozen() {
+        return returnFrozen;
+    }
+
+    /**
+     * @return estimated memory use of all entries in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * @return number of cached trees
+     */
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Removes all entries, statistics are kept.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * @param cleaner
+     * @param content
+     * @return key of the tree the cleaner produces from the content
+     */
+    Key createKey(HtmlCleaner cleaner, String content) {
+        return new Key(cleaner.getClass(), cleaner.getProperties().getFingerprint(), content);
+    }
+
+    /**
+     * @param key
+     * @return cached tree, or null if there is none
+     */
+    TagNode get(Key key) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null) {
+                missCount++;
+                return null;
+            }
+            hitCount++;
+        }
+        return returnFrozen ? entry.tree : entry.tree.thaw();
+    }
+
+    /**
+     * Stores a frozen copy of the cleaned tree.
+     *
+     * @param key
+     * @param tree freshly cleaned tree
+     * @return tree to return to the caller of the cleaner
+     */
+    TagNode put(Key key, TagNode tree) {
+        TagNode frozen = tree.freeze();
+        long entrySize = ENTRY_SIZE + 2L * key.content.length() + estimateSize(frozen);
+        if (entrySize <= maxSize) {
+            synchronized (this) {
+                Entry previous = entries.put(key, new Entry(frozen, entrySize));
+                if (previous != null) {
+                    size -= previous.size;
+                }
+                size += entrySize;
+                evict();
+            }
+        }
+        return returnFrozen ? frozen : tree;
+    }
+
+    private void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            size -= iterator.next().size;
+            iterator.remove();
+            evictionCount++;
+        }
+    }
+
+    private static long estimateSize(TagNode tree) {
+        long result = NODE_SIZE;
+        TagNodeIterator iterator = tree.nodeIterator();
+        try {
+            while (iterator.hasNext()) {
+                HtmlNode node = iterator.next();
+                if (node instanceof TagNode) {
+                    TagAttributes attributes = ((TagNode) node).getAttributeStorage();
+                    result += NODE_SIZE;
+                    for (int i = 0; i < attributes.size(); i++) {
+                        result += 2 * STRING_SIZE + 2L * attributes.getValue(i).length();
+                    }
+                } else if (node instanceof ContentNode) {
+                    result += STRING_SIZE + 2L * ((ContentNode) node).getContent().length();
+                } else {
+                    result += NODE_SIZE;
+                }
+            }
+        } finally {
+            iterator.close();
+        }
+        return result;
+    }
+
+    static final class Key {
+
+        private final Class<?> cleanerClass;
+        private final List<Object> fingerprint;
+        private final String content;
+        private final long hash;
+
+        Key(Class<?> cleanerClass, List<Object> fingerprint, String content) {
+            this.cleanerClass = cleanerClass;
+            this.fingerprint = fingerprint;
+            this.content = content;
+            this.hash = hash(content);
+        }
+
+        // 64 bit FNV-1a over the characters
+        private static long hash(String content) {
+            long result = 0xcbf29ce484222325L;
+            for (int i = 0, length = content.length(); i < length; i++) {
+                result ^= content.charAt(i);
+                result *= 0x100000001b3L;
+            }
+            return result;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (hash ^ (hash >>> 32)) * 31 + fingerprint.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && content.length() == other.content.length()
+                && cleanerClass == other.cleanerClass && fingerprint.equals(other.fingerprint)
+                && content.equals(other.content);
+        }
+    }
+
+    private static final class Entry {
+
+        private final TagNode tree;
+        private final long size;
+
+        private Entry(TagNode tree, long size) {
+            this.tree = tree;
+            this.size = size;
+        }
+    }
+}
@@ -87,6 +87,11 @@ public class CleanerProperties implements HtmlModificationListener{
     private boolean omitCdataOutsideScriptAndStyle;
     private boolean deserializeEntities;
     private boolean trimAttributeValues;
+    /**
+     * If this parameter is set to true, tokenizing runs in its own thread and hands tokens over
+     * to the tree building thread, so scanning and tag balancing of one document use two cores.
+     */
+    private boolean pipelinedTokenizing;
     private int htmlVersion;
 
     /**
@@ -394,6 +399,21 @@ public class CleanerProperties implements HtmlModificationListener{
     public void setTrimAttributeValues(boolean trimAttributeValues) {
         this.trimAttributeValues = trimAttributeValues;
     }
+
+    public boolean isPipelinedTokenizing() {
+        return pipelinedTokenizing;
+    }
+
+    /**
+     * Enables tokenizing in a separate thread. The tokenizer thread hands tokens over to the
+     * thread calling {@link HtmlCleaner#clean}, where the tree is built. The resulting tree is the
+     * same as with sequential tokenizing, only the latency of a single document is affected.
+     *
+     * @param pipelinedTokenizing
+     */
+    public void setPipelinedTokenizing(boolean pipelinedTokenizing) {
+        this.pipelinedTokenizing = pipelinedTokenizing;
+    }
     
     /**
      * Resets prune tags set and adds tag name conditions to it.
@@ -515,6 +535,7 @@ public class CleanerProperties implements HtmlModificationListener{
      * collapseNullHtml = CollapseHtml.none
      * charset = "UTF-8";
      * trimAttributeValues = true;
+     * pipelinedTokenizing = false;
      * tagInfoProvider = HTML5TagProvider.INSTANCE
      */
     public void reset() {
@@ -553,6 +574,7 @@ public class CleanerProperties implements HtmlModificationListener{
         htmlModificationListeners = new ArrayList < HtmlModificationListener >();
         omitCdataOutsideScriptAndStyle = false;
         trimAttributeValues = true;
+        pipelinedTokenizing = false;
     }
 
     private void resetPruneTagSet() {
@@ -575,6 +597,28 @@ public class CleanerProperties implements HtmlModificationListener{
         }
     }
 
+    /**
+     * Values of all settings that influence the cleaned tree, so that two property sets with equal
+     * fingerprints produce the same tree from the same input. The tag info provider, non-empty
+     * transformations and the prune and allow conditions are compared by identity, as they
+     * don't define equality.
+     *
+     * @return list that is equal to the fingerprint of any other properties with the same settings
+     * @see CleanerCache
+     */
+    List<Object> getFingerprint() {
+        return Arrays.<Object>asList(
+            tagInfoProvider, advancedXmlEscape, useCdataFor, translateSpecialEntities,
+            recognizeUnicodeChars, omitUnknownTags, treatUnknownTagsAsContent, omitDeprecatedTags,
+            omitComments, treatDeprecatedTagsAsContent, omitXmlDeclaration, omitDoctypeDeclaration,
+            omitHtmlEnvelope, useEmptyElementTags, allowMultiWordAttributes, booleanAttributeValues,
+            ignoreQuestAndExclam, allowHtmlInsideAttributes, namespacesAware, transSpecialEntitiesToNCR,
+            omitCdataOutsideScriptAndStyle, deserializeEntities, trimAttributeValues, htmlVersion,
+            addNewlineToHeadAndBody, keepWhitespaceAndCommentsInHead, hyphenReplacementInComment,
+            transResCharsToNCR, cleanerTransformations.isEmpty() ? null : cleanerTransformations,
+            new HashSet<ITagNodeCondition>(pruneTagSet), new HashSet<ITagNodeCondition>(allowTagSet));
+    }
+
     /**
      * Adds a listener to the list of objects that will be notified about changes that
      * cleaner does during cleanup process.
@@ -48,6 +48,7 @@ public class CleanerTransformations {
 
     private Map mappings = new HashMap();
     private TagTransformation globalTransformations=new TagTransformation(); 
+    private boolean hasGlobalTransformations;
 
     public CleanerTransformations() {
         
@@ -71,6 +72,14 @@ public class CleanerTransformations {
     
     public void addGlobalTransformation(AttributeTransformation attributeTransformation) {
         globalTransformations.addAttributePatternTransformation(attributeTransformation);
+        hasGlobalTransformations = true;
+    }
+
+    /**
+     * @return true if neither tag nor global transformations are defined
+     */
+    boolean isEmpty() {
+        return mappings.isEmpty() && !hasGlobalTransformations;
     }
 
     public boolean hasTransformationForTag(String tagName)  {
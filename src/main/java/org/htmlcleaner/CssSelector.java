@@ -0,0 +1,698 @@
+/*  Copyright (c) 2006-2014, HTMLCleaner project
+    All rights reserved.
+
+    Redistribution and use of this software in source and binary forms,
+    with or without modification, are permitted provided that the following
+    conditions are met:
+
+    * Redistributions of source code must retain the above
+      copyright notice, this list of conditions and the
+      following disclaimer.
+
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the
+      following disclaimer in the documentation and/or other
+      materials provided with the distribution.
+
+    * The name of HtmlCleaner may not be used to endorse or promote
+      products derived from this software without specific prior
+      written permission.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+    AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+    IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+    ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+    LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+    CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+    SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+    INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+    CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+    ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+    POSSIBILITY OF SUCH DAMAGE.
+
+    http://htmlcleaner.sourceforge.net/
+*/
+
+
+package org.htmlcleaner;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.htmlcleaner.conditional.ITagNodeCondition;
+import org.htmlcleaner.conditional.TagNodeAttExistsCondition;
+import org.htmlcleaner.conditional.TagNodeAttValueCondition;
+import org.htmlcleaner.conditional.TagNodeClassCondition;
+import org.htmlcleaner.conditional.TagNodeNameCondition;
+
+/**
+ * <p>Utility for searching cleaned document tree with CSS selectors.</p>
+ * Supported are:
+ * <code>
+ * <ul>
+ *      <li>type and universal selectors: div, *</li>
+ *      <li>id and class selectors: #main, .item.selected</li>
+ *      <li>attribute selectors: [href], [lang=en], [class~=x], [lang|=en], [href^=http], [src$=".png"], [title*=news]</li>
+ *      <li>combinators: div p, ul &gt; li, h1 + p, h1 ~ p</li>
+ *      <li>structural pseudo-classes: :nth-child(2n+1), :nth-last-child(odd), :first-child, :last-child, :only-child</li>
+ *      <li>negation: :not(.hidden), :not([disabled], span)</li>
+ *      <li>selector groups: h1, h2</li>
+ * </ul>
+ * </code>
+ * <p>
+ *      The selector is compiled once into conditions for each compound selector. Elements are
+ *      matched from right to left: candidates for the rightmost compound selector are looked up
+ *      by id, class, tag name or attribute in the element index of the searched node or its
+ *      indexed ancestor if it is up to date (see {@link TagNode#setIndexed(boolean)}), or found by walking its subtree
+ *      otherwise, and then checked against their ancestors and preceding siblings.
+ *      Instances are immutable and can be used by several threads at once,
+ *      {@link #compile(String)} returns shared instances for recently used selectors.
+ * </p>
+ * <p>
+ *      Only descendants of the searched node are selected, while the node itself may be matched
+ *      by the left part of a selector. Tag and attribute names are compared ignoring case,
+ *      ids, classes and attribute values are case sensitive.
+ * </p>
+ */
+public class CssSelector {
+
+    // number of compiled selectors kept by compile(String)
+    private static final int CACHE_SIZE = 512;
+
+    private static final Map<String, CssSelector> CACHE = new LinkedHashMap<String, CssSelector>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CssSelector> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private final String selector;
+    // comma separated alternatives
+    private final Complex[] alternatives;
+
+    /**
+     * Compiles the selector.
+     *
+     * @param selector
+     * @throws IllegalArgumentException if the selector is malformed or not supported
+     */
+    public CssSelector(String selector) {
+        this.selector = selector;
+        this.alternatives = new Parser(selector).parse();
+    }
+
+    /**
+     * Returns compiled selector, shared with earlier callers of this method asking for the same
+     * selector.
+     *
+     * @param selector
+     * @return CssSelector instance for the selector.
+     * @throws IllegalArgumentException if the selector is malformed or not supported
+     */
+    public static CssSelector compile(String selector) {
+        synchronized (CACHE) {
+            CssSelector cssSelector = CACHE.get(selector);
+            if (cssSelector != null) {
+                return cssSelector;
+            }
+        }
+        CssSelector cssSelector = new CssSelector(selector);
+        synchronized (CACHE) {
+            CACHE.put(selector, cssSelector);
+        }
+        return cssSelector;
+    }
+
+    /**
+     * @param root
+     * @return Elements below the root matching the selector, in document order.
+     */
+    public List<TagNode> select(TagNode root) {
+        List<TagNode> result = new ArrayList<TagNode>();
+        collect(root, result);
+        return result;
+    }
+
+    /**
+     * @param root
+     * @return First element below the root in document order matching the selector, or null
+     *         if there is none.
+     */
+    public TagNode selectFirst(TagNode root) {
+        return collect(root, null);
+    }
+
+    /**
+     * @param element
+     * @return Whether the element matches the selector, considering all its ancestors.
+     */
+    public boolean matches(TagNode element) {
+        return matches(element, new Scope(null, null));
+    }
+
+    /**
+     * Adds matching elements to the result, or returns the first one if result is null.
+     */
+    private TagNode collect(TagNode root, List<TagNode> result) {
+        TagNodeIndex index = root.getIndex();
+        Scope scope = new Scope(root, index);
+        if (index != null) {
+            for (TagNode candidate : getCandidates(index, root)) {
+                if (matches(candidate, scope)) {
+                    if (result == null) {
+                        return candidate;
+                    }
+                    result.add(candidate);
+                }
+            }
+            return null;
+        }
+
+        // document order walk with an explicit stack, children are pushed in reverse order
+        List<TagNode> stack = new ArrayList<TagNode>();
+        pushChildren(root, stack);
+        while (!stack.isEmpty()) {
+            TagNode node = stack.remove(stack.size() - 1);
+            if (matches(node, scope)) {
+                if (result == null) {
+                    return node;
+                }
+                result.add(node);
+            }
+            pushChildren(node, stack);
+        }
+        return null;
+    }
+
+    private List<TagNode> getCandidates(TagNodeIndex index, TagNode root) {
+        if (alternatives.length == 1) {
+            return alternatives[0].getSubject().getCandidates(index, root);
+        }
+        return index.getElements(root);
+    }
+
+    private boolean matches(TagNode element, Scope scope) {
+        for (Complex alternative : alternatives) {
+            if (alternative.matches(element, alternative.compounds.length - 1, scope)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void pushChildren(TagNode node, List<TagNode> stack) {
+        List<? extends BaseToken> children = node.getAllChildren();
+        for (int i = children.size() - 1; i >= 0; i--) {
+            BaseToken child = children.get(i);
+            if (child instanceof TagNode) {
+                stack.add((TagNode) child);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return selector;
+    }
+
+    /**
+     * Tree navigation during one search. The root bounds the ancestors, parents are taken from
+     * the index if there is one, and positions of siblings are computed once per parent.
+     */
+    private static final class Scope {
+        private final TagNode root;
+        private final TagNodeIndex index;
+        private Map<TagNode, TagNode[]> childTags;
+        private Map<TagNode, Integer> positions;
+
+        private Scope(TagNode root, TagNodeIndex index) {
+            this.root = root;
+            this.index = index;
+        }
+
+        private TagNode getParent(TagNode element) {
+            if (element == root) {
+                return null;
+            }
+            return index != null ? index.getParent(element) : element.getParent();
+        }
+
+        /**
+         * @return Element children of the parent of the element, or null if it has no parent.
+         */
+        private TagNode[] getSiblings(TagNode element) {
+            TagNode parent = getParent(element);
+            if (parent == null) {
+                return null;
+            }
+            if (childTags == null) {
+                childTags = new IdentityHashMap<TagNode, TagNode[]>();
+                positions = new IdentityHashMap<TagNode, Integer>();
+            }
+            TagNode[] siblings = childTags.get(parent);
+            if (siblings == null) {
+                siblings = parent.getChildTags();
+                childTags.put(parent, siblings);
+                for (int i = 0; i < siblings.length; i++) {
+                    positions.put(siblings[i], i);
+                }
+            }
+            return siblings;
+        }
+
+        /**
+         * @return Position of the element among the siblings just returned by getSiblings().
+         */
+        private int getPosition(TagNode element) {
+            return positions.get(element);
+        }
+    }
+
+    /**
+     * Compound selectors joined by combinators, the last compound selector is the subject.
+     */
+    private static final class Complex {
+        private final Compound[] compounds;
+        // combinators[i] joins compounds[i] and compounds[i + 1]
+        private final char[] combinators;
+
+        private Complex(Compound[] compounds, char[] combinators) {
+            this.compounds = compounds;
+            this.combinators = combinators;
+        }
+
+        private Compound getSubject() {
+            return compounds[compounds.length - 1];
+        }
+
+        /**
+         * Right to left matching of compounds up to the k-th one.
+         */
+        private boolean matches(TagNode element, int k, Scope scope) {
+            if (!compounds[k].matches(element, scope)) {
+                return false;
+            }
+            if (k == 0) {
+                return true;
+            }
+            switch (combinators[k - 1]) {
+                case '>': {
+                    TagNode parent = scope.getParent(element);
+                    return parent != null && matches(parent, k - 1, scope);
+                }
+                case '+': {
+                    TagNode[] siblings = scope.getSiblings(element);
+                    int position = siblings != null ? scope.getPosition(element) : 0;
+                    return position > 0 && matches(siblings[position - 1], k - 1, scope);
+                }
+                case '~': {
+                    TagNode[] siblings = scope.getSiblings(element);
+                    int position = siblings != null ? scope.getPosition(element) : 0;
+                    for (int i = position - 1; i >= 0; i--) {
+                        if (matches(siblings[i], k - 1, scope)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+                default: {
+                    for (TagNode ancestor = scope.getParent(element); ancestor != null; ancestor = scope.getParent(ancestor)) {
+                        if (matches(ancestor, k - 1, scope)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sequence of simple selectors applying to one element.
+     */
+    private static final class Compound {
+        private final List<ITagNodeCondition> conditions = new ArrayList<ITagNodeCondition>();
+        // conditions whose candidates can be looked up in the index
+        private final List<ITagNodeCondition> indexed = new ArrayList<ITagNodeCondition>();
+        private final List<Nth> positions = new ArrayList<Nth>();
+        private final List<Compound> negations = new ArrayList<Compound>();
+
+        private void add(ITagNodeCondition condition, ITagNodeCondition indexedCondition) {
+            conditions.add(condition);
+            indexed.add(indexedCondition);
+        }
+
+        /**
+         * @return Smallest list of candidates below the root the index has for any of the conditions.
+         */
+        private List<TagNode> getCandidates(TagNodeIndex index, TagNode root) {
+            List<TagNode> result = null;
+            for (ITagNodeCondition condition : indexed) {
+                List<TagNode> candidates = index.getCandidates(condition, root);
+                if (candidates != null && (result == null || candidates.size() < result.size())) {
+                    result = candidates;
+                }
+            }
+            return result != null ? result : index.getElements(root);
+        }
+
+        private boolean matches(TagNode element, Scope scope) {
+            for (ITagNodeCondition condition : conditions) {
+                if (!condition.satisfy(element)) {
+                    return false;
+                }
+            }
+            if (!positions.isEmpty()) {
+                TagNode[] siblings = scope.getSiblings(element);
+                if (siblings == null) {
+                    return false;
+                }
+                int position = scope.getPosition(element);
+                for (Nth nth : positions) {
+                    if (!nth.matches(nth.isFromEnd ? siblings.length - position : position + 1)) {
+                        return false;
+                    }
+                }
+            }
+            for (Compound negation : negations) {
+                if (negation.matches(element, scope)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Positions an + b for some n >= 0, counted from 1.
+     */
+    private static final class Nth {
+        private final int a;
+        private final int b;
+        private final boolean isFromEnd;
+
+        private Nth(int a, int b, boolean isFromEnd) {
+            this.a = a;
+            this.b = b;
+            this.isFromEnd = isFromEnd;
+        }
+
+        private boolean matches(int position) {
+            int diff = position - b;
+            if (a == 0) {
+                return diff == 0;
+            }
+            return diff / a >= 0 && diff % a == 0;
+        }
+    }
+
+    /**
+     * Attribute selectors other than presence and equality.
+     */
+    private static final class AttributeCondition implements ITagNodeCondition {
+        private final String attName;
+        private final char operator;
+        private final String attValue;
+        // a value containing whitespace is never one of the whitespace separated words
+        private final boolean isWord;
+
+        private AttributeCondition(String attName, char operator, String attValue) {
+            this.attName = attName;
+            this.operator = operator;
+            this.attValue = attValue;
+            this.isWord = !attValue.matches(".*\\s.*");
+        }
+
+        public boolean satisfy(TagNode tagNode) {
+            String value = tagNode.getAttributeByName(attName);
+            if (value == null) {
+                return false;
+            }
+            switch (operator) {
+                case '~':
+                    return isWord && containsWord(value, attValue);
+                case '|':
+                    return value.equals(attValue) || value.startsWith(attValue + "-");
+                case '^':
+                    return attValue.length() > 0 && value.startsWith(attValue);
+                case '$':
+                    return attValue.length() > 0 && value.endsWith(attValue);
+                default:
+                    return attValue.length() > 0 && value.contains(attValue);
+            }
+        }
+
+        private static boolean containsWord(String words, String word) {
+            int length = word.length();
+            if (length == 0) {
+                return false;
+            }
+            int index = words.indexOf(word);
+            while (index >= 0) {
+                boolean startsWord = index == 0 || Character.isWhitespace(words.charAt(index - 1));
+                boolean endsWord = index + length == words.length() || Character.isWhitespace(words.charAt(index + length));
+                if (startsWord && endsWord) {
+                    return true;
+                }
+                index = words.indexOf(word, index + 1);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Recursive descent parser of selector groups.
+     */
+    private static final class Parser {
+        private final String source;
+        private int pos;
+
+        private Parser(String source) {
+            this.source = source;
+        }
+
+        private Complex[] parse() {
+            List<Complex> result = new ArrayList<Complex>();
+            do {
+                result.add(parseComplex());
+            } while (consume(','));
+            skipWhitespace();
+            if (pos < source.length()) {
+                throw error("unexpected character '" + source.charAt(pos) + "'");
+            }
+            return result.toArray(new Complex[result.size()]);
+        }
+
+        private Complex parseComplex() {
+            List<Compound> compounds = new ArrayList<Compound>();
+            StringBuilder combinators = new StringBuilder();
+            skipWhitespace();
+            compounds.add(parseCompound());
+            while (true) {
+                boolean isSpaced = skipWhitespace();
+                char c = peek();
+                if (c == '>' || c == '+' || c == '~') {
+                    pos++;
+                    skipWhitespace();
+                } else if (isSpaced && c != ',' && c != 0) {
+                    c = ' ';
+                } else {
+                    break;
+                }
+                combinators.append(c);
+                compounds.add(parseCompound());
+            }
+            return new Complex(compounds.toArray(new Compound[compounds.size()]), combinators.toString().toCharArray());
+        }
+
+        private Compound parseCompound() {
+            Compound compound = new Compound();
+            int start = pos;
+            if (consume('*')) {
+                // matches any element
+            } else if (isIdentifierStart(peek())) {
+                TagNodeNameCondition condition = new TagNodeNameCondition(parseIdentifier());
+                compound.add(condition, condition);
+            }
+            while (true) {
+                char c = peek();
+                if (c == '#') {
+                    pos++;
+                    TagNodeAttValueCondition condition = new TagNodeAttValueCondition("id", parseIdentifier(), true);
+                    compound.add(condition, condition);
+                } else if (c == '.') {
+                    pos++;
+                    TagNodeClassCondition condition = new TagNodeClassCondition(parseIdentifier());
+                    compound.add(condition, condition);
+                } else if (c == '[') {
+                    pos++;
+                    parseAttribute(compound);
+                } else if (c == ':') {
+                    pos++;
+                    parsePseudoClass(compound);
+                } else {
+                    break;
+                }
+            }
+            if (pos == start) {
+                throw error(peek() == 0 ? "selector expected" : "unexpected character '" + peek() + "'");
+            }
+            return compound;
+        }
+
+        private void parseAttribute(Compound compound) {
+            skipWhitespace();
+            String attName = parseIdentifier();
+            skipWhitespace();
+            char c = peek();
+            if (consume(']')) {
+                TagNodeAttExistsCondition condition = new TagNodeAttExistsCondition(attName);
+                compound.add(condition, condition);
+                return;
+            }
+            if (c == '~' || c == '|' || c == '^' || c == '$' || c == '*') {
+                pos++;
+            }
+            expect('=');
+            skipWhitespace();
+            String attValue;
+            char quote = peek();
+            if (quote == '"' || quote == '\'') {
+                int end = source.indexOf(quote, pos + 1);
+                if (end < 0) {
+                    throw error("unclosed string");
+                }
+                attValue = source.substring(pos + 1, end);
+                pos = end + 1;
+            } else {
+                attValue = parseIdentifier();
+            }
+            skipWhitespace();
+            expect(']');
+            if (c == '=') {
+                TagNodeAttValueCondition condition = new TagNodeAttValueCondition(attName, attValue, true);
+                compound.add(condition, condition);
+            } else {
+                compound.add(new AttributeCondition(attName, c, attValue), new TagNodeAttExistsCondition(attName));
+            }
+        }
+
+        private void parsePseudoClass(Compound compound) {
+            String name = parseIdentifier().toLowerCase();
+            if ("first-child".equals(name)) {
+                compound.positions.add(new Nth(0, 1, false));
+            } else if ("last-child".equals(name)) {
+                compound.positions.add(new Nth(0, 1, true));
+            } else if ("only-child".equals(name)) {
+                compound.positions.add(new Nth(0, 1, false));
+                compound.positions.add(new Nth(0, 1, true));
+            } else if ("nth-child".equals(name) || "nth-last-child".equals(name)) {
+                expect('(');
+                int end = source.indexOf(')', pos);
+                if (end < 0) {
+                    throw error("')' expected");
+                }
+                compound.positions.add(parseNth(source.substring(pos, end), "nth-last-child".equals(name)));
+                pos = end + 1;
+            } else if ("not".equals(name)) {
+                expect('(');
+                do {
+                    skipWhitespace();
+                    compound.negations.add(parseCompound());
+                    skipWhitespace();
+                } while (consume(','));
+                expect(')');
+            } else {
+                throw error("unsupported pseudo-class :" + name);
+            }
+        }
+
+        private Nth parseNth(String expression, boolean isFromEnd) {
+            String nth = expression.replaceAll("\\s+", "").toLowerCase();
+            if ("odd".equals(nth)) {
+                return new Nth(2, 1, isFromEnd);
+            } else if ("even".equals(nth)) {
+                return new Nth(2, 0, isFromEnd);
+            }
+            try {
+                int n = nth.indexOf('n');
+                if (n < 0) {
+                    return new Nth(0, parseInteger(nth), isFromEnd);
+                }
+                String a = nth.substring(0, n);
+                String b = nth.substring(n + 1);
+                if (b.startsWith("+")) {
+                    b = b.substring(1);
+                } else if (b.length() > 0 && !b.startsWith("-")) {
+                    throw error("malformed :nth-child(" + expression + ")");
+                }
+                return new Nth("".equals(a) || "+".equals(a) ? 1 : "-".equals(a) ? -1 : parseInteger(a),
+                               b.length() == 0 ? 0 : Integer.parseInt(b),
+                               isFromEnd);
+            } catch (NumberFormatException e) {
+                throw error("malformed :nth-child(" + expression + ")");
+            }
+        }
+
+        private static int parseInteger(String value) {
+            return Integer.parseInt(value.startsWith("+") ? value.substring(1) : value);
+        }
+
+        private String parseIdentifier() {
+            StringBuilder result = new StringBuilder();
+            while (pos < source.length()) {
+                char c = source.charAt(pos);
+                if (c == '\\' && pos + 1 < source.length()) {
+                    result.append(source.charAt(pos + 1));
+                    pos += 2;
+                } else if (isIdentifierStart(c) || (c >= '0' && c <= '9') || c == '-') {
+                    result.append(c);
+                    pos++;
+                } else {
+                    break;
+                }
+            }
+            if (result.length() == 0) {
+                throw error("identifier expected");
+            }
+            return result.toString();
+        }
+
+        private static boolean isIdentifierStart(char c) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == '\\' || c > 0x7F;
+        }
+
+        private boolean skipWhitespace() {
+            int start = pos;
+            while (pos < source.length() && Character.isWhitespace(source.charAt(pos))) {
+                pos++;
+            }
+            return pos > start;
+        }
+
+        private char peek() {
+            return pos < source.length() ? source.charAt(pos) : 0;
+        }
+
+        private boolean consume(char c) {
+            if (peek() == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!consume(c)) {
+                throw error("'" + c + "' expected");
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("Invalid selector \"" + source + "\" at " + pos + ": " + message);
+        }
+    }
+}
@@ -0,0 +1,321 @@
+/*  Copyright (c) 2006-2014, HTMLCleaner project
+    All rights reserved.
+
+    Redistribution and use of this software in source and binary forms,
+    with or without modification, are permitted provided that the following
+    conditions are met:
+
+    * Redistributions of source code must retain the above
+      copyright notice, this list of conditions and the
+      following disclaimer.
+
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the
+      following disclaimer in the documentation and/or other
+      materials provided with the distribution.
+
+    * The name of HtmlCleaner may not be used to endorse or promote
+      products derived from this software without specific prior
+      written permission.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+    AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+    IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+    ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+    LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+    CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+    SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+    INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+    CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+    ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+    POSSIBILITY OF SUCH DAMAGE.
+
+    http://htmlcleaner.sourceforge.net/
+*/
+
+package org.htmlcleaner;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ *      Store of cleaned trees on local disk. Trees are appended to segment files in the indexed
+ *      binary format of {@link TagNodeBinaryWriter}, and numbered in the order they were added.
+ *      An index file keeps the segment, offset and length of every tree.
+ * </p>
+ * <p>
+ *      Segments are memory-mapped for reading, and {@link #get(int)} returns a view of a stored tree
+ *      which decodes only the nodes that are actually reached. Point queries, such as the title of a
+ *      page or an XPath expression limited to a part of it, therefore cost little even for large
+ *      pages in a large store. Views are ordinary {@link TagNode} trees: changing them never affects
+ *      the store.
+ * </p>
+ * <p>
+ *      The store is thread safe, while each view is to be used by a single thread at a time.
+ *      Only one store may be open for a directory at a time.
+ * </p>
+ */
+public class DocumentStore implements Closeable {
+
+    /** Default maximal size of a segment file. */
+    public static final int DEFAULT_SEGMENT_SIZE = 256 * 1024 * 1024;
+
+    private static final String INDEX_FILE = "documents.idx";
+    private static final int INDEX_ENTRY_SIZE = 16;
+
+    private final File directory;
+    private final int maxSegmentSize;
+    private final TagNodeBinaryWriter writer = new TagNodeBinaryWriter(false, true);
+    private final RandomAccessFile indexFile;
+    private final List<Segment> segments = new ArrayList<Segment>();
+
+    // segment, offset and length of every document
+    private int[] documentSegments = new int[64];
+    private long[] documentOffsets = new long[64];
+    private int[] documentLengths = new int[64];
+    private int documentCount;
+    private boolean closed;
+
+    /**
+     * Opens the store in the directory, creating both if they don't exist yet.
+     *
+     * @param directory
+     * @throws IOException
+     */
+    public DocumentStore(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param directory
+     * @param maxSegmentSize maximal size of a segment file in bytes; a single larger tree still gets
+     *        a segment of its own
+     * @throws IOException
+     */
+    public DocumentStore(File directory, int maxSegmentSize) throws IOException {
+        if (maxSegmentSize <= 0) {
+            throw new IllegalArgumentException("Segment size must be positive: " + maxSegmentSize);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        this.directory = directory;
+        this.maxSegmentSize = maxSegmentSize;
+        this.indexFile = new RandomAccessFile(new File(directory, INDEX_FILE), "rw");
+        try {
+            loadIndex();
+        } catch (IOException e) {
+            closeFiles();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the index; a partly written last entry, left by a crash, is dropped.
+     */
+    private void loadIndex() throws IOException {
+        int count = (int) (indexFile.length() / INDEX_ENTRY_SIZE);
+        indexFile.setLength((long) count * INDEX_ENTRY_SIZE);
+        ensureCapacity(count);
+        ByteBuffer entries = indexFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, (long) count * INDEX_ENTRY_SIZE);
+        for (int i = 0; i < count; i++) {
+            documentSegments[i] = entries.getInt();
+            documentOffsets[i] = entries.getLong();
+            documentLengths[i] = entries.getInt();
+        }
+        documentCount = count;
+        for (int segment = 0; ; segment++) {
+            File file = segmentFile(segment);
+            if (!file.exists()) {
+                break;
+            }
+            segments.add(new Segment(file));
+        }
+        if (count > 0 && documentSegments[count - 1] >= segments.size()) {
+            throw new IOException("Segment file missing in " + directory);
+        }
+        indexFile.seek(indexFile.length());
+    }
+
+    /**
+     * Adds the tree to the store.
+     *
+     * @param node root of the tree
+     * @return number of the stored tree
+     * @throws IOException
+     */
+    public synchronized int add(TagNode node) throws IOException {
+        checkOpen();
+        byte[] bytes = writer.toByteArray(node);
+        if (segments.isEmpty() || segments.get(segments.size() - 1).size + bytes.length > maxSegmentSize) {
+            segments.add(new Segment(segmentFile(segments.size())));
+        }
+        int segmentNumber = segments.size() - 1;
+        Segment segment = segments.get(segmentNumber);
+        long offset = segment.append(bytes);
+
+        ensureCapacity(documentCount + 1);
+        documentSegments[documentCount] = segmentNumber;
+        documentOffsets[documentCount] = offset;
+        documentLengths[documentCount] = bytes.length;
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        entry.putInt(segmentNumber).putLong(offset).putInt(bytes.length).flip();
+        indexFile.getChannel().write(entry, (long) documentCount * INDEX_ENTRY_SIZE);
+        return documentCount++;
+    }
+
+    /**
+     * @return number of stored trees
+     */
+    public synchronized int size() {
+        return documentCount;
+    }
+
+    /**
+     * Returns a view of a stored tree. Nodes are decoded from the mapped segment only when they are
+     * first reached, and nodes that are never reached cost nothing.
+     *
+     * @param documentNumber number returned by {@link #add(TagNode)}
+     * @return root of the tree
+     * @throws IOException if the stored tree cannot be read
+     */
+    public TagNode get(int documentNumber) throws IOException {
+        ByteBuffer buffer;
+        int offset;
+        synchronized (this) {
+            checkOpen();
+            if (documentNumber < 0 || documentNumber >= documentCount) {
+                throw new IndexOutOfBoundsException("Document number: " + documentNumber);
+            }
+            Segment segment = segments.get(documentSegments[documentNumber]);
+            long end = documentOffsets[documentNumber] + documentLengths[documentNumber];
+            buffer = segment.map(end);
+            offset = (int) documentOffsets[documentNumber];
+        }
+        return TagNodeBinaryReader.view(buffer, offset);
+    }
+
+    /**
+     * Evaluates the XPath expression against a stored tree, decoding only the nodes it reaches.
+     *
+     * @param documentNumber
+     * @param xPathExpression
+     * @return result of the evaluation
+     * @throws IOException if the stored tree cannot be read
+     * @throws XPatherException if the expression is not valid
+     */
+    public Object[] evaluateXPath(int documentNumber, String xPathExpression) throws IOException, XPatherException {
+        return get(documentNumber).evaluateXPath(xPathExpression);
+    }
+
+    /**
+     * Forces all added trees to the disk.
+     *
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        checkOpen();
+        for (Segment segment: segments) {
+            segment.channel.force(false);
+        }
+        indexFile.getChannel().force(false);
+    }
+
+    /**
+     * Closes the files of the store. Views obtained before stay usable as long as their segments are
+     * mapped, that is until they are garbage collected.
+     */
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            closeFiles();
+        }
+    }
+
+    private void closeFiles() throws IOException {
+        IOException failure = null;
+        for (Segment segment: segments) {
+            try {
+                segment.file.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        segments.clear();
+        indexFile.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Document store is closed");
+        }
+    }
+
+    private File segmentFile(int number) {
+        return new File(directory, String.format("segment-%06d.bin", Integer.valueOf(number)));
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > documentOffsets.length) {
+            int length = Math.max(capacity, documentOffsets.length * 2);
+            int[] newSegments = new int[length];
+            System.arraycopy(documentSegments, 0, newSegments, 0, documentCount);
+            documentSegments = newSegments;
+            long[] newOffsets = new long[length];
+            System.arraycopy(documentOffsets, 0, newOffsets, 0, documentCount);
+            documentOffsets = newOffsets;
+            int[] newLengths = new int[length];
+            System.arraycopy(documentLengths, 0, newLengths, 0, documentCount);
+            documentLengths = newLengths;
+        }
+    }
+
+    /**
+     * Segment file, mapped again whenever a tree beyond the current mapping is requested.
+     */
+    private static final class Segment {
+
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private long size;
+        private MappedByteBuffer mapping;
+
+        private Segment(File file) throws IOException {
+            this.file = new RandomAccessFile(file, "rw");
+            this.channel = this.file.getChannel();
+            this.size = channel.size();
+        }
+
+        private long append(byte[] bytes) throws IOException {
+            long offset = size;
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, offset + buffer.position());
+            }
+            size += bytes.length;
+            return offset;
+        }
+
+        /**
+         * @param end position up to which the segment must be mapped
+         * @return read-only buffer over the segment, used with absolute positions only
+         */
+        private ByteBuffer map(long end) throws IOException {
+            if (mapping == null || mapping.capacity() < end) {
+                mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            return mapping;
+        }
+    }
+}
@@ -0,0 +1,527 @@
+/*  Copyright (c) 2006-2014, HTMLCleaner project
+    All rights reserved.
+
+    Redistribution and use of this software in source and binary forms,
+    with or without modification, are permitted provided that the following
+    conditions are met:
+
+    * Redistributions of source code must retain the above
+      copyright notice, this list of conditions and the
+      following disclaimer.
+
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the
+      following disclaimer in the documentation and/or other
+      materials provided with the distribution.
+
+    * The name of HtmlCleaner may not be used to endorse or promote
+      products derived from this software without specific prior
+      written permission.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+    AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+    IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+    ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+    LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+    CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+    SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+    INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+    CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+    ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+    POSSIBILITY OF SUCH DAMAGE.
+
+    http://htmlcleaner.sourceforge.net/
+*/
+
+package org.htmlcleaner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ *      Immutable, compact representation of a cleaned tree. Nodes are numbered in document order,
+ *      the root element being node 0, and every node property is kept in a column - an array indexed
+ *      by node number. Element and attribute names are stored once per document in a string table,
+ *      while text, comments and attribute values share a single character array.
+ * </p>
+ * <p>
+ *      The document can be navigated directly through node numbers, or through {@link TagNode}
+ *      views created by {@link #getRootNode()} and {@link #getNode(int)}. Children of a view are
+ *      created only when they are first accessed, so looking at a small part of a large document
+ *      costs little. Views are ordinary, independent TagNode trees: they may be changed freely, which
+ *      never affects the document or other views.
+ * </p>
+ * <p>
+ *      Other tokens that may be left in the tree, such as unmatched end tags, are kept as they are
+ *      and shared by all views.
+ * </p>
+ * <p>
+ *      Instances are thread safe; the views are not.
+ * </p>
+ */
+public final class FlatDocument {
+
+    /** Kind of element nodes. */
+    public static final int ELEMENT = 0;
+    /** Kind of text nodes, created for {@link ContentNode} instances. */
+    public static final int TEXT = 1;
+    /** Kind of CDATA nodes, created for {@link CData} instances. */
+    public static final int CDATA = 2;
+    /** Kind of comment nodes. */
+    public static final int COMMENT = 3;
+    /** Kind of any other tokens left in the tree. */
+    public static final int OTHER = 4;
+
+    private static final int NONE = -1;
+
+    private static final byte FOREIGN_MARKUP = 1;
+    private static final byte FOREIGN_MARKUP_SET = 2;
+    private static final byte AUTO_GENERATED = 4;
+    private static final byte NOT_TRIMMING_ATTRIBUTE_VALUES = 8;
+
+    private final int nodeCount;
+    private final byte[] kinds;
+    private final byte[] flags;
+    // string table index of element names, or offset into chars of node content
+    private final int[] nameOrContentOffset;
+    // length of node content, unused for elements
+    private final int[] contentLength;
+    private final int[] parents;
+    private final int[] firstChildren;
+    private final int[] nextSiblings;
+    // attributes of node i are at positions attributeStarts[i] to attributeStarts[i + 1] - 1
+    private final int[] attributeStarts;
+    private final int[] attributeNames;
+    private final int[] attributeValueOffsets;
+    // -1 for null values
+    private final int[] attributeValueLengths;
+
+    private final String[] strings;
+    private final char[] chars;
+
+    private final Map<Integer, Map<String, String>> namespaceDeclarations;
+    private final Map<Integer, BaseToken> otherTokens;
+    private final DoctypeToken docType;
+
+    /**
+     * Creates flat copy of the tree with the specified root.
+     *
+     * @param rootNode
+     */
+    public FlatDocument(TagNode rootNode) {
+        Builder builder = new Builder();
+        builder.build(rootNode);
+
+        this.nodeCount = builder.nodeCount;
+        this.kinds = copyOf(builder.kinds, nodeCount);
+        this.flags = copyOf(builder.flags, nodeCount);
+        this.nameOrContentOffset = copyOf(builder.nameOrContentOffset, nodeCount);
+        this.contentLength = copyOf(builder.contentLength, nodeCount);
+        this.parents = copyOf(builder.parents, nodeCount);
+        this.firstChildren = copyOf(builder.firstChildren, nodeCount);
+        this.nextSiblings = copyOf(builder.nextSiblings, nodeCount);
+        builder.attributeStarts[nodeCount] = builder.attributeCount;
+        this.attributeStarts = copyOf(builder.attributeStarts, nodeCount + 1);
+        this.attributeNames = copyOf(builder.attributeNames, builder.attributeCount);
+        this.attributeValueOffsets = copyOf(builder.attributeValueOffsets, builder.attributeCount);
+        this.attributeValueLengths = copyOf(builder.attributeValueLengths, builder.attributeCount);
+        this.strings = builder.strings.toArray(new String[builder.strings.size()]);
+        this.chars = builder.chars.toString().toCharArray();
+        this.namespaceDeclarations = builder.namespaceDeclarations;
+        this.otherTokens = builder.otherTokens;
+        this.docType = rootNode.getDocType();
+    }
+
+    /**
+     * @return Number of nodes in the document, including text and comment nodes.
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @param node
+     * @return One of {@link #ELEMENT}, {@link #TEXT}, {@link #CDATA}, {@link #COMMENT} or {@link #OTHER}.
+     */
+    public int getKind(int node) {
+        return kinds[node];
+    }
+
+    /**
+     * @param node
+     * @return Element name as returned by {@link TagNode#getName()}, or null if the node is not an element.
+     */
+    public String getName(int node) {
+        if (kinds[node] != ELEMENT) {
+            return null;
+        }
+        String name = strings[nameOrContentOffset[node]];
+        return (flags[node] & FOREIGN_MARKUP) != 0 || name == null ? name : name.toLowerCase();
+    }
+
+    /**
+     * @param node
+     * @return Content of a text, CDATA or comment node, or null for other nodes.
+     */
+    public String getContent(int node) {
+        if (kinds[node] == ELEMENT || kinds[node] == OTHER) {
+            return null;
+        }
+        return new String(chars, nameOrContentOffset[node], contentLength[node]);
+    }
+
+    /**
+     * @param node
+     * @return Parent node, or -1 for the root element.
+     */
+    public int getParent(int node) {
+        return parents[node];
+    }
+
+    /**
+     * @param node
+     * @return First child node, or -1 if the node has no children.
+     */
+    public int getFirstChild(int node) {
+        return firstChildren[node];
+    }
+
+    /**
+     * @param node
+     * @return Next sibling node, or -1 if the node is the last child of its parent.
+     */
+    public int getNextSibling(int node) {
+        return nextSiblings[node];
+    }
+
+    /**
+     * @param node
+     * @return Number of attributes of the element, 0 for other nodes.
+     */
+    public int getAttributeCount(int node) {
+        return attributeStarts[node + 1] - attributeStarts[node];
+    }
+
+    /**
+     * @param node
+     * @param index index of the attribute, from 0 to {@link #getAttributeCount(int)} - 1
+     * @return Name of the attribute.
+     */
+    public String getAttributeName(int node, int index) {
+        return strings[attributeNames[attributeIndex(node, index)]];
+    }
+
+    /**
+     * @param node
+     * @param index index of the attribute, from 0 to {@link #getAttributeCount(int)} - 1
+     * @return Value of the attribute.
+     */
+    public String getAttributeValue(int node, int index) {
+        return attributeValue(attributeIndex(node, index));
+    }
+
+    /**
+     * @param node
+     * @param attName
+     * @return Value of the specified attribute, compared ignoring case like in
+     *         {@link TagNode#getAttributeByName(String)}, or null if the node doesn't contain it.
+     */
+    public String getAttributeByName(int node, String attName) {
+        if (attName == null) {
+            return null;
+        }
+        for (int attribute = attributeStarts[node + 1] - 1; attribute >= attributeStarts[node]; attribute--) {
+            if (strings[attributeNames[attribute]].equalsIgnoreCase(attName)) {
+                return attributeValue(attribute);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return Doctype of the document, or null if there is none.
+     */
+    public DoctypeToken getDocType() {
+        return docType;
+    }
+
+    /**
+     * @return View of the whole document.
+     */
+    public TagNode getRootNode() {
+        return getNode(0);
+    }
+
+    /**
+     * @param node element node
+     * @return New view of the subtree with the specified root. The view has no parent.
+     */
+    public TagNode getNode(int node) {
+        if (kinds[node] != ELEMENT) {
+            throw new IllegalArgumentException("Node " + node + " is not an element");
+        }
+        return createElementView(node);
+    }
+
+    private int attributeIndex(int node, int index) {
+        if (index < 0 || index >= getAttributeCount(node)) {
+            throw new IndexOutOfBoundsException("Attribute index: " + index);
+        }
+        return attributeStarts[node] + index;
+    }
+
+    private String attributeValue(int attribute) {
+        int length = attributeValueLengths[attribute];
+        return length < 0 ? null : new String(chars, attributeValueOffsets[attribute], length);
+    }
+
+    private TagNode createElementView(int node) {
+        TagNode view = new TagNode(strings[nameOrContentOffset[node]]);
+        byte nodeFlags = flags[node];
+        if ((nodeFlags & FOREIGN_MARKUP_SET) != 0) {
+            view.setForeignMarkup((nodeFlags & FOREIGN_MARKUP) != 0);
+        }
+        view.setAutoGenerated((nodeFlags & AUTO_GENERATED) != 0);
+        view.setTrimAttributeValues((nodeFlags & NOT_TRIMMING_ATTRIBUTE_VALUES) == 0);
+
+        TagAttributes attributes = view.getAttributeStorage();
+        for (int attribute = attributeStarts[node]; attribute < attributeStarts[node + 1]; attribute++) {
+            attributes.put(strings[attributeNames[attribute]], attributeValue(attribute));
+        }
+
+        if (namespaceDeclarations != null) {
+            Map<String, String> nsDeclarations = namespaceDeclarations.get(Integer.valueOf(node));
+            if (nsDeclarations != null) {
+                for (Map.Entry<String, String> entry: nsDeclarations.entrySet()) {
+                    view.addNamespaceDeclaration(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        if (node == 0) {
+            view.setDocType(docType);
+        }
+        if (firstChildren[node] != NONE) {
+            view.setChildrenLoader(new ViewChildrenLoader(node));
+        }
+        return view;
+    }
+
+    private BaseToken createView(int node) {
+        switch (kinds[node]) {
+            case ELEMENT:
+                return createElementView(node);
+            case CDATA:
+                return new CData(getContent(node));
+            case COMMENT:
+                return new CommentNode(getContent(node));
+            case OTHER:
+                return otherTokens.get(Integer.valueOf(node));
+            default:
+                return new ContentNode(getContent(node));
+        }
+    }
+
+    private final class ViewChildrenLoader implements TagNode.ChildrenLoader {
+
+        private final int node;
+
+        private ViewChildrenLoader(int node) {
+            this.node = node;
+        }
+
+        public List<? extends BaseToken> loadChildren(TagNode tagNode) {
+            List<BaseToken> children = new ArrayList<BaseToken>();
+            for (int child = firstChildren[node]; child != NONE; child = nextSiblings[child]) {
+                children.add(createView(child));
+            }
+            return children;
+        }
+    }
+
+    private static byte[] copyOf(byte[] array, int length) {
+        byte[] result = new byte[length];
+        System.arraycopy(array, 0, result, 0, Math.min(array.length, length));
+        return result;
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+        int[] result = new int[length];
+        System.arraycopy(array, 0, result, 0, Math.min(array.length, length));
+        return result;
+    }
+
+    /**
+     * Element whose children are being added by the builder.
+     */
+    private static final class Frame {
+        private final TagNode element;
+        private final int node;
+        private int position;
+        private int lastChild = NONE;
+
+        private Frame(TagNode element, int node) {
+            this.element = element;
+            this.node = node;
+        }
+    }
+
+    /**
+     * Fills growing columns while walking the tree in document order.
+     */
+    private static final class Builder {
+
+        private int nodeCount;
+        private byte[] kinds = new byte[64];
+        private byte[] flags = new byte[64];
+        private int[] nameOrContentOffset = new int[64];
+        private int[] contentLength = new int[64];
+        private int[] parents = new int[64];
+        private int[] firstChildren = new int[64];
+        private int[] nextSiblings = new int[64];
+        private int[] attributeStarts = new int[65];
+
+        private int attributeCount;
+        private int[] attributeNames = new int[64];
+        private int[] attributeValueOffsets = new int[64];
+        private int[] attributeValueLengths = new int[64];
+
+        private final List<String> strings = new ArrayList<String>();
+        private final Map<String, Integer> stringIds = new HashMap<String, Integer>();
+        private final StringBuilder chars = new StringBuilder();
+        private Map<Integer, Map<String, String>> namespaceDeclarations;
+        private Map<Integer, BaseToken> otherTokens;
+
+        private void build(TagNode rootNode) {
+            List<Frame> stack = new ArrayList<Frame>();
+            stack.add(new Frame(rootNode, addNode(rootNode, NONE, NONE)));
+            while (!stack.isEmpty()) {
+                Frame frame = stack.get(stack.size() - 1);
+                List<? extends BaseToken> children = frame.element.getAllChildren();
+                if (frame.position < children.size()) {
+                    BaseToken child = children.get(frame.position++);
+                    frame.lastChild = addNode(child, frame.node, frame.lastChild);
+                    if (child instanceof TagNode) {
+                        stack.add(new Frame((TagNode) child, frame.lastChild));
+                    }
+                } else {
+                    stack.remove(stack.size() - 1);
+                }
+            }
+        }
+
+        private int addNode(BaseToken token, int parent, int previousSibling) {
+            int node = nodeCount++;
+            ensureNodeCapacity(nodeCount);
+            parents[node] = parent;
+            firstChildren[node] = NONE;
+            nextSiblings[node] = NONE;
+            if (previousSibling != NONE) {
+                nextSiblings[previousSibling] = node;
+            } else if (parent != NONE) {
+                firstChildren[parent] = node;
+            }
+            attributeStarts[node] = attributeCount;
+
+            if (token instanceof TagNode) {
+                TagNode tagNode = (TagNode) token;
+                kinds[node] = (byte) ELEMENT;
+                nameOrContentOffset[node] = stringId(tagNode.name);
+                flags[node] = elementFlags(tagNode);
+                TagAttributes attributes = tagNode.getAttributeStorage();
+                for (int i = 0; i < attributes.size(); i++) {
+                    addAttribute(attributes.getName(i), attributes.getValue(i));
+                }
+                Map<String, String> nsDeclarations = tagNode.getNamespaceDeclarations();
+                if (nsDeclarations != null) {
+                    if (namespaceDeclarations == null) {
+                        namespaceDeclarations = new HashMap<Integer, Map<String, String>>();
+                    }
+                    namespaceDeclarations.put(Integer.valueOf(node), Collections.unmodifiableMap(new TreeMap<String, String>(nsDeclarations)));
+                }
+            } else if (token instanceof ContentNode) {
+                kinds[node] = (byte) (token instanceof CData ? CDATA : TEXT);
+                setContent(node, ((ContentNode) token).getContent());
+            } else if (token instanceof CommentNode) {
+                kinds[node] = (byte) COMMENT;
+                setContent(node, ((CommentNode) token).getContent());
+            } else {
+                kinds[node] = (byte) OTHER;
+                if (otherTokens == null) {
+                    otherTokens = new HashMap<Integer, BaseToken>();
+                }
+                otherTokens.put(Integer.valueOf(node), token);
+            }
+            return node;
+        }
+
+        private static byte elementFlags(TagNode tagNode) {
+            byte result = 0;
+            if (tagNode.isForeignMarkupFlagSet()) {
+                result |= FOREIGN_MARKUP_SET;
+            }
+            if (tagNode.isForeignMarkup()) {
+                result |= FOREIGN_MARKUP;
+            }
+            if (tagNode.isAutoGenerated()) {
+                result |= AUTO_GENERATED;
+            }
+            if (!tagNode.isTrimAttributeValues()) {
+                result |= NOT_TRIMMING_ATTRIBUTE_VALUES;
+            }
+            return result;
+        }
+
+        private void setContent(int node, String content) {
+            nameOrContentOffset[node] = chars.length();
+            contentLength[node] = content.length();
+            chars.append(content);
+        }
+
+        private void addAttribute(String name, String value) {
+            if (attributeCount == attributeNames.length) {
+                int length = attributeCount * 2;
+                attributeNames = copyOf(attributeNames, length);
+                attributeValueOffsets = copyOf(attributeValueOffsets, length);
+                attributeValueLengths = copyOf(attributeValueLengths, length);
+            }
+            attributeNames[attributeCount] = stringId(name);
+            attributeValueOffsets[attributeCount] = chars.length();
+            if (value == null) {
+                attributeValueLengths[attributeCount] = -1;
+            } else {
+                attributeValueLengths[attributeCount] = value.length();
+                chars.append(value);
+            }
+            attributeCount++;
+        }
+
+        private int stringId(String string) {
+            Integer id = stringIds.get(string);
+            if (id == null) {
+                id = Integer.valueOf(strings.size());
+                strings.add(string);
+                stringIds.put(string, id);
+            }
+            return id.intValue();
+        }
+
+        private void ensureNodeCapacity(int capacity) {
+            if (capacity > kinds.length) {
+                int length = kinds.length * 2;
+                kinds = copyOf(kinds, length);
+                flags = copyOf(flags, length);
+                nameOrContentOffset = copyOf(nameOrContentOffset, length);
+                contentLength = copyOf(contentLength, length);
+                parents = copyOf(parents, length);
+                firstChildren = copyOf(firstChildren, length);
+                nextSiblings = copyOf(nextSiblings, length);
+                attributeStarts = copyOf(attributeStarts, length + 1);
+            }
+        }
+    }
+}
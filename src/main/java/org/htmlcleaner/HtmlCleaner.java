@@ -43,7 +43,9 @@ import java.io.StringReader;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -309,6 +311,8 @@ public class HtmlCleaner {
     private CleanerProperties properties;
 
     private CleanerTransformations transformations;
+
+    private CleanerCache cache;
     
     /**
      * Constructor - creates cleaner instance with default tag info provider,default html version 5
@@ -367,6 +371,9 @@ public class HtmlCleaner {
 	}
 
     public TagNode clean(String htmlContent) {
+        if (cache != null) {
+            return cleanCached(htmlContent);
+        }
         try {
             return clean( new StringReader(htmlContent), new CleanTimeValues() );
         } catch (IOException e) {
@@ -380,7 +387,7 @@ public class HtmlCleaner {
         Reader reader = null;
         try {
             reader = new InputStreamReader(in, charset);
-            return clean(reader, new CleanTimeValues());
+            return cache != null ? cleanCached(readAll(reader)) : clean(reader, new CleanTimeValues());
         } finally {
             if ( reader != null) {
                 try{ reader.close(); } catch(IOException e) {}
@@ -404,6 +411,9 @@ public class HtmlCleaner {
     @Deprecated // Removing network I/O will make htmlcleaner better suited to a server environment which needs managed connections
     public TagNode clean(URL url, String charset) throws IOException {
         CharSequence content = Utils.readUrl(url, charset);
+        if (cache != null) {
+            return cleanCached(content.toString());
+        }
         Reader reader = new StringReader( content.toString() );
         return clean(reader, new CleanTimeValues()) ;
     }
@@ -421,7 +431,7 @@ public class HtmlCleaner {
     }
 
     public TagNode clean(InputStream in, String charset) throws IOException {
-        return clean( new InputStreamReader(in, charset), new CleanTimeValues() );
+        return clean( new InputStreamReader(in, charset) );
     }
 
     public TagNode clean(InputStream in) throws IOException {
@@ -429,8 +439,38 @@ public class HtmlCleaner {
     }
     
     public TagNode clean(Reader reader) throws IOException {
+        if (cache != null) {
+            return cleanCached(readAll(reader));
+        }
         return clean(reader, new CleanTimeValues());
     }
+
+    /**
+     * Looks the content up in the cache, and cleans and caches it if it's not there.
+     */
+    private TagNode cleanCached(String content) {
+        CleanerCache.Key key = cache.createKey(this, content);
+        TagNode result = cache.get(key);
+        if (result == null) {
+            try {
+                result = cache.put(key, clean(new StringReader(content), new CleanTimeValues()));
+            } catch (IOException e) {
+                // should never happen because reading from StringReader
+                throw new HtmlCleanerException(e);
+            }
+        }
+        return result;
+    }
+
+    private static String readAll(Reader reader) throws IOException {
+        StringBuilder result = new StringBuilder();
+        char[] buffer = new char[8192];
+        int count;
+        while ((count = reader.read(buffer)) >= 0) {
+            result.append(buffer, 0, count);
+        }
+        return result.toString();
+    }
     
     /**
      * Basic version of the cleaning call.
@@ -446,6 +486,8 @@ public class HtmlCleaner {
         cleanTimeValues.allTags.clear();
         cleanTimeValues.pruneTagSet = new HashSet<ITagNodeCondition>(this.properties.getPruneTagSet());
         cleanTimeValues.allowTagSet = new HashSet<ITagNodeCondition>(this.properties.getAllowTagSet());
+        cleanTimeValues.pruneConditions = new TagNodeConditionSet(cleanTimeValues.pruneTagSet);
+        cleanTimeValues.allowConditions = new TagNodeConditionSet(cleanTimeValues.allowTagSet);
         this.transformations = this.properties.getCleanerTransformations();
         cleanTimeValues.pruneNodeSet.clear();
 
@@ -473,6 +515,13 @@ public class HtmlCleaner {
         	return null;
         }
 
+        if (cleanTimeValues.extraction != null) {
+            // nodes have been passed on as they were completed, there is no tree to build
+            passCompletedNodes(nodeList, cleanTimeValues, true);
+            popNesting(cleanTimeValues);
+            return null;
+        }
+
         createDocumentNodes(nodeList, cleanTimeValues);
         
         if (Thread.currentThread().isInterrupted()) {
@@ -500,17 +549,25 @@ public class HtmlCleaner {
 
         // if there are some nodes to prune from tree
         if (cleanTimeValues.pruneNodeSet != null && !cleanTimeValues.pruneNodeSet.isEmpty() ) {
-            Iterator<TagNode> iterator = cleanTimeValues.pruneNodeSet.iterator();
-            while (iterator.hasNext()) {
+            // group them by parent, so that each parent removes all its pruned children at once
+            Map<TagNode, List<TagNode>> nodesByParent = new IdentityHashMap<TagNode, List<TagNode>>();
+            for (TagNode tagNode: cleanTimeValues.pruneNodeSet) {
+                TagNode parent = tagNode.getParent();
+                if (parent != null) {
+                    List<TagNode> nodes = nodesByParent.get(parent);
+                    if (nodes == null) {
+                        nodes = new ArrayList<TagNode>();
+                        nodesByParent.put(parent, nodes);
+                    }
+                    nodes.add(tagNode);
+                }
+            }
+            for (Map.Entry<TagNode, List<TagNode>> entry: nodesByParent.entrySet()) {
             	if (Thread.currentThread().isInterrupted()) {
             		handleInterruption();
                 	return null;
                 }
-                TagNode tagNode = iterator.next();
-                TagNode parent = tagNode.getParent();
-                if (parent != null) {
-                    parent.removeChild(tagNode);
-                }
+                entry.getKey().removeChildren(entry.getValue());
             }
         }
 
@@ -804,6 +861,9 @@ public class HtmlCleaner {
                     	//
                         if (closed.size()>0){
                       	  TagNode startingTag = (TagNode) closed.get(0);
+                      	  if (cleanTimeValues.closingTokens != null) {
+                      		  cleanTimeValues.closingTokens.put(startingTag, endTagToken);
+                      	  }
                       	  if (startingTag.hasAttribute("xmlns")){
                       		  cleanTimeValues.namespace.pop();
                       	  }
@@ -908,7 +968,7 @@ public class HtmlCleaner {
                 	//
                 	if (ns.equals("https://www.w3.org/1999/xhtml") || ns.equals("http://w3.org/1999/xhtml")){
                 		ns = "http://www.w3.org/1999/xhtml";
-                		Map<String, String> attributes = startTagToken.getAttributes();
+                		Map<String, String> attributes = new LinkedHashMap<String, String>(startTagToken.getAttributes());
                 		attributes.put("xmlns", "http://www.w3.org/1999/xhtml");
                 		startTagToken.setAttributes(attributes);
                 	}
@@ -1284,6 +1344,115 @@ public class HtmlCleaner {
 		return closed;
     }
 
+    /**
+     * Passes the nodes completed since the last call on to the streaming extraction. A node is
+     * completed once it follows the innermost open tag, because it only waits to become its child
+     * then. Nodes closed by a child break may still be reopened from the list and are held back,
+     * together with everything after them, until the break is resolved. Open tags whose start
+     * tokens are no longer in the list have been closed already and are not taken into account.
+     * @param nodeList
+     * @param cleanTimeValues
+     * @param isFinal true when all tags are closed and the remaining nodes are passed regardless
+     */
+    void passCompletedNodes(List<?> nodeList, CleanTimeValues cleanTimeValues, boolean isFinal) {
+        OpenTags openTags = getOpenTags(cleanTimeValues);
+        int openPosition = -1;
+        for (TagPos tagPos : openTags.list) {
+            if (isStartToken(nodeList.get(tagPos.position))) {
+                openPosition = tagPos.position;
+            }
+        }
+        int end = nodeList.size();
+        if (!isFinal) {
+            for (TagPos closedPos : getChildBreaks(cleanTimeValues).closedByChildBreak) {
+                end = Math.min(end, closedPos.position);
+            }
+        }
+        StreamingExtractor.Extraction extraction = cleanTimeValues.extraction;
+        int start = extraction.getFirstPending(openPosition);
+        if (start < end || isFinal) {
+            List<TagNode> openNodes = new ArrayList<TagNode>(openTags.list.size());
+            for (TagPos tagPos : openTags.list) {
+                Object node = nodeList.get(tagPos.position);
+                if (isStartToken(node)) {
+                    openNodes.add((TagNode) node);
+                }
+            }
+            extraction.pass(nodeList, start, end, openNodes, isFinal);
+        }
+    }
+
+    /**
+     * Decides about a completed node the way pruning after the tree is built would.
+     * @param node
+     * @param cleanTimeValues
+     * @return Whether the node is pruned.
+     */
+    boolean isPrunedOnCompletion(TagNode node, CleanTimeValues cleanTimeValues) {
+        boolean isPruned = addIfNeededToPruneSet(node, cleanTimeValues);
+        // the node is left out right away, it does not need to wait in the set
+        cleanTimeValues.pruneNodeSet.remove(node);
+        return isPruned;
+    }
+
+    /**
+     * Checks the pruning conditions without marking the node, for nodes which are not complete yet.
+     * @param node
+     * @param cleanTimeValues
+     * @return Whether the node would be pruned as it is now.
+     */
+    boolean isPrunable(TagNode node, CleanTimeValues cleanTimeValues) {
+        if ( cleanTimeValues.pruneConditions != null && cleanTimeValues.pruneConditions.findSatisfied(node) != null ) {
+            return true;
+        }
+        if ( cleanTimeValues.allowConditions != null && !cleanTimeValues.allowConditions.isEmpty() ) {
+            return cleanTimeValues.allowConditions.findSatisfied(node) == null;
+        }
+        return false;
+    }
+
+    /**
+     * Decides about a completed node the way moving to head after the tree is built would, and
+     * forgets about it afterwards.
+     * @param node
+     * @param isTopLevel true if the node is not inside any other node, so it would become a child of body
+     * @param cleanTimeValues
+     * @return Whether the node is moved to head.
+     */
+    boolean isHeadCandidateOnCompletion(TagNode node, boolean isTopLevel, CleanTimeValues cleanTimeValues) {
+        if (isTopLevel) {
+            addPossibleHeadCandidate(getTagInfoProvider().getTagInfo(node.getName()), node, cleanTimeValues);
+        }
+        return cleanTimeValues._headTags.remove(node);
+    }
+
+    /**
+     * Tells whether a completed node at the top level may still be moved to head. Such nodes are
+     * checked once more when the tree is built, and are moved if head has been opened by then
+     * and body has not, so it is known only when body is opened or the document ends.
+     * @param node
+     * @param cleanTimeValues
+     * @return Whether the node is not a head candidate yet, but may become one.
+     */
+    boolean isHeadPlacementPending(TagNode node, CleanTimeValues cleanTimeValues) {
+        if (cleanTimeValues._bodyOpened || cleanTimeValues._headTags.contains(node)) {
+            return false;
+        }
+        TagInfo tagInfo = getTagInfoProvider().getTagInfo(node.getName());
+        return tagInfo != null && tagInfo.isHeadAndBodyTag();
+    }
+
+    /**
+     * Tells whether a tag may be moved to head, depending on where it is and whether head or body
+     * are opened by the time it is completed.
+     * @param node
+     * @return Whether the node is a head tag, or a tag allowed both in head and body.
+     */
+    boolean isPossibleHeadTag(TagNode node) {
+        TagInfo tagInfo = getTagInfoProvider().getTagInfo(node.getName());
+        return tagInfo != null && (tagInfo.isHeadTag() || tagInfo.isHeadAndBodyTag());
+    }
+
     /**
      * Close all unclosed tags if there are any.
      */
@@ -1318,10 +1487,36 @@ public class HtmlCleaner {
         return properties;
     }
 
+    /**
+     * @return Cache of cleaned trees used by this cleaner, or null if results are not cached.
+     */
+    public CleanerCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Makes this cleaner look up the cleaned trees in the cache before cleaning, and add new
+     * ones to it. Content read from files, streams and readers is read fully before cleaning
+     * when a cache is set.
+     *
+     * @param cache cache to use, or null to always clean
+     */
+    public void setCache(CleanerCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @return Prune conditions of the cleaning in progress. They are compiled for checking when
+     *         the cleaning starts, so later changes of the set do not affect it.
+     */
     protected Set<ITagNodeCondition> getPruneTagSet(CleanTimeValues cleanTimeValues) {
         return cleanTimeValues.pruneTagSet;
     }
 
+    /**
+     * @return Allow conditions of the cleaning in progress, compiled when the cleaning starts
+     *         just like the prune conditions.
+     */
     protected Set<ITagNodeCondition> getAllowTagSet(CleanTimeValues cleanTimeValues) {
         return cleanTimeValues.allowTagSet;
     }
@@ -1347,21 +1542,18 @@ public class HtmlCleaner {
     }
 
     private boolean addIfNeededToPruneSet(TagNode tagNode, CleanTimeValues cleanTimeValues) {
-        if ( cleanTimeValues.pruneTagSet != null ) {
-            for(ITagNodeCondition condition: cleanTimeValues.pruneTagSet) {
-                if ( condition.satisfy(tagNode)) {
-                    addPruneNode(tagNode, cleanTimeValues);
-                    properties.fireConditionModification(condition, tagNode);
-                    return true;
-                }
+        if ( cleanTimeValues.pruneConditions != null ) {
+            ITagNodeCondition condition = cleanTimeValues.pruneConditions.findSatisfied(tagNode);
+            if ( condition != null ) {
+                addPruneNode(tagNode, cleanTimeValues);
+                properties.fireConditionModification(condition, tagNode);
+                return true;
             }
         }
 
-        if ( cleanTimeValues.allowTagSet != null && !cleanTimeValues.allowTagSet.isEmpty() ) {
-            for(ITagNodeCondition condition: cleanTimeValues.allowTagSet) {
-                if ( condition.satisfy(tagNode)) {
-                    return false;
-                }
+        if ( cleanTimeValues.allowConditions != null && !cleanTimeValues.allowConditions.isEmpty() ) {
+            if ( cleanTimeValues.allowConditions.findSatisfied(tagNode) != null ) {
+                return false;
             }
             if (!tagNode.isAutoGenerated()) {
                 properties.fireUserDefinedModification(true, tagNode, ErrorType.NotAllowedTag);
@@ -54,22 +54,30 @@ import java.util.*;
 public class HtmlTokenizer {
 
 	private final static int WORKING_BUFFER_SIZE = 1024;
+	private final static int PIPELINE_CAPACITY = 1024;
 
     private BufferedReader _reader;
     private char[] _working = new char[WORKING_BUFFER_SIZE];
 
     private transient int _pos;
     private transient int _len = -1;
+    // source offset of the first character in the working buffer
+    private transient int _offset;
+    // source offset at which the current token started, and spans of the tokens added since
+    private transient int _tokenStart;
+    private transient List<int[]> _openSpans = new ArrayList<int[]>();
     private transient int _row = 1;
     private transient int _col = 1;
     
 
-    private transient StringBuffer _saved = new StringBuffer(512);
+    private transient StringBuilder _saved = new StringBuilder(512);
 
     private transient boolean _isLateForDoctype;
     private transient DoctypeToken _docType;
     private transient TagToken _currentTagToken;
     private transient List<BaseToken> _tokenList = new ArrayList<BaseToken>();
+    private transient BaseToken _lastToken;
+    private transient TokenRingBuffer _pipeline;
     private transient Set<String> _namespacePrefixes = new HashSet<String>();
 
     private boolean _asExpected = true;
@@ -99,14 +107,37 @@ public class HtmlTokenizer {
     private void addToken(BaseToken token) {
         token.setRow(_row);
         token.setCol(_col);
+        _lastToken = token;
+        if (cleanTimeValues.sourceSpans != null) {
+            int[] span = {_tokenStart, -1};
+            cleanTimeValues.sourceSpans.put(token, span);
+            _openSpans.add(span);
+        }
+        if (_pipeline != null) {
+            // tree is built by the consumer thread, see startPipelined()
+            _pipeline.offer(token);
+        } else {
+            buildTree(token);
+        }
+    }
+
+    /**
+     * Appends the token to the token list and lets the cleaner balance it into the tree.
+     * @param token
+     */
+    private void buildTree(BaseToken token) {
         _tokenList.add(token);
         cleaner.makeTree( _tokenList, _tokenList.listIterator(_tokenList.size() - 1), this.cleanTimeValues );
+        if (cleanTimeValues.extraction != null) {
+            cleaner.passCompletedNodes(_tokenList, cleanTimeValues, false);
+        }
     }
 
     private void readIfNeeded(int neededChars) throws IOException {
         if (_len == -1 && _pos + neededChars >= WORKING_BUFFER_SIZE) {
             int numToCopy = WORKING_BUFFER_SIZE - _pos;
             System.arraycopy(_working, _pos, _working, 0, numToCopy);
+            _offset += _pos;
             _pos = 0;
 
             int expected = WORKING_BUFFER_SIZE - numToCopy;
@@ -337,69 +368,7 @@ public class HtmlTokenizer {
     }
 
     private String deserializeEntitiesInSaved() {
-        SpecialEntities entities = SpecialEntities.INSTANCE;
-        int entityStart = -1;
-        boolean numericEntity = false;
-        boolean hexEntity = false;
-        int maxEntityLength = entities.getMaxEntityLength();
-        int i = 0;
-        int length = _saved.length();
-        while (i < length) {
-            if (_saved.charAt(i) == '&') {
-                entityStart = i;
-                numericEntity = false;
-                hexEntity = false;
-                ++i;
-            } else if (entityStart != -1) {
-                if (_saved.charAt(i) == ';') {
-                    int entityValue = -1;
-                    if (numericEntity) {
-                        try {
-                            entityValue = Integer.parseInt(
-                                    _saved.substring(
-                                            entityStart + (hexEntity ? 3 : 2),
-                                            i
-                                    ),
-                                    hexEntity ? 16 : 10
-                            );
-                        } catch (NumberFormatException e) {
-                            entityValue = -1;
-                        }
-                        
-                    	SpecialEntity entity = entities.getSpecialEntityByUnicode(entityValue);
-                    	if(entity != null)
-                    		entityValue = entity.intValue();
-                    	else if(!props.isRecognizeUnicodeChars())
-                    		entityValue = -1;
-                    } else {
-                    	SpecialEntity entity = entities.getSpecialEntity(_saved.substring(entityStart + 1, i));
-                    	if(entity != null)
-                    		entityValue = entity.intValue();
-                    }
-                    
-                    if (entityValue >= 0) {
-                        char[] decodedEntity = Character.toChars(entityValue);
-                        _saved.replace(entityStart, i + 1, new String(decodedEntity));
-                        length = _saved.length();
-                        i = entityStart + decodedEntity.length;
-                    } else {
-                        ++i;
-                    }
-                    entityStart = -1;
-                } else {
-                    if (i == entityStart + 1 && _saved.charAt(i) == '#') {
-                        numericEntity = true;
-                    } else if (i == entityStart + 2 && numericEntity && _saved.charAt(i) == 'x') {
-                        hexEntity = true;
-                    } else if (i - entityStart > maxEntityLength) {
-                        entityStart = -1;
-                    }
-                    ++i;
-                }
-            } else {
-                ++i;
-            }
-        }
+        Utils.deserializeEntities(_saved, props.isRecognizeUnicodeChars());
         return _saved.toString();
     }
 
@@ -408,23 +377,95 @@ public class HtmlTokenizer {
      * @throws IOException
      */
     void start() throws IOException {
+    	_tokenList.clear();
+    	// source spans are recorded in the tree building thread's maps, so they rule out pipelining
+    	if (props.isPipelinedTokenizing() && cleanTimeValues.sourceSpans == null) {
+    		startPipelined();
+    	} else {
+    		tokenize();
+    	}
+    }
+
+    /**
+     * Runs the tokenizer in a separate thread which passes tokens through a ring buffer,
+     * while the tree is built from them in the current thread.
+     * @throws IOException
+     */
+    private void startPipelined() throws IOException {
+    	final TokenRingBuffer pipeline = new TokenRingBuffer(PIPELINE_CAPACITY);
+    	_pipeline = pipeline;
+    	Thread tokenizerThread = new Thread(new Runnable() {
+    		public void run() {
+    			Throwable failure = null;
+    			try {
+    				tokenize();
+    			} catch (Throwable e) {
+    				failure = e;
+    			} finally {
+    				pipeline.close(failure);
+    			}
+    		}
+    	}, "HtmlCleaner tokenizer");
+    	tokenizerThread.setDaemon(true);
+    	tokenizerThread.start();
+
+    	boolean completed = false;
+    	try {
+    		BaseToken token;
+    		while ( (token = pipeline.poll()) != null ) {
+    			buildTree(token);
+    		}
+    		completed = !Thread.currentThread().isInterrupted();
+    	} finally {
+    		if (!completed) {
+    			pipeline.abandon();
+    			tokenizerThread.interrupt();
+    			_tokenList.clear();
+    		}
+    	}
+    	if (!completed) {
+    		this.handleInterruption();
+    		return;
+    	}
+
+    	Throwable failure = pipeline.getFailure();
+    	if (failure instanceof IOException) {
+    		throw (IOException) failure;
+    	} else if (failure instanceof RuntimeException) {
+    		throw (RuntimeException) failure;
+    	} else if (failure instanceof Error) {
+    		throw (Error) failure;
+    	} else if (failure != null) {
+    		throw new HtmlCleanerException(failure);
+    	}
+    }
+
+    /**
+     * Reads the whole content and passes recognized tokens on.
+     * @throws IOException
+     */
+    private void tokenize() throws IOException {
     	// initialize runtime values
     	_currentTagToken = null;
-    	_tokenList.clear();
+    	_lastToken = null;
     	_asExpected = true;
     	_isSpecialContext = false;
     	_isLateForDoctype = false;
     	_namespacePrefixes.clear();
 
     	this._pos = WORKING_BUFFER_SIZE;
+    	this._offset = -WORKING_BUFFER_SIZE;
     	readIfNeeded(0);
 
     	boolean isSpecialEmpty = true;
 
     	while ( !isAllRead() ) {
-    		if (Thread.currentThread().isInterrupted()) {
+    		if (Thread.currentThread().isInterrupted() || (_pipeline != null && _pipeline.isAbandoned())) {
     			this.handleInterruption();
-    			_tokenList.clear();
+    			if (_pipeline == null) {
+    				// in pipelined mode the token list belongs to the tree building thread
+    				_tokenList.clear();
+    			}
     			_namespacePrefixes.clear();
     			_reader.close();
             	return;
@@ -433,6 +474,7 @@ public class HtmlTokenizer {
     		_saved.delete(0, _saved.length());
     		_currentTagToken = null;
     		_asExpected = true;
+    		_tokenStart = _offset + _pos;
 
     		// this is enough for making decision
     		readIfNeeded(10);
@@ -448,7 +490,7 @@ public class HtmlTokenizer {
     			} else {
     				boolean isTokenAdded = content();
     				if (isSpecialEmpty && isTokenAdded) {
-    					final BaseToken lastToken = (BaseToken) _tokenList.get(_tokenList.size() - 1);
+    					final BaseToken lastToken = _lastToken;
     					if (lastToken != null) {
     						final String lastTokenAsString = lastToken.toString();
     						if (lastTokenAsString != null && lastTokenAsString.trim().length() > 0) {
@@ -489,12 +531,25 @@ public class HtmlTokenizer {
     				content();
     			}
     		}
+    		closeSpans();
     	}
 
 
     	_reader.close();
     }
 
+    /**
+     * Ends the source spans of all tokens added since the last call at the current position.
+     */
+    private void closeSpans() {
+        if (!_openSpans.isEmpty()) {
+            for (int[] span: _openSpans) {
+                span[1] = _offset + _pos;
+            }
+            _openSpans.clear();
+        }
+    }
+
     /**
      * Checks if specified tag name is one of the reserved tags: HTML, HEAD or BODY
      * @param tagName
@@ -0,0 +1,577 @@
+/*  Copyright (c) 2006-2014, HTMLCleaner project
+    All rights reserved.
+
+    Redistribution and use of this software in source and binary forms,
+    with or without modification, are permitted provided that the following
+    conditions are met:
+
+    * Redistributions of source code must retain the above
+      copyright notice, this list of conditions and the
+      following disclaimer.
+
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the
+      following disclaimer in the documentation and/or other
+      materials provided with the distribution.
+
+    * The name of HtmlCleaner may not be used to endorse or promote
+      products derived from this software without specific prior
+      written permission.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+    AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+    IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+    ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+    LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+    CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+    SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+    INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+    CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+    ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+    POSSIBILITY OF SUCH DAMAGE.
+
+    http://htmlcleaner.sourceforge.net/
+*/
+
+package org.htmlcleaner;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ *      Cleaned document that is kept up to date while its source is edited, for editors that
+ *      re-clean on every keystroke. Along with the tree, the source positions of all explicit start
+ *      and end tags are kept. An edit re-cleans only the smallest element whose content contains the
+ *      edited range: the element's source is cleaned within the start tags of its ancestors, and the
+ *      new children replace the old ones in place.
+ * </p>
+ * <p>
+ *      The result is the same as cleaning the whole new source, because the element is re-cleaned
+ *      only if it can't affect anything outside of it, and nothing outside affects it: its start
+ *      and end tags and all tags inside must be explicit, it must not contain tags that go to the
+ *      head or must be unique, no formatting tags left open before it may be reopened inside it,
+ *      blank text it copies to head, when a head tag comes before it and no body tag does, must
+ *      stay the same, and cleaning its source alone must give its current subtree. Whenever any of that doesn't
+ *      hold, before or after the edit, the whole source is cleaned again, so {@link #getRoot()}
+ *      may return a new tree after an edit.
+ * </p>
+ * <p>
+ *      The tree must not be changed other than through {@link #edit(int, int, String)}, since
+ *      the kept positions would no longer match it. The cleaner's cache is not used. Modification
+ *      listeners are notified about re-cleaned elements again, including the content before the
+ *      edit when an element is re-cleaned for the first time.
+ * </p>
+ */
+public class IncrementalDocument {
+
+    private static final String XHTML_NAMESPACE = "http://www.w3.org/1999/xhtml";
+
+    // positions kept for every element, the end tag ones are -1 if it was closed implicitly
+    private static final int START_TAG_START = 0;
+    private static final int START_TAG_END = 1;
+    private static final int END_TAG_START = 2;
+    private static final int END_TAG_END = 3;
+
+    // ancestors tried when the smallest element containing an edit can't be re-cleaned
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final HtmlCleaner cleaner;
+    private String content;
+    private TagNode root;
+    // true if a namespace declared on an implicitly closed tag applies to the rest of the source
+    private boolean namespaceLeaked;
+    // positions of the first head and body start tags, -1 if there are none; blank text after
+    // the first one and before the other is copied to head
+    private int headTagStart;
+    private int bodyTagStart;
+
+    private final SourceSpans spans = new SourceSpans();
+    // elements known not to affect anything outside of them with their current content, each with
+    // the blank text that cleaning it moves to head
+    private final Map<TagNode, String> containedElements = new IdentityHashMap<TagNode, String>();
+
+    private int incrementalEditCount;
+    private int fullCleanCount;
+
+    /**
+     * Cleans the content.
+     *
+     * @param cleaner cleaner whose properties are used for this document
+     * @param content
+     */
+    public IncrementalDocument(HtmlCleaner cleaner, String content) {
+        this.cleaner = cleaner;
+        this.content = content;
+        cleanFully();
+    }
+
+    /**
+     * @return Root of the cleaned tree.
+     */
+    public TagNode getRoot() {
+        return root;
+    }
+
+    /**
+     * @return Current source.
+     */
+    public String getContent() {
+        return content;
+    }
+
+    /**
+     * @return Number of edits that were applied by re-cleaning just an element.
+     */
+    public int getIncrementalEditCount() {
+        return incrementalEditCount;
+    }
+
+    /**
+     * @return Number of times the whole source was cleaned, including the initial cleaning.
+     */
+    public int getFullCleanCount() {
+        return fullCleanCount;
+    }
+
+    /**
+     * Replaces a range of the source and updates the tree.
+     *
+     * @param offset start of the replaced range
+     * @param removedLength length of the replaced range
+     * @param insertedText text to put instead of the range
+     * @return Root of the tree after the edit, which is a new one if everything was cleaned again.
+     * @throws IndexOutOfBoundsException if the range is not within the source
+     */
+    public TagNode edit(int offset, int removedLength, String insertedText) {
+        if (offset < 0 || removedLength < 0 || offset + removedLength > content.length()) {
+            throw new IndexOutOfBoundsException("Range " + offset + ", " + removedLength
+                + " is not within the source of length " + content.length());
+        }
+        String newContent = content.substring(0, offset) + insertedText + content.substring(offset + removedLength);
+        TagNode element = namespaceLeaked ? null : spans.findElement(offset, offset + removedLength);
+        for (int attempt = 0; element != null && attempt < MAX_ATTEMPTS; attempt++) {
+            int index = spans.indexOf(element);
+            if (index >= 0 && spans.get(index, END_TAG_START) >= 0
+                    && recleanElement(element, offset, removedLength, insertedText.length(), newContent)) {
+                content = newContent;
+                // re-cleaned elements have no head or body tags inside
+                int delta = insertedText.length() - removedLength;
+                headTagStart += headTagStart > offset ? delta : 0;
+                bodyTagStart += bodyTagStart > offset ? delta : 0;
+                incrementalEditCount++;
+                return root;
+            }
+            element = element.getParent();
+        }
+        content = newContent;
+        cleanFully();
+        return root;
+    }
+
+    private void cleanFully() {
+        CleanTimeValues cleanTimeValues = newCleanTimeValues();
+        root = clean(content, cleanTimeValues);
+        namespaceLeaked = hasForeignNamespace(cleanTimeValues);
+        headTagStart = firstStartTag(cleanTimeValues, "head");
+        bodyTagStart = firstStartTag(cleanTimeValues, "body");
+        spans.clear();
+        containedElements.clear();
+        if (root != null) {
+            for (TagNode node: elements(root)) {
+                putSpan(node, cleanTimeValues, 0);
+            }
+        }
+        fullCleanCount++;
+    }
+
+    private boolean recleanElement(TagNode element, int offset, int removedLength, int insertedLength, String newContent) {
+        // ancestors below the body, outermost first
+        List<TagNode> path = new ArrayList<TagNode>();
+        TagNode node = element;
+        while (node != null && node.getName() != null && !"body".equals(node.getName())) {
+            if ("html".equals(node.getName()) || "head".equals(node.getName())) {
+                return false;
+            }
+            path.add(0, node);
+            node = node.getParent();
+        }
+        if (node == null) {
+            return false;
+        }
+
+        // start tags of the ancestors that are in the source, and matching end tags
+        StringBuilder prefix = new StringBuilder();
+        StringBuilder suffix = new StringBuilder();
+        for (int i = 0; i < path.size() - 1; i++) {
+            int index = spans.indexOf(path.get(i));
+            if (index >= 0) {
+                int start = spans.get(index, START_TAG_START);
+                int end = spans.get(index, START_TAG_END);
+                prefix.append(content, start, end);
+                suffix.insert(0, "</" + getSourceName(start, end) + ">");
+            }
+        }
+
+        int index = spans.indexOf(element);
+        int start = spans.get(index, START_TAG_START);
+        int end = spans.get(index, END_TAG_END);
+        int delta = insertedLength - removedLength;
+        boolean headOpened = headTagStart >= 0 && headTagStart < start && (bodyTagStart < 0 || bodyTagStart > start);
+        if (headOpened) {
+            prefix.insert(0, "<head>");
+        }
+        String headText = containedElements.get(element);
+        if (headText == null) {
+            // the current subtree must be just what cleaning the element's source alone gives
+            if (hasCopies(element) || hasReopenedTagsBefore(element)) {
+                return false;
+            }
+            CleanTimeValues oldCleanTimeValues = newCleanTimeValues();
+            TagNode old = cleanElement(path, prefix, content.substring(start, end), suffix, headOpened, oldCleanTimeValues);
+            if (old == null || old.getStructuralHash() != element.getStructuralHash()) {
+                return false;
+            }
+            headText = getHeadText(oldCleanTimeValues);
+        }
+        CleanTimeValues cleanTimeValues = newCleanTimeValues();
+        TagNode cleaned = cleanElement(path, prefix, newContent.substring(start, end + delta), suffix, headOpened, cleanTimeValues);
+        // blank text may be copied to head, which has to stay as it is
+        if (cleaned == null || !headText.equals(getHeadText(cleanTimeValues))) {
+            return false;
+        }
+
+        for (TagNode descendant: elements(element)) {
+            if (descendant != element) {
+                spans.remove(descendant);
+                containedElements.remove(descendant);
+            }
+        }
+        spans.shift(offset, offset + removedLength, delta);
+        for (TagNode descendant: elements(cleaned)) {
+            if (descendant != cleaned) {
+                putSpan(descendant, cleanTimeValues, start - prefix.length());
+            }
+        }
+        List<BaseToken> children = new ArrayList<BaseToken>(cleaned.getAllChildren());
+        cleaned.removeAllChildren();
+        element.replaceChildren(0, element.getAllChildren().size(), children);
+        containedElements.put(element, headText);
+        return true;
+    }
+
+    /**
+     * Cleans the element's source within the ancestors' start tags.
+     *
+     * @param headOpened whether the prefix opens head, as a head tag before the element does
+     * @return Cleaned element, or null if cleaning it might affect anything outside of it.
+     */
+    private TagNode cleanElement(List<TagNode> path, CharSequence prefix, String source, CharSequence suffix,
+                                 boolean headOpened, CleanTimeValues cleanTimeValues) {
+        TagNode result = clean(prefix + source + suffix, cleanTimeValues);
+        if (result == null || hasForeignNamespace(cleanTimeValues) || !result.getAttributes().isEmpty()
+                || !cleanTimeValues.htmlNode.getAttributes().isEmpty() || !cleanTimeValues.bodyNode.getAttributes().isEmpty()
+                || cleanTimeValues._headOpened != headOpened || cleanTimeValues._bodyOpened) {
+            return null;
+        }
+        for (BaseToken child: cleanTimeValues.headNode.getAllChildren()) {
+            if (!(child instanceof ContentNode && ((ContentNode) child).isBlank()
+                    || child instanceof ProxyTagNode && ((ProxyTagNode) child).getToken() instanceof ContentNode)) {
+                return null;
+            }
+        }
+
+        // the ancestors have to be there just as before, with nothing else around them
+        TagNode node = result.getName() == null ? result : cleanTimeValues.bodyNode;
+        for (TagNode original: path) {
+            List<? extends BaseToken> children = node.getAllChildren();
+            if (children.size() != 1 || !(children.get(0) instanceof TagNode)) {
+                return null;
+            }
+            node = (TagNode) children.get(0);
+            if (!node.getName().equals(original.getName())) {
+                return null;
+            }
+        }
+        TagNode element = node;
+        // it has to be closed by its own end tag, not by one of the ancestors' end tags
+        int[] span = cleanTimeValues.sourceSpans.get(element);
+        EndTagToken endToken = cleanTimeValues.closingTokens.get(element);
+        if (span == null || span[0] != prefix.length() || endToken == null
+                || cleanTimeValues.sourceSpans.get(endToken)[1] != prefix.length() + source.length()
+                || !element.getAttributes().equals(path.get(path.size() - 1).getAttributes())) {
+            return null;
+        }
+
+        // tags inside that are closed implicitly might continue after the element
+        ITagInfoProvider tagInfoProvider = cleaner.getTagInfoProvider();
+        for (TagNode descendant: elements(element)) {
+            TagInfo tagInfo = tagInfoProvider.getTagInfo(descendant.getName());
+            if (tagInfo != null && (tagInfo.isHeadTag() || tagInfo.isHeadAndBodyTag() || tagInfo.isUnique())) {
+                return null;
+            }
+            if (descendant != element && (descendant.isCopy() || !cleanTimeValues.closingTokens.containsKey(descendant)
+                    && !descendant.isAutoGenerated() && (tagInfo == null || tagInfo.allowsBody()))) {
+                return null;
+            }
+        }
+        return element;
+    }
+
+    /**
+     * @return Whether any tag inside the element was reopened by the cleaner rather than written in the source.
+     */
+    private static boolean hasCopies(TagNode element) {
+        for (TagNode descendant: elements(element)) {
+            if (descendant != element && descendant.isCopy()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tags closed implicitly by the element's start tag are reopened inside it if the element
+     * copies them, and those still open before it are the last ones of the preceding sibling.
+     *
+     * @return Whether any tag still open before the element might be reopened inside it.
+     */
+    private boolean hasReopenedTagsBefore(TagNode element) {
+        TagInfo tagInfo = cleaner.getTagInfoProvider().getTagInfo(element.getName());
+        if (tagInfo == null || !tagInfo.hasCopyTags()) {
+            return false;
+        }
+        TagNode parent = element.getParent();
+        List<? extends BaseToken> siblings = parent.getAllChildren();
+        TagNode node = lastTagNode(siblings.subList(0, parent.getChildIndex(element)));
+        while (node != null) {
+            int index = spans.indexOf(node);
+            if (index >= 0 && spans.get(index, END_TAG_START) >= 0) {
+                // closed by its own end tag, with everything inside it
+                return false;
+            }
+            if (tagInfo.isCopy(node.getName())) {
+                return true;
+            }
+            node = lastTagNode(node.getAllChildren());
+        }
+        return false;
+    }
+
+    /**
+     * @return Text the cleaning put in head, which {@link #cleanElement} allows to be blank text only.
+     */
+    private static String getHeadText(CleanTimeValues cleanTimeValues) {
+        StringBuilder text = new StringBuilder();
+        for (BaseToken child: cleanTimeValues.headNode.getAllChildren()) {
+            text.append(child instanceof ProxyTagNode ? ((ProxyTagNode) child).getContent() : ((ContentNode) child).getContent());
+        }
+        return text.toString();
+    }
+
+    /**
+     * @return Position of the first start tag of the name in the source, or -1 if there is none.
+     */
+    private static int firstStartTag(CleanTimeValues cleanTimeValues, String name) {
+        int first = -1;
+        for (Map.Entry<BaseToken, int[]> entry: cleanTimeValues.sourceSpans.entrySet()) {
+            if (entry.getKey() instanceof TagNode && name.equals(((TagNode) entry.getKey()).getName())
+                    && (first < 0 || entry.getValue()[0] < first)) {
+                first = entry.getValue()[0];
+            }
+        }
+        return first;
+    }
+
+    private static TagNode lastTagNode(List<? extends BaseToken> nodes) {
+        for (int i = nodes.size() - 1; i >= 0; i--) {
+            if (nodes.get(i) instanceof TagNode) {
+                return (TagNode) nodes.get(i);
+            }
+        }
+        return null;
+    }
+
+    private TagNode clean(String source, CleanTimeValues cleanTimeValues) {
+        try {
+            return cleaner.clean(new StringReader(source), cleanTimeValues);
+        } catch (IOException e) {
+            // should never happen because reading from StringReader
+            throw new HtmlCleanerException(e);
+        }
+    }
+
+    private CleanTimeValues newCleanTimeValues() {
+        CleanTimeValues cleanTimeValues = new CleanTimeValues();
+        cleanTimeValues.sourceSpans = new IdentityHashMap<BaseToken, int[]>();
+        cleanTimeValues.closingTokens = new IdentityHashMap<TagNode, EndTagToken>();
+        return cleanTimeValues;
+    }
+
+    private void putSpan(TagNode node, CleanTimeValues cleanTimeValues, int shift) {
+        int[] start = cleanTimeValues.sourceSpans.get(node);
+        if (start != null) {
+            EndTagToken endToken = cleanTimeValues.closingTokens.get(node);
+            int[] end = endToken == null ? null : cleanTimeValues.sourceSpans.get(endToken);
+            spans.put(node, start[0] + shift, start[1] + shift,
+                end == null ? -1 : end[0] + shift, end == null ? -1 : end[1] + shift);
+        }
+    }
+
+    /**
+     * @return Tag name as written in the source start tag.
+     */
+    private String getSourceName(int start, int end) {
+        int nameEnd = start + 1;
+        while (nameEnd < end && !Character.isWhitespace(content.charAt(nameEnd))
+                && content.charAt(nameEnd) != '>' && content.charAt(nameEnd) != '/') {
+            nameEnd++;
+        }
+        return content.substring(start + 1, nameEnd);
+    }
+
+    /**
+     * Namespaces of tags closed by their end tags are removed from the namespace stack when the
+     * cleaning is over, those still there apply to everything after the tag that declared them.
+     */
+    private static boolean hasForeignNamespace(CleanTimeValues cleanTimeValues) {
+        for (String namespace: cleanTimeValues.namespace) {
+            if (!XHTML_NAMESPACE.equals(namespace)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<TagNode> elements(TagNode root) {
+        List<TagNode> result = new ArrayList<TagNode>();
+        TagNodeIterator iterator = root.nodeIterator();
+        try {
+            while (iterator.hasNext()) {
+                HtmlNode node = iterator.next();
+                if (node instanceof TagNode) {
+                    result.add((TagNode) node);
+                }
+            }
+        } finally {
+            iterator.close();
+        }
+        return result;
+    }
+
+    /**
+     * Tag positions of the elements in one int array, so that shifting them after an edit is a
+     * plain loop. Slots of removed elements are reused only when the arrays are compacted.
+     */
+    private static final class SourceSpans {
+
+        private TagNode[] nodes = new TagNode[64];
+        private int[] positions = new int[4 * 64];
+        private int size;
+        private int removedCount;
+        private final Map<TagNode, Integer> indexes = new IdentityHashMap<TagNode, Integer>();
+
+        void clear() {
+            Arrays.fill(nodes, 0, size, null);
+            size = 0;
+            removedCount = 0;
+            indexes.clear();
+        }
+
+        int indexOf(TagNode node) {
+            Integer index = indexes.get(node);
+            return index == null ? -1 : index;
+        }
+
+        int get(int index, int part) {
+            return positions[4 * index + part];
+        }
+
+        void put(TagNode node, int startTagStart, int startTagEnd, int endTagStart, int endTagEnd) {
+            if (size == nodes.length) {
+                if (removedCount > size / 2) {
+                    compact();
+                } else {
+                    nodes = Arrays.copyOf(nodes, size * 2);
+                    positions = Arrays.copyOf(positions, 4 * size * 2);
+                }
+            }
+            int offset = 4 * size;
+            positions[offset + START_TAG_START] = startTagStart;
+            positions[offset + START_TAG_END] = startTagEnd;
+            positions[offset + END_TAG_START] = endTagStart;
+            positions[offset + END_TAG_END] = endTagEnd;
+            nodes[size] = node;
+            indexes.put(node, size++);
+        }
+
+        void remove(TagNode node) {
+            Integer index = indexes.remove(node);
+            if (index != null) {
+                nodes[index] = null;
+                // an empty range never contains an edit
+                positions[4 * index + END_TAG_START] = -1;
+                removedCount++;
+            }
+        }
+
+        /**
+         * @return Element with the smallest content range that contains the specified range.
+         */
+        TagNode findElement(int start, int end) {
+            int result = -1;
+            int resultLength = Integer.MAX_VALUE;
+            for (int i = 0, offset = 0; i < size; i++, offset += 4) {
+                int contentStart = positions[offset + START_TAG_END];
+                int contentEnd = positions[offset + END_TAG_START];
+                if (contentStart <= start && end <= contentEnd && contentEnd - contentStart < resultLength) {
+                    result = i;
+                    resultLength = contentEnd - contentStart;
+                }
+            }
+            return result < 0 ? null : nodes[result];
+        }
+
+        /**
+         * Moves the positions after a replaced range: starts at or after its end, and ends after its
+         * start, so that tags ending exactly where text is inserted stay in place.
+         */
+        void shift(int start, int end, int delta) {
+            for (int offset = 0; offset < 4 * size; offset += 4) {
+                if (positions[offset + START_TAG_START] >= end) {
+                    positions[offset + START_TAG_START] += delta;
+                }
+                if (positions[offset + START_TAG_END] > start) {
+                    positions[offset + START_TAG_END] += delta;
+                }
+                if (positions[offset + END_TAG_START] >= end) {
+                    positions[offset + END_TAG_START] += delta;
+                }
+                if (positions[offset + END_TAG_END] > start) {
+                    positions[offset + END_TAG_END] += delta;
+                }
+            }
+        }
+
+        private void compact() {
+            int newSize = 0;
+            indexes.clear();
+            for (int i = 0; i < size; i++) {
+                if (nodes[i] != null) {
+                    nodes[newSize] = nodes[i];
+                    System.arraycopy(positions, 4 * i, positions, 4 * newSize, 4);
+                    indexes.put(nodes[newSize], newSize);
+                    newSize++;
+                }
+            }
+            Arrays.fill(nodes, newSize, size, null);
+            size = newSize;
+            removedCount = 0;
+        }
+    }
+}
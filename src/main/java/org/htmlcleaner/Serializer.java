@@ -52,8 +52,8 @@ public abstract class Serializer {
     private class HeadlessTagNode extends TagNode {
         private HeadlessTagNode(TagNode wrappedNode) {
             super("");
-            getAttributes().putAll(wrappedNode.getAttributes());
-            addChildren(wrappedNode.getAllChildren());
+            // don't take the children over from the wrapped node, it may even be frozen
+            shareChildren(wrappedNode.getAllChildren());
             setDocType(wrappedNode.getDocType());
             Map<String, String> nsDecls = getNamespaceDeclarations();
             if (nsDecls != null) {
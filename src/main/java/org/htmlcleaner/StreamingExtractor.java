@@ -0,0 +1,629 @@
+/*  Copyright (c) 2006-2014, HTMLCleaner project
+    All rights reserved.
+
+    Redistribution and use of this software in source and binary forms,
+    with or without modification, are permitted provided that the following
+    conditions are met:
+
+    * Redistributions of source code must retain the above
+      copyright notice, this list of conditions and the
+      following disclaimer.
+
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the
+      following disclaimer in the documentation and/or other
+      materials provided with the distribution.
+
+    * The name of HtmlCleaner may not be used to endorse or promote
+      products derived from this software without specific prior
+      written permission.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+    AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+    IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+    ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+    LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+    CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+    SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+    INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+    CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+    ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+    POSSIBILITY OF SUCH DAMAGE.
+
+    http://htmlcleaner.sourceforge.net/
+*/
+
+
+package org.htmlcleaner;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>
+ *      Extracts the results of XPath expressions from a document while it is being cleaned,
+ *      without building the whole tree. The cleaner passes every node on as soon as it is
+ *      completed, with the tags still open around it being its ancestors, and nodes which are
+ *      not selected are dropped right away. Content of an open tag waits for the tag to be
+ *      completed if the tag gives values itself, may be pruned, or may be moved to head, like
+ *      <code>script</code> or <code>style</code>. Memory used therefore depends on the selected
+ *      subtrees and the depth of the document rather than on its size. Expressions added by
+ *      {@link #addFirstValueExpression(String)} stop after their first value, and once all
+ *      expressions are such and have their value, the rest of the content is not read at all.
+ * </p>
+ * <p>
+ *      Expressions are evaluated as against the <code>html</code> element of the cleaned tree.
+ *      Location paths, as described at {@link XPather}, are extracted while cleaning if their
+ *      filters only compare attributes with constants, like
+ *      <code>//div[@class='item']/a/@href</code>, and they cannot select head or body
+ *      themselves. Nodes moved to head and pruned nodes are treated as in the cleaned tree;
+ *      nodes at the top level which may still be moved to head by a later <code>head</code>
+ *      tag wait until body is opened or the document ends, and so do all top level nodes
+ *      after them.
+ *      If any expression is not supported, the document is cleaned as usual and all
+ *      expressions are evaluated by {@link XPathSet} instead, see {@link #isStreaming()}.
+ * </p>
+ * <p>
+ *      Results are those of {@link XPather#evaluateAgainstNode(TagNode)}, except that
+ *      selected elements are detached from the rest of the document, and that values are
+ *      listed in document order, with nodes the cleaned tree has in head at their place in the
+ *      source. XPather lists the children selected by a step for each element of the previous
+ *      step in turn, which differs for nested elements, like <code>//div/*</code> with a
+ *      <code>div</code> inside another one.
+ * </p>
+ */
+public class StreamingExtractor {
+
+    private final HtmlCleaner cleaner;
+    // expressions in the order they were added, mapped to true if only their first value is wanted
+    private final Map<String, Boolean> expressions = new LinkedHashMap<String, Boolean>();
+
+    public StreamingExtractor(HtmlCleaner cleaner) {
+        this.cleaner = cleaner;
+    }
+
+    /**
+     * Adds expression whose all values are extracted.
+     * @param expression
+     * @return This extractor.
+     */
+    public StreamingExtractor addExpression(String expression) {
+        expressions.put(expression, Boolean.FALSE);
+        return this;
+    }
+
+    /**
+     * Adds expression whose first value only is extracted.
+     * @param expression
+     * @return This extractor.
+     */
+    public StreamingExtractor addFirstValueExpression(String expression) {
+        expressions.put(expression, Boolean.TRUE);
+        return this;
+    }
+
+    /**
+     * @return Expressions of the extractor, in the order they were added.
+     */
+    public List<String> getExpressions() {
+        return Collections.unmodifiableList(new ArrayList<String>(expressions.keySet()));
+    }
+
+    /**
+     * @return Whether all expressions are extracted while cleaning, rather than from the cleaned tree.
+     */
+    public boolean isStreaming() {
+        for (String expression: expressions.keySet()) {
+            if (Expression.compile(expression, false) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Map<String, Object[]> extract(String content) throws XPatherException {
+        try {
+            return extract(new StringReader(content));
+        } catch (IOException e) {
+            // should never happen because reading from StringReader
+            throw new HtmlCleanerException(e);
+        }
+    }
+
+    /**
+     * Cleans the content and extracts the values of all expressions.
+     *
+     * @param reader (not closed)
+     * @return Map from each expression to its values, in the order the expressions were added.
+     * @throws IOException
+     * @throws XPatherException if any of the expressions cannot be evaluated
+     */
+    public Map<String, Object[]> extract(Reader reader) throws IOException, XPatherException {
+        List<Expression> compiled = new ArrayList<Expression>(expressions.size());
+        for (Map.Entry<String, Boolean> entry: expressions.entrySet()) {
+            Expression expression = Expression.compile(entry.getKey(), entry.getValue().booleanValue());
+            if (expression == null) {
+                return extractFromTree(reader);
+            }
+            compiled.add(expression);
+        }
+
+        CleanTimeValues cleanTimeValues = new CleanTimeValues();
+        Extraction extraction = new Extraction(cleaner, cleanTimeValues, compiled.toArray(new Expression[compiled.size()]));
+        cleanTimeValues.extraction = extraction;
+        try {
+            cleaner.clean(reader, cleanTimeValues);
+        } catch (Extraction.Stop stop) {
+            if (stop.getCause() instanceof XPatherException) {
+                throw (XPatherException) stop.getCause();
+            }
+        }
+
+        Map<String, Object[]> results = new LinkedHashMap<String, Object[]>();
+        for (Expression expression: compiled) {
+            results.put(expression.text, expression.values.toArray());
+        }
+        return results;
+    }
+
+    private Map<String, Object[]> extractFromTree(Reader reader) throws IOException, XPatherException {
+        Map<String, Object[]> results = new XPathSet(expressions.keySet()).evaluateAgainstNode(cleaner.clean(reader));
+        for (Map.Entry<String, Object[]> entry: results.entrySet()) {
+            Object[] values = entry.getValue();
+            if (expressions.get(entry.getKey()).booleanValue() && values.length > 1) {
+                entry.setValue(new Object[] {values[0]});
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Location path split into its element steps and the optional attribute step, with the
+     * values extracted so far.
+     */
+    private static final class Expression {
+        private final String text;
+        private final boolean isFirstValue;
+        private final XPather.ElementStep[] steps;
+        private final XPather.AttributeStep attributeStep;
+        private final List<Object> values = new ArrayList<Object>();
+        private boolean isSatisfied;
+
+        private Expression(String text, boolean isFirstValue, XPather.ElementStep[] steps, XPather.AttributeStep attributeStep) {
+            this.text = text;
+            this.isFirstValue = isFirstValue;
+            this.steps = steps;
+            this.attributeStep = attributeStep;
+        }
+
+        /**
+         * @param text
+         * @param isFirstValue
+         * @return Compiled expression, or null if it cannot be extracted while cleaning.
+         */
+        private static Expression compile(String text, boolean isFirstValue) {
+            XPather.Path[] locationPath = XPather.compile(text).getLocationPath();
+            // states of the steps are bits of a long, the first one stands for the context
+            if (locationPath == null || locationPath.length >= 64) {
+                return null;
+            }
+            List<XPather.ElementStep> steps = new ArrayList<XPather.ElementStep>();
+            XPather.AttributeStep attributeStep = null;
+            for (XPather.Path path: locationPath) {
+                if (path.step instanceof XPather.ElementStep && ((XPather.ElementStep) path.step).isDecidedByAttributes()) {
+                    steps.add((XPather.ElementStep) path.step);
+                } else if (path.step instanceof XPather.AttributeStep && ((XPather.AttributeStep) path.step).isDecidedByAttributes()) {
+                    attributeStep = (XPather.AttributeStep) path.step;
+                } else {
+                    return null;
+                }
+            }
+            Expression expression = new Expression(text, isFirstValue, steps.toArray(new XPather.ElementStep[steps.size()]), attributeStep);
+            return expression.mayUseDocumentNodes() ? null : expression;
+        }
+
+        /**
+         * @return Whether html, head or body could give values, by their names alone. Their
+         *         attributes are known only once the tree is built.
+         */
+        private boolean mayUseDocumentNodes() {
+            if (steps.length == 0) {
+                return true;
+            }
+            boolean isFirstStepLast = steps.length == 1 && (attributeStep == null || !attributeStep.isRecursive);
+            return isFirstStepLast && (steps[0].selectsName("head") || steps[0].selectsName("body"));
+        }
+
+        private void add(Object value) {
+            values.add(value);
+            isSatisfied = isFirstValue;
+        }
+    }
+
+    /**
+     * State of a single extraction, receiving the nodes from the cleaner. The state of a node
+     * holds two bit sets for every expression: steps matched by the node itself, and steps
+     * matched by the node or any of its ancestors. Bit <i>j</i> stands for the first <i>j</i>
+     * element steps, so bit 0 is set for the context only.
+     */
+    static final class Extraction {
+        private static final int TOP_LEVEL = 1;
+        // nodes moved out of tables are kept in lists, which are not looked into for head, nor for pruning at the top level
+        private static final int IN_LIST = 2;
+        private static final int IN_HEAD_CANDIDATE = 4;
+        private static final int IN_SELECTED = 8;
+        // nodes moved to head out of their parents are not looked at by pruning either
+        private static final int UNPRUNED = 16;
+
+        private final HtmlCleaner cleaner;
+        private final CleanTimeValues cleanTimeValues;
+        private final Expression[] expressions;
+        private final long[] rootState;
+        private long[] headState;
+        private long[] bodyState;
+
+        // open tags and their states from the previous pass, kept while the tags stay open
+        private final List<TagNode> openNodes = new ArrayList<TagNode>();
+        private final List<long[]> openStates = new ArrayList<long[]>();
+        private final List<Boolean> openUndecided = new ArrayList<Boolean>();
+        // state of the parent of the outermost open tag, head or body
+        private long[] openParentState;
+
+        // positions of open tags, each with the position of its first child not yet passed
+        private final List<int[]> pending = new ArrayList<int[]>();
+        // completed top level nodes whose place, head or body, is not known yet, and all top
+        // level items after them, which wait to keep the order of the source
+        private final List<Object> unplaced = new ArrayList<Object>();
+
+        private Extraction(HtmlCleaner cleaner, CleanTimeValues cleanTimeValues, Expression[] expressions) {
+            this.cleaner = cleaner;
+            this.cleanTimeValues = cleanTimeValues;
+            this.expressions = expressions;
+            this.rootState = new long[2 * expressions.length];
+            Arrays.fill(rootState, 1L);
+        }
+
+        /**
+         * @param openPosition position of the innermost open tag in the node list, -1 if there is none
+         * @return Position of the first node after the open tag not passed yet.
+         */
+        int getFirstPending(int openPosition) {
+            while (!pending.isEmpty() && pending.get(pending.size() - 1)[0] > openPosition) {
+                pending.remove(pending.size() - 1);
+            }
+            if (pending.isEmpty() || pending.get(pending.size() - 1)[0] < openPosition) {
+                pending.add(new int[] {openPosition, openPosition + 1});
+            }
+            return pending.get(pending.size() - 1)[1];
+        }
+
+        /**
+         * Extracts values from the completed nodes and removes them from the list, unless any of
+         * the open tags is selected or pruned itself and its content has to wait for it.
+         * @param nodeList
+         * @param start position of the first node
+         * @param end position after the last node
+         * @param openTags start tokens of the open tags, outermost first
+         * @param isFinal true if the document has ended
+         */
+        void pass(List<?> nodeList, int start, int end, List<TagNode> openTags, boolean isFinal) {
+            try {
+                boolean isWaiting = updateOpenStates(openTags);
+                if (!unplaced.isEmpty() && (isFinal || cleanTimeValues._bodyOpened)) {
+                    // their place is known now and they are checked for head as when the tree is built
+                    for (Object item: unplaced) {
+                        walk(item, null);
+                    }
+                    unplaced.clear();
+                }
+                if (isWaiting) {
+                    return;
+                }
+                long[] parentState = openStates.isEmpty() ? null : openStates.get(openStates.size() - 1);
+                for (int i = start; i < end; i++) {
+                    Object item = nodeList.get(i);
+                    boolean isNode = item instanceof TagNode || item instanceof List;
+                    if (parentState == null && isNode && !isFinal && (!unplaced.isEmpty()
+                            || item instanceof TagNode && cleaner.isHeadPlacementPending((TagNode) item, cleanTimeValues))) {
+                        unplaced.add(item);
+                    } else if (isNode) {
+                        walk(item, parentState);
+                    }
+                    nodeList.set(i, null);
+                }
+                pending.get(pending.size() - 1)[1] = end;
+            } catch (XPatherException e) {
+                throw new Stop(e);
+            }
+            if (isSatisfied()) {
+                throw new Stop(null);
+            }
+        }
+
+        /**
+         * @param openTags
+         * @return Whether any of the open tags is selected or gives attribute values, may be
+         *         pruned, or may be moved to head.
+         */
+        private boolean updateOpenStates(List<TagNode> openTags) throws XPatherException {
+            long[] newHeadState = childState(rootState, cleanTimeValues.headNode);
+            long[] newBodyState = childState(rootState, cleanTimeValues.bodyNode);
+            if (!Arrays.equals(newHeadState, headState) || !Arrays.equals(newBodyState, bodyState)) {
+                // attributes of head or body have changed, states below them are out of date
+                headState = newHeadState;
+                bodyState = newBodyState;
+                openNodes.clear();
+                openStates.clear();
+                openUndecided.clear();
+            }
+            int common = 0;
+            while (common < openNodes.size() && common < openTags.size() && openNodes.get(common) == openTags.get(common)) {
+                common++;
+            }
+            openNodes.subList(common, openNodes.size()).clear();
+            openStates.subList(common, openStates.size()).clear();
+            openUndecided.subList(common, openUndecided.size()).clear();
+            for (int i = common; i < openTags.size(); i++) {
+                TagNode tag = openTags.get(i);
+                if (i == 0) {
+                    openParentState = cleaner.isHeadCandidateOnCompletion(tag, true, cleanTimeValues) ? headState : bodyState;
+                }
+                long[] parentState = i > 0 ? openStates.get(i - 1) : openParentState;
+                openNodes.add(tag);
+                openStates.add(childState(parentState, tag));
+                openUndecided.add(Boolean.valueOf(cleaner.isPrunable(tag, cleanTimeValues) || cleaner.isPossibleHeadTag(tag)));
+            }
+
+            // content of a tag which may be pruned, or whose state depends on where it ends up, waits for it too
+            if (openUndecided.contains(Boolean.TRUE)) {
+                return true;
+            }
+            // values of a tag come before those of its content
+            for (int j = 0; j < openStates.size(); j++) {
+                long[] parentState = j > 0 ? openStates.get(j - 1) : openParentState;
+                for (int i = 0; i < expressions.length; i++) {
+                    if (!expressions[i].isSatisfied && givesValues(i, parentState, openStates.get(j))) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Extracts values from the item and all nodes below it. As when the tree is built, nodes
+         * are moved to head first, and everything else is pruned afterwards.
+         * @param item node or list of nodes
+         * @param parentState state of the parent, or null if the item is at the top level
+         */
+        private void walk(Object item, long[] parentState) throws XPatherException {
+            List<TagNode> headNodes = new ArrayList<TagNode>();
+            List<Integer> headFlags = new ArrayList<Integer>();
+            moveToHead(item, parentState == null, headNodes, headFlags);
+
+            // nodes at the top level have no parents to be removed from, and are skipped instead
+            Set<TagNode> moved = Collections.newSetFromMap(new IdentityHashMap<TagNode, Boolean>());
+            moved.addAll(headNodes);
+            Map<TagNode, List<TagNode>> removed = new IdentityHashMap<TagNode, List<TagNode>>();
+            walk(item, parentState, 0, moved, removed);
+            for (int i = 0; i < headNodes.size(); i++) {
+                walk(headNodes.get(i), headState, headFlags.get(i).intValue(), moved, removed);
+            }
+            for (Map.Entry<TagNode, List<TagNode>> entry: removed.entrySet()) {
+                entry.getKey().removeChildren(entry.getValue());
+            }
+        }
+
+        /**
+         * Removes the nodes moved to head from their parents.
+         * @param item
+         * @param isTopLevel
+         * @param headNodes receives the moved nodes, in document order
+         * @param headFlags receives the flags to walk the moved nodes with
+         */
+        private void moveToHead(Object item, boolean isTopLevel, List<TagNode> headNodes, List<Integer> headFlags) {
+            Map<TagNode, List<TagNode>> removed = new IdentityHashMap<TagNode, List<TagNode>>();
+            List<Object> nodes = new ArrayList<Object>();
+            List<Integer> flags = new ArrayList<Integer>();
+            nodes.add(item);
+            flags.add(Integer.valueOf(isTopLevel ? TOP_LEVEL : 0));
+            while (!nodes.isEmpty()) {
+                int last = nodes.size() - 1;
+                Object node = nodes.remove(last);
+                int flag = flags.remove(last).intValue();
+
+                List<?> children;
+                if (node instanceof List) {
+                    children = (List<?>) node;
+                    flag |= IN_LIST;
+                } else if (node instanceof TagNode) {
+                    TagNode element = (TagNode) node;
+                    // nodes in lists are added to body without being checked for head
+                    boolean isTopLevelNode = (flag & TOP_LEVEL) != 0 && (flag & IN_LIST) == 0;
+                    boolean isHeadCandidate = cleaner.isHeadCandidateOnCompletion(element, isTopLevelNode, cleanTimeValues);
+                    if (isHeadCandidate && (flag & IN_HEAD_CANDIDATE) == 0) {
+                        headNodes.add(element);
+                        headFlags.add(Integer.valueOf(IN_HEAD_CANDIDATE | (isTopLevelNode ? 0 : UNPRUNED)));
+                        remove(element, removed);
+                        flag |= IN_HEAD_CANDIDATE;
+                    }
+                    children = element.getAllChildren();
+                    flag &= ~TOP_LEVEL;
+                } else {
+                    continue;
+                }
+                for (int i = children.size() - 1; i >= 0; i--) {
+                    nodes.add(children.get(i));
+                    flags.add(Integer.valueOf(flag));
+                }
+            }
+            for (Map.Entry<TagNode, List<TagNode>> entry: removed.entrySet()) {
+                entry.getKey().removeChildren(entry.getValue());
+            }
+        }
+
+        /**
+         * Extracts values from the item and all nodes below it, in document order, leaving out
+         * pruned nodes and the nodes already moved to head.
+         */
+        private void walk(Object item, long[] parentState, int itemFlag, Set<TagNode> moved, Map<TagNode, List<TagNode>> removed)
+                throws XPatherException {
+            // explicit stack, children are pushed in reverse order
+            List<Object> nodes = new ArrayList<Object>();
+            List<long[]> states = new ArrayList<long[]>();
+            List<Integer> flags = new ArrayList<Integer>();
+            nodes.add(item);
+            states.add(parentState);
+            flags.add(Integer.valueOf(itemFlag));
+            while (!nodes.isEmpty()) {
+                int last = nodes.size() - 1;
+                Object node = nodes.remove(last);
+                long[] state = states.remove(last);
+                int flag = flags.remove(last).intValue();
+
+                List<?> children;
+                if (node instanceof List) {
+                    children = (List<?>) node;
+                    // lists inside open tags become their children, only those at the top level are not pruned
+                    if (state == null) {
+                        flag |= UNPRUNED;
+                    }
+                } else if (node instanceof TagNode) {
+                    TagNode element = (TagNode) node;
+                    if ((flag & IN_HEAD_CANDIDATE) == 0 && moved.contains(element)) {
+                        continue;
+                    }
+                    if (state == null) {
+                        state = bodyState;
+                    }
+                    if ((flag & UNPRUNED) == 0 && cleaner.isPrunedOnCompletion(element, cleanTimeValues)) {
+                        remove(element, removed);
+                        continue;
+                    }
+                    long[] elementState = childState(state, element);
+                    if (select(element, state, elementState) && (flag & IN_SELECTED) == 0) {
+                        remove(element, removed);
+                        flag |= IN_SELECTED;
+                    }
+                    children = element.getAllChildren();
+                    state = elementState;
+                } else {
+                    continue;
+                }
+                for (int i = children.size() - 1; i >= 0; i--) {
+                    nodes.add(children.get(i));
+                    states.add(state);
+                    flags.add(Integer.valueOf(flag));
+                }
+            }
+        }
+
+        /**
+         * Adds the values the element gives to the expressions.
+         * @return Whether the element itself is selected by any of the expressions.
+         */
+        private boolean select(TagNode element, long[] parentState, long[] state) throws XPatherException {
+            boolean isSelected = false;
+            for (int i = 0; i < expressions.length; i++) {
+                Expression expression = expressions[i];
+                if (expression.isSatisfied) {
+                    continue;
+                }
+                if (!givesValues(i, parentState, state)) {
+                    continue;
+                }
+                if (expression.attributeStep == null) {
+                    expression.add(element);
+                    isSelected = true;
+                } else {
+                    for (Object value: expression.attributeStep.valuesOf(element)) {
+                        if (!expression.isSatisfied) {
+                            expression.add(value);
+                        }
+                    }
+                }
+            }
+            return isSelected;
+        }
+
+        /**
+         * @param i index of the expression
+         * @param parentState
+         * @param state
+         * @return Whether the element is selected by the expression, or its attributes are.
+         */
+        private boolean givesValues(int i, long[] parentState, long[] state) {
+            Expression expression = expressions[i];
+            // recursive attribute step takes attributes of descendants of the matched elements
+            boolean isRecursive = expression.attributeStep != null && expression.attributeStep.isRecursive;
+            return isSet(isRecursive ? parentState[2 * i + 1] : state[2 * i], expression.steps.length);
+        }
+
+        private long[] childState(long[] parentState, TagNode element) throws XPatherException {
+            long[] state = new long[parentState.length];
+            for (int i = 0; i < expressions.length; i++) {
+                Expression expression = expressions[i];
+                if (expression.isSatisfied) {
+                    continue;
+                }
+                long matched = parentState[2 * i];
+                long matchedAbove = parentState[2 * i + 1];
+                long result = 0;
+                XPather.ElementStep[] steps = expression.steps;
+                for (int j = 0; j < steps.length; j++) {
+                    if (isSet(steps[j].isRecursive ? matchedAbove : matched, j) && steps[j].selects(element)) {
+                        result |= 1L << (j + 1);
+                    }
+                }
+                state[2 * i] = result;
+                state[2 * i + 1] = matchedAbove | result;
+            }
+            return state;
+        }
+
+        private boolean isSatisfied() {
+            for (Expression expression: expressions) {
+                if (!expression.isSatisfied) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean isSet(long bits, int index) {
+            return (bits & (1L << index)) != 0;
+        }
+
+        private static void remove(TagNode element, Map<TagNode, List<TagNode>> removed) {
+            TagNode parent = element.getParent();
+            if (parent != null) {
+                List<TagNode> children = removed.get(parent);
+                if (children == null) {
+                    children = new ArrayList<TagNode>();
+                    removed.put(parent, children);
+                }
+                children.add(element);
+            }
+        }
+
+        /**
+         * Ends the cleaning when all values are extracted, or when extraction fails.
+         */
+        static final class Stop extends RuntimeException {
+            private static final long serialVersionUID = 1L;
+
+            private Stop(XPatherException cause) {
+                super(cause);
+            }
+        }
+    }
+}
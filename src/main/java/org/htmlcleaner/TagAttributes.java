@@ -0,0 +1,350 @@
+/*  Copyright (c) 2006-2014, HTMLCleaner project
+    All rights reserved.
+
+    Redistribution and use of this software in source and binary forms,
+    with or without modification, are permitted provided that the following
+    conditions are met:
+
+    * Redistributions of source code must retain the above
+      copyright notice, this list of conditions and the
+      following disclaimer.
+
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the
+      following disclaimer in the documentation and/or other
+      materials provided with the distribution.
+
+    * The name of HtmlCleaner may not be used to endorse or promote
+      products derived from this software without specific prior
+      written permission.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+    AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+    IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+    ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+    LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+    CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+    SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+    INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+    CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+    ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+    POSSIBILITY OF SUCH DAMAGE.
+
+    http://htmlcleaner.sourceforge.net/
+*/
+
+package org.htmlcleaner;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * <p>
+ *      Compact, insertion ordered storage of tag attributes. Names, their lowercase forms and values
+ *      are kept in parallel arrays, so case-insensitive lookups need neither a second map nor any
+ *      copying. Lowercase forms are computed once, when an attribute is added, and share the name
+ *      instance whenever the name is lowercase already.
+ * </p>
+ * <p>
+ *      Semantics follow the <code>LinkedHashMap</code> previously used by {@link TagNode}: names are
+ *      unique when compared exactly, and replacing a value keeps the original position.
+ * </p>
+ * <p>
+ *      Copies share the arrays of the original until either of them is changed, see
+ *      {@link #shareFrom(TagAttributes, boolean)}.
+ * </p>
+ */
+final class TagAttributes {
+
+    private static final String[] EMPTY = new String[0];
+
+    private String[] names = EMPTY;
+    private String[] lowerNames = EMPTY;
+    private String[] values = EMPTY;
+    private int size;
+    private int modCount;
+    // arrays may be used by another instance too, and have to be copied before any change
+    private boolean arraysShared;
+
+    private Map<String, String> view;
+
+    int size() {
+        return size;
+    }
+
+    String getName(int index) {
+        return names[index];
+    }
+
+    String getLowerName(int index) {
+        return lowerNames[index];
+    }
+
+    String getValue(int index) {
+        return values[index];
+    }
+
+    /**
+     * @param name exact attribute name
+     * @return index of the attribute, or -1 if there is none
+     */
+    int indexOf(String name) {
+        for (int i = 0; i < size; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * When several names differ only in case, the last one wins - just as it would in a map
+     * with lowercased keys.
+     *
+     * @param lowerName attribute name in lower case
+     * @return index of the attribute whose name matches ignoring case, or -1 if there is none
+     */
+    int lastIndexOfLowerCase(String lowerName) {
+        for (int i = size - 1; i >= 0; i--) {
+            if (lowerNames[i].equals(lowerName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    String get(String name) {
+        int index = indexOf(name);
+        return index < 0 ? null : values[index];
+    }
+
+    String getIgnoreCase(String name) {
+        int index = lastIndexOfLowerCase(name.toLowerCase());
+        return index < 0 ? null : values[index];
+    }
+
+    /**
+     * Makes this instance hold the same attributes as the source, without copying them: both use
+     * the same arrays until one of them is changed.
+     *
+     * @param source
+     * @param sourceImmutable true if the source never changes, so that it needs no marking -
+     *        frozen nodes are read concurrently and must not be written to
+     */
+    void shareFrom(TagAttributes source, boolean sourceImmutable) {
+        names = source.names;
+        lowerNames = source.lowerNames;
+        values = source.values;
+        size = source.size;
+        arraysShared = true;
+        if (!sourceImmutable) {
+            source.arraysShared = true;
+        }
+        modCount++;
+    }
+
+    void put(String name, String value) {
+        unshare();
+        int index = indexOf(name);
+        if (index >= 0) {
+            values[index] = value;
+        } else {
+            ensureCapacity(size + 1);
+            names[size] = name;
+            lowerNames[size] = name.toLowerCase();
+            values[size] = value;
+            size++;
+        }
+        modCount++;
+    }
+
+    void putAll(Map<String, String> attributes) {
+        ensureCapacity(size + attributes.size());
+        for (Map.Entry<String, String> entry: attributes.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    void remove(String name) {
+        int index = indexOf(name);
+        if (index >= 0) {
+            unshare();
+            int moved = size - index - 1;
+            if (moved > 0) {
+                System.arraycopy(names, index + 1, names, index, moved);
+                System.arraycopy(lowerNames, index + 1, lowerNames, index, moved);
+                System.arraycopy(values, index + 1, values, index, moved);
+            }
+            size--;
+            names[size] = null;
+            lowerNames[size] = null;
+            values[size] = null;
+            modCount++;
+        }
+    }
+
+    void clear() {
+        if (arraysShared) {
+            // the other instance still uses the old arrays, they must not be touched
+            names = EMPTY;
+            lowerNames = EMPTY;
+            values = EMPTY;
+            arraysShared = false;
+        } else {
+            for (int i = 0; i < size; i++) {
+                names[i] = null;
+                lowerNames[i] = null;
+                values[i] = null;
+            }
+        }
+        size = 0;
+        modCount++;
+    }
+
+    /**
+     * Replaces all names by their lowercase forms. Names that collapse into the same lowercase
+     * form keep the position of the first one and the value of the last one.
+     */
+    void toLowerCaseNames() {
+        boolean changed = false;
+        for (int i = 0; i < size && !changed; i++) {
+            changed = names[i] != lowerNames[i] && !names[i].equals(lowerNames[i]);
+        }
+        if (changed) {
+            String[] oldLowerNames = lowerNames;
+            String[] oldValues = values;
+            int oldSize = size;
+            names = new String[oldSize];
+            values = new String[oldSize];
+            size = 0;
+            for (int i = 0; i < oldSize; i++) {
+                int index = indexOf(oldLowerNames[i]);
+                if (index >= 0) {
+                    values[index] = oldValues[i];
+                } else {
+                    names[size] = oldLowerNames[i];
+                    values[size] = oldValues[i];
+                    size++;
+                }
+            }
+            lowerNames = names.clone();
+            arraysShared = false;
+            modCount++;
+        }
+    }
+
+    /**
+     * @return new map of all attributes with lowercase names
+     */
+    Map<String, String> toLowerCaseMap() {
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        for (int i = 0; i < size; i++) {
+            result.put(lowerNames[i], values[i]);
+        }
+        return result;
+    }
+
+    /**
+     * @return read-only live view of the attributes
+     */
+    Map<String, String> asMap() {
+        if (view == null) {
+            view = new MapView();
+        }
+        return view;
+    }
+
+    private void unshare() {
+        if (arraysShared) {
+            names = names.clone();
+            lowerNames = lowerNames.clone();
+            values = values.clone();
+            arraysShared = false;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > names.length) {
+            int newLength = Math.max(capacity, names.length < 2 ? 4 : names.length * 2);
+            names = copyOf(names, newLength);
+            lowerNames = copyOf(lowerNames, newLength);
+            values = copyOf(values, newLength);
+            arraysShared = false;
+        }
+    }
+
+    private static String[] copyOf(String[] array, int length) {
+        String[] result = new String[length];
+        System.arraycopy(array, 0, result, 0, Math.min(array.length, length));
+        return result;
+    }
+
+    private final class MapView extends AbstractMap<String, String> {
+
+        private Set<Map.Entry<String, String>> entrySet;
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String && indexOf((String) key) >= 0;
+        }
+
+        @Override
+        public String get(Object key) {
+            return key instanceof String ? TagAttributes.this.get((String) key) : null;
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            if (entrySet == null) {
+                entrySet = new AbstractSet<Map.Entry<String, String>>() {
+                    @Override
+                    public int size() {
+                        return size;
+                    }
+
+                    @Override
+                    public Iterator<Map.Entry<String, String>> iterator() {
+                        return new EntryIterator();
+                    }
+                };
+            }
+            return entrySet;
+        }
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<String, String>> {
+
+        private final int expectedModCount = modCount;
+        private int next;
+
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        public Map.Entry<String, String> next() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            final int index = next++;
+            return new AbstractMap.SimpleImmutableEntry<String, String>(names[index], values[index]);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("Attributes view is read-only");
+        }
+    }
+}
@@ -43,6 +43,7 @@ import org.htmlcleaner.conditional.ITagNodeCondition;
 import org.htmlcleaner.conditional.TagAllCondition;
 import org.htmlcleaner.conditional.TagNodeAttExistsCondition;
 import org.htmlcleaner.conditional.TagNodeAttValueCondition;
+import org.htmlcleaner.conditional.TagNodeClassCondition;
 import org.htmlcleaner.conditional.TagNodeNameCondition;
 
 /**
@@ -54,9 +55,45 @@ import org.htmlcleaner.conditional.TagNodeNameCondition;
  * </p>
  */
 public class TagNode extends TagToken implements HtmlNode {
+    private static final TextOptions DEFAULT_TEXT_OPTIONS = new TextOptions();
+
+    /**
+     * Bits returned by {@link #compareDocumentPosition(TagNode)}, with the same meaning as in DOM.
+     */
+    public static final int DOCUMENT_POSITION_DISCONNECTED = 0x01;
+    public static final int DOCUMENT_POSITION_PRECEDING = 0x02;
+    public static final int DOCUMENT_POSITION_FOLLOWING = 0x04;
+    public static final int DOCUMENT_POSITION_CONTAINS = 0x08;
+    public static final int DOCUMENT_POSITION_CONTAINED_BY = 0x10;
+
     private TagNode parent;
-    private final Map<String, String> attributes = new LinkedHashMap<String, String>();
-    private final List<BaseToken> children = new ArrayList<BaseToken>();
+    private final TagAttributes attributes = new TagAttributes();
+    private List<BaseToken> children = new ArrayList<BaseToken>();
+    private transient ChildrenLoader childrenLoader;
+    // number of iterators going through the current children list, which must not change then
+    private transient int activeTraversals;
+    // number of children numbered last time, hints of children added later are not used
+    private transient int hintedChildCount;
+    // Fenwick tree counting the numbered children removed since, by their numbered position
+    private transient int[] removedHintedChildren;
+    private transient int removedHintedChildCount;
+
+    private transient int modificationCount;
+    // structural hash is valid while structuralHashState equals modificationCount + 1
+    private transient long structuralHash;
+    private transient volatile int structuralHashState;
+    private transient volatile boolean indexed;
+    private transient volatile TagNodeIndex index;
+    // position in document order given by the last index built over this node
+    private transient volatile TagNodeIndex.Position documentPosition;
+    // results of XPath expressions evaluated against this tree, null unless turned on
+    private transient volatile XPathResultCache xPathResultCache;
+
+    /**
+     * Derived data of a frozen node, null while the node can be modified.
+     * @see #freeze()
+     */
+    private FrozenState frozenState;
     private DoctypeToken docType;
     private List<BaseToken> itemsToMove;
     private Map<String, String> nsDeclarations;
@@ -119,6 +156,9 @@ public class TagNode extends TagToken implements HtmlNode {
 	 */
 	@Override
 	public String getName() {
+		if (frozenState != null) {
+			return frozenState.name;
+		}
 		//
 		// If this is foreign markup (e.g. SVG) we return the
 		// original name, otherwise we return it in lower case
@@ -140,16 +180,18 @@ public class TagNode extends TagToken implements HtmlNode {
     	//
     	// We have to do case-insensitive comparisons
     	//	
-        return attName != null ? (String) getAttributesInLowerCase().get(attName.toLowerCase()) : null;
+        return attributes.getIgnoreCase(attName);
     }
 
     /**
      * Returns the attributes of the tagnode. 
      * 
-     * @return Map instance containing all attribute name/value pairs.
+     * @return Read-only view of all attribute name/value pairs. The view reflects later changes
+     *         of the attributes; use {@link #setAttributes(Map)}, {@link #addAttribute(String, String)}
+     *         or {@link #removeAttribute(String)} to change them.
      */
     public Map<String, String> getAttributes() {
-    	return new LinkedHashMap<String, String>(this.attributes);
+    	return attributes.asMap();
     }
     
     /**
@@ -166,6 +208,7 @@ public class TagNode extends TagToken implements HtmlNode {
      * @param attributes
      */
     public void setAttributes(Map<String, String> attributes) {
+        modified();
 
     	//
     	// If we haven't yet built the tree, we don't know if this
@@ -211,10 +254,9 @@ public class TagNode extends TagToken implements HtmlNode {
     			// with different casing. If so, we keep the casing
     			//
     			if (!foreignMarkupFlagSet){
-    				for (String existingKey: this.attributes.keySet()){
-    					if (existingKey.equalsIgnoreCase(key)){
-    						keyToSet = existingKey;
-    					}
+    				int existingIndex = this.attributes.lastIndexOfLowerCase(key.toLowerCase());
+    				if (existingIndex >= 0){
+    					keyToSet = this.attributes.getName(existingIndex);
     				}
     			}
     			processedAttributes.put(keyToSet, value);    		
@@ -229,7 +271,9 @@ public class TagNode extends TagToken implements HtmlNode {
      * @param attributes the attributes to set
      */
     private void replaceAttributes(Map<String, String> attributes){
-
+    	if (attributes == this.attributes.asMap()) {
+    		return;
+    	}
     	this.attributes.clear();
     	this.attributes.putAll(attributes);    	
     }
@@ -246,11 +290,7 @@ public class TagNode extends TagToken implements HtmlNode {
     	//
     	// We have to do case-insensitive comparisons
     	//
-    	for (String key: attributes.keySet()){
-    		if (key.equalsIgnoreCase(attName)) return true;
-    	}
-    	
-    	return false;
+    	return attributes.lastIndexOfLowerCase(attName.toLowerCase()) >= 0;
     }
 
     /**
@@ -261,6 +301,7 @@ public class TagNode extends TagToken implements HtmlNode {
      */
     @Override
     public void addAttribute(String attName, String attValue) {
+        modified();
         if (attName != null) {
             String trim = attName.trim();
             if (!isForeignMarkup && foreignMarkupFlagSet) trim = trim.toLowerCase();
@@ -278,6 +319,7 @@ public class TagNode extends TagToken implements HtmlNode {
      * @param attName
      */
     public void removeAttribute(String attName) {
+        modified();
         if (attName != null && !"".equals(attName.trim())) {
             attributes.remove(attName.toLowerCase());
         }
@@ -295,20 +337,48 @@ public class TagNode extends TagToken implements HtmlNode {
     }
 
     public void setChildren(List<? extends BaseToken> children) {
-    	this.children.clear();
-        this.children.addAll(children);
+    	modified();
+    	this.childrenLoader = null;
+    	List<BaseToken> newChildren = childrenForChange();
+    	newChildren.clear();
+        newChildren.addAll(children);
+        invalidateChildIndexHints();
+        for (BaseToken child: children) {
+            adopt(child);
+        }
+    }
+
+    /**
+     * Makes this node list the same children as the specified list, without making this node
+     * their parent. Used by temporary wrappers around the children of some other node.
+     *
+     * @param children
+     */
+    void shareChildren(List<? extends BaseToken> children) {
+        checkNotFrozen();
+        this.childrenLoader = null;
+        List<BaseToken> newChildren = childrenForChange();
+        newChildren.clear();
+        newChildren.addAll(children);
+        invalidateChildIndexHints();
     }
 
     public List<? extends BaseToken> getAllChildren() {
-        return children;
+        if (frozenState != null) {
+            return frozenState.children;
+        }
+        return children();
     }
 
     /**
      * @return List of child TagNode objects.
      */
     public List<TagNode> getChildTagList() {
+        if (frozenState != null) {
+            return Collections.unmodifiableList(Arrays.asList(frozenState.childTags));
+        }
         List<TagNode> childTagList = new ArrayList<TagNode>();
-        for (Object item: children) {
+        for (Object item: children()) {
             if (item instanceof TagNode) {
                 childTagList.add((TagNode) item);
             }
@@ -321,13 +391,16 @@ public class TagNode extends TagToken implements HtmlNode {
      * @return Whether this node has child elements or not.
      */
     public boolean hasChildren() {
-        return !children.isEmpty();
+        return !children().isEmpty();
     }
 
     /**
      * @return An array of child TagNode instances.
      */
     public TagNode[] getChildTags() {
+        if (frozenState != null) {
+            return frozenState.childTags.clone();
+        }
         List<TagNode> childTagList = getChildTagList();
         TagNode childrenArray[] = new TagNode[childTagList.size()];
         for (int i = 0; i < childTagList.size(); i++) {
@@ -341,16 +414,110 @@ public class TagNode extends TagToken implements HtmlNode {
      * @return Text content of this node and it's subelements.
      */
     public CharSequence getText() {
-        StringBuilder text = new StringBuilder();
-        for (Object item :children) {
-            if (item instanceof ContentNode) {
-                text.append(((ContentNode) item).getContent());
-            } else if (item instanceof TagNode) {
-                CharSequence subtext = ((TagNode) item).getText();
-                text.append(subtext);
+        if (frozenState != null) {
+            return frozenState.getText(this);
+        }
+        return appendText(new StringBuilder(), DEFAULT_TEXT_OPTIONS);
+    }
+
+    /**
+     * Writes text content of this node and it's subelements to the specified output. The tree is
+     * walked without recursion and the content of every text node is written exactly once.
+     *
+     * @param out output for the text
+     * @param options options of extraction, or null for the defaults giving the same text as {@link #getText()}
+     * @throws IOException if writing to the output fails
+     */
+    public void appendText(Appendable out, TextOptions options) throws IOException {
+        TextOptions textOptions = options != null ? options : DEFAULT_TEXT_OPTIONS;
+        if (textOptions.isSkipScriptAndStyle() && isScriptOrStyle(this)) {
+            return;
+        }
+        String separator = textOptions.getBlockSeparator();
+        StringBuilder decoded = null;
+        // separator is pending after a block boundary and written only before some more text
+        boolean written = false;
+        boolean separatorPending = false;
+
+        TagNode[] nodes = new TagNode[16];
+        int[] positions = new int[16];
+        int depth = 0;
+        nodes[depth++] = this;
+        while (depth > 0) {
+            TagNode node = nodes[depth - 1];
+            List<? extends BaseToken> nodeChildren = node.getAllChildren();
+            int position = positions[depth - 1];
+            if (position < nodeChildren.size()) {
+                positions[depth - 1] = position + 1;
+                BaseToken child = nodeChildren.get(position);
+                if (child instanceof ContentNode) {
+                    String content = ((ContentNode) child).getContent();
+                    if (content.length() > 0) {
+                        if (separatorPending && written) {
+                            out.append(separator);
+                        }
+                        separatorPending = false;
+                        written = true;
+                        if (textOptions.isDecodeEntities() && content.indexOf('&') >= 0) {
+                            if (decoded == null) {
+                                decoded = new StringBuilder(content.length());
+                            }
+                            decoded.setLength(0);
+                            decoded.append(content);
+                            Utils.deserializeEntities(decoded, textOptions.isRecognizeUnicodeChars());
+                            out.append(decoded);
+                        } else {
+                            out.append(content);
+                        }
+                    }
+                } else if (child instanceof TagNode) {
+                    TagNode childNode = (TagNode) child;
+                    if (textOptions.isSkipScriptAndStyle() && isScriptOrStyle(childNode)) {
+                        continue;
+                    }
+                    if (separator != null && isBlock(childNode, textOptions)) {
+                        separatorPending = true;
+                    }
+                    if (depth == nodes.length) {
+                        TagNode[] newNodes = new TagNode[depth * 2];
+                        System.arraycopy(nodes, 0, newNodes, 0, depth);
+                        nodes = newNodes;
+                        int[] newPositions = new int[depth * 2];
+                        System.arraycopy(positions, 0, newPositions, 0, depth);
+                        positions = newPositions;
+                    }
+                    nodes[depth] = childNode;
+                    positions[depth] = 0;
+                    depth++;
+                }
+            } else {
+                depth--;
+                nodes[depth] = null;
+                if (separator != null && depth > 0 && isBlock(node, textOptions)) {
+                    separatorPending = true;
+                }
             }
         }
+    }
 
+    private static boolean isScriptOrStyle(TagNode node) {
+        String nodeName = node.getName();
+        return "script".equalsIgnoreCase(nodeName) || "style".equalsIgnoreCase(nodeName);
+    }
+
+    private static boolean isBlock(TagNode node, TextOptions options) {
+        ITagInfoProvider provider = options.getTagInfoProvider();
+        TagInfo tagInfo = provider != null ? provider.getTagInfo(node.getName()) : null;
+        return tagInfo != null && (tagInfo.getDisplay() == Display.block || tagInfo.getDisplay() == Display.any);
+    }
+
+    private StringBuilder appendText(StringBuilder text, TextOptions options) {
+        try {
+            appendText((Appendable) text, options);
+        } catch (IOException e) {
+            // StringBuilder doesn't throw
+            throw new HtmlCleanerException(e);
+        }
         return text;
     }
 
@@ -360,16 +527,124 @@ public class TagNode extends TagToken implements HtmlNode {
      *         child
      */
     public int getChildIndex(HtmlNode child) {
-        int index = 0;
-        for (Object curr : children) {
-            if (curr == child) {
-                return index;
+        return indexOfChild(child);
+    }
+
+    /**
+     * Index of a child is usually found in logarithmic time: the position remembered by the child
+     * when the children were last numbered is corrected by the number of children removed before it
+     * since.
+     */
+    private int indexOfChild(Object child) {
+        List<BaseToken> list = children();
+        if (child instanceof BaseTokenImpl) {
+            int hint = ((BaseTokenImpl) child).childIndexHint;
+            if (hint < hintedChildCount) {
+                int index = hint - countRemovedHintedChildren(hint);
+                if (index >= 0 && index < list.size() && list.get(index) == child) {
+                    return index;
+                }
+            }
+        }
+        if (frozenState != null) {
+            // tag children are numbered when frozen; text and comments may be shared with other
+            // trees and reading a frozen node never writes, so they are looked for one by one
+            return indexOfIdentity(list, child);
+        }
+        updateChildIndexHints(list);
+        return indexOfIdentity(list, child);
+    }
+
+    private static int indexOfIdentity(List<?> list, Object item) {
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i) == item) {
+                return i;
             }
-            index++;
         }
         return -1;
     }
 
+    /**
+     * Numbers all children anew.
+     */
+    private void updateChildIndexHints(List<BaseToken> list) {
+        int size = list.size();
+        for (int i = 0; i < size; i++) {
+            Object child = list.get(i);
+            if (child instanceof BaseTokenImpl && !(child instanceof TagNode && ((TagNode) child).frozenState != null)) {
+                ((BaseTokenImpl) child).childIndexHint = i;
+            }
+        }
+        hintedChildCount = size;
+        removedHintedChildren = null;
+        removedHintedChildCount = 0;
+    }
+
+    private void invalidateChildIndexHints() {
+        hintedChildCount = 0;
+        removedHintedChildren = null;
+        removedHintedChildCount = 0;
+    }
+
+    /**
+     * @return number of removed children whose numbered position is lower than the specified one
+     */
+    private int countRemovedHintedChildren(int position) {
+        int result = 0;
+        if (removedHintedChildren != null) {
+            for (int i = position; i > 0; i -= i & -i) {
+                result += removedHintedChildren[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Called after the child at the specified index has been removed.
+     */
+    private void childRemoved(int index) {
+        if (index >= hintedChildCount - removedHintedChildCount) {
+            // the child was added after numbering, so the other numbered children did not move
+            return;
+        }
+        if (removedHintedChildren == null) {
+            removedHintedChildren = new int[hintedChildCount + 1];
+        }
+        int[] tree = removedHintedChildren;
+        // find numbered position of the child, the one with exactly index children remaining before it
+        int position = 0;
+        int remaining = index + 1;
+        for (int step = Integer.highestOneBit(hintedChildCount); step > 0; step >>= 1) {
+            int next = position + step;
+            if (next <= hintedChildCount && step - tree[next] < remaining) {
+                position = next;
+                remaining -= step - tree[next];
+            }
+        }
+        for (int i = position + 1; i <= hintedChildCount; i += i & -i) {
+            tree[i]++;
+        }
+        removedHintedChildCount++;
+    }
+
+    /**
+     * Called after a child has been inserted at the specified index.
+     */
+    private void childInserted(int index) {
+        if (index < hintedChildCount - removedHintedChildCount) {
+            invalidateChildIndexHints();
+        }
+    }
+
+    /**
+     * Called for a child that is not in the children list any more.
+     */
+    private void release(Object child) {
+        if (child instanceof TagNode && ((TagNode) child).parent == this) {
+            ((TagNode) child).parent = null;
+        }
+    }
+
     /**
      * Inserts specified node at specified position in array of children
      *
@@ -377,7 +652,10 @@ public class TagNode extends TagToken implements HtmlNode {
      * @param childToAdd
      */
     public void insertChild(int index, HtmlNode childToAdd) {
-        children.add(index, childToAdd);
+        modified();
+        childrenForChange().add(index, childToAdd);
+        childInserted(index);
+        adopt(childToAdd);
     }
 
     /**
@@ -413,28 +691,86 @@ public class TagNode extends TagToken implements HtmlNode {
         return parent;
     }
 
+    /**
+     * @return First child of this node - tag node, text, comment or other token, or null if there are
+     *         no children.
+     */
+    public BaseToken getFirstChild() {
+        List<? extends BaseToken> list = getAllChildren();
+        return list.isEmpty() ? null : list.get(0);
+    }
+
+    /**
+     * @return Last child of this node - tag node, text, comment or other token, or null if there are
+     *         no children.
+     */
+    public BaseToken getLastChild() {
+        List<? extends BaseToken> list = getAllChildren();
+        return list.isEmpty() ? null : list.get(list.size() - 1);
+    }
+
+    /**
+     * @return Node following this one among the children of its parent, or null if this is the last
+     *         child or the root node.
+     */
+    public BaseToken getNextSibling() {
+        return parent != null ? parent.getChildAfter(this) : null;
+    }
+
+    /**
+     * @return Node preceding this one among the children of its parent, or null if this is the first
+     *         child or the root node.
+     */
+    public BaseToken getPreviousSibling() {
+        return parent != null ? parent.getChildBefore(this) : null;
+    }
+
+    /**
+     * Gives the next sibling of any child, including text and comments, which don't know their parent.
+     * Text and comments of a frozen node are found in linear time, tag nodes as fast as usual.
+     *
+     * @param child
+     * @return Child following the specified one, or null if it is the last child or not a child at all.
+     */
+    public BaseToken getChildAfter(BaseToken child) {
+        int index = indexOfChild(child);
+        List<? extends BaseToken> list = getAllChildren();
+        return index >= 0 && index + 1 < list.size() ? list.get(index + 1) : null;
+    }
+
+    /**
+     * Gives the previous sibling of any child, including text and comments, which don't know their parent.
+     * Text and comments of a frozen node are found in linear time, tag nodes as fast as usual.
+     *
+     * @param child
+     * @return Child preceding the specified one, or null if it is the first child or not a child at all.
+     */
+    public BaseToken getChildBefore(BaseToken child) {
+        int index = indexOfChild(child);
+        return index > 0 ? getAllChildren().get(index - 1) : null;
+    }
+
     public DoctypeToken getDocType() {
         return docType;
     }
 
     public void setDocType(DoctypeToken docType) {
+        checkNotFrozen();
         this.docType = docType;
     }
 
     public void addChild(Object child) {
+        modified();
         if (child == null) {
             return;
         }
         if (child instanceof List) {
             addChildren((List) child);
         } else if (child instanceof ProxyTagNode) {
-            children.add(((ProxyTagNode) child).getToken());
+            childrenForChange().add(((ProxyTagNode) child).getToken());
         } else if (child instanceof BaseToken){
-            children.add((BaseToken)child);
-            if (child instanceof TagNode) {
-                TagNode childTagNode = (TagNode) child;
-                childTagNode.parent = this;
-            }
+            childrenForChange().add((BaseToken)child);
+            adopt(child);
         } else {
         	throw new RuntimeException("Attempted to add invalid child object to TagNode; class="+child.getClass());
         }
@@ -461,8 +797,17 @@ public class TagNode extends TagToken implements HtmlNode {
      * @return First TagNode found, or null if no such elements.
      */
     private TagNode findElement(ITagNodeCondition condition, boolean isRecursive) {
+        List<TagNode> candidates = isRecursive ? getIndexCandidates(condition) : null;
+        if (candidates != null) {
+            for (TagNode candidate: candidates) {
+                if (condition.satisfy(candidate)) {
+                    return candidate;
+                }
+            }
+            return null;
+        }
         if (condition != null) {
-            for (Object item : children) {
+            for (Object item : children()) {
                 if (item instanceof TagNode) {
                     TagNode currNode = (TagNode) item;
                     if (condition.satisfy(currNode)) {
@@ -479,6 +824,16 @@ public class TagNode extends TagToken implements HtmlNode {
         return null;
     }
     
+    /**
+     * @param condition
+     * @return Elements from the index among which all elements below this node satisfying the
+     *         condition are, or null if indexing is off or the condition isn't supported by the index.
+     */
+    private List<TagNode> getIndexCandidates(ITagNodeCondition condition) {
+        TagNodeIndex currentIndex = condition != null ? getIndex() : null;
+        return currentIndex == null ? null : currentIndex.getCandidates(condition, this);
+    }
+
     /**
      * Get all elements in the tree that satisfy specified condition.
      * @param condition
@@ -490,8 +845,17 @@ public class TagNode extends TagToken implements HtmlNode {
         if (condition == null) {
             return result;
         }
+        List<TagNode> candidates = isRecursive ? getIndexCandidates(condition) : null;
+        if (candidates != null) {
+            for (TagNode candidate: candidates) {
+                if (condition.satisfy(candidate)) {
+                    result.add(candidate);
+                }
+            }
+            return result;
+        }
 
-        for (Object item : children) {
+        for (Object item : children()) {
             if (item instanceof TagNode) {
                 TagNode currNode = (TagNode) item;
                 if (condition.satisfy(currNode)) {
@@ -580,6 +944,18 @@ public class TagNode extends TagToken implements HtmlNode {
         return getElements(new TagNodeAttValueCondition(attName, attValue, isCaseSensitive), isRecursive);
     }
 
+    public TagNode findElementByClass(String className, boolean isRecursive) {
+        return findElement(new TagNodeClassCondition(className), isRecursive);
+    }
+
+    public List<? extends TagNode> getElementListByClass(String className, boolean isRecursive) {
+        return getElementList(new TagNodeClassCondition(className), isRecursive);
+    }
+
+    public TagNode[] getElementsByClass(String className, boolean isRecursive) {
+        return getElements(new TagNodeClassCondition(className), isRecursive);
+    }
+
     /**
      * Evaluates XPath expression on give node. <br>
      * <em>
@@ -605,7 +981,31 @@ public class TagNode extends TagToken implements HtmlNode {
      * @throws XPatherException
      */
     public Object[] evaluateXPath(String xPathExpression) throws XPatherException {
-        return new XPather(xPathExpression).evaluateAgainstNode(this);
+        return XPather.compile(xPathExpression).evaluateAgainstNode(this);
+    }
+
+    /**
+     * Finds elements below this node matching the CSS selector, for example
+     * <code>div.content &gt; p:not(.note) a[href^=http]</code>.
+     * See {@link CssSelector} for supported selectors.
+     *
+     * @param cssSelector
+     * @return Matching elements in document order.
+     * @throws IllegalArgumentException if the selector is malformed or not supported
+     */
+    public List<TagNode> select(String cssSelector) {
+        return CssSelector.compile(cssSelector).select(this);
+    }
+
+    /**
+     * @param cssSelector
+     * @return First element below this node in document order matching the CSS selector, or null
+     *         if there is none.
+     * @throws IllegalArgumentException if the selector is malformed or not supported
+     * @see #select(String)
+     */
+    public TagNode selectFirst(String cssSelector) {
+        return CssSelector.compile(cssSelector).selectFirst(this);
     }
 
     /**
@@ -624,17 +1024,141 @@ public class TagNode extends TagToken implements HtmlNode {
      * @return True if child object existed in the children list.
      */
     public boolean removeChild(Object child) {
-        return this.children.remove(child);
+        modified();
+        int index = indexOfChild(child);
+        if (index < 0) {
+            return false;
+        }
+        List<BaseToken> list = childrenForChange();
+        list.remove(index);
+        childRemoved(index);
+        release(child);
+        return true;
     }
 
     /**
      * Removes all children (subelements and text content).
      */
     public void removeAllChildren() {
-        this.children.clear();
+        modified();
+        this.childrenLoader = null;
+        List<BaseToken> list = childrenForChange();
+        for (BaseToken child: list) {
+            release(child);
+        }
+        list.clear();
+        invalidateChildIndexHints();
+    }
+
+    /**
+     * Removes all child tag nodes satisfying the condition, in a single pass over the children.
+     * The condition is checked for all child tag nodes before any of them is removed.
+     *
+     * @param condition
+     * @return Number of removed children.
+     */
+    public int removeChildrenIf(ITagNodeCondition condition) {
+        List<BaseToken> list = children();
+        boolean[] toRemove = new boolean[list.size()];
+        int count = 0;
+        for (int i = 0; i < toRemove.length; i++) {
+            BaseToken child = list.get(i);
+            if (child instanceof TagNode && condition.satisfy((TagNode) child)) {
+                toRemove[i] = true;
+                count++;
+            }
+        }
+        return removeMarkedChildren(toRemove, count);
+    }
+
+    /**
+     * Removes all specified nodes from the children of this node, in a single pass over the children.
+     * Nodes are compared by identity, the ones which are not children are ignored.
+     *
+     * @param nodes
+     * @return Number of removed children.
+     */
+    public int removeChildren(Collection<?> nodes) {
+        return removeChildren(nodes, false);
+    }
+
+    /**
+     * Removes all children of this node except the specified nodes, in a single pass over the children.
+     * Nodes are compared by identity.
+     *
+     * @param nodes
+     * @return Number of removed children.
+     */
+    public int retainChildren(Collection<?> nodes) {
+        return removeChildren(nodes, true);
+    }
+
+    /**
+     * Replaces the children from <code>fromIndex</code>, inclusive, to <code>toIndex</code>, exclusive,
+     * with the specified nodes. Children after the range are moved only once.
+     *
+     * @param fromIndex
+     * @param toIndex
+     * @param nodes nodes to put instead of the range, may be empty
+     * @throws IndexOutOfBoundsException if the range is not within the children
+     */
+    public void replaceChildren(int fromIndex, int toIndex, List<? extends BaseToken> nodes) {
+        modified();
+        List<BaseToken> list = childrenForChange();
+        List<BaseToken> range = list.subList(fromIndex, toIndex);
+        for (BaseToken child: range) {
+            release(child);
+        }
+        range.clear();
+        list.addAll(fromIndex, nodes);
+        for (BaseToken child: nodes) {
+            adopt(child);
+        }
+        updateChildIndexHints(list);
+    }
+
+    private int removeChildren(Collection<?> nodes, boolean retain) {
+        Set<Object> set = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>(nodes.size() * 2));
+        set.addAll(nodes);
+        List<BaseToken> list = children();
+        boolean[] toRemove = new boolean[list.size()];
+        int count = 0;
+        for (int i = 0; i < toRemove.length; i++) {
+            if (set.contains(list.get(i)) != retain) {
+                toRemove[i] = true;
+                count++;
+            }
+        }
+        return removeMarkedChildren(toRemove, count);
+    }
+
+    private int removeMarkedChildren(boolean[] toRemove, int count) {
+        if (count == 0) {
+            return 0;
+        }
+        modified();
+        List<BaseToken> list = childrenForChange();
+        int size = list.size();
+        int first = 0;
+        while (!toRemove[first]) {
+            first++;
+        }
+        int kept = first;
+        for (int i = first; i < size; i++) {
+            BaseToken child = list.get(i);
+            if (toRemove[i]) {
+                release(child);
+            } else {
+                list.set(kept++, child);
+            }
+        }
+        list.subList(kept, size).clear();
+        updateChildIndexHints(list);
+        return count;
     }
 
     void addItemForMoving(Object item) {
+        checkNotFrozen();
         if (itemsToMove == null) {
             itemsToMove = new ArrayList<BaseToken>();
         }
@@ -651,6 +1175,7 @@ public class TagNode extends TagToken implements HtmlNode {
     }
 
     void setItemsToMove(List<BaseToken> itemsToMove) {
+        checkNotFrozen();
         this.itemsToMove = itemsToMove;
     }
 
@@ -659,6 +1184,7 @@ public class TagNode extends TagToken implements HtmlNode {
     }
 
     void setFormed(boolean isFormed) {
+        checkNotFrozen();
         this.isFormed = isFormed;
     }
 
@@ -670,6 +1196,7 @@ public class TagNode extends TagToken implements HtmlNode {
      * @param autoGenerated the autoGenerated to set
      */
     public void setAutoGenerated(boolean autoGenerated) {
+        checkNotFrozen();
         this.autoGenerated = autoGenerated;
     }
 
@@ -688,12 +1215,13 @@ public class TagNode extends TagToken implements HtmlNode {
     }
 
     public void setPruned(boolean pruned) {
+        checkNotFrozen();
         this.pruned = pruned;
     }
 
     public boolean isEmpty() {
         if (!isPruned()) {
-            for (Object child : this.children) {
+            for (Object child : children()) {
                 if (child instanceof TagNode) {
                     if (!((TagNode) child).isPruned()) {
                         return false;
@@ -720,6 +1248,7 @@ public class TagNode extends TagToken implements HtmlNode {
      * @param nsURI Namespace URI
      */
     public void addNamespaceDeclaration(String nsPrefix, String nsURI) {
+        checkNotFrozen();
         if (nsDeclarations == null) {
             nsDeclarations = new TreeMap<String, String>();
         }
@@ -771,50 +1300,548 @@ public class TagNode extends TagToken implements HtmlNode {
         serializer.serialize(this, writer);
     }
 
+    /**
+     * @return Copy of this node with the same attributes and without children. Attributes are
+     *         shared with this node until either of them changes them.
+     * @see #makeDeepCopy()
+     */
     public TagNode makeCopy() {
         TagNode copy = new TagNode(name, true);
-        copy.attributes.putAll(attributes);
+        copy.attributes.shareFrom(attributes, frozenState != null);
         return copy;
     }
 
+    /**
+     * Returns a modifiable copy of the subtree with this node as its root. Attributes of every node
+     * are shared with the original until one of the two nodes changes them, and text and comment
+     * nodes, which never change, are shared as they are.
+     * <p/>
+     * Copies of a frozen subtree share even more, see {@link #thaw()}: children are copied only when
+     * they are first accessed, so instantiating a frozen template many times with small edits copies
+     * just the nodes on the way to the edited ones.
+     *
+     * @return Modifiable copy of this subtree without parent.
+     */
+    public TagNode makeDeepCopy() {
+        if (frozenState != null) {
+            return thaw();
+        }
+        TagNode root = new TagNode(name, isCopy);
+        copyStateTo(root);
+        // iterative copy with explicit stacks of originals and their copies, so depth is not limited
+        List<TagNode> originals = new ArrayList<TagNode>();
+        List<TagNode> copies = new ArrayList<TagNode>();
+        originals.add(this);
+        copies.add(root);
+        while (!originals.isEmpty()) {
+            TagNode original = originals.remove(originals.size() - 1);
+            TagNode copy = copies.remove(copies.size() - 1);
+            List<BaseToken> source = original.children();
+            for (BaseToken child: source) {
+                if (child instanceof TagNode && ((TagNode) child).frozenState == null) {
+                    TagNode tagChild = (TagNode) child;
+                    TagNode childCopy = new TagNode(tagChild.name, tagChild.isCopy);
+                    tagChild.copyStateTo(childCopy);
+                    childCopy.parent = copy;
+                    copy.children.add(childCopy);
+                    originals.add(tagChild);
+                    copies.add(childCopy);
+                } else {
+                    // frozen subtrees stay in place, just like when added to a modifiable node
+                    copy.children.add(child);
+                }
+            }
+        }
+        return root;
+    }
+
     public boolean isCopy() {
         return isCopy;
     }
 
     /**
-     * Traverses the tree and performs visitor's action on each node. It stops when it finishes all
-     * the tree or when visitor returns false.
+     * Returns an immutable snapshot of the subtree with this node as its root. Lowercased names,
+     * child lists and attribute views are computed while freezing, and text is computed once, on
+     * first request, so a frozen tree can be read concurrently from any number of threads once it
+     * has been safely published to them, for example through a final or volatile field.
+     * <p/>
+     * All methods that would modify a frozen node throw {@link UnsupportedOperationException};
+     * use {@link #thaw()} to get a modifiable copy. A frozen node added as a child of a modifiable
+     * node keeps its original parent.
      *
-     * @param visitor TagNodeVisitor implementation
+     * @return Frozen copy of this subtree without parent, or this node if it is frozen already.
      */
-    public void traverse(TagNodeVisitor visitor) {
-        traverseInternally(visitor);
+    public TagNode freeze() {
+        if (frozenState != null) {
+            return this;
+        }
+        TagNode root = new TagNode(name, isCopy);
+        copyStateTo(root);
+        // iterative copy with explicit stacks of originals and their copies, so depth is not limited;
+        // frozen nodes inside a mutable tree are copied too, since their parent differs
+        List<TagNode> originals = new ArrayList<TagNode>();
+        List<TagNode> copies = new ArrayList<TagNode>();
+        originals.add(this);
+        copies.add(root);
+        while (!originals.isEmpty()) {
+            TagNode original = originals.remove(originals.size() - 1);
+            TagNode copy = copies.remove(copies.size() - 1);
+            for (BaseToken child: original.children()) {
+                if (child instanceof TagNode) {
+                    TagNode tagChild = (TagNode) child;
+                    TagNode childCopy = new TagNode(tagChild.name, tagChild.isCopy);
+                    tagChild.copyStateTo(childCopy);
+                    childCopy.parent = copy;
+                    // the copy belongs to this parent only, so it is numbered once and for all
+                    childCopy.childIndexHint = copy.children.size();
+                    copy.children.add(childCopy);
+                    originals.add(tagChild);
+                    copies.add(childCopy);
+                } else {
+                    copy.children.add(child);
+                }
+            }
+            if (copy.nsDeclarations != null) {
+                copy.nsDeclarations = Collections.unmodifiableMap(copy.nsDeclarations);
+            }
+            // the child list is complete, descendants are filled in later through the child copies
+            copy.hintedChildCount = copy.children.size();
+            copy.frozenState = new FrozenState(copy);
+        }
+        return root;
     }
 
-    private boolean traverseInternally(TagNodeVisitor visitor) {
-        if (visitor != null) {
-            boolean hasParent = parent != null;
-            boolean toContinue = visitor.visit(parent, this);
+    /**
+     * Returns a modifiable copy of the subtree with this node as its root. Children of a frozen
+     * node are copied only when they are first accessed, so modifying a small part of a large
+     * frozen tree is cheap.
+     *
+     * @return Modifiable copy of this subtree without parent.
+     */
+    public TagNode thaw() {
+        if (frozenState == null) {
+            return freeze().thaw();
+        }
+        TagNode copy = new TagNode(name, isCopy);
+        copyStateTo(copy);
+        if (!children.isEmpty()) {
+            copy.childrenLoader = new ChildrenLoader() {
+                public List<? extends BaseToken> loadChildren(TagNode node) {
+                    List<BaseToken> result = new ArrayList<BaseToken>(children.size());
+                    for (BaseToken child: children) {
+                        result.add(child instanceof TagNode ? ((TagNode) child).thaw() : child);
+                    }
+                    return result;
+                }
+            };
+        }
+        return copy;
+    }
+
+    /**
+     * @return true if this node is a part of a frozen tree.
+     * @see #freeze()
+     */
+    public boolean isFrozen() {
+        return frozenState != null;
+    }
+
+    private void copyStateTo(TagNode copy) {
+        copy.attributes.shareFrom(attributes, frozenState != null);
+        copy.docType = docType;
+        if (nsDeclarations != null) {
+            copy.nsDeclarations = new TreeMap<String, String>(nsDeclarations);
+        }
+        copy.autoGenerated = autoGenerated;
+        copy.isForeignMarkup = isForeignMarkup;
+        copy.foreignMarkupFlagSet = foreignMarkupFlagSet;
+        copy.isTrimAttributeValues = isTrimAttributeValues;
+        copy.pruned = pruned;
+        copy.isFormed = isFormed;
+        copy.indexed = indexed;
+    }
 
-            if (!toContinue) {
-                return false; // if visitor stops traversal
-            } else if (hasParent && parent == null) {
-                return true; // if this node is pruned from the tree during the visit, then don't go deeper
+    /**
+     * Makes this node parent of the specified child, if it is a tag node.
+     * Frozen nodes stay attached to their own tree.
+     */
+    private void adopt(Object child) {
+        if (child instanceof TagNode) {
+            TagNode childTagNode = (TagNode) child;
+            if (childTagNode.frozenState == null) {
+                childTagNode.parent = this;
             }
-            for (Object child : children.toArray()) { // make an array to avoid ConcurrentModificationException when some node is cut
-                if (child instanceof TagNode) {
-                    toContinue = ((TagNode) child).traverseInternally(visitor);
-                } else if (child instanceof ContentNode) {
-                    toContinue = visitor.visit(this, (ContentNode) child);
-                } else if (child instanceof CommentNode) {
-                    toContinue = visitor.visit(this, (CommentNode) child);
+        }
+    }
+
+    /**
+     * Called before any change of attributes or children. Increments modification count of this
+     * node and all of its ancestors.
+     */
+    private void modified() {
+        checkNotFrozen();
+        for (TagNode node = this; node != null; node = node.parent) {
+            node.modificationCount++;
+        }
+    }
+
+    /**
+     * @return Number of changes of attributes or children of this node or any of its descendants.
+     *         Can be used to check whether data derived from the subtree is still valid.
+     */
+    int getModificationCount() {
+        return modificationCount;
+    }
+
+    /**
+     * <p>
+     *      Returns 64 bit hash of the structure of this subtree, combining lowercase tag name,
+     *      attributes and hashes of all children in their order. Attributes are compared by their
+     *      lowercase names and values regardless of order, text and comments by their content.
+     *      Nodes with equal subtrees have equal hashes, which makes finding duplicate blocks
+     *      within a page or across many pages cheap, without serializing them.
+     * </p>
+     * <p>
+     *      Hashes are computed bottom-up when first asked for and kept in every node of the
+     *      subtree. A change of the tree makes stale only the hashes of the changed node and its
+     *      ancestors, so asking again recomputes just these. Frozen trees can be hashed
+     *      concurrently.
+     * </p>
+     *
+     * @return Structural hash of this node and all of its descendants.
+     */
+    public long getStructuralHash() {
+        if (structuralHashState != modificationCount + 1) {
+            // nodes with stale hashes in breadth-first order, so that children follow their parents
+            List<TagNode> stale = new ArrayList<TagNode>();
+            stale.add(this);
+            for (int i = 0; i < stale.size(); i++) {
+                for (BaseToken child: stale.get(i).getAllChildren()) {
+                    if (child instanceof TagNode) {
+                        TagNode childTagNode = (TagNode) child;
+                        if (childTagNode.structuralHashState != childTagNode.modificationCount + 1) {
+                            stale.add(childTagNode);
+                        }
+                    }
                 }
-                if (!toContinue) {
-                    return false;
+            }
+            for (int i = stale.size() - 1; i >= 0; i--) {
+                stale.get(i).computeStructuralHash();
+            }
+        }
+        return structuralHash;
+    }
+
+    /**
+     * Computes the hash of this node from the up to date hashes of its child nodes.
+     */
+    private void computeStructuralHash() {
+        long hash = hash(1, getName());
+        // sum of attribute hashes does not depend on their order
+        long attributesHash = 0;
+        for (int i = 0; i < attributes.size(); i++) {
+            attributesHash += mix(hash(hash(0, attributes.getName(i).toLowerCase()), attributes.getValue(i)));
+        }
+        hash = combine(hash, attributesHash);
+        for (BaseToken child: getAllChildren()) {
+            if (child instanceof TagNode) {
+                hash = combine(hash, ((TagNode) child).structuralHash);
+            } else if (child instanceof CData) {
+                hash = combine(hash, hash(2, ((CData) child).getContent()));
+            } else if (child instanceof ContentNode) {
+                hash = combine(hash, hash(3, ((ContentNode) child).getContent()));
+            } else if (child instanceof CommentNode) {
+                hash = combine(hash, hash(4, ((CommentNode) child).getContent()));
+            } else if (child != null) {
+                hash = combine(hash, hash(5, child.toString()));
+            }
+        }
+        structuralHash = hash;
+        // written last, readers seeing the new state see the hash too
+        structuralHashState = modificationCount + 1;
+    }
+
+    private static long combine(long hash, long value) {
+        return mix(hash * 0x9E3779B97F4A7C15L + value);
+    }
+
+    /**
+     * 64 bit FNV-1a over the characters of the string, seeded by the given hash.
+     */
+    private static long hash(long seed, String s) {
+        long hash = 0xcbf29ce484222325L ^ seed;
+        if (s != null) {
+            for (int i = 0; i < s.length(); i++) {
+                hash ^= s.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+        }
+        return mix(hash);
+    }
+
+    // finalizer of MurmurHash3, spreads every input bit over the whole result
+    private static long mix(long hash) {
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    /**
+     * Turns on or off the index of all elements below this node, typically the root of the
+     * document. The index is built when it is first needed and rebuilt on first use after the
+     * subtree has been changed. While it is on, recursive searches like
+     * {@link #getElementsByName(String, boolean)}, {@link #findElementByAttValue(String, String, boolean, boolean)},
+     * {@link #getElementsHavingAttribute(String, boolean)}, {@link #getElementsByClass(String, boolean)}
+     * and recursive name steps of XPath expressions evaluated against this node look up
+     * candidates in the index instead of walking the whole subtree.
+     * <p>
+     * The index also numbers the elements in document order. While it is up to date, the same
+     * searches from any element below this node use the part of the index below that element,
+     * and {@link #isAncestorOf(TagNode)} and {@link #compareDocumentPosition(TagNode)} take
+     * constant time for elements below this node.
+     * </p>
+     *
+     * @param indexed
+     */
+    public void setIndexed(boolean indexed) {
+        this.indexed = indexed;
+        if (!indexed) {
+            this.index = null;
+        }
+    }
+
+    /**
+     * @return Whether the index of elements below this node is turned on.
+     * @see #setIndexed(boolean)
+     */
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    /**
+     * @return Up to date index of elements below this node - its own one, or the index of an
+     *         indexed ancestor if it is up to date - or null if there is none.
+     */
+    TagNodeIndex getIndex() {
+        if (!indexed) {
+            TagNodeIndex.Position position = getCurrentPosition();
+            return position != null ? position.index : null;
+        }
+        // concurrent readers of a frozen tree may build the index twice, both results are equal
+        TagNodeIndex current = index;
+        if (current == null || current.getModificationCount() != modificationCount) {
+            current = new TagNodeIndex(this, modificationCount);
+            index = current;
+        }
+        return current;
+    }
+
+    /**
+     * Turns on or off caching of results of XPath expressions evaluated against this node or any
+     * node below it, typically the root of the document. Evaluating the same expression against
+     * the same node again, with {@link #evaluateXPath(String)} or {@link XPather}, gives a copy of
+     * the remembered result as long as nothing in the tree changed; any change of attributes or
+     * children of any node of the tree drops all remembered results.
+     * <p>
+     * Only the setting of the root of the tree, the node without parent, is used.
+     * </p>
+     *
+     * @param cached
+     */
+    public void setXPathResultsCached(boolean cached) {
+        this.xPathResultCache = cached ? new XPathResultCache(this) : null;
+    }
+
+    /**
+     * @return Whether results of XPath expressions evaluated against this tree are cached.
+     * @see #setXPathResultsCached(boolean)
+     */
+    public boolean isXPathResultsCached() {
+        return xPathResultCache != null;
+    }
+
+    /**
+     * @return Cache of XPath results of the root of this tree, or null if it is turned off.
+     */
+    XPathResultCache getXPathResultCache() {
+        TagNode root = this;
+        while (root.parent != null) {
+            root = root.parent;
+        }
+        return root.xPathResultCache;
+    }
+
+    /**
+     * @param nodeIndex
+     * @return Whether the index is the index of this node and nothing changed since it was built.
+     */
+    boolean isCurrentIndex(TagNodeIndex nodeIndex) {
+        return indexed && index == nodeIndex && nodeIndex.getModificationCount() == modificationCount;
+    }
+
+    void setDocumentPosition(TagNodeIndex.Position documentPosition) {
+        this.documentPosition = documentPosition;
+    }
+
+    /**
+     * @return Position of this node given by an up to date index of its indexed ancestor or of
+     *         itself, or null if there is none.
+     */
+    TagNodeIndex.Position getCurrentPosition() {
+        TagNodeIndex.Position position = documentPosition;
+        return position != null && position.index.isCurrent() ? position : null;
+    }
+
+    /**
+     * Tells whether the specified node is a descendant of this node. It takes constant time
+     * when both nodes are below the same indexed node whose index is up to date, see
+     * {@link #setIndexed(boolean)}, otherwise ancestors of the node are visited.
+     *
+     * @param node
+     * @return True if this node is an ancestor of the specified node.
+     */
+    public boolean isAncestorOf(TagNode node) {
+        TagNodeIndex.Position position = getCurrentPosition();
+        TagNodeIndex.Position nodePosition = position != null ? node.getCurrentPosition() : null;
+        if (nodePosition != null && nodePosition.index == position.index) {
+            return position.contains(nodePosition);
+        }
+        for (TagNode ancestor = node.getParent(); ancestor != null; ancestor = ancestor.getParent()) {
+            if (ancestor == this) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compares position of the other node with position of this node in the document, like
+     * <code>Node.compareDocumentPosition()</code> of DOM. It takes constant time when both
+     * nodes are below the same indexed node whose index is up to date, see
+     * {@link #setIndexed(boolean)}, otherwise ancestors of both nodes are visited.
+     *
+     * @param other
+     * @return 0 if the other node is this node, {@link #DOCUMENT_POSITION_DISCONNECTED} if it is
+     *         in another tree, otherwise {@link #DOCUMENT_POSITION_PRECEDING} or
+     *         {@link #DOCUMENT_POSITION_FOLLOWING}, combined with
+     *         {@link #DOCUMENT_POSITION_CONTAINS} for ancestors and
+     *         {@link #DOCUMENT_POSITION_CONTAINED_BY} for descendants of this node.
+     */
+    public int compareDocumentPosition(TagNode other) {
+        if (other == this) {
+            return 0;
+        }
+        TagNodeIndex.Position position = getCurrentPosition();
+        TagNodeIndex.Position otherPosition = position != null ? other.getCurrentPosition() : null;
+        if (otherPosition != null && otherPosition.index == position.index) {
+            if (position.contains(otherPosition)) {
+                return DOCUMENT_POSITION_CONTAINED_BY | DOCUMENT_POSITION_FOLLOWING;
+            } else if (otherPosition.contains(position)) {
+                return DOCUMENT_POSITION_CONTAINS | DOCUMENT_POSITION_PRECEDING;
+            }
+            return otherPosition.number < position.number ? DOCUMENT_POSITION_PRECEDING : DOCUMENT_POSITION_FOLLOWING;
+        }
+
+        List<TagNode> path = getPathFromRoot();
+        List<TagNode> otherPath = other.getPathFromRoot();
+        if (path.get(0) != otherPath.get(0)) {
+            return DOCUMENT_POSITION_DISCONNECTED;
+        }
+        int common = 0;
+        while (common + 1 < path.size() && common + 1 < otherPath.size() && path.get(common + 1) == otherPath.get(common + 1)) {
+            common++;
+        }
+        if (common == path.size() - 1) {
+            return DOCUMENT_POSITION_CONTAINED_BY | DOCUMENT_POSITION_FOLLOWING;
+        } else if (common == otherPath.size() - 1) {
+            return DOCUMENT_POSITION_CONTAINS | DOCUMENT_POSITION_PRECEDING;
+        }
+        TagNode parent = path.get(common);
+        return parent.indexOfChild(otherPath.get(common + 1)) < parent.indexOfChild(path.get(common + 1))
+                ? DOCUMENT_POSITION_PRECEDING : DOCUMENT_POSITION_FOLLOWING;
+    }
+
+    /**
+     * @return Ancestors of this node starting with the root, followed by this node.
+     */
+    private List<TagNode> getPathFromRoot() {
+        List<TagNode> path = new ArrayList<TagNode>();
+        for (TagNode node = this; node != null; node = node.getParent()) {
+            path.add(node);
+        }
+        Collections.reverse(path);
+        return path;
+    }
+
+    private void checkNotFrozen() {
+        if (frozenState != null) {
+            throw new UnsupportedOperationException("Frozen TagNode cannot be modified, use thaw() to get a modifiable copy");
+        }
+    }
+
+    /**
+     * Data derived from a frozen node, computed once so that reading never writes to the node.
+     */
+    private static final class FrozenState {
+        private final String name;
+        private final List<BaseToken> children;
+        private final TagNode[] childTags;
+        // racy single check is enough, since the text is an immutable string
+        private volatile String text;
+
+        private FrozenState(TagNode node) {
+            this.name = node.getName();
+            this.children = Collections.unmodifiableList(node.children);
+            this.childTags = node.getChildTags();
+            // create the attribute views now, not lazily from concurrent readers
+            node.attributes.asMap().entrySet();
+        }
+
+        private String getText(TagNode node) {
+            String result = text;
+            if (result == null) {
+                result = node.appendText(new StringBuilder(), DEFAULT_TEXT_OPTIONS).toString();
+                text = result;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Traverses the tree and performs visitor's action on each node. It stops when it finishes all
+     * the tree or when visitor returns false.
+     *
+     * @param visitor TagNodeVisitor implementation
+     */
+    public void traverse(TagNodeVisitor visitor) {
+        if (visitor == null) {
+            return;
+        }
+        TagNodeIterator iterator = new TagNodeIterator(this);
+        try {
+            while (iterator.hasNext()) {
+                HtmlNode node = iterator.next();
+                // tag nodes are given their current parent, other nodes the one they were found in
+                TagNode parentNode = node instanceof TagNode ? ((TagNode) node).parent : iterator.getParent();
+                if (!visitor.visit(parentNode, node)) {
+                    return;
                 }
             }
+        } finally {
+            iterator.close();
         }
-        return true;
+    }
+
+    /**
+     * Returns iterator over this node and all its descendant tag nodes, text nodes and comments in
+     * document order. The iteration uses no recursion, so it works for trees of any depth, and the
+     * children of any tag node can be left out with {@link TagNodeIterator#skipChildren()}.
+     * The tree may be changed while it is iterated, see {@link TagNodeIterator}.
+     *
+     * @return new iterator, starting with this node
+     */
+    public TagNodeIterator nodeIterator() {
+        return new TagNodeIterator(this);
     }
 
 	/**
@@ -828,6 +1855,7 @@ public class TagNode extends TagToken implements HtmlNode {
 	 * @param isForeignMarkup the isForeignMarkup to set
 	 */
 	public void setForeignMarkup(boolean isForeignMarkup) {
+		modified();
 		foreignMarkupFlagSet = true;
 		this.isForeignMarkup = isForeignMarkup;
 		
@@ -836,7 +1864,7 @@ public class TagNode extends TagToken implements HtmlNode {
 		// element to lowercase.
 		//
 		if (!isForeignMarkup){
-			this.replaceAttributes(getAttributesInLowerCase());
+			attributes.toLowerCaseNames();
 		}
 	}
 
@@ -851,6 +1879,7 @@ public class TagNode extends TagToken implements HtmlNode {
 	 * @param isTrimAttributeValues the isTrimAttributeValues to set
 	 */ 
 	public void setTrimAttributeValues(boolean isTrimAttributeValues) {
+		checkNotFrozen();
 		this.isTrimAttributeValues = isTrimAttributeValues;
 	}
 	
@@ -860,13 +1889,103 @@ public class TagNode extends TagToken implements HtmlNode {
 	 * @return a map of attributes in key/value pairs with names in lowercase
 	 */
 	private Map<String, String> attributesToLowerCase(){
-		Map<String, String> lowerCaseAttributes = new LinkedHashMap<String, String>();
-		for (String key: attributes.keySet()){
-			lowerCaseAttributes.put(key.toLowerCase(), attributes.get(key));
-		}
-		return lowerCaseAttributes;
+		return attributes.toLowerCaseMap();
 	}
 	
+	/**
+	 * Source of the children of a node whose children are created only when first needed.
+	 *
+	 * @see FlatDocument
+	 */
+	interface ChildrenLoader {
+		/**
+		 * @param node node whose children are requested
+		 * @return the children, in document order
+		 */
+		List<? extends BaseToken> loadChildren(TagNode node);
+	}
+
+	/**
+	 * Makes children of this node to be loaded from the specified loader on first access.
+	 * @param childrenLoader
+	 */
+	void setChildrenLoader(ChildrenLoader childrenLoader) {
+		checkNotFrozen();
+		this.childrenLoader = childrenLoader;
+	}
+
+	/**
+	 * @return the list of children, loaded first if it has not been loaded yet
+	 */
+	private List<BaseToken> children() {
+		if (childrenLoader != null) {
+			ChildrenLoader loader = childrenLoader;
+			childrenLoader = null;
+			for (BaseToken child: loader.loadChildren(this)) {
+				children.add(child);
+				if (child instanceof TagNode) {
+					((TagNode) child).parent = this;
+				}
+			}
+		}
+		return children;
+	}
+
+	/**
+	 * Starts iterating through the children of this node. Until the matching
+	 * {@link #endTraversal(List)}, any change of the children is made on a copy of the list,
+	 * so the iterator keeps going through the list as it was.
+	 *
+	 * @return the list to iterate through
+	 */
+	List<BaseToken> startTraversal() {
+		if (frozenState != null) {
+			// frozen children never change, and concurrent readers must not write to the node
+			return frozenState.children;
+		}
+		List<BaseToken> result = children();
+		activeTraversals++;
+		return result;
+	}
+
+	/**
+	 * Ends iterating through the children list returned by {@link #startTraversal()}.
+	 * @param list
+	 */
+	void endTraversal(List<?> list) {
+		if (list == children && activeTraversals > 0) {
+			activeTraversals--;
+		}
+	}
+
+	/**
+	 * @return the list of children to be changed, copied first if some iterator is going through it
+	 */
+	private List<BaseToken> childrenForChange() {
+		List<BaseToken> result = children();
+		if (activeTraversals > 0) {
+			result = new ArrayList<BaseToken>(result);
+			children = result;
+			activeTraversals = 0;
+		}
+		return result;
+	}
+
+	/**
+	 * @return the attribute storage itself, for package code that copies nodes without
+	 *         re-applying attribute name and value normalization
+	 */
+	TagAttributes getAttributeStorage() {
+		return attributes;
+	}
+
+	/**
+	 * @return whether {@link #setForeignMarkup(boolean)} has been called for this node
+	 */
+	boolean isForeignMarkupFlagSet() {
+		return foreignMarkupFlagSet;
+	}
+
 	/**
 	 * Called whenver the thread is interrupted. Currently this is a 
 	 * placeholder, but could hold cleanup methods and user interaction
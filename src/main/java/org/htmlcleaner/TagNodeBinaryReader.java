@@ -0,0 +1,510 @@
+/*  Copyright (c) 2006-2014, HTMLCleaner project
+    All rights reserved.
+
+    Redistribution and use of this software in source and binary forms,
+    with or without modification, are permitted provided that the following
+    conditions are met:
+
+    * Redistributions of source code must retain the above
+      copyright notice, this list of conditions and the
+      following disclaimer.
+
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the
+      following disclaimer in the documentation and/or other
+      materials provided with the distribution.
+
+    * The name of HtmlCleaner may not be used to endorse or promote
+      products derived from this software without specific prior
+      written permission.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+    AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+    IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+    ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+    LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+    CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+    SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+    INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+    CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+    ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+    POSSIBILITY OF SUCH DAMAGE.
+
+    http://htmlcleaner.sourceforge.net/
+*/
+
+package org.htmlcleaner;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.htmlcleaner.TagNodeBinaryWriter.*;
+
+/**
+ * <p>
+ *      Reads trees written by {@link TagNodeBinaryWriter}. Reading consumes exactly one tree from the
+ *      input, so it may be followed by other data. Readers are not thread safe.
+ * </p>
+ */
+public class TagNodeBinaryReader {
+
+    private List<String> names = new ArrayList<String>();
+    private ByteBuffer data;
+    private int position;
+    private int limit;
+    private boolean indexed;
+    private char[] chars = new char[256];
+
+    public TagNodeBinaryReader() {
+    }
+
+    /**
+     * Reader of the nodes of an indexed tree, sharing its names.
+     */
+    private TagNodeBinaryReader(ByteBuffer data, List<String> names, int position, int limit) {
+        this.data = data;
+        this.names = names;
+        this.position = position;
+        this.limit = limit;
+        this.indexed = true;
+    }
+
+    /**
+     * @param bytes tree in binary format
+     * @return root of the tree
+     * @throws IOException if the bytes are not a tree in a supported version of the format
+     */
+    public TagNode read(byte[] bytes) throws IOException {
+        return read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    /**
+     * Reads a tree from the buffer, starting at its position, which is advanced past the tree.
+     *
+     * @param buffer
+     * @return root of the tree
+     * @throws IOException if the data is not a tree in a supported version of the format
+     */
+    public TagNode read(final ByteBuffer buffer) throws IOException {
+        return read(new DataInputStream(new InputStream() {
+            @Override
+            public int read() {
+                return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (!buffer.hasRemaining()) {
+                    return -1;
+                }
+                int count = Math.min(len, buffer.remaining());
+                buffer.get(b, off, count);
+                return count;
+            }
+        }));
+    }
+
+    /**
+     * Reads a tree from the input, for example a {@link DataInputStream}, which is not closed.
+     *
+     * @param in
+     * @return root of the tree
+     * @throws IOException if reading fails or the data is not a tree in a supported version of the format
+     */
+    public TagNode read(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a tree in binary format");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary format version: " + version);
+        }
+        int flags = in.readUnsignedByte();
+        int length = readInt(in);
+        byte[] body = new byte[length];
+        if ((flags & COMPRESSED) != 0) {
+            byte[] compressedBody = new byte[readInt(in)];
+            in.readFully(compressedBody);
+            inflate(compressedBody, body);
+        } else {
+            in.readFully(body);
+        }
+
+        this.data = ByteBuffer.wrap(body);
+        this.position = 0;
+        this.limit = length;
+        this.indexed = (flags & INDEXED) != 0;
+        try {
+            if (indexed) {
+                readNameTable();
+            }
+            return readTree();
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupted tree in binary format");
+        } finally {
+            this.data = null;
+            names.clear();
+            if (chars.length > 65536) {
+                chars = new char[256];
+            }
+        }
+    }
+
+    /**
+     * Creates a view of an indexed tree, which is decoded only as far as it is navigated: children of
+     * a tag node are decoded when they are first accessed, and subtrees of the others are skipped.
+     * The buffer must not change while the view is used; its position is not used.
+     *
+     * @param buffer
+     * @param offset position of the tree in the buffer
+     * @return root of the tree
+     * @throws IOException if the data is not an indexed tree in a supported version of the format
+     */
+    static TagNode view(ByteBuffer buffer, int offset) throws IOException {
+        TagNodeBinaryReader reader = new TagNodeBinaryReader();
+        reader.data = buffer;
+        reader.position = offset;
+        reader.limit = buffer.limit();
+        try {
+            if (reader.readFixedInt() != MAGIC) {
+                throw new IOException("Not a tree in binary format");
+            }
+            int version = reader.readByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported binary format version: " + version);
+            }
+            if ((reader.readByte() & INDEXED) == 0) {
+                throw new IOException("Tree in binary format is not indexed");
+            }
+            int length = reader.readInt();
+            if (length > reader.limit - reader.position) {
+                throw new EOFException("Tree in binary format is truncated");
+            }
+            reader.limit = reader.position + length;
+            reader.indexed = true;
+            reader.readNameTable();
+
+            DoctypeToken docType = reader.readDocType();
+            if (reader.readByte() != TAG) {
+                throw new IOException("Root of a tree in binary format is not a tag node");
+            }
+            TagNode root = reader.readLazyTagNode();
+            root.setDocType(docType);
+            return root;
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupted tree in binary format");
+        }
+    }
+
+    private static void inflate(byte[] compressedBody, byte[] body) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressedBody);
+            int count = 0;
+            while (count < body.length && !inflater.finished()) {
+                int inflated = inflater.inflate(body, count, body.length - count);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                count += inflated;
+            }
+            if (count != body.length) {
+                throw new EOFException("Compressed tree is truncated");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted compressed tree: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void readNameTable() throws IOException {
+        int count = readInt();
+        for (int i = 0; i < count; i++) {
+            names.add(readString());
+        }
+    }
+
+    /**
+     * Children are collected on an explicit stack and given to their parent when the last one has
+     * been read, so no node is changed after it has got its parent.
+     */
+    private TagNode readTree() throws IOException {
+        DoctypeToken docType = readDocType();
+        if (readByte() != TAG) {
+            throw new IOException("Root of a tree in binary format is not a tag node");
+        }
+        TagNode root = readTagNode();
+        int rootChildCount = readChildCount();
+
+        TagNode[] nodes = new TagNode[16];
+        int[] remaining = new int[16];
+        // children read so far for each open node, one list per depth
+        List<List<BaseToken>> children = new ArrayList<List<BaseToken>>();
+        int depth = 0;
+        nodes[0] = root;
+        remaining[0] = rootChildCount;
+        children.add(new ArrayList<BaseToken>(rootChildCount));
+        depth++;
+        while (true) {
+            int top = depth - 1;
+            if (remaining[top] == 0) {
+                TagNode node = nodes[top];
+                node.setChildren(children.remove(top));
+                nodes[top] = null;
+                depth--;
+                if (depth == 0) {
+                    break;
+                }
+                children.get(depth - 1).add(node);
+                continue;
+            }
+            remaining[top]--;
+            int kind = readByte();
+            if (kind == TAG) {
+                TagNode node = readTagNode();
+                int childCount = readChildCount();
+                if (depth == nodes.length) {
+                    TagNode[] newNodes = new TagNode[depth * 2];
+                    System.arraycopy(nodes, 0, newNodes, 0, depth);
+                    nodes = newNodes;
+                    int[] newRemaining = new int[depth * 2];
+                    System.arraycopy(remaining, 0, newRemaining, 0, depth);
+                    remaining = newRemaining;
+                }
+                nodes[depth] = node;
+                remaining[depth] = childCount;
+                children.add(new ArrayList<BaseToken>(childCount));
+                depth++;
+            } else {
+                children.get(top).add(readLeaf(kind));
+            }
+        }
+        root.setDocType(docType);
+        return root;
+    }
+
+    /**
+     * @param kind kind of the node, already read
+     * @return node other than a tag node
+     */
+    private BaseToken readLeaf(int kind) throws IOException {
+        switch (kind) {
+            case TEXT:
+                return new ContentNode(readString());
+            case CDATA:
+                return new CData(readString());
+            case COMMENT:
+                return new CommentNode(readString());
+            case END_TAG:
+                return new EndTagToken(readName());
+            default:
+                throw new IOException("Unknown node kind in binary format: " + kind);
+        }
+    }
+
+    /**
+     * Reads the children count of the tag node just read, skipping the children length of indexed trees.
+     */
+    private int readChildCount() throws IOException {
+        int count = readInt();
+        if (indexed) {
+            readFixedInt();
+        }
+        return count;
+    }
+
+    /**
+     * Reads a tag node of an indexed tree, leaving its children to be read when first accessed.
+     */
+    private TagNode readLazyTagNode() throws IOException {
+        TagNode node = readTagNode();
+        int childCount = readInt();
+        int childrenLength = readFixedInt();
+        if (childrenLength < 0 || childrenLength > limit - position) {
+            throw new EOFException("Tree in binary format is truncated");
+        }
+        if (childCount > 0) {
+            node.setChildrenLoader(new LazyChildren(data, names, position, position + childrenLength, childCount));
+        }
+        position += childrenLength;
+        return node;
+    }
+
+    private TagNode readTagNode() throws IOException {
+        int flags = readByte();
+        TagNode node = new TagNode(readName());
+        if ((flags & FOREIGN_MARKUP_SET) != 0) {
+            node.setForeignMarkup((flags & FOREIGN_MARKUP) != 0);
+        }
+        node.setAutoGenerated((flags & AUTO_GENERATED) != 0);
+        node.setTrimAttributeValues((flags & NOT_TRIMMING_ATTRIBUTE_VALUES) == 0);
+        node.setPruned((flags & PRUNED) != 0);
+
+        int attributeCount = readInt();
+        if (attributeCount > 0) {
+            TagAttributes attributes = node.getAttributeStorage();
+            for (int i = 0; i < attributeCount; i++) {
+                String name = readName();
+                attributes.put(name, readNullableString());
+            }
+        }
+        if ((flags & HAS_NAMESPACE_DECLARATIONS) != 0) {
+            int count = readInt();
+            for (int i = 0; i < count; i++) {
+                String prefix = readName();
+                node.addNamespaceDeclaration(prefix, readName());
+            }
+        }
+        return node;
+    }
+
+    private DoctypeToken readDocType() throws IOException {
+        if ((readByte() & HAS_DOCTYPE) == 0) {
+            return null;
+        }
+        String part1 = readNullableString();
+        String part2 = readNullableString();
+        String publicId = readNullableString();
+        return new DoctypeToken(part1, part2, publicId, readNullableString());
+    }
+
+    private String readName() throws IOException {
+        int ref = readInt();
+        if (ref == NULL_REF) {
+            return null;
+        } else if (ref == NEW_REF && !indexed) {
+            String name = readString();
+            names.add(name);
+            return name;
+        } else if (ref - 2 < names.size()) {
+            return names.get(ref - 2);
+        }
+        throw new IOException("Unknown name reference in binary format: " + ref);
+    }
+
+    private String readNullableString() throws IOException {
+        int length = readInt();
+        return length == 0 ? null : readChars(length - 1);
+    }
+
+    private String readString() throws IOException {
+        return readChars(readInt());
+    }
+
+    private String readChars(int count) throws IOException {
+        if (count > limit - position) {
+            throw new EOFException("Tree in binary format is truncated");
+        }
+        if (count > chars.length) {
+            chars = new char[Math.max(count, chars.length * 2)];
+        }
+        ByteBuffer buffer = data;
+        int p = position;
+        for (int i = 0; i < count; i++) {
+            int b = buffer.get(p++);
+            if (b >= 0) {
+                chars[i] = (char) b;
+            } else {
+                int c = b & 0x7F;
+                b = buffer.get(p++);
+                if (b >= 0) {
+                    c |= b << 7;
+                } else {
+                    c |= (b & 0x7F) << 7 | (buffer.get(p++) & 0xFF) << 14;
+                }
+                chars[i] = (char) c;
+            }
+        }
+        if (p > limit) {
+            throw new EOFException("Tree in binary format is truncated");
+        }
+        position = p;
+        return new String(chars, 0, count);
+    }
+
+    private int readByte() throws IOException {
+        if (position >= limit) {
+            throw new EOFException("Tree in binary format is truncated");
+        }
+        return data.get(position++) & 0xFF;
+    }
+
+    private int readFixedInt() throws IOException {
+        if (limit - position < 4) {
+            throw new EOFException("Tree in binary format is truncated");
+        }
+        int result = data.getInt(position);
+        position += 4;
+        return result;
+    }
+
+    private int readInt() throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            result |= (b & 0x7F) << shift;
+            if (b < 0x80) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed number in binary format");
+    }
+
+    private static int readInt(DataInput in) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            result |= (b & 0x7F) << shift;
+            if (b < 0x80) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed number in binary format");
+    }
+
+    /**
+     * Children of a tag node of an indexed tree, decoded when they are first accessed.
+     */
+    private static final class LazyChildren implements TagNode.ChildrenLoader {
+
+        private final ByteBuffer data;
+        private final List<String> names;
+        private final int start;
+        private final int end;
+        private final int count;
+
+        private LazyChildren(ByteBuffer data, List<String> names, int start, int end, int count) {
+            this.data = data;
+            this.names = names;
+            this.start = start;
+            this.end = end;
+            this.count = count;
+        }
+
+        public List<? extends BaseToken> loadChildren(TagNode node) {
+            TagNodeBinaryReader reader = new TagNodeBinaryReader(data, names, start, end);
+            List<BaseToken> result = new ArrayList<BaseToken>(count);
+            try {
+                for (int i = 0; i < count; i++) {
+                    int kind = reader.readByte();
+                    result.add(kind == TAG ? reader.readLazyTagNode() : reader.readLeaf(kind));
+                }
+            } catch (IOException e) {
+                throw new HtmlCleanerException(e);
+            } catch (IndexOutOfBoundsException e) {
+                throw new HtmlCleanerException("Corrupted tree in binary format");
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,471 @@
+/*  Copyright (c) 2006-2014, HTMLCleaner project
+    All rights reserved.
+
+    Redistribution and use of this software in source and binary forms,
+    with or without modification, are permitted provided that the following
+    conditions are met:
+
+    * Redistributions of source code must retain the above
+      copyright notice, this list of conditions and the
+      following disclaimer.
+
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the
+      following disclaimer in the documentation and/or other
+      materials provided with the distribution.
+
+    * The name of HtmlCleaner may not be used to endorse or promote
+      products derived from this software without specific prior
+      written permission.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+    AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+    IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+    ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+    LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+    CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+    SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+    INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+    CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+    ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+    POSSIBILITY OF SUCH DAMAGE.
+
+    http://htmlcleaner.sourceforge.net/
+*/
+
+package org.htmlcleaner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * <p>
+ *      Writes cleaned trees in a compact binary format, which {@link TagNodeBinaryReader} loads back
+ *      much faster than the HTML could be cleaned again.
+ * </p>
+ * <p>
+ *      The format starts with a magic number, a version, a flags byte and the length of the nodes,
+ *      followed by the nodes in document order. All numbers are unsigned variable length integers,
+ *      seven bits per byte. Element names, attribute names and namespace prefixes and URIs are
+ *      written once and referred to by their number afterwards; text, comments and attribute values
+ *      are written in place. When compression is on, the nodes are deflated and their compressed
+ *      length comes before them too, so a reader never consumes more than one tree.
+ * </p>
+ * <p>
+ *      Indexed trees, which are never compressed, can be navigated without reading them whole, as
+ *      {@link DocumentStore} does: all names come first, and each tag node has the length in bytes of
+ *      its children, so that whole subtrees can be skipped.
+ * </p>
+ * <p>
+ *      Tag nodes keep their attributes exactly as they are, together with the doctype, namespace
+ *      declarations, and foreign markup, auto generated, pruned and attribute trimming flags. Text,
+ *      CDATA, comments and unmatched end tags are kept as well. Writers are not thread safe.
+ * </p>
+ */
+public class TagNodeBinaryWriter {
+
+    static final int MAGIC = 0x48434254; // "HCBT"
+    static final int VERSION = 1;
+    static final int COMPRESSED = 1;
+    static final int INDEXED = 2;
+
+    static final int TAG = 0;
+    static final int TEXT = 1;
+    static final int CDATA = 2;
+    static final int COMMENT = 3;
+    static final int END_TAG = 4;
+
+    static final int FOREIGN_MARKUP = 1;
+    static final int FOREIGN_MARKUP_SET = 2;
+    static final int AUTO_GENERATED = 4;
+    static final int NOT_TRIMMING_ATTRIBUTE_VALUES = 8;
+    static final int PRUNED = 16;
+    static final int HAS_NAMESPACE_DECLARATIONS = 32;
+    static final int HAS_DOCTYPE = 64;
+
+    // references to names: no name, a new name that follows, or number of a known name plus two
+    static final int NULL_REF = 0;
+    static final int NEW_REF = 1;
+
+    private final boolean compressed;
+    private final boolean indexed;
+    private final Map<String, Integer> names = new HashMap<String, Integer>();
+    private final List<String> nameList = new ArrayList<String>();
+    private byte[] buffer = new byte[256];
+    private int length;
+
+    /**
+     * Creates writer of uncompressed trees.
+     */
+    public TagNodeBinaryWriter() {
+        this(false);
+    }
+
+    /**
+     * @param compressed whether the nodes are to be deflated - worth it for storage, while
+     *        uncompressed trees load faster
+     */
+    public TagNodeBinaryWriter(boolean compressed) {
+        this(compressed, false);
+    }
+
+    /**
+     * @param compressed whether the nodes are to be deflated
+     * @param indexed whether the tree is to be written so that it can be navigated without reading
+     *        it whole
+     * @throws IllegalArgumentException if both compressed and indexed tree is requested
+     */
+    public TagNodeBinaryWriter(boolean compressed, boolean indexed) {
+        if (compressed && indexed) {
+            throw new IllegalArgumentException("Indexed trees cannot be compressed");
+        }
+        this.compressed = compressed;
+        this.indexed = indexed;
+    }
+
+    /**
+     * @param node root of the tree to write
+     * @return the tree in binary format
+     */
+    public byte[] toByteArray(TagNode node) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            write(node, new DataOutputStream(out));
+        } catch (IOException e) {
+            // ByteArrayOutputStream doesn't throw
+            throw new HtmlCleanerException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes the tree to the buffer, starting at its position, which is advanced past the tree.
+     *
+     * @param node root of the tree to write
+     * @param buffer
+     * @throws java.nio.BufferOverflowException if the tree doesn't fit in the remaining space
+     */
+    public void write(TagNode node, final ByteBuffer buffer) {
+        try {
+            write(node, new DataOutputStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                    buffer.put((byte) b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    buffer.put(b, off, len);
+                }
+            }));
+        } catch (IOException e) {
+            // the buffer doesn't throw IOException
+            throw new HtmlCleanerException(e);
+        }
+    }
+
+    /**
+     * Writes the tree to the output, for example a {@link DataOutputStream}, which is neither
+     * flushed nor closed. Nothing after the tree is read by {@link TagNodeBinaryReader},
+     * so several trees and other data may be written to the same output.
+     *
+     * @param node root of the tree to write
+     * @param out
+     * @throws IOException
+     */
+    public void write(TagNode node, DataOutput out) throws IOException {
+        length = 0;
+        names.clear();
+        nameList.clear();
+        try {
+            writeTree(node);
+            byte[] nameTable = indexed ? nameTable() : null;
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(compressed ? COMPRESSED : indexed ? INDEXED : 0);
+            writeInt(out, nameTable != null ? nameTable.length + length : length);
+            if (compressed) {
+                writeCompressed(out);
+            } else {
+                if (nameTable != null) {
+                    out.write(nameTable);
+                }
+                out.write(buffer, 0, length);
+            }
+        } finally {
+            if (buffer.length > 65536) {
+                buffer = new byte[256];
+            }
+            length = 0;
+            names.clear();
+            nameList.clear();
+        }
+    }
+
+    /**
+     * @return all names in the order of their numbers, encoded
+     */
+    private byte[] nameTable() {
+        byte[] nodes = buffer;
+        int nodesLength = length;
+        buffer = new byte[256];
+        length = 0;
+        writeInt(nameList.size());
+        for (String name: nameList) {
+            writeString(name);
+        }
+        byte[] result = new byte[length];
+        System.arraycopy(buffer, 0, result, 0, length);
+        buffer = nodes;
+        length = nodesLength;
+        return result;
+    }
+
+    private void writeCompressed(DataOutput out) throws IOException {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(buffer, 0, length);
+            deflater.finish();
+            ByteArrayOutputStream compressedBytes = new ByteArrayOutputStream(length / 4 + 16);
+            byte[] chunk = new byte[8192];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(chunk);
+                compressedBytes.write(chunk, 0, count);
+            }
+            writeInt(out, compressedBytes.size());
+            out.write(compressedBytes.toByteArray());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Nodes are written in document order, each tag node followed by the number of its children;
+     * an explicit stack of children lists keeps deep trees from overflowing the call stack.
+     */
+    private void writeTree(TagNode root) {
+        writeDocType(root.getDocType());
+
+        List<?>[] lists = new List<?>[16];
+        int[] positions = new int[16];
+        // where the length of the children is to be written, for indexed trees
+        int[] lengthPositions = new int[16];
+        int depth = 0;
+        lengthPositions[depth] = writeTagNode(root);
+        lists[depth] = root.getAllChildren();
+        positions[depth] = 0;
+        depth++;
+        while (depth > 0) {
+            int top = depth - 1;
+            List<?> list = lists[top];
+            if (positions[top] == list.size()) {
+                if (indexed) {
+                    writeFixedInt(lengthPositions[top], length - lengthPositions[top] - 4);
+                }
+                lists[top] = null;
+                depth--;
+                continue;
+            }
+            Object child = list.get(positions[top]++);
+            if (child instanceof TagNode) {
+                TagNode tagNode = (TagNode) child;
+                if (depth == lists.length) {
+                    List<?>[] newLists = new List<?>[depth * 2];
+                    System.arraycopy(lists, 0, newLists, 0, depth);
+                    lists = newLists;
+                    int[] newPositions = new int[depth * 2];
+                    System.arraycopy(positions, 0, newPositions, 0, depth);
+                    positions = newPositions;
+                    int[] newLengthPositions = new int[depth * 2];
+                    System.arraycopy(lengthPositions, 0, newLengthPositions, 0, depth);
+                    lengthPositions = newLengthPositions;
+                }
+                lengthPositions[depth] = writeTagNode(tagNode);
+                lists[depth] = tagNode.getAllChildren();
+                positions[depth] = 0;
+                depth++;
+            } else if (child instanceof CData) {
+                writeByte(CDATA);
+                writeString(((CData) child).getContentWithoutStartAndEndTokens());
+            } else if (child instanceof ContentNode) {
+                writeByte(TEXT);
+                writeString(((ContentNode) child).getContent());
+            } else if (child instanceof CommentNode) {
+                writeByte(COMMENT);
+                writeString(((CommentNode) child).getContent());
+            } else if (child instanceof EndTagToken) {
+                writeByte(END_TAG);
+                writeName(((EndTagToken) child).getName());
+            } else {
+                throw new HtmlCleanerException("Cannot write " + child.getClass().getName() + " in binary format");
+            }
+        }
+    }
+
+    /**
+     * @return position of the length of the children, or -1 if the tree is not indexed
+     */
+    private int writeTagNode(TagNode node) {
+        int flags = 0;
+        if (node.isForeignMarkupFlagSet()) {
+            flags |= FOREIGN_MARKUP_SET;
+            if (node.isForeignMarkup()) {
+                flags |= FOREIGN_MARKUP;
+            }
+        }
+        if (node.isAutoGenerated()) {
+            flags |= AUTO_GENERATED;
+        }
+        if (!node.isTrimAttributeValues()) {
+            flags |= NOT_TRIMMING_ATTRIBUTE_VALUES;
+        }
+        if (node.isPruned()) {
+            flags |= PRUNED;
+        }
+        Map<String, String> nsDeclarations = node.getNamespaceDeclarations();
+        if (nsDeclarations != null && !nsDeclarations.isEmpty()) {
+            flags |= HAS_NAMESPACE_DECLARATIONS;
+        }
+        writeByte(TAG);
+        writeByte(flags);
+        writeName(node.getName());
+
+        TagAttributes attributes = node.getAttributeStorage();
+        int attributeCount = attributes.size();
+        writeInt(attributeCount);
+        for (int i = 0; i < attributeCount; i++) {
+            writeName(attributes.getName(i));
+            writeNullableString(attributes.getValue(i));
+        }
+        if ((flags & HAS_NAMESPACE_DECLARATIONS) != 0) {
+            writeInt(nsDeclarations.size());
+            for (Map.Entry<String, String> entry: nsDeclarations.entrySet()) {
+                writeName(entry.getKey());
+                writeName(entry.getValue());
+            }
+        }
+        writeInt(node.getAllChildren().size());
+        if (!indexed) {
+            return -1;
+        }
+        ensureCapacity(4);
+        length += 4;
+        return length - 4;
+    }
+
+    private void writeDocType(DoctypeToken docType) {
+        writeByte(docType != null ? HAS_DOCTYPE : 0);
+        if (docType != null) {
+            writeNullableString(docType.getPart1());
+            writeNullableString(docType.getPart2());
+            writeNullableString(docType.getPublicId());
+            writeNullableString(docType.getSystemId());
+        }
+    }
+
+    private void writeName(String name) {
+        if (name == null) {
+            writeInt(NULL_REF);
+            return;
+        }
+        Integer number = names.get(name);
+        if (number != null) {
+            writeInt(number.intValue() + 2);
+        } else if (indexed) {
+            // the name table is written before the nodes
+            names.put(name, Integer.valueOf(nameList.size()));
+            writeInt(nameList.size() + 2);
+            nameList.add(name);
+        } else {
+            names.put(name, Integer.valueOf(names.size()));
+            writeInt(NEW_REF);
+            writeString(name);
+        }
+    }
+
+    private void writeNullableString(String value) {
+        if (value == null) {
+            writeInt(0);
+        } else {
+            writeInt(value.length() + 1);
+            writeChars(value);
+        }
+    }
+
+    private void writeString(String value) {
+        writeInt(value.length());
+        writeChars(value);
+    }
+
+    /**
+     * Characters are written as variable length integers, so that any char sequence, even with
+     * unpaired surrogates, survives unchanged.
+     */
+    private void writeChars(String value) {
+        int count = value.length();
+        ensureCapacity(count * 3);
+        byte[] bytes = buffer;
+        int position = length;
+        for (int i = 0; i < count; i++) {
+            int c = value.charAt(i);
+            if (c < 0x80) {
+                bytes[position++] = (byte) c;
+            } else if (c < 0x4000) {
+                bytes[position++] = (byte) (c | 0x80);
+                bytes[position++] = (byte) (c >>> 7);
+            } else {
+                bytes[position++] = (byte) (c | 0x80);
+                bytes[position++] = (byte) ((c >>> 7) | 0x80);
+                bytes[position++] = (byte) (c >>> 14);
+            }
+        }
+        length = position;
+    }
+
+    private void writeInt(int value) {
+        ensureCapacity(5);
+        while ((value & ~0x7F) != 0) {
+            buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[length++] = (byte) value;
+    }
+
+    private static void writeInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private void writeFixedInt(int position, int value) {
+        buffer[position] = (byte) (value >>> 24);
+        buffer[position + 1] = (byte) (value >>> 16);
+        buffer[position + 2] = (byte) (value >>> 8);
+        buffer[position + 3] = (byte) value;
+    }
+
+    private void writeByte(int value) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) value;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            int newLength = Math.max(length + extra, buffer.length * 2);
+            byte[] newBuffer = new byte[newLength];
+            System.arraycopy(buffer, 0, newBuffer, 0, length);
+            buffer = newBuffer;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*  Copyright (c) 2006-2014, HTMLCleaner project
+    All rights reserved.
+
+    Redistribution and use of this software in source and binary forms,
+    with or without modification, are permitted provided that the following
+    conditions are met:
+
+    * Redistributions of source code must retain the above
+      copyright notice, this list of conditions and the
+      following disclaimer.
+
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the
+      following disclaimer in the documentation and/or other
+      materials provided with the distribution.
+
+    * The name of HtmlCleaner may not be used to endorse or promote
+      products derived from this software without specific prior
+      written permission.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+    AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+    IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+    ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+    LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+    CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+    SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+    INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+    CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+    ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+    POSSIBILITY OF SUCH DAMAGE.
+
+    http://htmlcleaner.sourceforge.net/
+*/
+
+
+package org.htmlcleaner;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.htmlcleaner.conditional.ITagNodeCondition;
+import org.htmlcleaner.conditional.TagNodeAndCondition;
+import org.htmlcleaner.conditional.TagNodeAttExistsCondition;
+import org.htmlcleaner.conditional.TagNodeAttValueCondition;
+import org.htmlcleaner.conditional.TagNodeClassCondition;
+import org.htmlcleaner.conditional.TagNodeConditionCost;
+import org.htmlcleaner.conditional.TagNodeNameCondition;
+
+/**
+ * <p>
+ *      Prune or allow conditions compiled for checking many nodes. Instead of checking every
+ *      condition against every node, the conditions are split into three groups:
+ * </p>
+ * <ul>
+ *      <li>conditions on the tag name, and conjunctions containing one, looked up by the name of the node,</li>
+ *      <li>conditions on an attribute, and conjunctions containing one, looked up by the attribute names of the node,</li>
+ *      <li>all others, checked for every node from the cheapest one, so regular expressions and
+ *          content conditions come last.</li>
+ * </ul>
+ * <p>
+ *      The set is immutable and may be shared by threads as long as the conditions may.
+ * </p>
+ */
+final class TagNodeConditionSet {
+
+    private static final ITagNodeCondition[] NONE = new ITagNodeCondition[0];
+
+    private final Map<String, ITagNodeCondition[]> byName;
+    private final Map<String, ITagNodeCondition[]> byAttribute;
+    private final ITagNodeCondition[] others;
+    private final int size;
+
+    TagNodeConditionSet(Collection<? extends ITagNodeCondition> conditions) {
+        Map<String, List<ITagNodeCondition>> names = new HashMap<String, List<ITagNodeCondition>>();
+        Map<String, List<ITagNodeCondition>> attributes = new HashMap<String, List<ITagNodeCondition>>();
+        List<ITagNodeCondition> rest = new ArrayList<ITagNodeCondition>();
+        int count = 0;
+        for (ITagNodeCondition condition: conditions) {
+            if (condition == null) {
+                continue;
+            }
+            count++;
+            String name = getNameKey(condition);
+            String attName = name == null ? getAttributeKey(condition) : null;
+            if (name != null) {
+                add(names, name, condition);
+            } else if (attName != null) {
+                add(attributes, attName, condition);
+            } else {
+                rest.add(condition);
+            }
+        }
+        this.byName = compile(names);
+        this.byAttribute = compile(attributes);
+        this.others = sortByCost(rest);
+        this.size = count;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @param tagNode
+     * @return One of the conditions satisfied by the node, or null if there is none.
+     */
+    ITagNodeCondition findSatisfied(TagNode tagNode) {
+        if (tagNode == null || size == 0) {
+            return null;
+        }
+        if (!byName.isEmpty()) {
+            ITagNodeCondition[] candidates = byName.get(toLowerCase(tagNode.getName()));
+            if (candidates != null) {
+                for (ITagNodeCondition condition: candidates) {
+                    // found by the name, so plain name conditions are satisfied already
+                    if (condition instanceof TagNodeNameCondition || condition.satisfy(tagNode)) {
+                        return condition;
+                    }
+                }
+            }
+        }
+        if (!byAttribute.isEmpty()) {
+            TagAttributes attributes = tagNode.getAttributeStorage();
+            for (int i = 0; i < attributes.size(); i++) {
+                ITagNodeCondition[] candidates = byAttribute.get(attributes.getLowerName(i));
+                if (candidates != null) {
+                    for (ITagNodeCondition condition: candidates) {
+                        if (condition.satisfy(tagNode)) {
+                            return condition;
+                        }
+                    }
+                }
+            }
+        }
+        for (ITagNodeCondition condition: others) {
+            if (condition.satisfy(tagNode)) {
+                return condition;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return Lowercase tag name that a node must have to satisfy the condition, or null if
+     *         there is no such name.
+     */
+    private static String getNameKey(ITagNodeCondition condition) {
+        if (condition instanceof TagNodeNameCondition) {
+            String name = ((TagNodeNameCondition) condition).getName();
+            return name == null ? null : name.toLowerCase();
+        } else if (condition instanceof TagNodeAndCondition) {
+            for (ITagNodeCondition operand: ((TagNodeAndCondition) condition).getConditions()) {
+                String name = getNameKey(operand);
+                if (name != null) {
+                    return name;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return Lowercase name of an attribute that a node must have to satisfy the condition, or
+     *         null if there is no such attribute.
+     */
+    private static String getAttributeKey(ITagNodeCondition condition) {
+        if (condition instanceof TagNodeAttExistsCondition) {
+            String attName = ((TagNodeAttExistsCondition) condition).getAttName();
+            return attName == null ? null : attName.toLowerCase();
+        } else if (condition instanceof TagNodeAttValueCondition) {
+            TagNodeAttValueCondition valueCondition = (TagNodeAttValueCondition) condition;
+            if (valueCondition.getAttName() != null && valueCondition.getAttValue() != null) {
+                return valueCondition.getAttName().toLowerCase();
+            }
+        } else if (condition instanceof TagNodeClassCondition) {
+            String className = ((TagNodeClassCondition) condition).getClassName();
+            return className == null || className.length() == 0 ? null : "class";
+        } else if (condition instanceof TagNodeAndCondition) {
+            for (ITagNodeCondition operand: ((TagNodeAndCondition) condition).getConditions()) {
+                String attName = getAttributeKey(operand);
+                if (attName != null) {
+                    return attName;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static void add(Map<String, List<ITagNodeCondition>> groups, String key, ITagNodeCondition condition) {
+        List<ITagNodeCondition> group = groups.get(key);
+        if (group == null) {
+            group = new ArrayList<ITagNodeCondition>();
+            groups.put(key, group);
+        }
+        group.add(condition);
+    }
+
+    private static Map<String, ITagNodeCondition[]> compile(Map<String, List<ITagNodeCondition>> groups) {
+        Map<String, ITagNodeCondition[]> result = new HashMap<String, ITagNodeCondition[]>();
+        for (Map.Entry<String, List<ITagNodeCondition>> entry: groups.entrySet()) {
+            result.put(entry.getKey(), sortByCost(entry.getValue()));
+        }
+        return result;
+    }
+
+    private static ITagNodeCondition[] sortByCost(List<ITagNodeCondition> conditions) {
+        if (conditions.isEmpty()) {
+            return NONE;
+        }
+        return TagNodeConditionCost.sortByCost(conditions.toArray(new ITagNodeCondition[conditions.size()]));
+    }
+
+    /**
+     * @return The name in lower case, the same instance if it has no uppercase letters.
+     */
+    private static String toLowerCase(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.isUpperCase(name.charAt(i))) {
+                return name.toLowerCase();
+            }
+        }
+        return name;
+    }
+}
@@ -0,0 +1,336 @@
+/*  Copyright (c) 2006-2014, HTMLCleaner project
+    All rights reserved.
+
+    Redistribution and use of this software in source and binary forms,
+    with or without modification, are permitted provided that the following
+    conditions are met:
+
+    * Redistributions of source code must retain the above
+      copyright notice, this list of conditions and the
+      following disclaimer.
+
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the
+      following disclaimer in the documentation and/or other
+      materials provided with the distribution.
+
+    * The name of HtmlCleaner may not be used to endorse or promote
+      products derived from this software without specific prior
+      written permission.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+    AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+    IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+    ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+    LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+    CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+    SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+    INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+    CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+    ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+    POSSIBILITY OF SUCH DAMAGE.
+
+    http://htmlcleaner.sourceforge.net/
+*/
+
+package org.htmlcleaner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.htmlcleaner.conditional.ITagNodeCondition;
+import org.htmlcleaner.conditional.TagAllCondition;
+import org.htmlcleaner.conditional.TagNodeAttExistsCondition;
+import org.htmlcleaner.conditional.TagNodeAttValueCondition;
+import org.htmlcleaner.conditional.TagNodeClassCondition;
+import org.htmlcleaner.conditional.TagNodeNameCondition;
+
+/**
+ * <p>
+ *      Snapshot of all elements below some node, grouped by lowercase tag name, id, class and
+ *      lowercase attribute name. Every list keeps document order. The index remembers the
+ *      modification count of its node and has to be rebuilt when the node or any of its
+ *      descendants changes.
+ * </p>
+ * <p>
+ *      Elements are numbered in document order. Each element knows the number of the last
+ *      element of its subtree, so that ancestor tests and ordering of elements take constant time,
+ *      and elements below any indexed element are a range of each list.
+ * </p>
+ *
+ * @see TagNode#setIndexed(boolean)
+ */
+final class TagNodeIndex {
+
+    private final TagNode root;
+    private final int modificationCount;
+    private final List<TagNode> elements = new ArrayList<TagNode>();
+    private final Map<String, List<TagNode>> byName = new HashMap<String, List<TagNode>>();
+    private final Map<String, List<TagNode>> byId = new HashMap<String, List<TagNode>>();
+    private final Map<String, List<TagNode>> byClass = new HashMap<String, List<TagNode>>();
+    private final Map<String, List<TagNode>> byAttribute = new HashMap<String, List<TagNode>>();
+    // positions with parents as found in the children lists, parent references of the nodes are not relied upon
+    private final Map<TagNode, Position> positions = new IdentityHashMap<TagNode, Position>();
+    // built when first needed, concurrent readers of a frozen tree may build two equal ones
+    private volatile TagNodeTextIndex textIndex;
+
+    TagNodeIndex(TagNode root, int modificationCount) {
+        this.root = root;
+        this.modificationCount = modificationCount;
+
+        // document order walk with an explicit stack, children are pushed in reverse order;
+        // a null marks the end of the subtree of the element below it
+        List<TagNode> stack = new ArrayList<TagNode>();
+        List<TagNode> open = new ArrayList<TagNode>();
+        List<Integer> openNumbers = new ArrayList<Integer>();
+        open.add(root);
+        openNumbers.add(-1);
+        stack.add(null);
+        pushChildren(root, stack);
+        while (!stack.isEmpty()) {
+            TagNode node = stack.remove(stack.size() - 1);
+            if (node == null) {
+                TagNode closed = open.remove(open.size() - 1);
+                int number = openNumbers.remove(openNumbers.size() - 1);
+                TagNode parent = open.isEmpty() ? null : open.get(open.size() - 1);
+                setPosition(closed, new Position(this, parent, number, elements.size() - 1));
+            } else {
+                open.add(node);
+                openNumbers.add(elements.size());
+                add(node);
+                stack.add(null);
+                pushChildren(node, stack);
+            }
+        }
+    }
+
+    int getModificationCount() {
+        return modificationCount;
+    }
+
+    /**
+     * @return Whether this is the index of its root and nothing changed since it was built.
+     */
+    boolean isCurrent() {
+        return root.isCurrentIndex(this);
+    }
+
+    /**
+     * @param condition
+     * @param node the root or any element of the index
+     * @return Elements below the node in document order among which all elements satisfying the
+     *         condition are, or null if the condition is not supported by the index.
+     */
+    List<TagNode> getCandidates(ITagNodeCondition condition, TagNode node) {
+        List<TagNode> candidates = getCandidates(condition);
+        return candidates == null ? null : below(candidates, node);
+    }
+
+    private List<TagNode> getCandidates(ITagNodeCondition condition) {
+        if (condition instanceof TagAllCondition) {
+            return elements;
+        } else if (condition instanceof TagNodeNameCondition) {
+            String name = ((TagNodeNameCondition) condition).getName();
+            return name == null ? null : get(byName, name.toLowerCase());
+        } else if (condition instanceof TagNodeAttExistsCondition) {
+            String attName = ((TagNodeAttExistsCondition) condition).getAttName();
+            return attName == null ? null : get(byAttribute, attName.toLowerCase());
+        } else if (condition instanceof TagNodeAttValueCondition) {
+            TagNodeAttValueCondition attValueCondition = (TagNodeAttValueCondition) condition;
+            String attName = attValueCondition.getAttName();
+            if (attName == null) {
+                return null;
+            } else if ("id".equalsIgnoreCase(attName) && attValueCondition.isCaseSensitive()) {
+                return get(byId, attValueCondition.getAttValue());
+            }
+            return get(byAttribute, attName.toLowerCase());
+        } else if (condition instanceof TagNodeClassCondition) {
+            return get(byClass, ((TagNodeClassCondition) condition).getClassName());
+        }
+        return null;
+    }
+
+    /**
+     * @param name
+     * @param node the root or any element of the index
+     * @return Elements below the node with the specified name ignoring case, in document order.
+     */
+    List<TagNode> getElementsByName(String name, TagNode node) {
+        return below(get(byName, name.toLowerCase()), node);
+    }
+
+    /**
+     * @param node the root or any element of the index
+     * @return All elements below the node, in document order.
+     */
+    List<TagNode> getElements(TagNode node) {
+        return below(elements, node);
+    }
+
+    /**
+     * @return Index of the text of the root and of all elements.
+     */
+    TagNodeTextIndex getTextIndex() {
+        TagNodeTextIndex current = textIndex;
+        if (current == null) {
+            current = new TagNodeTextIndex(this, root, elements.size());
+            textIndex = current;
+        }
+        return current;
+    }
+
+    /**
+     * @param element
+     * @return Node whose children contain the element.
+     */
+    TagNode getParent(TagNode element) {
+        Position position = positions.get(element);
+        return position != null ? position.parent : null;
+    }
+
+    /**
+     * @param node
+     * @return Position of the root or an element of the index, null for other nodes.
+     */
+    Position getPosition(TagNode node) {
+        return positions.get(node);
+    }
+
+    /**
+     * @return Part of the document ordered list of elements of the index which are below the node.
+     */
+    private List<TagNode> below(List<TagNode> list, TagNode node) {
+        Position position = positions.get(node);
+        if (position == null) {
+            return Collections.emptyList();
+        } else if (node == root || list.isEmpty()) {
+            return list;
+        }
+        int from = firstAfter(list, position.number);
+        int to = firstAfter(list, position.lastNumber);
+        return from == 0 && to == list.size() ? list : list.subList(from, to);
+    }
+
+    /**
+     * @return Index of the first element of the document ordered list numbered after the number.
+     */
+    private int firstAfter(List<TagNode> list, int number) {
+        int low = 0;
+        int high = list.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (positions.get(list.get(middle)).number <= number) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private void setPosition(TagNode node, Position position) {
+        positions.put(node, position);
+        node.setDocumentPosition(position);
+    }
+
+    private void add(TagNode node) {
+        elements.add(node);
+        String name = node.getName();
+        if (name != null) {
+            put(byName, name.toLowerCase(), node);
+        }
+        TagAttributes attributes = node.getAttributeStorage();
+        for (int i = 0; i < attributes.size(); i++) {
+            String attName = attributes.getName(i).toLowerCase();
+            List<TagNode> list = byAttribute.get(attName);
+            // names differing only in case map to the same list, add the node once
+            if (list == null || list.get(list.size() - 1) != node) {
+                put(byAttribute, attName, node);
+            }
+        }
+        String id = node.getAttributeByName("id");
+        if (id != null) {
+            put(byId, id, node);
+        }
+        String classes = node.getAttributeByName("class");
+        if (classes != null) {
+            addClasses(node, classes);
+        }
+    }
+
+    private void addClasses(TagNode node, String classes) {
+        int length = classes.length();
+        int start = 0;
+        while (start < length) {
+            while (start < length && Character.isWhitespace(classes.charAt(start))) {
+                start++;
+            }
+            int end = start;
+            while (end < length && !Character.isWhitespace(classes.charAt(end))) {
+                end++;
+            }
+            if (end > start) {
+                String className = classes.substring(start, end);
+                List<TagNode> list = byClass.get(className);
+                if (list == null || list.get(list.size() - 1) != node) {
+                    put(byClass, className, node);
+                }
+            }
+            start = end;
+        }
+    }
+
+    private void pushChildren(TagNode node, List<TagNode> stack) {
+        List<? extends BaseToken> children = node.getAllChildren();
+        for (int i = children.size() - 1; i >= 0; i--) {
+            BaseToken child = children.get(i);
+            if (child instanceof TagNode) {
+                stack.add((TagNode) child);
+            }
+        }
+    }
+
+    private static void put(Map<String, List<TagNode>> map, String key, TagNode node) {
+        List<TagNode> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<TagNode>(2);
+            map.put(key, list);
+        }
+        list.add(node);
+    }
+
+    private static List<TagNode> get(Map<String, List<TagNode>> map, String key) {
+        List<TagNode> list = map.get(key);
+        return list == null ? Collections.<TagNode>emptyList() : list;
+    }
+
+    /**
+     * Number of the node in document order within the index, -1 for the root, with the number of
+     * the last element of its subtree and its parent.
+     */
+    static final class Position {
+        final TagNodeIndex index;
+        final TagNode parent;
+        final int number;
+        final int lastNumber;
+
+        private Position(TagNodeIndex index, TagNode parent, int number, int lastNumber) {
+            this.index = index;
+            this.parent = parent;
+            this.number = number;
+            this.lastNumber = lastNumber;
+        }
+
+        /**
+         * @param position position in the same index
+         * @return Whether this node is an ancestor of the other one.
+         */
+        boolean contains(Position position) {
+            return number < position.number && position.number <= lastNumber;
+        }
+    }
+}
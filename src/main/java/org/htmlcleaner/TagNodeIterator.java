@@ -0,0 +1,184 @@
+/*  Copyright (c) 2006-2014, HTMLCleaner project
+    All rights reserved.
+
+    Redistribution and use of this software in source and binary forms,
+    with or without modification, are permitted provided that the following
+    conditions are met:
+
+    * Redistributions of source code must retain the above
+      copyright notice, this list of conditions and the
+      following disclaimer.
+
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the
+      following disclaimer in the documentation and/or other
+      materials provided with the distribution.
+
+    * The name of HtmlCleaner may not be used to endorse or promote
+      products derived from this software without specific prior
+      written permission.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+    AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+    IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+    ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+    LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+    CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+    SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+    INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+    CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+    ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+    POSSIBILITY OF SUCH DAMAGE.
+
+    http://htmlcleaner.sourceforge.net/
+*/
+
+package org.htmlcleaner;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * <p>
+ *      Non-recursive, document order iterator over a tag node, its descendant tag nodes, text nodes
+ *      and comments. Children of the last returned tag node can be left out with {@link #skipChildren()}.
+ * </p>
+ * <p>
+ *      The tree may be changed during iteration through TagNode methods. Children of every node are
+ *      iterated as they were when the iterator reached the node: a node whose children change while
+ *      it is being iterated gets a new children list, while the iterator goes on with the old one.
+ *      Children lists are copied only in that case. Lists returned by {@link TagNode#getAllChildren()}
+ *      must not be changed directly during iteration.
+ * </p>
+ */
+public class TagNodeIterator implements Iterator<HtmlNode> {
+
+    private TagNode[] nodes = new TagNode[16];
+    private List<?>[] lists = new List<?>[16];
+    private int[] positions = new int[16];
+    private int depth;
+
+    private HtmlNode current;
+    private TagNode currentParent;
+    private boolean currentParentSet;
+    private HtmlNode next;
+    private TagNode nextParent;
+    private boolean skipChildren;
+
+    TagNodeIterator(TagNode root) {
+        this.next = root;
+        this.nextParent = root.getParent();
+    }
+
+    /**
+     * Must be called before {@link #hasNext()}, since finding the next node enters the current one.
+     */
+    public boolean hasNext() {
+        if (next == null && current != null) {
+            findNext();
+        }
+        return next != null;
+    }
+
+    public HtmlNode next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        current = next;
+        currentParent = nextParent;
+        currentParentSet = current instanceof TagNode ? ((TagNode) current).getParent() != null : false;
+        next = null;
+        nextParent = null;
+        skipChildren = false;
+        return current;
+    }
+
+    /**
+     * @return Node whose children list contains the last returned node, or the parent of the first
+     *         node for the node itself.
+     */
+    public TagNode getParent() {
+        return currentParent;
+    }
+
+    /**
+     * Leaves out children of the last returned node, if it is a tag node.
+     */
+    public void skipChildren() {
+        skipChildren = true;
+    }
+
+    /**
+     * Ends the iteration, releasing the children lists of all nodes on the way down.
+     * Only needed when the iteration is abandoned before the end, and it is cheap to forget about it:
+     * each released node would just copy its children list once more on next change.
+     */
+    public void close() {
+        while (depth > 0) {
+            pop();
+        }
+        current = null;
+        next = null;
+    }
+
+    /**
+     * @throws UnsupportedOperationException always, use {@link TagNode#removeChild(Object)}
+     */
+    public void remove() {
+        throw new UnsupportedOperationException("Use TagNode methods to change the tree");
+    }
+
+    private void findNext() {
+        if (current instanceof TagNode && !skipChildren) {
+            TagNode node = (TagNode) current;
+            // don't go into a node that was removed from the tree while it was visited
+            if (!currentParentSet || node.getParent() != null) {
+                push(node);
+            }
+        }
+        current = null;
+        while (depth > 0) {
+            int top = depth - 1;
+            List<?> list = lists[top];
+            int position = positions[top];
+            if (position < list.size()) {
+                positions[top] = position + 1;
+                Object child = list.get(position);
+                if (child instanceof TagNode || child instanceof ContentNode || child instanceof CommentNode) {
+                    next = (HtmlNode) child;
+                    nextParent = nodes[top];
+                    return;
+                }
+            } else {
+                pop();
+            }
+        }
+    }
+
+    private void push(TagNode node) {
+        if (depth == nodes.length) {
+            int length = depth * 2;
+            TagNode[] newNodes = new TagNode[length];
+            System.arraycopy(nodes, 0, newNodes, 0, depth);
+            nodes = newNodes;
+            List<?>[] newLists = new List<?>[length];
+            System.arraycopy(lists, 0, newLists, 0, depth);
+            lists = newLists;
+            int[] newPositions = new int[length];
+            System.arraycopy(positions, 0, newPositions, 0, depth);
+            positions = newPositions;
+        }
+        nodes[depth] = node;
+        lists[depth] = node.startTraversal();
+        positions[depth] = 0;
+        depth++;
+    }
+
+    private void pop() {
+        depth--;
+        nodes[depth].endTraversal(lists[depth]);
+        nodes[depth] = null;
+        lists[depth] = null;
+    }
+}
@@ -0,0 +1,187 @@
+/*  Copyright (c) 2006-2014, HTMLCleaner project
+    All rights reserved.
+
+    Redistribution and use of this software in source and binary forms,
+    with or without modification, are permitted provided that the following
+    conditions are met:
+
+    * Redistributions of source code must retain the above
+      copyright notice, this list of conditions and the
+      following disclaimer.
+
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the
+      following disclaimer in the documentation and/or other
+      materials provided with the distribution.
+
+    * The name of HtmlCleaner may not be used to endorse or promote
+      products derived from this software without specific prior
+      written permission.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+    AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+    IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+    ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+    LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+    CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+    SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+    INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+    CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+    ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+    POSSIBILITY OF SUCH DAMAGE.
+
+    http://htmlcleaner.sourceforge.net/
+*/
+
+
+package org.htmlcleaner;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ *      Text of the root of an index, with the range of it that is the text of each element, as
+ *      given by {@link TagNode#getText()}. Text of any element is therefore available without
+ *      walking its subtree, and the occurrences of a phrase are found once for the whole document
+ *      and then checked against the range of each element in logarithmic time.
+ * </p>
+ *
+ * @see TagNodeIndex#getTextIndex()
+ */
+final class TagNodeTextIndex {
+
+    // number of phrases whose occurrences are kept, the least recently used ones are dropped first
+    private static final int MAX_PHRASES = 64;
+
+    private final TagNodeIndex index;
+    private final String text;
+    // range of the text of each element, at its number + 1, the root at 0
+    private final int[] starts;
+    private final int[] ends;
+    private final Map<String, int[]> occurrences = new LinkedHashMap<String, int[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, int[]> eldest) {
+            return size() > MAX_PHRASES;
+        }
+    };
+
+    TagNodeTextIndex(TagNodeIndex index, TagNode root, int elementCount) {
+        this.index = index;
+        this.starts = new int[elementCount + 1];
+        this.ends = new int[elementCount + 1];
+
+        // document order walk with explicit stacks of nodes and positions among their children
+        StringBuilder builder = new StringBuilder();
+        TagNode[] nodes = new TagNode[16];
+        int[] positions = new int[16];
+        int depth = 0;
+        nodes[depth++] = root;
+        starts[0] = 0;
+        while (depth > 0) {
+            TagNode node = nodes[depth - 1];
+            List<? extends BaseToken> children = node.getAllChildren();
+            int position = positions[depth - 1];
+            if (position < children.size()) {
+                positions[depth - 1] = position + 1;
+                BaseToken child = children.get(position);
+                if (child instanceof ContentNode) {
+                    builder.append(((ContentNode) child).getContent());
+                } else if (child instanceof TagNode) {
+                    if (depth == nodes.length) {
+                        TagNode[] newNodes = new TagNode[depth * 2];
+                        System.arraycopy(nodes, 0, newNodes, 0, depth);
+                        nodes = newNodes;
+                        int[] newPositions = new int[depth * 2];
+                        System.arraycopy(positions, 0, newPositions, 0, depth);
+                        positions = newPositions;
+                    }
+                    nodes[depth] = (TagNode) child;
+                    positions[depth] = 0;
+                    depth++;
+                    starts[slot(child)] = builder.length();
+                }
+            } else {
+                depth--;
+                ends[slot(node)] = builder.length();
+                nodes[depth] = null;
+            }
+        }
+        this.text = builder.toString();
+    }
+
+    private int slot(Object node) {
+        return index.getPosition((TagNode) node).number + 1;
+    }
+
+    /**
+     * @param position position of an element in the index
+     * @return Text of the element.
+     */
+    String getText(TagNodeIndex.Position position) {
+        int slot = position.number + 1;
+        return text.substring(starts[slot], ends[slot]);
+    }
+
+    /**
+     * @param position position of an element in the index
+     * @param phrase
+     * @return Whether the text of the element contains the phrase.
+     */
+    boolean contains(TagNodeIndex.Position position, String phrase) {
+        int slot = position.number + 1;
+        if (phrase.length() == 0) {
+            return true;
+        } else if (ends[slot] - starts[slot] < phrase.length()) {
+            return false;
+        }
+        int[] found = getOccurrences(phrase);
+        // first occurrence starting within the element
+        int low = 0;
+        int high = found.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (found[middle] < starts[slot]) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low < found.length && found[low] + phrase.length() <= ends[slot];
+    }
+
+    /**
+     * @param position position of an element in the index
+     * @param prefix
+     * @return Whether the text of the element starts with the prefix.
+     */
+    boolean startsWith(TagNodeIndex.Position position, String prefix) {
+        int slot = position.number + 1;
+        return ends[slot] - starts[slot] >= prefix.length() && text.startsWith(prefix, starts[slot]);
+    }
+
+    /**
+     * @return Sorted start offsets of all, possibly overlapping, occurrences of the phrase.
+     */
+    private synchronized int[] getOccurrences(String phrase) {
+        int[] found = occurrences.get(phrase);
+        if (found == null) {
+            int count = 0;
+            found = new int[16];
+            for (int i = text.indexOf(phrase); i >= 0; i = text.indexOf(phrase, i + 1)) {
+                if (count == found.length) {
+                    int[] newFound = new int[count * 2];
+                    System.arraycopy(found, 0, newFound, 0, count);
+                    found = newFound;
+                }
+                found[count++] = i;
+            }
+            int[] result = new int[count];
+            System.arraycopy(found, 0, result, 0, count);
+            found = result;
+            occurrences.put(phrase, found);
+        }
+        return found;
+    }
+}
@@ -0,0 +1,129 @@
+/*  Copyright (c) 2006-2014, HTMLCleaner project
+    All rights reserved.
+
+    Redistribution and use of this software in source and binary forms,
+    with or without modification, are permitted provided that the following
+    conditions are met:
+
+    * Redistributions of source code must retain the above
+      copyright notice, this list of conditions and the
+      following disclaimer.
+
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the
+      following disclaimer in the documentation and/or other
+      materials provided with the distribution.
+
+    * The name of HtmlCleaner may not be used to endorse or promote
+      products derived from this software without specific prior
+      written permission.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+    AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+    IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+    ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+    LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+    CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+    SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+    INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+    CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+    ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+    POSSIBILITY OF SUCH DAMAGE.
+
+    http://htmlcleaner.sourceforge.net/
+*/
+
+package org.htmlcleaner;
+
+/**
+ * <p>
+ *      Options of text extraction with {@link TagNode#appendText(Appendable, TextOptions)}.
+ *      Default options give the same text as {@link TagNode#getText()}: content of all descendant
+ *      text nodes, as it is in the tree.
+ * </p>
+ */
+public class TextOptions {
+
+    private boolean skipScriptAndStyle;
+    private boolean decodeEntities;
+    private boolean recognizeUnicodeChars = true;
+    private String blockSeparator;
+    private ITagInfoProvider tagInfoProvider = DefaultTagProvider.INSTANCE;
+
+    /**
+     * @return true if content of script and style elements is left out
+     */
+    public boolean isSkipScriptAndStyle() {
+        return skipScriptAndStyle;
+    }
+
+    /**
+     * @param skipScriptAndStyle true to leave out content of script and style elements
+     */
+    public void setSkipScriptAndStyle(boolean skipScriptAndStyle) {
+        this.skipScriptAndStyle = skipScriptAndStyle;
+    }
+
+    /**
+     * @return true if entities in the text are replaced by the characters they stand for
+     */
+    public boolean isDecodeEntities() {
+        return decodeEntities;
+    }
+
+    /**
+     * Useful when the tree was cleaned without deserializing entities.
+     * @param decodeEntities true to replace entities in the text by the characters they stand for
+     */
+    public void setDecodeEntities(boolean decodeEntities) {
+        this.decodeEntities = decodeEntities;
+    }
+
+    /**
+     * @return true if decoding replaces numeric character references without a known entity name too
+     */
+    public boolean isRecognizeUnicodeChars() {
+        return recognizeUnicodeChars;
+    }
+
+    /**
+     * @param recognizeUnicodeChars true if decoding should replace numeric character references
+     *        without a known entity name too, like {@link CleanerProperties#setRecognizeUnicodeChars(boolean)}
+     */
+    public void setRecognizeUnicodeChars(boolean recognizeUnicodeChars) {
+        this.recognizeUnicodeChars = recognizeUnicodeChars;
+    }
+
+    /**
+     * @return separator written between texts of different block elements, or null for none
+     */
+    public String getBlockSeparator() {
+        return blockSeparator;
+    }
+
+    /**
+     * Sets separator, for example a line break, written where a block element starts or ends
+     * between two pieces of text. Elements are considered blocks if their
+     * {@link TagInfo#getDisplay()} is {@link Display#block} or {@link Display#any}. The separator
+     * is never written at the beginning or end of the text, nor twice in a row.
+     *
+     * @param blockSeparator separator, or null for none
+     */
+    public void setBlockSeparator(String blockSeparator) {
+        this.blockSeparator = blockSeparator;
+    }
+
+    /**
+     * @return provider of tag infos used to find block elements
+     */
+    public ITagInfoProvider getTagInfoProvider() {
+        return tagInfoProvider;
+    }
+
+    /**
+     * @param tagInfoProvider provider of tag infos used to find block elements
+     */
+    public void setTagInfoProvider(ITagInfoProvider tagInfoProvider) {
+        this.tagInfoProvider = tagInfoProvider;
+    }
+}
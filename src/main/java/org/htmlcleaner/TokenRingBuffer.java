@@ -0,0 +1,132 @@
+package org.htmlcleaner;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single-producer/single-consumer ring buffer used to hand tokens over from the
+ * tokenizer thread to the tree building thread when pipelined tokenizing is enabled.
+ * <p/>
+ * Exactly one thread may call {@link #offer(BaseToken)} and {@link #close(Throwable)}, and
+ * exactly one other thread may call {@link #poll()} and {@link #abandon()}.
+ *
+ * @see CleanerProperties#setPipelinedTokenizing(boolean)
+ */
+final class TokenRingBuffer {
+
+    private static final int SPINS_BEFORE_YIELD = 100;
+    private static final int YIELDS_BEFORE_PARK = 100;
+    private static final long PARK_NANOS = 50000L;
+
+    private final BaseToken[] buffer;
+    private final int mask;
+
+    // index of the next slot to be read, written by the consumer only
+    private final AtomicLong head = new AtomicLong();
+    // index of the next slot to be written, written by the producer only
+    private final AtomicLong tail = new AtomicLong();
+
+    private volatile boolean closed;
+    private volatile boolean abandoned;
+    private volatile Throwable failure;
+
+    /**
+     * @param capacity minimal number of tokens the buffer can hold, rounded up to a power of two
+     */
+    TokenRingBuffer(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.buffer = new BaseToken[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Adds the token, waiting while the buffer is full.
+     *
+     * @param token
+     * @return false if the consumer has abandoned the buffer and the token was not added
+     */
+    boolean offer(BaseToken token) {
+        long t = tail.get();
+        int waits = 0;
+        while (t - head.get() == buffer.length) {
+            if (abandoned) {
+                return false;
+            }
+            waits = backOff(waits);
+        }
+        buffer[(int) t & mask] = token;
+        tail.set(t + 1);
+        return true;
+    }
+
+    /**
+     * Takes the next token, waiting while the buffer is empty.
+     *
+     * @return next token, or null if the producer has closed the buffer and all tokens are taken,
+     *         or if the calling thread was interrupted while waiting
+     */
+    BaseToken poll() {
+        long h = head.get();
+        int waits = 0;
+        while (h == tail.get()) {
+            if (closed) {
+                if (h == tail.get()) {
+                    return null;
+                }
+                break;
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                return null;
+            }
+            waits = backOff(waits);
+        }
+        int index = (int) h & mask;
+        BaseToken token = buffer[index];
+        buffer[index] = null;
+        head.set(h + 1);
+        return token;
+    }
+
+    /**
+     * Called by the producer once no more tokens will be offered.
+     *
+     * @param failure exception that stopped the producer, or null if it finished normally
+     */
+    void close(Throwable failure) {
+        this.failure = failure;
+        this.closed = true;
+    }
+
+    /**
+     * Called by the consumer when it stops taking tokens before the buffer is closed,
+     * so that the producer does not wait for free slots forever.
+     */
+    void abandon() {
+        this.abandoned = true;
+    }
+
+    boolean isAbandoned() {
+        return abandoned;
+    }
+
+    /**
+     * @return exception that stopped the producer, valid after {@link #poll()} returned null
+     */
+    Throwable getFailure() {
+        return failure;
+    }
+
+    private static int backOff(int waits) {
+        if (waits < SPINS_BEFORE_YIELD) {
+            // busy spin - the other side is usually only a few tokens behind
+        } else if (waits < SPINS_BEFORE_YIELD + YIELDS_BEFORE_PARK) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        return waits + 1;
+    }
+}
@@ -511,6 +511,80 @@ public class Utils {
     }
 
 
+    /**
+     * Replaces known named entities and numeric character references in the text by the
+     * characters they stand for. Unknown and malformed references are left as they are.
+     *
+     * @param text text to change in place
+     * @param recognizeUnicodeChars whether numeric references to characters without a known
+     *        entity name are replaced too
+     */
+    static void deserializeEntities(StringBuilder text, boolean recognizeUnicodeChars) {
+        SpecialEntities entities = SpecialEntities.INSTANCE;
+        int entityStart = -1;
+        boolean numericEntity = false;
+        boolean hexEntity = false;
+        int maxEntityLength = entities.getMaxEntityLength();
+        int i = 0;
+        int length = text.length();
+        while (i < length) {
+            if (text.charAt(i) == '&') {
+                entityStart = i;
+                numericEntity = false;
+                hexEntity = false;
+                ++i;
+            } else if (entityStart != -1) {
+                if (text.charAt(i) == ';') {
+                    int entityValue = -1;
+                    if (numericEntity) {
+                        try {
+                            entityValue = Integer.parseInt(
+                                    text.substring(
+                                            entityStart + (hexEntity ? 3 : 2),
+                                            i
+                                    ),
+                                    hexEntity ? 16 : 10
+                            );
+                        } catch (NumberFormatException e) {
+                            entityValue = -1;
+                        }
+                        
+                    	SpecialEntity entity = entities.getSpecialEntityByUnicode(entityValue);
+                    	if(entity != null)
+                    		entityValue = entity.intValue();
+                    	else if(!recognizeUnicodeChars)
+                    		entityValue = -1;
+                    } else {
+                    	SpecialEntity entity = entities.getSpecialEntity(text.substring(entityStart + 1, i));
+                    	if(entity != null)
+                    		entityValue = entity.intValue();
+                    }
+                    
+                    if (entityValue >= 0) {
+                        char[] decodedEntity = Character.toChars(entityValue);
+                        text.replace(entityStart, i + 1, new String(decodedEntity));
+                        length = text.length();
+                        i = entityStart + decodedEntity.length;
+                    } else {
+                        ++i;
+                    }
+                    entityStart = -1;
+                } else {
+                    if (i == entityStart + 1 && text.charAt(i) == '#') {
+                        numericEntity = true;
+                    } else if (i == entityStart + 2 && numericEntity && text.charAt(i) == 'x') {
+                        hexEntity = true;
+                    } else if (i - entityStart > maxEntityLength) {
+                        entityStart = -1;
+                    }
+                    ++i;
+                }
+            } else {
+                ++i;
+            }
+        }
+    }
+
     /**
      * Checks if specified character can be part of xml identifier (tag name of attribute name)
      * and is not standard identifier character.
@@ -0,0 +1,133 @@
+/*  Copyright (c) 2006-2014, HTMLCleaner project
+    All rights reserved.
+
+    Redistribution and use of this software in source and binary forms,
+    with or without modification, are permitted provided that the following
+    conditions are met:
+
+    * Redistributions of source code must retain the above
+      copyright notice, this list of conditions and the
+      following disclaimer.
+
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the
+      following disclaimer in the documentation and/or other
+      materials provided with the distribution.
+
+    * The name of HtmlCleaner may not be used to endorse or promote
+      products derived from this software without specific prior
+      written permission.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+    AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+    IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+    ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+    LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+    CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+    SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+    INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+    CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+    ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+    POSSIBILITY OF SUCH DAMAGE.
+
+    http://htmlcleaner.sourceforge.net/
+*/
+
+
+package org.htmlcleaner;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ *      Results of XPath expressions evaluated against nodes of one tree, keyed by the expression
+ *      and the context node. All results are dropped as soon as the modification count of the
+ *      root changes, which happens on every change of the tree.
+ * </p>
+ *
+ * @see TagNode#setXPathResultsCached(boolean)
+ */
+final class XPathResultCache {
+
+    // number of results kept, the least recently used ones are dropped first
+    private static final int MAX_SIZE = 1024;
+
+    private final TagNode root;
+    private int modificationCount;
+    private final Map<Key, Object[]> results = new LinkedHashMap<Key, Object[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Object[]> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+
+    XPathResultCache(TagNode root) {
+        this.root = root;
+        this.modificationCount = root.getModificationCount();
+    }
+
+    /**
+     * @return Modification count of the root, to be passed to {@link #put(String, TagNode, Object[], int)}
+     *         after the evaluation.
+     */
+    synchronized int validate() {
+        int current = root.getModificationCount();
+        if (current != modificationCount) {
+            results.clear();
+            modificationCount = current;
+        }
+        return current;
+    }
+
+    /**
+     * @param expression
+     * @param node context node
+     * @return Result of the expression evaluated against the node since the last change of the
+     *         tree, or null if there is none. The array must not be changed.
+     */
+    synchronized Object[] get(String expression, TagNode node) {
+        validate();
+        return results.get(new Key(expression, node));
+    }
+
+    /**
+     * Remembers the result unless the tree changed since the evaluation started.
+     * @param expression
+     * @param node context node
+     * @param result result which will never be changed
+     * @param startModificationCount value returned by {@link #validate()} before the evaluation
+     */
+    synchronized void put(String expression, TagNode node, Object[] result, int startModificationCount) {
+        if (validate() == startModificationCount) {
+            results.put(new Key(expression, node), result);
+        }
+    }
+
+    /**
+     * Expression and identity of the context node.
+     */
+    private static final class Key {
+        private final String expression;
+        private final TagNode node;
+
+        private Key(String expression, TagNode node) {
+            this.expression = expression;
+            this.node = node;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) obj;
+            return node == key.node && expression.equals(key.expression);
+        }
+
+        @Override
+        public int hashCode() {
+            return expression.hashCode() * 31 + System.identityHashCode(node);
+        }
+    }
+}
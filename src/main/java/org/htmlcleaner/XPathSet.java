@@ -0,0 +1,278 @@
+/*  Copyright (c) 2006-2014, HTMLCleaner project
+    All rights reserved.
+
+    Redistribution and use of this software in source and binary forms,
+    with or without modification, are permitted provided that the following
+    conditions are met:
+
+    * Redistributions of source code must retain the above
+      copyright notice, this list of conditions and the
+      following disclaimer.
+
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the
+      following disclaimer in the documentation and/or other
+      materials provided with the distribution.
+
+    * The name of HtmlCleaner may not be used to endorse or promote
+      products derived from this software without specific prior
+      written permission.
+
+    THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+    AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+    IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+    ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+    LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+    CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+    SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+    INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+    CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+    ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+    POSSIBILITY OF SUCH DAMAGE.
+
+    http://htmlcleaner.sourceforge.net/
+*/
+
+
+package org.htmlcleaner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>
+ *      Set of XPath expressions evaluated together against a document. Location paths, as
+ *      described at {@link XPather}, are arranged in a tree by their steps: steps which several
+ *      expressions begin with are evaluated once, and recursive steps like <code>//a[@href]</code>
+ *      applied to the same nodes share one walk through their descendants. Extracting many
+ *      fields from a page therefore walks the document once instead of once per field. Other
+ *      expressions are evaluated one by one.
+ * </p>
+ * <p>
+ *      Results are those of {@link XPather#evaluateAgainstNode(TagNode)} for each expression.
+ *      Instances are immutable and can be used by several threads at once.
+ * </p>
+ */
+public class XPathSet {
+
+    private final List<String> expressions;
+    private final StepNode root = new StepNode(null);
+    // expressions which are not location paths
+    private final List<XPather> others = new ArrayList<XPather>();
+
+    public XPathSet(String... expressions) {
+        this(Arrays.asList(expressions));
+    }
+
+    public XPathSet(Collection<String> expressions) {
+        this.expressions = Collections.unmodifiableList(new ArrayList<String>(new LinkedHashSet<String>(expressions)));
+        for (String expression: this.expressions) {
+            XPather xPather = XPather.compile(expression);
+            XPather.Path[] locationPath = xPather.getLocationPath();
+            if (locationPath == null) {
+                others.add(xPather);
+            } else {
+                StepNode node = root;
+                for (XPather.Path path: locationPath) {
+                    node = node.getChild(path);
+                }
+                node.expressions.add(expression);
+            }
+        }
+    }
+
+    /**
+     * @return Expressions of the set, without duplicates.
+     */
+    public List<String> getExpressions() {
+        return expressions;
+    }
+
+    /**
+     * Evaluates all expressions against the node.
+     *
+     * @param node
+     * @return Map from each expression to its result, in the order of the expressions.
+     * @throws XPatherException if any of the expressions cannot be evaluated
+     */
+    public Map<String, Object[]> evaluateAgainstNode(TagNode node) throws XPatherException {
+        if (node == null) {
+            throw new XPatherException("Cannot evaluate XPath expression against null value!");
+        }
+        Map<String, Object[]> results = new HashMap<String, Object[]>();
+        List<TagNode> start = new ArrayList<TagNode>(1);
+        start.add(node);
+        evaluate(root, start, results);
+        for (XPather other: others) {
+            results.put(other.toString(), other.evaluateAgainstNode(node));
+        }
+
+        Map<String, Object[]> ordered = new LinkedHashMap<String, Object[]>();
+        for (String expression: expressions) {
+            ordered.put(expression, results.get(expression));
+        }
+        return ordered;
+    }
+
+    /**
+     * Evaluates the steps below the node against the result of the node's step.
+     */
+    private static void evaluate(StepNode node, Collection<?> value, Map<String, Object[]> results) throws XPatherException {
+        for (String expression: node.expressions) {
+            results.put(expression, value.toArray());
+        }
+
+        List<StepNode> walking = new ArrayList<StepNode>();
+        for (StepNode child: node.children.values()) {
+            if (child.step instanceof XPather.ElementStep && ((XPather.ElementStep) child.step).isRecursive) {
+                walking.add(child);
+            }
+        }
+        Map<StepNode, Collection<?>> walked = walking.size() > 1 ? walk(value, walking) : Collections.<StepNode, Collection<?>>emptyMap();
+
+        for (StepNode child: node.children.values()) {
+            Collection<?> childValue = walked.get(child);
+            if (childValue == null) {
+                childValue = child.step.evaluate(value, 1, 0, null);
+            }
+            evaluate(child, childValue, results);
+        }
+    }
+
+    /**
+     * Evaluates several recursive named element steps at once, walking through the descendants
+     * of each node only once for all of them.
+     * @param contexts nodes the steps are applied to
+     * @param nodes nodes of the steps
+     * @return Result of each step, as the step would give it.
+     */
+    private static Map<StepNode, Collection<?>> walk(Collection<?> contexts, List<StepNode> nodes) throws XPatherException {
+        Map<StepNode, Collection<?>> results = new HashMap<StepNode, Collection<?>>();
+        Map<String, List<XPather.ElementStep>> stepsByName = new HashMap<String, List<XPather.ElementStep>>();
+        Map<XPather.ElementStep, Collection<Object>> stepResults = new HashMap<XPather.ElementStep, Collection<Object>>();
+        for (StepNode node: nodes) {
+            XPather.ElementStep step = (XPather.ElementStep) node.step;
+            String key = foldCase(step.name);
+            List<XPather.ElementStep> steps = stepsByName.get(key);
+            if (steps == null) {
+                steps = new ArrayList<XPather.ElementStep>(2);
+                stepsByName.put(key, steps);
+            }
+            steps.add(step);
+            Collection<Object> result = new LinkedHashSet<Object>();
+            stepResults.put(step, result);
+            results.put(node, result);
+        }
+
+        List<TagNode> parents = new ArrayList<TagNode>();
+        List<List<TagNode>> childLists = new ArrayList<List<TagNode>>();
+        List<Integer> positions = new ArrayList<Integer>();
+        // children selected by positional steps, for the parent at each depth
+        List<Map<XPather.ElementStep, Set<Object>>> selected = new ArrayList<Map<XPather.ElementStep, Set<Object>>>();
+        for (Object context: contexts) {
+            if (!(context instanceof TagNode)) {
+                throw new XPatherException();
+            }
+            push((TagNode) context, parents, childLists, positions, selected);
+            while (!childLists.isEmpty()) {
+                int depth = childLists.size() - 1;
+                List<TagNode> childTags = childLists.get(depth);
+                int position = positions.get(depth);
+                if (position == childTags.size()) {
+                    parents.remove(depth);
+                    childLists.remove(depth);
+                    positions.remove(depth);
+                    selected.remove(depth);
+                    continue;
+                }
+                positions.set(depth, position + 1);
+                TagNode child = childTags.get(position);
+                List<XPather.ElementStep> steps = stepsByName.get(foldCase(child.getName()));
+                if (steps != null) {
+                    for (XPather.ElementStep step: steps) {
+                        boolean isSelected;
+                        if (step.isPositional) {
+                            Map<XPather.ElementStep, Set<Object>> parentSelected = selected.get(depth);
+                            if (parentSelected == null) {
+                                parentSelected = new HashMap<XPather.ElementStep, Set<Object>>();
+                                selected.set(depth, parentSelected);
+                            }
+                            Set<Object> children = parentSelected.get(step);
+                            if (children == null) {
+                                children = step.selectChildren(parents.get(depth));
+                                parentSelected.put(step, children);
+                            }
+                            isSelected = children.contains(child);
+                        } else {
+                            isSelected = step.selects(child);
+                        }
+                        if (isSelected) {
+                            stepResults.get(step).add(child);
+                        }
+                    }
+                }
+                push(child, parents, childLists, positions, selected);
+            }
+        }
+        return results;
+    }
+
+    private static void push(TagNode parent, List<TagNode> parents, List<List<TagNode>> childLists,
+                             List<Integer> positions, List<Map<XPather.ElementStep, Set<Object>>> selected) {
+        parents.add(parent);
+        childLists.add(parent.getChildTagList());
+        positions.add(0);
+        selected.add(null);
+    }
+
+    /**
+     * @param name
+     * @return Form of the name which is equal for all names equal ignoring case, as compared by
+     *         {@link String#equalsIgnoreCase(String)}.
+     */
+    private static String foldCase(String name) {
+        char[] chars = null;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            char folded = Character.toLowerCase(Character.toUpperCase(c));
+            if (folded != c) {
+                if (chars == null) {
+                    chars = name.toCharArray();
+                }
+                chars[i] = folded;
+            }
+        }
+        return chars == null ? name : new String(chars);
+    }
+
+    /**
+     * Step of one or more expressions, with the steps following it.
+     */
+    private static final class StepNode {
+        private final XPather.Expr step;
+        private final Map<String, StepNode> children = new LinkedHashMap<String, StepNode>();
+        // expressions ending with this step
+        private final List<String> expressions = new ArrayList<String>(1);
+
+        private StepNode(XPather.Expr step) {
+            this.step = step;
+        }
+
+        private StepNode getChild(XPather.Path path) {
+            StepNode child = children.get(path.text);
+            if (child == null) {
+                child = new StepNode(path.step);
+                children.put(path.text, child);
+            }
+            return child;
+        }
+    }
+}
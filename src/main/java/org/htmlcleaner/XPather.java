@@ -38,11 +38,23 @@
 package org.htmlcleaner;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * <p>Utility for searching cleaned document tree with XPath expressions.</p>
@@ -59,8 +71,31 @@ import java.util.StringTokenizer;
  *      <li>//p/last()</li>
  *      <li>//body//div[3][@class]//span[12.2<position()]/@id</li>
  *      <li>data(//a['v' < @id])</li>
+ *      <li>//p[contains(., 'terms of use')]</li>
+ *      <li>//a[starts-with(@href, 'http')]</li>
  * </ul>
  * </code>
+ * <p>
+ *      Text of elements compared in filters, by <code>contains()</code>, <code>starts-with()</code>
+ *      or <code>text() = 'value'</code>, is taken from the text index of an up to date element
+ *      index, see {@link TagNode#setIndexed(boolean)}, instead of walking the subtree of every
+ *      candidate.
+ * </p>
+ * <p>
+ *      The expression is compiled once, when the instance is created, into an immutable plan of
+ *      steps, filters and function calls. Instances can therefore be reused for any number of
+ *      evaluations, also by several threads at once. {@link #compile(String)} returns shared
+ *      instances for recently used expressions.
+ * </p>
+ * <p>
+ *      {@link #evaluateAgainstNode(TagNode, ExecutorService)} evaluates the expression against
+ *      a frozen tree with the help of an executor, see there.
+ * </p>
+ * <p>
+ *      {@link #iterate(TagNode)} and {@link #selectFirst(TagNode)} evaluate location paths -
+ *      slash separated element steps with filters, optionally ending with an attribute step -
+ *      lazily, so that finding the first few results doesn't walk the whole document.
+ * </p>
  */
 public class XPather {
 
@@ -70,100 +105,1286 @@ public class XPather {
 	private static final int CP = '+';
 	private static final int CM = '-';
 	private static final int CS = ' ';
-	
-    // array of basic tokens of which XPath expression is made
-    private String tokenArray[];
+
+    // number of compiled expressions kept by compile(String)
+    private static final int CACHE_SIZE = 512;
+
+    // smallest context worth splitting among threads
+    private static final int PARALLEL_THRESHOLD = 256;
+    // chunks per processor, so that threads finishing early take over more work
+    private static final int CHUNKS_PER_PROCESSOR = 4;
+
+    // executor of the parallel evaluation running in this thread, null for serial evaluation;
+    // not set in the worker threads, which therefore evaluate their chunks serially
+    private static final ThreadLocal<ExecutorService> PARALLEL_EXECUTOR = new ThreadLocal<ExecutorService>();
+
+    private static final Map<String, XPather> CACHE = new LinkedHashMap<String, XPather>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, XPather> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private final String expression;
+    private final Expr plan;
+    // steps of the plan if it is a location path which can be evaluated lazily, null otherwise
+    private final Path[] locationPath;
+
+    /**
+     * Constructor - creates XPather instance with specified XPath expression.
+     * @param expression
+     */
+    public XPather(String expression) {
+        StringTokenizer tokenizer = new StringTokenizer(expression, "/()[]\"'=<>,", true);
+        int tokenCount = tokenizer.countTokens();
+        String[] tokenArray = new String[tokenCount];
+
+        int index = 0;
+
+        // this is not real XPath compiler, rather simple way to recognize basic XPaths expressions
+        // and turn them into a plan which can be evaluated against some TagNode instance.
+        while (tokenizer.hasMoreTokens()) {
+            tokenArray[index++] = tokenizer.nextToken();
+        }
+
+        this.expression = expression;
+        this.plan = new Compiler(tokenArray).compile(0, tokenArray.length - 1, false, false);
+        this.locationPath = toLocationPath(plan);
+    }
+
+    /**
+     * Returns compiled XPather for the expression, shared with earlier callers of this method
+     * asking for the same expression. The most recently used expressions are kept, so
+     * evaluating the same expressions over and over again compiles each of them only once.
+     *
+     * @param expression
+     * @return XPather instance for the expression.
+     */
+    public static XPather compile(String expression) {
+        synchronized (CACHE) {
+            XPather xPather = CACHE.get(expression);
+            if (xPather != null) {
+                return xPather;
+            }
+        }
+        // compile outside of the lock, concurrent callers may compile the same expression twice
+        XPather xPather = new XPather(expression);
+        synchronized (CACHE) {
+            CACHE.put(expression, xPather);
+        }
+        return xPather;
+    }
+
+    /**
+     * Main public method for this class - a way to execute XPath expression against
+     * specified TagNode instance.
+     * @param node
+     */
+    public Object[] evaluateAgainstNode(TagNode node) throws XPatherException {
+        if (node == null) {
+            throw new XPatherException("Cannot evaluate XPath expression against null value!");
+        }
+
+        XPathResultCache cache = node.getXPathResultCache();
+        int modificationCount = 0;
+        if (cache != null) {
+            Object[] cached = cache.get(expression, node);
+            if (cached != null) {
+                return cached.clone();
+            }
+            modificationCount = cache.validate();
+        }
+
+        Collection<?> collectionResult = plan.evaluate(singleton(node), 1, 0, null);
+        Object[] array = new Object[collectionResult.size()];
+
+        Iterator<?> iterator = collectionResult.iterator();
+        int index = 0;
+        while (iterator.hasNext()) {
+            array[index++] = iterator.next();
+        }
+
+        if (cache != null) {
+            cache.put(expression, node, array.clone(), modificationCount);
+        }
+        return array;
+    }
+
+    /**
+     * <p>
+     *      Evaluates the expression like {@link #evaluateAgainstNode(TagNode)}, splitting large
+     *      context node sets - for example thousands of table rows selected by a <code>//</code>
+     *      step - into chunks evaluated by the executor. Both the filters and the following steps
+     *      are evaluated in parallel, and the chunk results are merged in their original order, so
+     *      the result is the same as the one of serial evaluation.
+     * </p>
+     * <p>
+     *      The calling thread waits for the chunks, which are never split any further, so the
+     *      executor may be shared with other work, but must not be the one running the caller.
+     *      The node must be frozen, see {@link TagNode#freeze()}, so that it can be read by several
+     *      threads at once.
+     * </p>
+     *
+     * @param node frozen node
+     * @param executor
+     * @return Result of the evaluation.
+     * @throws IllegalArgumentException if the node is not frozen
+     */
+    public Object[] evaluateAgainstNode(TagNode node, ExecutorService executor) throws XPatherException {
+        if (node != null && !node.isFrozen()) {
+            throw new IllegalArgumentException("Parallel evaluation requires a frozen tree, use TagNode.freeze()");
+        }
+        ExecutorService previous = PARALLEL_EXECUTOR.get();
+        PARALLEL_EXECUTOR.set(executor);
+        try {
+            return evaluateAgainstNode(node);
+        } finally {
+            PARALLEL_EXECUTOR.set(previous);
+        }
+    }
+
+    /**
+     * <p>
+     *      Evaluates the expression against the node, giving the results in the same order as
+     *      {@link #evaluateAgainstNode(TagNode)} does. Location paths like <code>//div[@id='a']//a[2]/@href</code>
+     *      are evaluated step by step while iterating: the descendants are walked only as far as
+     *      needed for the next result, and filters look only at the siblings of each candidate.
+     *      Other expressions are evaluated at once.
+     * </p>
+     * <p>
+     *      Errors found during iteration are thrown by <code>hasNext()</code> and <code>next()</code>
+     *      as {@link HtmlCleanerException} with the {@link XPatherException} as its cause. The tree
+     *      must not be changed before the iteration is finished.
+     * </p>
+     *
+     * @param node
+     * @return Read-only iterator over the result.
+     */
+    public Iterator<Object> iterate(TagNode node) throws XPatherException {
+        if (node == null) {
+            throw new XPatherException("Cannot evaluate XPath expression against null value!");
+        }
+        if (locationPath == null) {
+            return Arrays.asList(evaluateAgainstNode(node)).iterator();
+        }
+        return new LazyResult(locationPath, node);
+    }
+
+    /**
+     * Evaluates the expression against the node until the first result is found.
+     *
+     * @param node
+     * @return The first result of the expression, or null if there is none.
+     * @see #iterate(TagNode)
+     */
+    public Object selectFirst(TagNode node) throws XPatherException {
+        Iterator<Object> iterator = iterate(node);
+        try {
+            return iterator.hasNext() ? iterator.next() : null;
+        } catch (HtmlCleanerException e) {
+            if (e.getCause() instanceof XPatherException) {
+                throw (XPatherException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return Steps of the expression if it is a location path which can be evaluated step by
+     *         step, null otherwise.
+     */
+    Path[] getLocationPath() {
+        return locationPath;
+    }
+
+    /**
+     * @return The XPath expression of this instance.
+     */
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    /**
+     * Evaluation of each item of a context, which doesn't depend on the other items.
+     */
+    private abstract static class ItemEvaluation {
+        /**
+         * @param item
+         * @param index position of the item in the context, counted from 1
+         * @return Result for the item.
+         */
+        abstract Object evaluate(Object item, int index) throws XPatherException;
+    }
+
+    /**
+     * Evaluates each item of the context, in parallel if a parallel evaluation is running in this
+     * thread and the context is large.
+     * @param items
+     * @param evaluation
+     * @return Results of the items in their order.
+     */
+    private static Object[] evaluateEach(Collection<?> items, final ItemEvaluation evaluation) throws XPatherException {
+        final Object[] source = items.toArray();
+        final Object[] results = new Object[source.length];
+        ExecutorService executor = PARALLEL_EXECUTOR.get();
+        if (executor == null || source.length < PARALLEL_THRESHOLD) {
+            for (int i = 0; i < source.length; i++) {
+                results[i] = evaluation.evaluate(source[i], i + 1);
+            }
+            return results;
+        }
+
+        int chunkCount = Math.min(Runtime.getRuntime().availableProcessors() * CHUNKS_PER_PROCESSOR,
+                                  source.length / (PARALLEL_THRESHOLD / CHUNKS_PER_PROCESSOR));
+        List<Future<Object>> futures = new ArrayList<Future<Object>>(chunkCount);
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            final int from = (int) ((long) source.length * chunk / chunkCount);
+            final int to = (int) ((long) source.length * (chunk + 1) / chunkCount);
+            futures.add(executor.submit(new Callable<Object>() {
+                public Object call() throws XPatherException {
+                    for (int i = from; i < to; i++) {
+                        results[i] = evaluation.evaluate(source[i], i + 1);
+                    }
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Object> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XPatherException("Parallel evaluation interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof XPatherException) {
+                throw (XPatherException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new XPatherException(cause);
+        } finally {
+            for (Future<Object> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Compiled part of an expression. Each part is the remainder of the expression starting at
+     * some token, so evaluating a part evaluates everything after it too.
+     */
+    abstract static class Expr {
+        /**
+         * @param object collection the part is applied to
+         * @param position position of the context node, used inside filters
+         * @param last size of the context, used inside filters
+         * @param filterSource context node of the enclosing filter, compared values are evaluated against it
+         * @return Collection as the result of evaluation.
+         */
+        abstract Collection<?> evaluate(Collection<?> object, int position, int last, Collection<?> filterSource) throws XPatherException;
+    }
+
+    /**
+     * End of the expression, the object is the result.
+     */
+    private static final class Identity extends Expr {
+        private static final Identity INSTANCE = new Identity();
+
+        @Override
+        Collection<?> evaluate(Collection<?> object, int position, int last, Collection<?> filterSource) {
+            return object;
+        }
+    }
+
+    /**
+     * Malformed part of the expression, reported only when it is reached.
+     */
+    private static final class Invalid extends Expr {
+        private static final Invalid INSTANCE = new Invalid();
+
+        @Override
+        Collection<?> evaluate(Collection<?> object, int position, int last, Collection<?> filterSource) throws XPatherException {
+            throw new XPatherException();
+        }
+    }
+
+    /**
+     * Expression in parentheses followed by the rest.
+     */
+    private static final class Group extends Expr {
+        private final Expr inner;
+        private final Expr next;
+
+        private Group(Expr inner, Expr next) {
+            this.inner = inner;
+            this.next = next;
+        }
+
+        @Override
+        Collection<?> evaluate(Collection<?> object, int position, int last, Collection<?> filterSource) throws XPatherException {
+            Collection<?> value = inner.evaluate(object, position, last, filterSource);
+            return next.evaluate(value, position, last, filterSource);
+        }
+    }
+
+    /**
+     * Condition in square brackets followed by the rest.
+     */
+    private static final class Filter extends Expr {
+        private final Expr condition;
+        private final Expr next;
+
+        private Filter(Expr condition, Expr next) {
+            this.condition = condition;
+            this.next = next;
+        }
+
+        @Override
+        Collection<?> evaluate(Collection<?> object, int position, int last, Collection<?> filterSource) throws XPatherException {
+            if (object == null) {
+                throw new XPatherException();
+            }
+            Collection<?> value = filterByCondition(object, condition);
+            return next.evaluate(value, position, last, filterSource);
+        }
+    }
+
+    /**
+     * String or number constant followed by the rest.
+     */
+    private static final class Constant extends Expr {
+        private final Object value;
+        private final Expr next;
+
+        private Constant(Object value, Expr next) {
+            this.value = value;
+            this.next = next;
+        }
+
+        @Override
+        Collection<?> evaluate(Collection<?> object, int position, int last, Collection<?> filterSource) throws XPatherException {
+            return next.evaluate(singleton(value), position, last, filterSource);
+        }
+    }
+
+    /**
+     * Number token that looks valid but cannot be parsed, fails the same way at evaluation.
+     */
+    private static final class InvalidNumber extends Expr {
+        private final String token;
+        private final boolean isInteger;
+
+        private InvalidNumber(String token, boolean isInteger) {
+            this.token = token;
+            this.isInteger = isInteger;
+        }
+
+        @Override
+        Collection<?> evaluate(Collection<?> object, int position, int last, Collection<?> filterSource) {
+            return singleton(isInteger ? (Object) Integer.valueOf(token) : Double.valueOf(token));
+        }
+    }
+
+    /**
+     * Comparison inside a filter: the right side is evaluated against the context node of the
+     * filter and compared with the object.
+     */
+    private static final class Comparison extends Expr {
+        private final String operator;
+        private final Expr second;
+
+        private Comparison(String operator, Expr second) {
+            this.operator = operator;
+            this.second = second;
+        }
+
+        @Override
+        Collection<?> evaluate(Collection<?> object, int position, int last, Collection<?> filterSource) throws XPatherException {
+            Collection<?> secondObject = second.evaluate(filterSource, position, last, filterSource);
+            return singleton(Boolean.valueOf(evaluateLogic(object, secondObject, operator)));
+        }
+    }
+
+    /**
+     * Slash or double slash followed by a step, and the rest after it.
+     */
+    static final class Path extends Expr {
+        // the slashes and the step with its filters, as written in the expression
+        final String text;
+        final Expr step;
+        private final Expr next;
+
+        private Path(String text, Expr step, Expr next) {
+            this.text = text;
+            this.step = step;
+            this.next = next;
+        }
+
+        @Override
+        Collection<?> evaluate(Collection<?> object, int position, int last, Collection<?> filterSource) throws XPatherException {
+            Collection<?> value = step.evaluate(object, 1, last, filterSource);
+            return next.evaluate(value, 1, last, filterSource);
+        }
+    }
+
+    /**
+     * Call of one of the supported functions, followed by the rest.
+     */
+    private static final class FunctionCall extends Expr {
+        private final String name;
+        private final Expr argument;
+        // comma separated arguments of functions taking more than one
+        private final Expr[] arguments;
+        private final Expr next;
+        private final boolean isFilterContext;
+
+        private FunctionCall(String name, Expr argument, Expr[] arguments, Expr next, boolean isFilterContext) {
+            this.name = name;
+            this.argument = argument;
+            this.arguments = arguments;
+            this.next = next;
+            this.isFilterContext = isFilterContext;
+        }
+
+        @Override
+        Collection<?> evaluate(Collection<?> object, int position, int last, Collection<?> filterSource) throws XPatherException {
+            Collection<?> funcValue = evaluateFunction(object, position, last);
+            return next.evaluate(funcValue, 1, last, filterSource);
+        }
+
+        /**
+         * Evaluates the function.
+         * Currently, following XPath functions are supported: last, position, text, count, data,
+         * contains, starts-with
+         * @param source
+         * @param position
+         * @param last
+         * @return Collection as the result of evaluation.
+         */
+        private Collection<Object> evaluateFunction(Collection<?> source, int position, int last) throws XPatherException {
+            List<Object> result = new ArrayList<Object>();
+
+            final int size = source.size();
+            Iterator<?> iterator = source.iterator();
+            int index = 0;
+            while (iterator.hasNext()) {
+                Object curr = iterator.next();
+                index++;
+                if ( "last".equals(name) ) {
+                    result.add( Integer.valueOf(isFilterContext ? last : size) );
+                } else if ( "position".equals(name) ) {
+                    result.add( Integer.valueOf(isFilterContext ? position : index) );
+                } else if ( "text".equals(name) ) {
+                    if (curr instanceof TagNode) {
+                        result.add( isFilterContext ? textOf((TagNode) curr) : ((TagNode)curr).getText() );
+                    } else if (curr instanceof String) {
+                        result.add( curr.toString() );
+                    }
+                } else if ( "count".equals(name) ) {
+                    Collection<?> argumentEvaluated = argument.evaluate(source, position, 0, null);
+                    result.add( Integer.valueOf(argumentEvaluated.size()) );
+                } else if ( "data".equals(name) ) {
+                    Collection<?> argumentEvaluated = argument.evaluate(source, position, 0, null);
+                    Iterator<?> it = argumentEvaluated.iterator();
+                    while (it.hasNext()) {
+                        Object elem = it.next();
+                        if (elem instanceof TagNode) {
+                            result.add( isFilterContext ? textOf((TagNode) elem) : ((TagNode)elem).getText() );
+                        } else if (elem instanceof String) {
+                            result.add( elem.toString() );
+                        }
+                    }
+                } else if ( "contains".equals(name) || "starts-with".equals(name) ) {
+                    result.add( Boolean.valueOf(evaluateTextFunction(curr, position, last)) );
+                } else {
+                    throw new XPatherException("Unknown function " + name + "!");
+                }
+            }
+
+            return result;
+        }
+
+        /**
+         * @return Whether the string value of the first argument contains, or starts with, the
+         *         string value of the second one, both evaluated against the item.
+         */
+        private boolean evaluateTextFunction(Object curr, int position, int last) throws XPatherException {
+            if (arguments.length != 2) {
+                throw new XPatherException("Function " + name + " requires two arguments!");
+            }
+            boolean isContains = "contains".equals(name);
+            String phrase = stringValue(arguments[1].evaluate(singleton(curr), position, last, singleton(curr)));
+            if (curr instanceof TagNode && isTextOfContext(arguments[0])) {
+                TagNode node = (TagNode) curr;
+                TagNodeIndex index = node.getIndex();
+                if (index != null) {
+                    TagNodeIndex.Position nodePosition = index.getPosition(node);
+                    TagNodeTextIndex textIndex = index.getTextIndex();
+                    return isContains ? textIndex.contains(nodePosition, phrase) : textIndex.startsWith(nodePosition, phrase);
+                }
+            }
+            String value = stringValue(arguments[0].evaluate(singleton(curr), position, last, singleton(curr)));
+            return isContains ? value.contains(phrase) : value.startsWith(phrase);
+        }
+
+        /**
+         * @return Whether the expression is <code>.</code> or <code>text()</code>, giving the text
+         *         of the context element.
+         */
+        private static boolean isTextOfContext(Expr expr) {
+            if (expr instanceof ElementStep) {
+                return ((ElementStep) expr).isSelfOnly();
+            } else if (expr instanceof FunctionCall) {
+                FunctionCall call = (FunctionCall) expr;
+                return "text".equals(call.name) && call.next == Identity.INSTANCE;
+            }
+            return false;
+        }
+
+        private static String stringValue(Collection<?> value) {
+            return value.isEmpty() ? "" : toText(value.iterator().next());
+        }
+    }
+
+    /**
+     * Attribute step, like <code>@id</code> or <code>@*</code>, followed by the rest.
+     */
+    static final class AttributeStep extends Expr {
+        final String name;
+        final boolean isRecursive;
+        private final Expr next;
+
+        private AttributeStep(String name, boolean isRecursive, Expr next) {
+            this.name = name;
+            this.isRecursive = isRecursive;
+            this.next = next;
+        }
+
+        @Override
+        Collection<?> evaluate(Collection<?> source, int position, int last, Collection<?> filterSource) throws XPatherException {
+            Collection<Object> result = new ArrayList<Object>();
+            Collection<?> nodes;
+            if (isRecursive && (nodes = getIndexedDescendants(source)) != null) {
+                // all elements below the source nodes, found in the index
+            } else if (isRecursive) {
+                Collection<TagNode> descendants = new LinkedHashSet<TagNode>();
+                Iterator<?> iterator = source.iterator();
+                while (iterator.hasNext()) {
+                    Object next = iterator.next();
+                    if (next instanceof TagNode) {
+                        TagNode node = (TagNode) next;
+                        descendants.addAll( node.getAllElementsList(true) );
+                    }
+                }
+                nodes = descendants;
+            } else {
+                nodes = source;
+            }
+
+            Iterator<?> iterator = nodes.iterator();
+            while (iterator.hasNext()) {
+                Object next = iterator.next();
+                if (next instanceof TagNode) {
+                    result.addAll( valuesOf((TagNode) next) );
+                } else {
+                    throw new XPatherException();
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Index based equivalent of collecting elements below each source node: when the source
+         * nodes are in document order within an up to date index, elements below a node which
+         * is below the previous one are already collected, and the others are ranges of the index.
+         * @param source
+         * @return Elements below the source nodes without duplicates, or null if the source nodes
+         *         are not in document order in one up to date index.
+         */
+        private static Collection<TagNode> getIndexedDescendants(Collection<?> source) {
+            List<TagNode> result = new ArrayList<TagNode>();
+            TagNodeIndex.Position last = null;
+            for (Object next : source) {
+                if (!(next instanceof TagNode)) {
+                    return null;
+                }
+                TagNode node = (TagNode) next;
+                TagNodeIndex nodeIndex = node.getIndex();
+                TagNodeIndex.Position position = nodeIndex != null ? nodeIndex.getPosition(node) : null;
+                if (position == null || (last != null && (position.index != last.index || position.number <= last.number))) {
+                    return null;
+                }
+                if (last == null || position.number > last.lastNumber) {
+                    result.addAll(position.index.getElements(node));
+                    last = position;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @return Whether the step has no filters, so that its values depend on nothing but
+         *         the attributes of the element.
+         */
+        boolean isDecidedByAttributes() {
+            return next == Identity.INSTANCE;
+        }
+
+        /**
+         * @param node
+         * @return Values of the attribute of the node which pass the filters.
+         */
+        Collection<?> valuesOf(TagNode node) throws XPatherException {
+            if ("*".equals(name)) {
+                return next.evaluate(node.getAttributes().values(), 1, 1, null);
+            }
+            String attValue = node.getAttributeByName(name);
+            return attValue != null ? next.evaluate(singleton(attValue), 1, 1, null) : Collections.emptyList();
+        }
+    }
+
+    /**
+     * Element step - a name, <code>*</code>, <code>.</code> or <code>..</code> - with the filters
+     * and the rest of the expression after it.
+     */
+    static final class ElementStep extends Expr {
+        final String name;
+        final boolean isRecursive;
+        private final boolean isSelf;
+        private final boolean isParent;
+        private final boolean isAll;
+        private final Expr next;
+        // false if the step is the last token, and the selected elements are the result
+        private final boolean hasNext;
+        // true if the filters decide about an element only by looking at its siblings too
+        final boolean isPositional;
+
+        private ElementStep(String name, boolean isRecursive, Expr next, boolean hasNext) {
+            this.name = name;
+            this.isRecursive = isRecursive;
+            this.isSelf = ".".equals(name);
+            this.isParent = "..".equals(name);
+            this.isAll = "*".equals(name);
+            this.next = next;
+            this.hasNext = hasNext;
+            this.isPositional = !isPositionIndependent(next);
+        }
+
+        /**
+         * @return Whether the step is just <code>.</code>, giving the context element.
+         */
+        boolean isSelfOnly() {
+            return isSelf && !isRecursive && next == Identity.INSTANCE;
+        }
+
+        /**
+         * @return Whether the step selects elements by name, rather than <code>*</code>,
+         *         <code>.</code> or <code>..</code>
+         */
+        boolean isNamed() {
+            return !isSelf && !isParent && !isAll;
+        }
+
+        /**
+         * Decides about an element without looking at its siblings, for named steps whose filters
+         * are not positional.
+         * @param element
+         * @return Whether the step selects the element among the children of its parent.
+         */
+        boolean selects(TagNode element) throws XPatherException {
+            return selectsName(element.getName())
+                    && (next == Identity.INSTANCE || !next.evaluate(singleton(element), 1, 1, null).isEmpty());
+        }
+
+        /**
+         * @param elementName
+         * @return Whether the step selects elements with the name, filters aside.
+         */
+        boolean selectsName(String elementName) {
+            return isAll || (isNamed() && elementName.equalsIgnoreCase(name));
+        }
+
+        /**
+         * @return Whether the step decides about an element by looking at nothing but its name
+         *         and attributes: filters may only compare attributes and constants.
+         */
+        boolean isDecidedByAttributes() {
+            if (isSelf || isParent) {
+                return false;
+            }
+            for (Expr expr = next; expr instanceof Filter; expr = ((Filter) expr).next) {
+                if (!isAttributeCondition(((Filter) expr).condition, false)) {
+                    return false;
+                }
+            }
+            return !isPositional;
+        }
+
+        /**
+         * @param parent
+         * @return Children of the parent selected by the step, for named steps with filters.
+         */
+        Set<Object> selectChildren(TagNode parent) throws XPatherException {
+            LinkedHashSet<TagNode> nodeSet = new LinkedHashSet<TagNode>(parent.getElementListByName(name, false));
+            return new HashSet<Object>(next.evaluate(nodeSet, 1, nodeSet.size(), null));
+        }
+
+        /**
+         * For the given source collection returns collection of subnodes or attribute values.
+         * @return Colection of TagNode instances or collection of String instances.
+         */
+        @Override
+        Collection<?> evaluate(Collection<?> source, int position, int last, Collection<?> filterSource) throws XPatherException {
+            if (source.size() == 1) {
+                // the common case of evaluation against a single node, avoids copying its result
+                Collection<?> nodeResult = evaluateNode(source.iterator().next(), 1);
+                return nodeResult instanceof LinkedHashSet ? nodeResult : new LinkedHashSet<Object>(nodeResult);
+            }
+            Collection<Object> result = new LinkedHashSet<Object>();
+            Object[] nodeResults = evaluateEach(source, new ItemEvaluation() {
+                @Override
+                Object evaluate(Object item, int index) throws XPatherException {
+                    return evaluateNode(item, index);
+                }
+            });
+            for (Object nodeResult : nodeResults) {
+                result.addAll((Collection<?>) nodeResult);
+            }
+            return result;
+        }
+
+        /**
+         * @param item
+         * @param index position of the item in the source collection
+         * @return Subnodes or attribute values for one item of the source collection.
+         */
+        private Collection<?> evaluateNode(Object item, int index) throws XPatherException {
+            if (!(item instanceof TagNode)) {
+                throw new XPatherException();
+            }
+            TagNode node = (TagNode) item;
+
+            if (isRecursive && !isSelf && !isParent && !isAll) {
+                TagNodeIndex elementIndex = node.getIndex();
+                if (elementIndex != null) {
+                    return getIndexedElementsByName(node, elementIndex, index);
+                }
+            }
+
+            Collection<?> refinedSubnodes = evaluateSubnodes(node, index);
+            if (!isRecursive) {
+                return refinedSubnodes;
+            }
+
+            // the same for every element below the node, walked in document order with an explicit
+            // stack of children iterators so that deep trees do not overflow the call stack
+            Collection<Object> result = new LinkedHashSet<Object>();
+            if (!isNamed()) {
+                result.addAll(refinedSubnodes);
+            }
+            List<Iterator<TagNode>> childIterators = new ArrayList<Iterator<TagNode>>();
+            List<Collection<?>> refinedChildren = new ArrayList<Collection<?>>();
+            childIterators.add(node.getChildTagList().iterator());
+            refinedChildren.add(refinedSubnodes);
+            while (!childIterators.isEmpty()) {
+                int depth = childIterators.size() - 1;
+                Iterator<TagNode> childIterator = childIterators.get(depth);
+                if (!childIterator.hasNext()) {
+                    childIterators.remove(depth);
+                    refinedChildren.remove(depth);
+                    continue;
+                }
+                TagNode childTag = childIterator.next();
+                if (isNamed()) {
+                    if (refinedChildren.get(depth).contains(childTag)) {
+                        result.add(childTag);
+                    }
+                    TagNodeIndex elementIndex = childTag.getIndex();
+                    if (elementIndex != null) {
+                        result.addAll(getIndexedElementsByName(childTag, elementIndex, 1));
+                        continue;
+                    }
+                }
+                Collection<?> refined = evaluateSubnodes(childTag, 1);
+                if (!isNamed()) {
+                    result.addAll(refined);
+                }
+                childIterators.add(childTag.getChildTagList().iterator());
+                refinedChildren.add(refined);
+            }
+            return result;
+        }
+
+        /**
+         * @param node
+         * @param index position of the node in the source collection
+         * @return Children of the node selected by the step, or the node itself or its parent
+         *         for <code>.</code> and <code>..</code>, with the rest of the expression evaluated.
+         */
+        private Collection<?> evaluateSubnodes(TagNode node, int index) throws XPatherException {
+            Collection<?> subnodes;
+            if (isSelf) {
+                subnodes = singleton(node);
+            } else if (isParent) {
+                TagNode parent = node.getParent();
+                subnodes = parent != null ? singleton(parent) : new ArrayList<Object>();
+            } else {
+                subnodes = isAll ? node.getChildTagList() : node.getElementListByName(name, false);
+            }
+
+            LinkedHashSet<Object> nodeSet = new LinkedHashSet<Object>(subnodes);
+            return this.next.evaluate(nodeSet, index, nodeSet.size(), null);
+        }
+
+        /**
+         * Index based equivalent of the recursive evaluation of the step: the filters are evaluated
+         * against the elements of each parent separately, just like the recursive walk does.
+         * @param node node against which the step is evaluated
+         * @param elementIndex index of elements below the node
+         * @param position position of the node in the evaluated collection
+         * @return Elements satisfying the step, in document order.
+         */
+        private List<TagNode> getIndexedElementsByName(TagNode node, TagNodeIndex elementIndex, int position) throws XPatherException {
+            List<TagNode> elements = elementIndex.getElementsByName(name, node);
+            if (!hasNext) {
+                return elements;
+            } else if (elements.isEmpty()) {
+                // the walk evaluates the rest against empty sets too, so malformed expressions fail the same way
+                next.evaluate(new LinkedHashSet<Object>(), position, 0, null);
+                return elements;
+            }
+            Map<TagNode, LinkedHashSet<TagNode>> siblingsByParent = new LinkedHashMap<TagNode, LinkedHashSet<TagNode>>();
+            for (TagNode element : elements) {
+                TagNode parent = elementIndex.getParent(element);
+                LinkedHashSet<TagNode> siblings = siblingsByParent.get(parent);
+                if (siblings == null) {
+                    siblings = new LinkedHashSet<TagNode>();
+                    siblingsByParent.put(parent, siblings);
+                }
+                siblings.add(element);
+            }
+            Set<Object> refined = new HashSet<Object>();
+            for (Map.Entry<TagNode, LinkedHashSet<TagNode>> entry : siblingsByParent.entrySet()) {
+                LinkedHashSet<TagNode> siblings = entry.getValue();
+                int parentPosition = entry.getKey() == node ? position : 1;
+                refined.addAll( next.evaluate(siblings, parentPosition, siblings.size(), null) );
+            }
+            List<TagNode> result = new ArrayList<TagNode>();
+            for (TagNode element : elements) {
+                if (refined.contains(element)) {
+                    result.add(element);
+                }
+            }
+            return result;
+        }
+    }
 
     /**
-     * Constructor - creates XPather instance with specified XPath expression.
-     * @param expression
+     * @param plan
+     * @return Steps of the plan if it is a location path whose steps are element steps with
+     *         filters only, the last one possibly an attribute step, or null otherwise. Recursive
+     *         element steps must be named.
      */
-    public XPather(String expression) {
-        StringTokenizer tokenizer = new StringTokenizer(expression, "/()[]\"'=<>", true);
-        int tokenCount = tokenizer.countTokens();
-        tokenArray = new String[tokenCount];
+    private static Path[] toLocationPath(Expr plan) {
+        List<Path> steps = new ArrayList<Path>();
+        Expr expr = plan;
+        while (expr instanceof Path) {
+            Path path = (Path) expr;
+            Expr step = path.step;
+            expr = path.next;
+            if (step instanceof ElementStep) {
+                ElementStep elementStep = (ElementStep) step;
+                if (!isFilterChain(elementStep.next) || (elementStep.isRecursive && !elementStep.isNamed())) {
+                    return null;
+                }
+            } else if (step instanceof AttributeStep) {
+                if (!isFilterChain(((AttributeStep) step).next) || expr != Identity.INSTANCE) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+            steps.add(path);
+        }
+        return expr == Identity.INSTANCE && !steps.isEmpty() ? steps.toArray(new Path[steps.size()]) : null;
+    }
 
-        int index = 0;
+    /**
+     * Checks whether the filters keep or drop an element regardless of its position and
+     * of the number of elements filtered together. Conditions must not call functions, and must
+     * not give numbers, which would be compared with the position.
+     * @param expr chain of filters
+     */
+    private static boolean isPositionIndependent(Expr expr) {
+        if (expr instanceof Filter) {
+            Filter filter = (Filter) expr;
+            return isConditionIndependent(filter.condition, false) && isPositionIndependent(filter.next);
+        }
+        return expr == Identity.INSTANCE;
+    }
 
-        // this is not real XPath compiler, rather simple way to recognize basic XPaths expressions
-        // and interpret them against some TagNode instance.
-        while (tokenizer.hasMoreTokens()) {
-            tokenArray[index++] = tokenizer.nextToken();
+    /**
+     * @param expr part of a condition
+     * @param isCompared true if the part is the right side of a comparison
+     */
+    private static boolean isConditionIndependent(Expr expr, boolean isCompared) {
+        if (expr instanceof Group) {
+            return isConditionIndependent(((Group) expr).inner, isCompared) && isConditionIndependent(((Group) expr).next, isCompared);
+        } else if (expr instanceof Filter) {
+            // conditions of nested filters have positions of their own
+            return isConditionIndependent(((Filter) expr).next, isCompared);
+        } else if (expr instanceof Constant) {
+            Constant constant = (Constant) expr;
+            return (isCompared || !(constant.value instanceof Number)) && isConditionIndependent(constant.next, isCompared);
+        } else if (expr instanceof Comparison) {
+            return isConditionIndependent(((Comparison) expr).second, true);
+        } else if (expr instanceof Path) {
+            return isConditionIndependent(((Path) expr).step, isCompared) && isConditionIndependent(((Path) expr).next, isCompared);
+        } else if (expr instanceof AttributeStep) {
+            return isConditionIndependent(((AttributeStep) expr).next, isCompared);
+        } else if (expr instanceof ElementStep) {
+            return isConditionIndependent(((ElementStep) expr).next, isCompared);
         }
+        return expr == Identity.INSTANCE || expr == Invalid.INSTANCE || expr instanceof InvalidNumber;
     }
 
     /**
-     * Main public method for this class - a way to execute XPath expression against
-     * specified TagNode instance.
-     * @param node
+     * @param expr part of a condition
+     * @param isCompared true if the part is the right side of a comparison
+     * @return Whether the part only reads attributes of the context node and constants.
      */
-    public Object[] evaluateAgainstNode(TagNode node) throws XPatherException {
-        if (node == null) {
-            throw new XPatherException("Cannot evaluate XPath expression against null value!");
+    private static boolean isAttributeCondition(Expr expr, boolean isCompared) {
+        if (expr instanceof Group) {
+            return isAttributeCondition(((Group) expr).inner, isCompared) && isAttributeCondition(((Group) expr).next, isCompared);
+        } else if (expr instanceof Constant) {
+            Constant constant = (Constant) expr;
+            return (isCompared || !(constant.value instanceof Number)) && isAttributeCondition(constant.next, isCompared);
+        } else if (expr instanceof Comparison) {
+            return isAttributeCondition(((Comparison) expr).second, true);
+        } else if (expr instanceof AttributeStep) {
+            AttributeStep attributeStep = (AttributeStep) expr;
+            return !attributeStep.isRecursive && isAttributeCondition(attributeStep.next, isCompared);
         }
+        return expr == Identity.INSTANCE;
+    }
 
-        Collection collectionResult = evaluateAgainst(singleton(node), 0, tokenArray.length - 1, false, 1, 0, false, null);
-        Object[] array = new Object[collectionResult.size()];
+    private static boolean isFilterChain(Expr expr) {
+        while (expr instanceof Filter) {
+            expr = ((Filter) expr).next;
+        }
+        return expr == Identity.INSTANCE;
+    }
 
-        Iterator iterator = collectionResult.iterator();
-        int index = 0;
-        while (iterator.hasNext()) {
-            array[index++] = iterator.next();
+    /**
+     * Lazily evaluated location path. Every step has a cursor over its results for the current
+     * result of the previous step. As in {@link Path}, results of element steps are distinct
+     * across all results of the previous step.
+     */
+    private static final class LazyResult implements Iterator<Object> {
+        private static final Object END = new Object();
+
+        private final Expr[] steps;
+        private final Cursor[] cursors;
+        private final List<Set<Object>> distinct = new ArrayList<Set<Object>>();
+        private int level;
+        private Object next;
+
+        private LazyResult(Path[] path, TagNode node) {
+            this.steps = new Expr[path.length];
+            this.cursors = new Cursor[path.length];
+            for (int i = 0; i < path.length; i++) {
+                steps[i] = path[i].step;
+                distinct.add(new HashSet<Object>());
+            }
+            cursors[0] = cursor(0, node);
         }
 
-        return array;
-    }
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = advance();
+                } catch (XPatherException e) {
+                    throw new HtmlCleanerException(e.getMessage(), e);
+                }
+            }
+            return next != END;
+        }
+
+        public Object next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Object result = next;
+            next = null;
+            return result;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("XPath result is read-only");
+        }
+
+        private Object advance() throws XPatherException {
+            while (level >= 0) {
+                Object item = cursors[level].next();
+                if (item == END) {
+                    cursors[level] = null;
+                    level--;
+                } else if (!(steps[level] instanceof ElementStep) || distinct.get(level).add(item)) {
+                    if (level == steps.length - 1) {
+                        return item;
+                    }
+                    level++;
+                    cursors[level] = cursor(level, (TagNode) item);
+                }
+            }
+            return END;
+        }
+
+        private Cursor cursor(int level, TagNode node) {
+            Expr step = steps[level];
+            if (step instanceof ElementStep && ((ElementStep) step).isRecursive) {
+                return new ElementCursor((ElementStep) step, node);
+            } else if (step instanceof AttributeStep && ((AttributeStep) step).isRecursive) {
+                // like the element step, the recursive attribute step looks at each element once
+                return new AttributeCursor((AttributeStep) step, node, distinct.get(level));
+            }
+            return new StepCursor(step, node);
+        }
+
+        /**
+         * Results of one step for one node.
+         */
+        private abstract static class Cursor {
+            /**
+             * @return Next result, or END if there are no more results.
+             */
+            abstract Object next() throws XPatherException;
+        }
+
+        /**
+         * Results of a non-recursive step, which looks at the children of the node only.
+         */
+        private static final class StepCursor extends Cursor {
+            private final Expr step;
+            private final TagNode node;
+            private Iterator<?> iterator;
+
+            private StepCursor(Expr step, TagNode node) {
+                this.step = step;
+                this.node = node;
+            }
+
+            @Override
+            Object next() throws XPatherException {
+                if (iterator == null) {
+                    iterator = step.evaluate(singleton(node), 1, 0, null).iterator();
+                }
+                return iterator.hasNext() ? iterator.next() : END;
+            }
+        }
+
+        /**
+         * Document order walk below a node, with an explicit stack of children lists.
+         */
+        private abstract static class DescendantCursor extends Cursor {
+            private final List<List<TagNode>> childLists = new ArrayList<List<TagNode>>();
+            private int[] positions = new int[16];
+
+            DescendantCursor(TagNode node) {
+                childLists.add(node.getChildTagList());
+            }
+
+            /**
+             * @return Next descendant, or null after the last one.
+             */
+            final TagNode nextDescendant() throws XPatherException {
+                while (!childLists.isEmpty()) {
+                    int depth = childLists.size() - 1;
+                    List<TagNode> childTags = childLists.get(depth);
+                    if (positions[depth] < childTags.size()) {
+                        TagNode child = childTags.get(positions[depth]++);
+                        boolean isAccepted = accepts(depth, child);
+                        if (depth + 1 == positions.length) {
+                            positions = Arrays.copyOf(positions, positions.length * 2);
+                        }
+                        positions[depth + 1] = 0;
+                        childLists.add(child.getChildTagList());
+                        if (isAccepted) {
+                            return child;
+                        }
+                    } else {
+                        childLists.remove(depth);
+                        left(depth);
+                    }
+                }
+                return null;
+            }
+
+            /**
+             * @param depth depth of the parent of the child, 0 for children of the node itself
+             * @param child
+             * @return Whether the child is returned by {@link #nextDescendant()}.
+             */
+            abstract boolean accepts(int depth, TagNode child) throws XPatherException;
+
+            /**
+             * Called when all children at the depth have been walked through.
+             */
+            void left(int depth) {
+            }
+        }
+
+        /**
+         * Results of a recursive element step: descendants which would be selected by the step
+         * among the children of their parent.
+         */
+        private static final class ElementCursor extends DescendantCursor {
+            private final ElementStep step;
+            // children of the parent at each depth which pass the filters, computed when needed
+            private final List<Set<Object>> selected = new ArrayList<Set<Object>>();
+            private final List<TagNode> parents = new ArrayList<TagNode>();
+
+            private ElementCursor(ElementStep step, TagNode node) {
+                super(node);
+                this.step = step;
+                parents.add(node);
+            }
+
+            @Override
+            Object next() throws XPatherException {
+                TagNode descendant = nextDescendant();
+                return descendant != null ? descendant : END;
+            }
+
+            @Override
+            boolean accepts(int depth, TagNode child) throws XPatherException {
+                boolean isAccepted;
+                if (!step.isPositional) {
+                    isAccepted = step.selects(child);
+                } else if (child.getName().equalsIgnoreCase(step.name)) {
+                    while (selected.size() <= depth) {
+                        selected.add(null);
+                    }
+                    Set<Object> parentSelected = selected.get(depth);
+                    if (parentSelected == null) {
+                        parentSelected = step.selectChildren(parents.get(depth));
+                        selected.set(depth, parentSelected);
+                    }
+                    isAccepted = parentSelected.contains(child);
+                } else {
+                    isAccepted = false;
+                }
+                parents.add(child);
+                return isAccepted;
+            }
+
+            @Override
+            void left(int depth) {
+                parents.remove(depth);
+                if (depth < selected.size()) {
+                    selected.set(depth, null);
+                }
+            }
+        }
+
+        /**
+         * Results of a recursive attribute step: attribute values of the descendants which have
+         * not been looked at for an earlier node.
+         */
+        private static final class AttributeCursor extends DescendantCursor {
+            private final AttributeStep step;
+            private final Set<Object> visited;
+            private Iterator<?> values;
 
-    private void throwStandardException() throws XPatherException {
-        throw new XPatherException();
+            private AttributeCursor(AttributeStep step, TagNode node, Set<Object> visited) {
+                super(node);
+                this.step = step;
+                this.visited = visited;
+            }
+
+            @Override
+            Object next() throws XPatherException {
+                while (values == null || !values.hasNext()) {
+                    TagNode descendant = nextDescendant();
+                    if (descendant == null) {
+                        return END;
+                    }
+                    values = step.valuesOf(descendant).iterator();
+                }
+                return values.next();
+            }
+
+            @Override
+            boolean accepts(int depth, TagNode child) {
+                return visited.add(child);
+            }
+        }
     }
 
-    private Collection evaluateAgainst(Collection object,
-                                       int from,
-                                       int to,
-                                       boolean isRecursive,
-                                       int position,
-                                       int last,
-                                       boolean isFilterContext,
-                                       Collection filterSource) throws XPatherException {
-        if (from >= 0 && to < tokenArray.length && from <= to) {
+    /**
+     * Turns the tokens of an expression into the plan. Which part a token range stands for
+     * depends only on the tokens, on whether the range is a recursive step and on whether it is
+     * inside a filter, so every range is compiled once even if it is reached in several ways.
+     * Malformed parts do not fail the compilation, they fail when they are evaluated.
+     */
+    private static final class Compiler {
+        private final String[] tokenArray;
+        private final Map<String, Expr> compiled = new HashMap<String, Expr>();
+
+        private Compiler(String[] tokenArray) {
+            this.tokenArray = tokenArray;
+        }
+
+        private Expr compile(int from, int to, boolean isRecursive, boolean isFilterContext) {
+            if ( !(from >= 0 && to < tokenArray.length && from <= to) ) {
+                return Identity.INSTANCE;
+            }
+            String key = from + ":" + to + ":" + isRecursive + ":" + isFilterContext;
+            Expr expr = compiled.get(key);
+            if (expr == null) {
+                expr = compileRange(from, to, isRecursive, isFilterContext);
+                compiled.put(key, expr);
+            }
+            return expr;
+        }
+
+        private Expr compileRange(int from, int to, boolean isRecursive, boolean isFilterContext) {
             if ("".equals(tokenArray[from].trim())) {
-                return evaluateAgainst(object, from + 1, to, isRecursive, position, last, isFilterContext, filterSource);
+                return compile(from + 1, to, isRecursive, isFilterContext);
             } else if (isToken("(", from)) {
                 int closingBracket = findClosingIndex(from, to);
                 if (closingBracket > 0) {
-                    Collection value = evaluateAgainst(object, from + 1, closingBracket - 1, false, position, last, isFilterContext, filterSource);
-                    return evaluateAgainst(value, closingBracket + 1, to, false, position, last, isFilterContext, filterSource);
-                } else {
-                    throwStandardException();
+                    return new Group(compile(from + 1, closingBracket - 1, false, isFilterContext),
+                                     compile(closingBracket + 1, to, false, isFilterContext));
                 }
             } else if (isToken("[", from)) {
                 int closingBracket = findClosingIndex(from, to);
-                if (closingBracket > 0 && object != null) {
-                    Collection value = filterByCondition(object, from + 1, closingBracket - 1);
-                    return evaluateAgainst(value, closingBracket + 1, to, false, position, last, isFilterContext, filterSource);
-                } else {
-                    throwStandardException();
+                if (closingBracket > 0) {
+                    return new Filter(compile(from + 1, closingBracket - 1, false, true),
+                                      compile(closingBracket + 1, to, false, isFilterContext));
                 }
             } else if (isToken("\"", from) || isToken("'", from)) { // string constant
                 int closingQuote = findClosingIndex(from, to);
                 if (closingQuote > from) {
-                    Collection value = singleton( flatten(from + 1, closingQuote - 1) );
-                    return evaluateAgainst(value, closingQuote + 1, to, false, position, last, isFilterContext, filterSource);
-                } else {
-                    throwStandardException();
+                    return new Constant(flatten(from + 1, closingQuote - 1),
+                                        compile(closingQuote + 1, to, false, isFilterContext));
                 }
             } else if ( (isToken("=", from) || isToken("<", from) || isToken(">", from)) && isFilterContext ) {     // operator inside filter
-                boolean logicValue;
                 if ( isToken("=", from + 1) && (isToken("<", from) || isToken(">", from)) ) {
-                    Collection secondObject = evaluateAgainst(filterSource, from + 2, to, false, position, last, isFilterContext, filterSource);
-                    logicValue = evaluateLogic(object, secondObject, tokenArray[from] + tokenArray[from + 1]);
+                    return new Comparison(tokenArray[from] + tokenArray[from + 1], compile(from + 2, to, false, isFilterContext));
                 } else {
-                    Collection secondObject = evaluateAgainst(filterSource, from + 1, to, false, position, last, isFilterContext, filterSource);
-                    logicValue = evaluateLogic(object, secondObject, tokenArray[from]);
+                    return new Comparison(tokenArray[from], compile(from + 1, to, false, isFilterContext));
                 }
-                return singleton(new Boolean(logicValue));
             } else if (isToken("/", from)) {    // children of the node
+                int start = from;
                 boolean goRecursive = isToken("/", from + 1);
                 if (goRecursive) {
                     from++;
@@ -173,42 +1394,158 @@ public class XPather {
                     if (toIndex <= from) {
                         toIndex = to;
                     }
-                    Collection value = evaluateAgainst(object, from + 1, toIndex, goRecursive, 1, last, isFilterContext, filterSource);
-                    return evaluateAgainst(value, toIndex + 1, to, false, 1, last, isFilterContext, filterSource);
-                } else {
-                    throwStandardException();
+                    return new Path(flatten(start, toIndex),
+                                    compile(from + 1, toIndex, goRecursive, isFilterContext),
+                                    compile(toIndex + 1, to, false, isFilterContext));
                 }
             } else if (isFunctionCall(from, to)) {
                 int closingBracketIndex = findClosingIndex(from + 1, to);
-                Collection funcValue = evaluateFunction(object, from, to, position, last, isFilterContext);
-                return evaluateAgainst(funcValue, closingBracketIndex + 1, to, false, 1, last, isFilterContext, filterSource);
+                return new FunctionCall(tokenArray[from].trim(),
+                                        compile(from + 2, to - 1, false, isFilterContext),
+                                        compileArguments(from + 2, closingBracketIndex - 1, isFilterContext),
+                                        compile(closingBracketIndex + 1, to, false, isFilterContext),
+                                        isFilterContext);
             } else if (isValidInteger(tokenArray[from])) {
-                Collection value = singleton(Integer.valueOf(tokenArray[from]));
-                return evaluateAgainst(value, from + 1, to, false, position, last, isFilterContext, filterSource);
+                return compileNumber(from, to, true, isFilterContext);
             } else if (isValidDouble(tokenArray[from])) {
-                Collection value = singleton(Double.valueOf(tokenArray[from]));
-                return evaluateAgainst(value, from + 1, to, false, position, last, isFilterContext, filterSource);
+                return compileNumber(from, to, false, isFilterContext);
             } else {
-                return getElementsByName(object, from, to, isRecursive, isFilterContext);
+                return compileStep(from, to, isRecursive, isFilterContext);
             }
-        } else {
-           return object;
+
+            return Invalid.INSTANCE;
         }
 
-        throw new XPatherException();
-    }
+        /**
+         * @return Arguments of a function call separated by commas outside of brackets and strings.
+         */
+        private Expr[] compileArguments(int from, int to, boolean isFilterContext) {
+            List<Expr> result = new ArrayList<Expr>();
+            int start = from;
+            int i = from;
+            while (i <= to) {
+                if (isToken("(", i) || isToken("[", i) || isToken("\"", i) || isToken("'", i)) {
+                    int closing = findClosingIndex(i, to);
+                    i = closing > i ? closing + 1 : i + 1;
+                } else if (isToken(",", i)) {
+                    result.add(compile(start, i - 1, false, isFilterContext));
+                    start = ++i;
+                } else {
+                    i++;
+                }
+            }
+            if (start <= to || !result.isEmpty()) {
+                result.add(compile(start, to, false, isFilterContext));
+            }
+            return result.toArray(new Expr[result.size()]);
+        }
+
+        private Expr compileNumber(int from, int to, boolean isInteger, boolean isFilterContext) {
+            Object value;
+            try {
+                value = isInteger ? (Object) Integer.valueOf(tokenArray[from]) : Double.valueOf(tokenArray[from]);
+            } catch (NumberFormatException e) {
+                return new InvalidNumber(tokenArray[from], isInteger);
+            }
+            return new Constant(value, compile(from + 1, to, false, isFilterContext));
+        }
+
+        private Expr compileStep(int from, int to, boolean isRecursive, boolean isFilterContext) {
+            String name = tokenArray[from].trim();
+            Expr next = compile(from + 1, to, false, isFilterContext);
+            if (isAtt(name)) {
+                return new AttributeStep(name.substring(1), isRecursive, next);
+            }
+            return new ElementStep(name, isRecursive, next, from + 1 <= to);
+        }
+
+        private String flatten(int from, int to) {
+            if (from <= to) {
+                StringBuffer result = new StringBuffer();
+                for (int i = from; i <= to; i++) {
+                    result.append(tokenArray[i]);
+                }
+
+                return result.toString();
+            }
 
-    private String flatten(int from, int to) {
-        if (from <= to) {
-            StringBuffer result = new StringBuffer();
-            for (int i = from; i <= to; i++) {
-                result.append(tokenArray[i]);
+            return "";
+        }
+
+        /**
+         * Checks if tokens in specified range represents valid function call.
+         * @param from
+         * @param to
+         * @return True if it is valid function call, false otherwise.
+         */
+        private boolean isFunctionCall(int from, int to) {
+            if ( !isIdentifier(tokenArray[from]) && !isToken("(", from + 1) ) {
+                return false;
             }
 
-            return result.toString();
+            return findClosingIndex(from + 1, to) > from + 1;
         }
 
-        return "";
+        private boolean isToken(String token, int index) {
+            int len = tokenArray.length;
+            return index >= 0 && index < len && tokenArray[index].trim().equals(token.trim());
+        }
+
+        /**
+         * @param from
+         * @param to
+         * @return matching closing index in the token array for the current token, or -1 if there is
+         * no closing token within expected bounds.
+         */
+        private int findClosingIndex(int from, int to) {
+            if (from < to) {
+                String currToken = tokenArray[from];
+
+                if ("\"".equals(currToken)) {
+                    for (int i = from + 1; i <= to; i++) {
+                        if ("\"".equals(tokenArray[i])) {
+                            return i;
+                        }
+                    }
+                } else if ("'".equals(currToken)) {
+                    for (int i = from + 1; i <= to; i++) {
+                        if ("'".equals(tokenArray[i])) {
+                            return i;
+                        }
+                    }
+                } else if ( "(".equals(currToken) || "[".equals(currToken) || "/".equals(currToken) ) {
+                    boolean isQuoteClosed = true;
+                    boolean isAposClosed = true;
+                    int brackets = "(".equals(currToken) ? 1 : 0;
+                    int angleBrackets = "[".equals(currToken) ? 1 : 0;
+                    int slashes = "/".equals(currToken) ? 1 : 0;
+                    for (int i = from + 1; i <= to; i++) {
+                        if ( "\"".equals(tokenArray[i]) ) {
+                            isQuoteClosed = !isQuoteClosed;
+                        } else if ( "'".equals(tokenArray[i]) ) {
+                            isAposClosed = !isAposClosed;
+                        } else if ( "(".equals(tokenArray[i]) && isQuoteClosed && isAposClosed ) {
+                            brackets++;
+                        } else if ( ")".equals(tokenArray[i]) && isQuoteClosed && isAposClosed ) {
+                            brackets--;
+                        } else if ( "[".equals(tokenArray[i]) && isQuoteClosed && isAposClosed ) {
+                            angleBrackets++;
+                        } else if ( "]".equals(tokenArray[i]) && isQuoteClosed && isAposClosed ) {
+                            angleBrackets--;
+                        } else if ( "/".equals(tokenArray[i]) && isQuoteClosed && isAposClosed && brackets == 0 && angleBrackets == 0) {
+                            slashes--;
+                        }
+
+                        if (isQuoteClosed && isAposClosed && brackets == 0 && angleBrackets == 0 && slashes == 0) {
+                            return i;
+                        }
+                    }
+                }
+
+            }
+
+            return -1;
+        }
     }
 
 	private static boolean isValidInteger(String value) {
@@ -227,7 +1564,7 @@ public class XPather {
 	    return false;
 	}
 
-	private boolean isValidDouble(String value) {
+	private static boolean isValidDouble(String value) {
 	    final int l = value.length();
 	    if(l > 0) {
 	        int i = 1, c = value.charAt(0);
@@ -247,7 +1584,7 @@ public class XPather {
      * Checks if given string is valid identifier.
      * @param s
      */
-    private boolean isIdentifier(String s) {
+    private static boolean isIdentifier(String s) {
         if (s == null) {
             return false;
         }
@@ -269,289 +1606,61 @@ public class XPather {
     }
 
     /**
-     * Checks if tokens in specified range represents valid function call.
-     * @param from
-     * @param to
-     * @return True if it is valid function call, false otherwise.
+     * Checks if token is attribute (starts with @)
+     * @param token
      */
-    private boolean isFunctionCall(int from, int to) {
-        if ( !isIdentifier(tokenArray[from]) && !isToken("(", from + 1) ) {
-            return false;
-        }
-
-        return findClosingIndex(from + 1, to) > from + 1;
-    }
-
-    /**
-     * Evaluates specified function.
-     * Currently, following XPath functions are supported: last, position, text, count, data
-     * @param source
-     * @param from
-     * @param to
-     * @param position
-     * @param last
-     * @return Collection as the result of evaluation.
-     */
-    private Collection evaluateFunction(Collection source,
-                                        int from,
-                                        int to,
-                                        int position,
-                                        int last,
-                                        boolean isFilterContext) throws XPatherException {
-        String name = tokenArray[from].trim();
-        ArrayList result = new ArrayList();
-
-        final int size = source.size();
-        Iterator iterator = source.iterator();
-        int index = 0;
-        while (iterator.hasNext()) {
-            Object curr = iterator.next();
-            index++;
-            if ( "last".equals(name) ) {
-                result.add( Integer.valueOf(isFilterContext ? last : size) );
-            } else if ( "position".equals(name) ) {
-                result.add( Integer.valueOf(isFilterContext ? position : index) );
-            } else if ( "text".equals(name) ) {
-                if (curr instanceof TagNode) {
-                    result.add( ((TagNode)curr).getText() );
-                } else if (curr instanceof String) {
-                    result.add( curr.toString() );
-                }
-            } else if ( "count".equals(name) ) {
-                Collection argumentEvaluated =
-                        evaluateAgainst(source, from + 2, to - 1, false, position, 0, isFilterContext, null);
-                result.add( Integer.valueOf(argumentEvaluated.size()) );
-            } else if ( "data".equals(name) ) {
-                Collection argumentEvaluated = evaluateAgainst(source, from + 2, to - 1, false, position, 0, isFilterContext, null);
-                Iterator it = argumentEvaluated.iterator();
-                while (it.hasNext()) {
-                    Object elem = it.next();
-                    if (elem instanceof TagNode) {
-                        result.add( ((TagNode)elem).getText() );
-                    } else if (elem instanceof String) {
-                        result.add( elem.toString() );
-                    }
-                }
-            } else {
-                throw new XPatherException("Unknown function " + name + "!");
-            }
-        }
-
-        return result;
+    private static boolean isAtt(String token) {
+        return token != null && token.length() > 1 && token.startsWith("@");
     }
 
     /**
      * Filter nodes satisfying the condition
      * @param source
-     * @param from
-     * @param to
+     * @param condition
      */
-    private Collection filterByCondition(Collection source, int from, int to) throws XPatherException {
-        ArrayList result = new ArrayList();
-        Iterator iterator = source.iterator();
-        int index = 0;
-        int size = source.size();
-        while (iterator.hasNext()) {
+    private static Collection<Object> filterByCondition(Collection<?> source, final Expr condition) throws XPatherException {
+        final int size = source.size();
+        Object[] accepted = evaluateEach(source, new ItemEvaluation() {
+            @Override
+            Object evaluate(Object curr, int index) throws XPatherException {
+                return isAccepted(curr, index, size, condition) ? Boolean.TRUE : null;
+            }
+        });
+        List<Object> result = new ArrayList<Object>();
+        Iterator<?> iterator = source.iterator();
+        for (int i = 0; iterator.hasNext(); i++) {
             Object curr = iterator.next();
-            index++;
-
-            ArrayList logicValueList = new ArrayList(evaluateAgainst(singleton(curr), from, to, false, index, size, true, singleton(curr)));
-            if (logicValueList.size() >= 1) {
-                Object first = logicValueList.get(0);
-                if (first instanceof Boolean) {
-                    if ( ((Boolean)first).booleanValue() ) {
-                        result.add(curr);
-                    }
-                } else if (first instanceof Integer) {
-                    if ( ((Integer)first).intValue() == index ) {
-                        result.add(curr);
-                    }
-                } else {
-                    result.add(curr);
-                }
+            if (accepted[i] != null) {
+                result.add(curr);
             }
         }
         return result;
     }
 
-    private boolean isToken(String token, int index) {
-        int len = tokenArray.length;
-        return index >= 0 && index < len && tokenArray[index].trim().equals(token.trim());
-    }
-
-    /**
-     * @param from
-     * @param to
-     * @return matching closing index in the token array for the current token, or -1 if there is
-     * no closing token within expected bounds.
-     */
-    private int findClosingIndex(int from, int to) {
-        if (from < to) {
-            String currToken = tokenArray[from];
-
-            if ("\"".equals(currToken)) {
-                for (int i = from + 1; i <= to; i++) {
-                    if ("\"".equals(tokenArray[i])) {
-                        return i;
-                    }
-                }
-            } else if ("'".equals(currToken)) {
-                for (int i = from + 1; i <= to; i++) {
-                    if ("'".equals(tokenArray[i])) {
-                        return i;
-                    }
-                }
-            } else if ( "(".equals(currToken) || "[".equals(currToken) || "/".equals(currToken) ) {
-                boolean isQuoteClosed = true;
-                boolean isAposClosed = true;
-                int brackets = "(".equals(currToken) ? 1 : 0;
-                int angleBrackets = "[".equals(currToken) ? 1 : 0;
-                int slashes = "/".equals(currToken) ? 1 : 0;
-                for (int i = from + 1; i <= to; i++) {
-                    if ( "\"".equals(tokenArray[i]) ) {
-                        isQuoteClosed = !isQuoteClosed;
-                    } else if ( "'".equals(tokenArray[i]) ) {
-                        isAposClosed = !isAposClosed;
-                    } else if ( "(".equals(tokenArray[i]) && isQuoteClosed && isAposClosed ) {
-                        brackets++;
-                    } else if ( ")".equals(tokenArray[i]) && isQuoteClosed && isAposClosed ) {
-                        brackets--;
-                    } else if ( "[".equals(tokenArray[i]) && isQuoteClosed && isAposClosed ) {
-                        angleBrackets++;
-                    } else if ( "]".equals(tokenArray[i]) && isQuoteClosed && isAposClosed ) {
-                        angleBrackets--;
-                    } else if ( "/".equals(tokenArray[i]) && isQuoteClosed && isAposClosed && brackets == 0 && angleBrackets == 0) {
-                        slashes--;
-                    }
-
-                    if (isQuoteClosed && isAposClosed && brackets == 0 && angleBrackets == 0 && slashes == 0) {
-                        return i;
-                    }
-                }
+    private static boolean isAccepted(Object curr, int index, int size, Expr condition) throws XPatherException {
+        List<Object> logicValueList = new ArrayList<Object>(condition.evaluate(singleton(curr), index, size, singleton(curr)));
+        if (logicValueList.size() >= 1) {
+            Object first = logicValueList.get(0);
+            if (first instanceof Boolean) {
+                return ((Boolean)first).booleanValue();
+            } else if (first instanceof Integer) {
+                return ((Integer)first).intValue() == index;
             }
-
+            return true;
         }
-
-        return -1;
-    }
-
-    /**
-     * Checks if token is attribute (starts with @)
-     * @param token
-     */
-    private boolean isAtt(String token) {
-        return token != null && token.length() > 1 && token.startsWith("@");
+        return false;
     }
 
     /**
      * Creates one-element collection for the specified object.
      * @param element
      */
-    private Collection singleton(Object element) {
-        ArrayList result = new ArrayList();
+    private static Collection<Object> singleton(Object element) {
+        List<Object> result = new ArrayList<Object>();
         result.add(element);
         return result;
     }
 
-    /**
-     * For the given source collection and specified name, returns collection of subnodes
-     * or attribute values.
-     * @param source
-     * @param from
-     * @param to
-     * @param isRecursive
-     * @return Colection of TagNode instances or collection of String instances.
-     */
-    private Collection getElementsByName(Collection source, int from, int to, boolean isRecursive, boolean isFilterContext) throws XPatherException {
-        String name = tokenArray[from].trim();
-
-        if (isAtt(name)) {
-            name = name.substring(1);
-            Collection result = new ArrayList();
-            Collection nodes;
-            if (isRecursive) {
-                nodes = new LinkedHashSet();
-                Iterator iterator = source.iterator();
-                while (iterator.hasNext()) {
-                    Object next = iterator.next();
-                    if (next instanceof TagNode) {
-                        TagNode node = (TagNode) next;
-                        nodes.addAll( node.getAllElementsList(true) );
-                    }
-                }
-            } else {
-                nodes = source;
-            }
-
-            Iterator iterator = nodes.iterator();
-            while (iterator.hasNext()) {
-                Object next = iterator.next();
-                if (next instanceof TagNode) {
-                    TagNode node = (TagNode) next;
-                    if ("*".equals(name)) {
-                        result.addAll( evaluateAgainst(node.getAttributes().values(), from + 1, to, false, 1, 1, isFilterContext, null) );
-                    } else {
-                        String attValue = node.getAttributeByName(name);
-                        if (attValue != null) {
-                            result.addAll( evaluateAgainst(singleton(attValue), from + 1, to, false, 1, 1, isFilterContext, null) );
-                        }
-                    }
-                } else {
-                    throwStandardException();
-                }
-            }
-            return result;
-        } else {
-            Collection result = new LinkedHashSet();
-            Iterator iterator = source.iterator();
-            int index = 0;
-            while (iterator.hasNext()) {
-                final Object next = iterator.next();
-                if (next instanceof TagNode) {
-                    TagNode node = (TagNode) next;
-                    index++;
-                    boolean isSelf = ".".equals(name);
-                    boolean isParent = "..".equals(name);
-                    boolean isAll = "*".equals(name);
-
-                    Collection subnodes;
-                    if (isSelf) {
-                        subnodes = singleton(node);
-                    } else if (isParent) {
-                        TagNode parent = node.getParent();
-                        subnodes = parent != null ? singleton(parent) : new ArrayList();
-                    } else {
-                        subnodes = isAll ? node.getChildTagList() : node.getElementListByName(name, false);
-                    }
-
-                    LinkedHashSet nodeSet = new LinkedHashSet(subnodes);
-                    Collection refinedSubnodes = evaluateAgainst(nodeSet, from + 1, to, false, index, nodeSet.size(), isFilterContext, null);
-
-                    if (isRecursive) {
-                        List childTags = node.getChildTagList();
-                        if (isSelf || isParent || isAll) {
-                            result.addAll(refinedSubnodes);
-                        }
-                        Iterator childIterator = childTags.iterator();
-                        while (childIterator.hasNext()) {
-                            TagNode childTag = (TagNode) childIterator.next();
-                            Collection childrenByName = getElementsByName(singleton(childTag), from, to, isRecursive, isFilterContext);
-                            if ( !isSelf && !isParent && !isAll && refinedSubnodes.contains(childTag) ) {
-                                result.add(childTag);
-                            }
-                            result.addAll(childrenByName);
-                        }
-                    } else {
-                        result.addAll(refinedSubnodes);
-                    }
-                } else {
-                    throwStandardException();
-                }
-            }
-            return result;
-        }
-    }
-
     /**
      * Evaluates logic operation on two collections.
      * @param first
@@ -559,7 +1668,7 @@ public class XPather {
      * @param logicOperator
      * @return Result of logic operation
      */
-    private boolean evaluateLogic(Collection first, Collection second, String logicOperator) {
+    private static boolean evaluateLogic(Collection<?> first, Collection<?> second, String logicOperator) {
         if (first == null || first.size() == 0 || second == null || second.size() == 0) {
             return false;
         }
@@ -599,14 +1708,26 @@ public class XPather {
         return false;
     }
 
-    private String toText(Object o) {
+    private static String toText(Object o) {
         if (o == null) {
             return "";
         } if (o instanceof TagNode) {
-            return ((TagNode)o).getText().toString();
+            return textOf((TagNode) o);
         } else {
             return o.toString();
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * @param node
+     * @return Text of the node, from the text index if the node is below an indexed node.
+     */
+    private static String textOf(TagNode node) {
+        TagNodeIndex index = node.getIndex();
+        if (index != null) {
+            return index.getTextIndex().getText(index.getPosition(node));
+        }
+        return node.getText().toString();
+    }
+
+}
@@ -12,6 +12,10 @@ public class TagNodeAttExistsCondition implements ITagNodeCondition {
         this.attName = attName;
     }
 
+    public String getAttName() {
+        return attName;
+    }
+
     public boolean satisfy(TagNode tagNode) {
         return tagNode == null ? false : tagNode.getAttributes().containsKey( attName.toLowerCase() );
     }
@@ -16,6 +16,18 @@ public class TagNodeAttValueCondition implements ITagNodeCondition {
         this.isCaseSensitive = isCaseSensitive;
     }
 
+    public String getAttName() {
+        return attName;
+    }
+
+    public String getAttValue() {
+        return attValue;
+    }
+
+    public boolean isCaseSensitive() {
+        return isCaseSensitive;
+    }
+
     public boolean satisfy(TagNode tagNode) {
         if (tagNode == null || attName == null || attValue == null) {
             return false;
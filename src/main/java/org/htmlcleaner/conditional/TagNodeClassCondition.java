@@ -0,0 +1,40 @@
+package org.htmlcleaner.conditional;
+
+import org.htmlcleaner.TagNode;
+
+/**
+ * Checks if node has specified class among the whitespace separated classes
+ * of its class attribute.
+ */
+public class TagNodeClassCondition implements ITagNodeCondition {
+    private String className;
+
+    public TagNodeClassCondition(String className) {
+        this.className = className;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public boolean satisfy(TagNode tagNode) {
+        if (tagNode == null || className == null || className.length() == 0) {
+            return false;
+        }
+        String classes = tagNode.getAttributeByName("class");
+        if (classes == null) {
+            return false;
+        }
+        int length = className.length();
+        int index = classes.indexOf(className);
+        while (index >= 0) {
+            boolean startsToken = index == 0 || Character.isWhitespace(classes.charAt(index - 1));
+            boolean endsToken = index + length == classes.length() || Character.isWhitespace(classes.charAt(index + length));
+            if (startsToken && endsToken) {
+                return true;
+            }
+            index = classes.indexOf(className, index + 1);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,80 @@
+package org.htmlcleaner.conditional;
+
+/**
+ * Relative cost of checking conditions, used to check the cheap ones first. Names are compared
+ * in constant time, attributes need a lookup, regular expressions a match per attribute and
+ * content conditions a walk of the subtree.
+ */
+public final class TagNodeConditionCost {
+
+    /**
+     * Cost of conditions of unknown classes, assumed to be as expensive as walking the subtree.
+     */
+    public static final int UNKNOWN = 16;
+
+    private TagNodeConditionCost() {
+    }
+
+    /**
+     * @param condition
+     * @return Estimated cost of checking the condition, lower is cheaper.
+     */
+    public static int estimate(ITagNodeCondition condition) {
+        if (condition instanceof TagAllCondition) {
+            return 0;
+        } else if (condition instanceof TagNodeNameCondition || condition instanceof TagNodeAutoGeneratedCondition) {
+            return 1;
+        } else if (condition instanceof TagNodeAttExistsCondition || condition instanceof TagNodeAttValueCondition) {
+            return 2;
+        } else if (condition instanceof TagNodeClassCondition || condition instanceof TagNodeInsignificantBrCondition) {
+            return 3;
+        } else if (condition instanceof TagNodeAttNameValueRegexCondition) {
+            return 8;
+        } else if (condition instanceof TagNodeNotCondition) {
+            return ((TagNodeNotCondition) condition).getCost();
+        } else if (condition instanceof TagNodeAndCondition) {
+            return ((TagNodeAndCondition) condition).getCost();
+        } else if (condition instanceof TagNodeOrCondition) {
+            return ((TagNodeOrCondition) condition).getCost();
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * @param conditions
+     * @return Copy of the conditions ordered from the cheapest one, keeping the given order of
+     *         the equally expensive ones.
+     */
+    public static ITagNodeCondition[] sortByCost(ITagNodeCondition[] conditions) {
+        ITagNodeCondition[] result = conditions.clone();
+        int[] costs = new int[result.length];
+        for (int i = 0; i < result.length; i++) {
+            if (result[i] == null) {
+                throw new IllegalArgumentException("Condition must not be null!");
+            }
+            costs[i] = estimate(result[i]);
+        }
+        // insertion sort, stable and good enough for the few operands a rule has
+        for (int i = 1; i < result.length; i++) {
+            ITagNodeCondition condition = result[i];
+            int cost = costs[i];
+            int j = i - 1;
+            while (j >= 0 && costs[j] > cost) {
+                result[j + 1] = result[j];
+                costs[j + 1] = costs[j];
+                j--;
+            }
+            result[j + 1] = condition;
+            costs[j + 1] = cost;
+        }
+        return result;
+    }
+
+    static int sum(ITagNodeCondition[] conditions) {
+        int result = 0;
+        for (ITagNodeCondition condition: conditions) {
+            result += estimate(condition);
+        }
+        return result;
+    }
+}
@@ -23,7 +23,7 @@ public class TagNodeInsignificantBrCondition implements ITagNodeCondition {
 		}
 		TagNode parent = tagNode.getParent();
 		List children = parent.getAllChildren();
-		int brIndex = children.indexOf(tagNode);		
+		int brIndex = parent.getChildIndex(tagNode);		
 		return checkSublist(0, brIndex, children) || checkSublist (brIndex, children.size(), children);
 	}
 
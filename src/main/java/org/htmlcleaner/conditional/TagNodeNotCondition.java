@@ -0,0 +1,29 @@
+package org.htmlcleaner.conditional;
+
+import org.htmlcleaner.TagNode;
+
+/**
+ * Checks if node does not satisfy the condition. No condition is satisfied by null.
+ */
+public class TagNodeNotCondition implements ITagNodeCondition {
+    private final ITagNodeCondition condition;
+
+    public TagNodeNotCondition(ITagNodeCondition condition) {
+        if (condition == null) {
+            throw new IllegalArgumentException("Condition must not be null!");
+        }
+        this.condition = condition;
+    }
+
+    public ITagNodeCondition getCondition() {
+        return condition;
+    }
+
+    int getCost() {
+        return TagNodeConditionCost.estimate(condition);
+    }
+
+    public boolean satisfy(TagNode tagNode) {
+        return tagNode != null && !condition.satisfy(tagNode);
+    }
+}
@@ -0,0 +1,41 @@
+package org.htmlcleaner.conditional;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.htmlcleaner.TagNode;
+
+/**
+ * Checks if node satisfies any of the conditions. Cheaper conditions are checked first and
+ * checking stops at the first one satisfied.
+ */
+public class TagNodeOrCondition implements ITagNodeCondition {
+    private final ITagNodeCondition[] conditions;
+    private final int cost;
+
+    public TagNodeOrCondition(ITagNodeCondition... conditions) {
+        this.conditions = TagNodeConditionCost.sortByCost(conditions);
+        this.cost = TagNodeConditionCost.sum(conditions);
+    }
+
+    /**
+     * @return Conditions in the order they are checked.
+     */
+    public List<ITagNodeCondition> getConditions() {
+        return Collections.unmodifiableList(Arrays.asList(conditions));
+    }
+
+    int getCost() {
+        return cost;
+    }
+
+    public boolean satisfy(TagNode tagNode) {
+        for (ITagNodeCondition condition: conditions) {
+            if (condition.satisfy(tagNode)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,171 @@
+package org.htmlcleaner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Testing binary format of cleaned trees.
+ */
+public class BinaryFormatTest extends TestCase {
+
+    private static final String[] FILES = {
+        "test1.html", "test2.html", "test3.html", "test9.html", "test13.html", "test14.html",
+        "test19.html", "test21.html", "test30.html", "script_test.html", "test-chinese-issue-64.html"
+    };
+
+    public void testRoundTrip() throws IOException {
+        for (boolean namespacesAware : new boolean[] {false, true}) {
+            CleanerProperties props = new CleanerProperties();
+            props.setNamespacesAware(namespacesAware);
+            HtmlCleaner cleaner = new HtmlCleaner(props);
+            for (String fileName : FILES) {
+                TagNode node = cleaner.clean(new File("src/test/resources/" + fileName), "UTF-8");
+                for (int mode = 0; mode < 3; mode++) {
+                    byte[] bytes = new TagNodeBinaryWriter(mode == 1, mode == 2).toByteArray(node);
+                    TagNode copy = new TagNodeBinaryReader().read(bytes);
+                    assertSameTree(fileName, node, copy);
+                    assertEquals(fileName, new SimpleXmlSerializer(props).getAsString(node),
+                            new SimpleXmlSerializer(props).getAsString(copy));
+                }
+            }
+        }
+    }
+
+    public void testNodeStateIsKept() throws IOException {
+        TagNode root = new TagNode("root");
+        root.setDocType(new DoctypeToken("html", "PUBLIC", "-//W3C//DTD XHTML 1.0 Strict//EN",
+                "http://www.w3.org/TR/xhtml1/DTD/xhtml1-strict.dtd"));
+        root.addNamespaceDeclaration("svg", "http://www.w3.org/2000/svg");
+        TagNode svg = new TagNode("svg:svg");
+        svg.setForeignMarkup(true);
+        svg.setTrimAttributeValues(false);
+        svg.addAttribute("viewBox", " 0 0 10 10 ");
+        svg.getAttributeStorage().put("empty", null);
+        TagNode pruned = new TagNode("span");
+        pruned.setPruned(true);
+        pruned.setAutoGenerated(true);
+        root.addChild(svg);
+        root.addChild(pruned);
+        root.addChild(new CData("a < b"));
+        root.addChild(new CommentNode(" comment "));
+        root.addChild(new EndTagToken("p"));
+        // unpaired surrogate and characters of all lengths
+        root.addChild(new ContentNode("xé中\ud800￿"));
+
+        TagNode copy = new TagNodeBinaryReader().read(new TagNodeBinaryWriter().toByteArray(root));
+        assertSameTree("state", root, copy);
+        assertEquals("-//W3C//DTD XHTML 1.0 Strict//EN", copy.getDocType().getPublicId());
+        assertEquals(root.getDocType().getContent(), copy.getDocType().getContent());
+        TagNode svgCopy = (TagNode) copy.getAllChildren().get(0);
+        assertTrue(svgCopy.isForeignMarkup());
+        assertEquals(" 0 0 10 10 ", svgCopy.getAttributeByName("viewBox"));
+        assertTrue(svgCopy.getAttributes().containsKey("empty"));
+        assertSame(copy, svgCopy.getParent());
+    }
+
+    public void testStreams() throws IOException {
+        HtmlCleaner cleaner = new HtmlCleaner();
+        TagNode first = cleaner.clean("<p>first</p>");
+        TagNode second = cleaner.clean("<div><b>second</b></div>");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        new TagNodeBinaryWriter(true).write(first, out);
+        new TagNodeBinaryWriter().write(second, out);
+        out.writeInt(42);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        TagNodeBinaryReader reader = new TagNodeBinaryReader();
+        assertSameTree("first", first, reader.read(in));
+        assertSameTree("second", second, reader.read(in));
+        assertEquals(42, in.readInt());
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        assertSameTree("first", first, reader.read(buffer));
+        assertSameTree("second", second, reader.read(buffer));
+        assertEquals(42, buffer.getInt());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.size());
+        new TagNodeBinaryWriter(true).write(second, direct);
+        direct.flip();
+        assertSameTree("second", second, reader.read(direct));
+        assertFalse(direct.hasRemaining());
+    }
+
+    public void testDeepTree() throws IOException {
+        TagNode root = new TagNode("div");
+        for (int i = 0; i < 100000; i++) {
+            TagNode parent = new TagNode("div");
+            parent.addChild(root);
+            root = parent;
+        }
+        TagNode copy = new TagNodeBinaryReader().read(new TagNodeBinaryWriter().toByteArray(root));
+        int depth = 0;
+        for (TagNode node = copy; node != null; node = node.findElementByName("div", false)) {
+            depth++;
+        }
+        assertEquals(100001, depth);
+    }
+
+    public void testInvalidInput() {
+        TagNodeBinaryReader reader = new TagNodeBinaryReader();
+        byte[] bytes = new TagNodeBinaryWriter().toByteArray(new HtmlCleaner().clean("<p>text</p>"));
+        byte[] truncated = new byte[bytes.length - 3];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        byte[] wrongVersion = bytes.clone();
+        wrongVersion[4] = 99;
+        for (byte[] invalid : new byte[][] {new byte[] {1, 2, 3, 4, 5}, truncated, wrongVersion}) {
+            try {
+                reader.read(invalid);
+                fail("IOException expected");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    private static void assertSameTree(String message, TagNode expected, TagNode actual) {
+        assertEquals(message, expected.getName(), actual.getName());
+        assertEquals(message, attributeList(expected), attributeList(actual));
+        assertEquals(message, expected.getNamespaceDeclarations(), actual.getNamespaceDeclarations());
+        assertEquals(message, expected.isForeignMarkup(), actual.isForeignMarkup());
+        assertEquals(message, expected.isAutoGenerated(), actual.isAutoGenerated());
+        assertEquals(message, expected.isPruned(), actual.isPruned());
+        assertEquals(message, expected.isTrimAttributeValues(), actual.isTrimAttributeValues());
+        assertEquals(message, expected.getDocType() == null, actual.getDocType() == null);
+        List<? extends BaseToken> expectedChildren = expected.getAllChildren();
+        List<? extends BaseToken> actualChildren = actual.getAllChildren();
+        assertEquals(message, expectedChildren.size(), actualChildren.size());
+        for (int i = 0; i < expectedChildren.size(); i++) {
+            BaseToken expectedChild = expectedChildren.get(i);
+            BaseToken actualChild = actualChildren.get(i);
+            assertEquals(message, expectedChild.getClass(), actualChild.getClass());
+            if (expectedChild instanceof TagNode) {
+                assertSameTree(message, (TagNode) expectedChild, (TagNode) actualChild);
+            } else if (expectedChild instanceof ContentNode) {
+                assertEquals(message, ((ContentNode) expectedChild).getContent(), ((ContentNode) actualChild).getContent());
+            } else if (expectedChild instanceof CommentNode) {
+                assertEquals(message, ((CommentNode) expectedChild).getContent(), ((CommentNode) actualChild).getContent());
+            } else if (expectedChild instanceof EndTagToken) {
+                assertEquals(message, ((EndTagToken) expectedChild).getName(), ((EndTagToken) actualChild).getName());
+            }
+        }
+    }
+
+    private static List<String> attributeList(TagNode node) {
+        List<String> result = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : node.getAttributes().entrySet()) {
+            result.add(entry.getKey() + "=" + entry.getValue());
+        }
+        return result;
+    }
+}
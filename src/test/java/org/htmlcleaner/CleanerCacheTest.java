@@ -0,0 +1,109 @@
+package org.htmlcleaner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+/**
+ * Testing the cache of cleaned trees.
+ */
+public class CleanerCacheTest extends TestCase {
+
+    private static final String HTML = "<div id='a'><p>first<p>second</div>";
+
+    public void testHitReturnsSameTree() throws IOException {
+        CleanerCache cache = new CleanerCache(1 << 20);
+        HtmlCleaner cleaner = new HtmlCleaner();
+        cleaner.setCache(cache);
+        SimpleXmlSerializer serializer = new SimpleXmlSerializer(cleaner.getProperties());
+        String expected = serializer.getAsString(new HtmlCleaner().clean(HTML));
+
+        TagNode first = cleaner.clean(HTML);
+        TagNode second = cleaner.clean(new StringReader(HTML));
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(expected, serializer.getAsString(first));
+        assertEquals(expected, serializer.getAsString(second));
+
+        // hits are modifiable copies, changing them changes neither the cache nor earlier results
+        assertFalse(second.isFrozen());
+        second.findElementByName("p", true).removeFromTree();
+        assertEquals(expected, serializer.getAsString(cleaner.clean(HTML)));
+        assertEquals(expected, serializer.getAsString(first));
+        assertEquals(2, cache.getHitCount());
+    }
+
+    public void testFrozenResults() {
+        CleanerCache cache = new CleanerCache(1 << 20, true);
+        HtmlCleaner cleaner = new HtmlCleaner();
+        cleaner.setCache(cache);
+        TagNode first = cleaner.clean(HTML);
+        assertTrue(first.isFrozen());
+        assertSame(first, cleaner.clean(HTML));
+    }
+
+    public void testPropertiesArePartOfKey() {
+        CleanerCache cache = new CleanerCache(1 << 20);
+        HtmlCleaner cleaner = new HtmlCleaner();
+        cleaner.setCache(cache);
+        HtmlCleaner other = new HtmlCleaner();
+        other.setCache(cache);
+
+        cleaner.clean(HTML);
+        other.clean(HTML);
+        assertEquals(1, cache.getHitCount());
+
+        other.getProperties().setOmitComments(true);
+        other.clean(HTML);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getEntryCount());
+
+        String html = "<div><script>x</script>text</div>";
+        other.getProperties().setPruneTags("script");
+        assertEquals(-1, new SimpleXmlSerializer(other.getProperties()).getAsString(other.clean(html)).indexOf("script"));
+        assertTrue(new SimpleXmlSerializer(cleaner.getProperties()).getAsString(cleaner.clean(html)).indexOf("script") > 0);
+    }
+
+    public void testLeastRecentlyUsedAreEvicted() {
+        HtmlCleaner cleaner = new HtmlCleaner();
+        CleanerCache probe = new CleanerCache(Long.MAX_VALUE);
+        cleaner.setCache(probe);
+        cleaner.clean("<p>0</p>");
+        long entrySize = probe.getSize();
+
+        CleanerCache cache = new CleanerCache(entrySize * 3);
+        cleaner.setCache(cache);
+        cleaner.clean("<p>1</p>");
+        cleaner.clean("<p>2</p>");
+        cleaner.clean("<p>3</p>");
+        cleaner.clean("<p>1</p>");
+        cleaner.clean("<p>4</p>");
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(3, cache.getEntryCount());
+        assertTrue(cache.getSize() <= cache.getMaxSize());
+
+        // 2 was the least recently used one
+        cleaner.clean("<p>1</p>");
+        cleaner.clean("<p>3</p>");
+        assertEquals(3, cache.getHitCount());
+        cleaner.clean("<p>2</p>");
+        assertEquals(3, cache.getHitCount());
+
+        cache.clear();
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, cache.getSize());
+    }
+
+    public void testTooLargeContentIsNotCached() throws IOException {
+        CleanerCache cache = new CleanerCache(1000);
+        HtmlCleaner cleaner = new HtmlCleaner();
+        cleaner.setCache(cache);
+        TagNode node = cleaner.clean(new File("src/test/resources/test2.html"));
+        assertNotNull(node.findElementByName("body", false));
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, cache.getSize());
+    }
+}
@@ -0,0 +1,157 @@
+package org.htmlcleaner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+import org.htmlcleaner.audit.ErrorType;
+import org.htmlcleaner.audit.HtmlModificationListener;
+import org.htmlcleaner.conditional.ITagNodeCondition;
+import org.htmlcleaner.conditional.TagAllCondition;
+import org.htmlcleaner.conditional.TagNodeAndCondition;
+import org.htmlcleaner.conditional.TagNodeAttExistsCondition;
+import org.htmlcleaner.conditional.TagNodeAttNameValueRegexCondition;
+import org.htmlcleaner.conditional.TagNodeAttValueCondition;
+import org.htmlcleaner.conditional.TagNodeAutoGeneratedCondition;
+import org.htmlcleaner.conditional.TagNodeClassCondition;
+import org.htmlcleaner.conditional.TagNodeNameCondition;
+import org.htmlcleaner.conditional.TagNodeNotCondition;
+import org.htmlcleaner.conditional.TagNodeOrCondition;
+
+/**
+ * Testing that compiled prune and allow conditions decide as checking them one by one would.
+ */
+public class ConditionSetTest extends TestCase {
+
+    private static final String HTML =
+        "<html><head><script>x()</script><style>p {}</style></head><body>" +
+        "<div id='a' class='nav main'><img src='a.png'><img src='b.png' alt='b'>" +
+        "<a href='javascript:x()'>bad</a><a href='http://x.org' onclick='y()'>good</a></div>" +
+        "<P CLASS='Ad'>upper</P><span data-track='1'>t</span><iframe src='x'></iframe>" +
+        "<form><input type='hidden' name='n'><input type='text'></form></body></html>";
+
+    private static final ITagNodeCondition[] CONDITIONS = {
+        new TagNodeNameCondition("script"),
+        new TagNodeNameCondition("IFRAME"),
+        new TagNodeAttExistsCondition("onClick"),
+        new TagNodeAttValueCondition("type", "HIDDEN", false),
+        new TagNodeClassCondition("nav"),
+        new TagNodeAttNameValueRegexCondition(Pattern.compile("^data-"), null),
+        new TagNodeAttNameValueRegexCondition(Pattern.compile("href"), Pattern.compile("^javascript:")),
+        new TagNodeAndCondition(new TagNodeNameCondition("img"), new TagNodeNotCondition(new TagNodeAttExistsCondition("alt"))),
+        new TagNodeAndCondition(new TagNodeAttValueCondition("class", "Ad", true), new TagNodeNameCondition("p")),
+        new TagNodeAndCondition(new TagNodeAttExistsCondition("src"), new TagNodeNameCondition("iframe")),
+        new TagNodeOrCondition(new TagNodeNameCondition("style"), new TagNodeAttExistsCondition("id")),
+        new TagNodeNotCondition(new TagNodeAttExistsCondition("class")),
+        TagNodeAutoGeneratedCondition.INSTANCE,
+    };
+
+    private TagNode root;
+
+    @Override
+    protected void setUp() throws Exception {
+        root = new HtmlCleaner().clean(HTML);
+    }
+
+    public void testSameAsLinearCheck() {
+        // every single condition, and every prefix of the list, decides as the linear check
+        for (int i = 0; i < CONDITIONS.length; i++) {
+            assertSameDecisions(Arrays.asList(CONDITIONS[i]));
+            assertSameDecisions(Arrays.asList(CONDITIONS).subList(0, i + 1));
+        }
+    }
+
+    public void testSatisfiedCondition() {
+        TagNodeConditionSet set = new TagNodeConditionSet(Arrays.asList(CONDITIONS).subList(0, 11));
+        TagNode[] images = root.getElementsByName("img", true);
+        assertSame(CONDITIONS[7], set.findSatisfied(images[0]));
+        assertNull(set.findSatisfied(images[1]));
+        assertSame(CONDITIONS[8], set.findSatisfied(root.findElementByName("p", true)));
+        assertSame(CONDITIONS[6], set.findSatisfied(root.getElementsByName("a", true)[0]));
+        assertSame(CONDITIONS[2], set.findSatisfied(root.getElementsByName("a", true)[1]));
+        assertNull(set.findSatisfied(null));
+        assertTrue(new TagNodeConditionSet(new ArrayList<ITagNodeCondition>()).isEmpty());
+        assertNull(new TagNodeConditionSet(new ArrayList<ITagNodeCondition>()).findSatisfied(root));
+    }
+
+    public void testComposition() {
+        TagNode img = root.findElementByName("img", true);
+        ITagNodeCondition regex = new TagNodeAttNameValueRegexCondition(Pattern.compile("src"), Pattern.compile("png$"));
+        TagNodeAndCondition and = new TagNodeAndCondition(regex, new TagNodeNameCondition("img"), new TagAllCondition());
+        assertTrue(and.satisfy(img));
+        assertFalse(and.satisfy(root));
+        // cheapest operands first
+        assertEquals(TagAllCondition.class, and.getConditions().get(0).getClass());
+        assertEquals(TagNodeNameCondition.class, and.getConditions().get(1).getClass());
+        assertSame(regex, and.getConditions().get(2));
+
+        TagNodeOrCondition or = new TagNodeOrCondition(regex, new TagNodeNameCondition("html"));
+        assertTrue(or.satisfy(img));
+        assertTrue(or.satisfy(root));
+        assertFalse(or.satisfy(root.findElementByName("body", true)));
+
+        assertFalse(new TagNodeNotCondition(new TagNodeNameCondition("img")).satisfy(img));
+        assertTrue(new TagNodeNotCondition(new TagNodeNameCondition("img")).satisfy(root));
+        assertFalse(new TagNodeNotCondition(new TagNodeNameCondition("img")).satisfy(null));
+        try {
+            new TagNodeAndCondition(regex, null);
+            fail("null operand");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testCleaning() throws Exception {
+        HtmlCleaner cleaner = new HtmlCleaner();
+        CleanerProperties properties = cleaner.getProperties();
+        final List<ITagNodeCondition> fired = new ArrayList<ITagNodeCondition>();
+        properties.addHtmlModificationListener(new HtmlModificationListener() {
+            public void fireHtmlError(boolean certain, TagNode tagNode, ErrorType errorType) {
+            }
+            public void fireUglyHtml(boolean certainty, TagNode tagNode, ErrorType errorType) {
+            }
+            public void fireConditionModification(ITagNodeCondition condition, TagNode tagNode) {
+                fired.add(condition);
+            }
+            public void fireUserDefinedModification(boolean certainty, TagNode tagNode, ErrorType errorType) {
+            }
+        });
+        properties.setPruneTags("script,style");
+        properties.addPruneTagNodeCondition(CONDITIONS[6]);
+        properties.addPruneTagNodeCondition(CONDITIONS[7]);
+        TagNode cleaned = cleaner.clean(HTML);
+        assertEquals(0, cleaned.getElementsByName("script", true).length);
+        assertEquals(0, cleaned.getElementsByName("style", true).length);
+        assertEquals(1, cleaned.getElementsByName("img", true).length);
+        assertEquals(1, cleaned.getElementsByName("a", true).length);
+        assertTrue(fired.contains(CONDITIONS[6]));
+        assertTrue(fired.contains(CONDITIONS[7]));
+
+        properties.reset();
+        properties.setAllowTags("html,head,body,div,a");
+        properties.getAllowTagSet().add(CONDITIONS[4]);
+        cleaned = cleaner.clean("<div class='nav'><a>1</a><b>2</b></div><span class='nav'>3</span><span>4</span>");
+        assertEquals(1, cleaned.getElementsByName("span", true).length);
+        assertEquals(0, cleaned.getElementsByName("b", true).length);
+        assertEquals(1, cleaned.getElementsByName("a", true).length);
+    }
+
+    private void assertSameDecisions(List<ITagNodeCondition> conditions) {
+        TagNodeConditionSet set = new TagNodeConditionSet(conditions);
+        for (TagNode node : root.getAllElements(true)) {
+            boolean expected = false;
+            for (ITagNodeCondition condition : conditions) {
+                expected |= condition.satisfy(node);
+            }
+            ITagNodeCondition found = set.findSatisfied(node);
+            assertEquals(conditions + " on " + node.getName(), expected, found != null);
+            if (found != null) {
+                assertTrue(conditions.contains(found));
+                assertTrue(found.satisfy(node));
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package org.htmlcleaner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Testing CSS selectors.
+ */
+public class CssSelectorTest extends TestCase {
+
+    private static final String HTML =
+        "<div id='main' class='content wide'>" +
+        "  <h1 id='h'>Title</h1>" +
+        "  <p id='p1' class='intro' lang='en-US'>One <a id='a1' href='http://x.org/1.png'>1</a></p>" +
+        "  <p id='p2' title='latest news'>Two <span id='s1'><a id='a2' href='/2'>2</a></span></p>" +
+        "  <p id='p3' class='note'>Three</p>" +
+        "  <ul id='list'><li id='l1'>1</li><li id='l2' class='x'>2</li><li id='l3'>3</li><li id='l4'>4</li><li id='l5'>5</li></ul>" +
+        "</div>" +
+        "<div id='side'><p id='p4' data-x='a b c'>Four</p></div>";
+
+    private TagNode plainNode;
+    private TagNode indexedNode;
+
+    @Override
+    protected void setUp() throws Exception {
+        HtmlCleaner cleaner = new HtmlCleaner();
+        plainNode = cleaner.clean(HTML);
+        indexedNode = cleaner.clean(HTML);
+        indexedNode.setIndexed(true);
+    }
+
+    public void testSimpleSelectors() {
+        assertSelects("p", "p1", "p2", "p3", "p4");
+        assertSelects("P", "p1", "p2", "p3", "p4");
+        assertSelects("#p2", "p2");
+        assertSelects("div#main", "main");
+        assertSelects("span#main");
+        assertSelects(".content", "main");
+        assertSelects(".content.wide", "main");
+        assertSelects(".cont");
+        assertSelects("p.intro", "p1");
+        assertSelects("body *", "main", "h", "p1", "a1", "p2", "s1", "a2", "p3", "list", "l1", "l2", "l3", "l4", "l5", "side", "p4");
+    }
+
+    public void testAttributeSelectors() {
+        assertSelects("[href]", "a1", "a2");
+        assertSelects("[HREF='/2']", "a2");
+        assertSelects("a[href=\"/2\"]", "a2");
+        assertSelects("[data-x~=b]", "p4");
+        assertSelects("[data-x~=a\\ b]");
+        assertSelects("[lang|=en]", "p1");
+        assertSelects("[lang|=en-US]", "p1");
+        assertSelects("[lang|=e]");
+        assertSelects("[href^=http]", "a1");
+        assertSelects("[href$='.png']", "a1");
+        assertSelects("[title*=news]", "p2");
+        assertSelects("[title*='']");
+    }
+
+    public void testCombinators() {
+        assertSelects("div a", "a1", "a2");
+        assertSelects("div > a");
+        assertSelects("p > a", "a1");
+        assertSelects("div p > span a", "a2");
+        assertSelects("h1 + p", "p1");
+        assertSelects("h1 ~ p", "p1", "p2", "p3");
+        assertSelects("p + p + p", "p3");
+        assertSelects("#main > p ~ ul > li.x + li", "l3");
+        assertSelects("body > div#side p", "p4");
+        assertSelects("html p#p4", "p4");
+    }
+
+    public void testPseudoClasses() {
+        assertSelects("li:first-child", "l1");
+        assertSelects("li:last-child", "l5");
+        assertSelects("li:nth-child(2)", "l2");
+        assertSelects("li:nth-child(odd)", "l1", "l3", "l5");
+        assertSelects("li:nth-child(even)", "l2", "l4");
+        assertSelects("li:nth-child(2n+1)", "l1", "l3", "l5");
+        assertSelects("li:nth-child(3n)", "l3");
+        assertSelects("li:nth-child(n+4)", "l4", "l5");
+        assertSelects("li:nth-child(-n+2)", "l1", "l2");
+        assertSelects("li:nth-child( 2n - 1 )", "l1", "l3", "l5");
+        assertSelects("li:nth-last-child(2)", "l4");
+        assertSelects("p:only-child", "p4");
+        assertSelects("#main > :first-child", "h");
+        assertSelects("li:not(.x)", "l1", "l3", "l4", "l5");
+        assertSelects("li:not(.x, :first-child, #l5)", "l3", "l4");
+        assertSelects("p:not([class])", "p2", "p4");
+        assertSelects("#main :not(p):not(li)", "h", "a1", "s1", "a2", "list");
+    }
+
+    public void testGroups() {
+        assertSelects("h1, #p3, li:first-child", "h", "p3", "l1");
+        assertSelects("li, #l2", "l1", "l2", "l3", "l4", "l5");
+    }
+
+    public void testSelectFromElement() {
+        TagNode main = indexedNode.findElementByAttValue("id", "main", true, true);
+        assertEquals(ids(main.select("p")), Arrays.asList("p1", "p2", "p3"));
+        assertEquals(ids(main.select("div p")), Arrays.asList("p1", "p2", "p3"));
+        assertTrue(main.select("body p").isEmpty());
+        assertTrue(main.select("#main").isEmpty());
+        assertEquals("a2", main.selectFirst("span a").getAttributeByName("id"));
+        assertNull(main.selectFirst("#p4"));
+
+        assertTrue(CssSelector.compile("p:not(.intro) > span a").matches(main.findElementByAttValue("id", "a2", true, true)));
+        assertFalse(CssSelector.compile("#side a").matches(main.findElementByAttValue("id", "a2", true, true)));
+        assertSame(CssSelector.compile("li + li"), CssSelector.compile("li + li"));
+    }
+
+    public void testSameResultsAsXPath() throws Exception {
+        TagNode node = new HtmlCleaner().clean(new File("src/test/resources/test5.html"));
+        assertEquals(Arrays.asList(node.evaluateXPath("//div//a")), node.select("div a"));
+        assertEquals(Arrays.asList(node.evaluateXPath("//a[@href]")), node.select("a[href]"));
+        assertEquals(Arrays.asList(node.getElementsByClass("video", true)), node.select(".video"));
+        assertEquals(Arrays.asList(node.getElementsByName("li", true)), node.select("ul li, ol li"));
+        node.setIndexed(true);
+        assertEquals(Arrays.asList(node.evaluateXPath("//div//a")), node.select("div a"));
+        assertEquals(Arrays.asList(node.getElementsByClass("video", true)), node.select("div .video"));
+    }
+
+    public void testIndexFollowsChanges() {
+        for (TagNode node : new TagNode[] {plainNode, indexedNode}) {
+            TagNode added = new TagNode("li");
+            added.addAttribute("id", "l0");
+            node.findElementByAttValue("id", "list", true, true).insertChild(0, added);
+        }
+        assertSelects("li:first-child", "l0");
+        assertSelects("#l0 + li", "l1");
+    }
+
+    public void testMalformedSelectors() {
+        String[] selectors = {"", "p,", "div >", "p[href", "p[href=]", "[href='x]", "p:hover", "li:nth-child(2x)", "li:not(p", "p)", "#", "a..b"};
+        for (String selector : selectors) {
+            try {
+                new CssSelector(selector);
+                fail("IllegalArgumentException expected for " + selector);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    private void assertSelects(String selector, String... expectedIds) {
+        List<String> expected = Arrays.asList(expectedIds);
+        assertEquals(selector, expected, ids(plainNode.select(selector)));
+        assertEquals(selector, expected, ids(indexedNode.select(selector)));
+        TagNode first = indexedNode.selectFirst(selector);
+        assertEquals(selector, expected.isEmpty() ? null : expected.get(0), first == null ? null : first.getAttributeByName("id"));
+        assertSame(selector, first, indexedNode.selectFirst(selector));
+        assertEquals(selector, first == null ? null : first.getAttributeByName("id"),
+                plainNode.selectFirst(selector) == null ? null : plainNode.selectFirst(selector).getAttributeByName("id"));
+    }
+
+    private static List<String> ids(List<TagNode> nodes) {
+        List<String> result = new ArrayList<String>();
+        for (TagNode node : nodes) {
+            result.add(node.getAttributeByName("id"));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,137 @@
+package org.htmlcleaner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Testing ancestor tests and document order comparisons, with and without the index.
+ */
+public class DocumentOrderTest extends TestCase {
+
+    private static final String HTML =
+        "<div id='d1'><p id='p1'><a id='a1'>1</a><b id='b1'>b</b></p><p id='p2'><a id='a2'>2</a></p></div>" +
+        "<div id='d2'><span id='s1'><span id='s2'><a id='a3'>3</a></span></span></div>";
+
+    private TagNode plainNode;
+    private TagNode indexedNode;
+
+    @Override
+    protected void setUp() throws Exception {
+        HtmlCleaner cleaner = new HtmlCleaner();
+        plainNode = cleaner.clean(HTML);
+        indexedNode = cleaner.clean(HTML);
+        indexedNode.setIndexed(true);
+    }
+
+    public void testAncestors() {
+        for (TagNode node : new TagNode[] {plainNode, indexedNode}) {
+            TagNode d1 = byId(node, "d1");
+            TagNode a1 = byId(node, "a1");
+            TagNode a3 = byId(node, "a3");
+            assertTrue(d1.isAncestorOf(a1));
+            assertTrue(node.isAncestorOf(a1));
+            assertTrue(node.isAncestorOf(d1));
+            assertFalse(a1.isAncestorOf(d1));
+            assertFalse(d1.isAncestorOf(d1));
+            assertFalse(d1.isAncestorOf(a3));
+            assertFalse(byId(node, "p1").isAncestorOf(byId(node, "a2")));
+        }
+    }
+
+    public void testCompareDocumentPosition() {
+        TagNode d1 = byId(indexedNode, "d1");
+        TagNode a1 = byId(indexedNode, "a1");
+        TagNode a3 = byId(indexedNode, "a3");
+        assertEquals(0, a1.compareDocumentPosition(a1));
+        assertEquals(TagNode.DOCUMENT_POSITION_CONTAINED_BY | TagNode.DOCUMENT_POSITION_FOLLOWING, d1.compareDocumentPosition(a1));
+        assertEquals(TagNode.DOCUMENT_POSITION_CONTAINS | TagNode.DOCUMENT_POSITION_PRECEDING, a1.compareDocumentPosition(d1));
+        assertEquals(TagNode.DOCUMENT_POSITION_FOLLOWING, a1.compareDocumentPosition(a3));
+        assertEquals(TagNode.DOCUMENT_POSITION_PRECEDING, a3.compareDocumentPosition(d1));
+        assertEquals(TagNode.DOCUMENT_POSITION_DISCONNECTED, a1.compareDocumentPosition(byId(plainNode, "a1")));
+        assertEquals(TagNode.DOCUMENT_POSITION_DISCONNECTED, a1.compareDocumentPosition(new TagNode("a")));
+    }
+
+    public void testSameResultsWithoutIndex() {
+        List<TagNode> plainElements = allElements(plainNode);
+        List<TagNode> indexedElements = allElements(indexedNode);
+        indexedNode.getElementsByName("a", true);
+        assertNotNull(indexedElements.get(5).getCurrentPosition());
+        assertNull(plainElements.get(5).getCurrentPosition());
+        for (int i = 0; i < plainElements.size(); i++) {
+            for (int j = 0; j < plainElements.size(); j++) {
+                String message = plainElements.get(i).getName() + i + " " + plainElements.get(j).getName() + j;
+                assertEquals(message, plainElements.get(i).isAncestorOf(plainElements.get(j)), indexedElements.get(i).isAncestorOf(indexedElements.get(j)));
+                assertEquals(message, plainElements.get(i).compareDocumentPosition(plainElements.get(j)),
+                        indexedElements.get(i).compareDocumentPosition(indexedElements.get(j)));
+                int expected = Integer.signum(j - i);
+                int actual = indexedElements.get(i).compareDocumentPosition(indexedElements.get(j));
+                assertEquals(message, expected, (actual & TagNode.DOCUMENT_POSITION_FOLLOWING) != 0 ? 1 : (actual & TagNode.DOCUMENT_POSITION_PRECEDING) != 0 ? -1 : 0);
+            }
+        }
+    }
+
+    public void testChangesInvalidateNumbering() {
+        TagNode a1 = byId(indexedNode, "a1");
+        TagNode d2 = byId(indexedNode, "d2");
+        indexedNode.getElementsByName("a", true);
+        assertNotNull(a1.getCurrentPosition());
+
+        a1.removeFromTree();
+        d2.addChild(a1);
+        assertNull(a1.getCurrentPosition());
+        assertTrue(d2.isAncestorOf(a1));
+        assertEquals(TagNode.DOCUMENT_POSITION_PRECEDING, a1.compareDocumentPosition(byId(indexedNode, "a3")));
+
+        indexedNode.getElementsByName("a", true);
+        assertNotNull(a1.getCurrentPosition());
+        assertTrue(d2.isAncestorOf(a1));
+        assertFalse(byId(indexedNode, "d1").isAncestorOf(a1));
+        assertEquals(TagNode.DOCUMENT_POSITION_PRECEDING, a1.compareDocumentPosition(byId(indexedNode, "a3")));
+
+        indexedNode.setIndexed(false);
+        assertNull(a1.getCurrentPosition());
+    }
+
+    public void testSearchesBelowIndexedNode() throws Exception {
+        HtmlCleaner cleaner = new HtmlCleaner();
+        TagNode plain = cleaner.clean(new File("src/test/resources/test5.html"));
+        TagNode indexed = cleaner.clean(new File("src/test/resources/test5.html"));
+        indexed.setIndexed(true);
+        String[] expressions = {"//div//a", "//div//@href", "//div[@class]//li[2]", "//ul//a/@href", "//td//@*"};
+        for (String expression : expressions) {
+            assertEquals(expression, asString(plain.evaluateXPath(expression)), asString(indexed.evaluateXPath(expression)));
+        }
+        TagNode[] plainDivs = plain.getElementsByName("div", true);
+        TagNode[] indexedDivs = indexed.getElementsByName("div", true);
+        for (int i = 0; i < plainDivs.length; i++) {
+            assertNotNull(indexedDivs[i].getIndex());
+            assertEquals(asString(plainDivs[i].getElementsByName("a", true)), asString(indexedDivs[i].getElementsByName("a", true)));
+            assertEquals(asString(plainDivs[i].getElementsHavingAttribute("class", true)), asString(indexedDivs[i].getElementsHavingAttribute("class", true)));
+            assertEquals(plainDivs[i].select("li > a").size(), indexedDivs[i].select("li > a").size());
+        }
+    }
+
+    private static TagNode byId(TagNode node, String id) {
+        return node.findElementByAttValue("id", id, true, true);
+    }
+
+    private static List<TagNode> allElements(TagNode node) {
+        List<TagNode> result = new ArrayList<TagNode>();
+        result.add(node);
+        for (TagNode element : node.getAllElements(true)) {
+            result.add(element);
+        }
+        return result;
+    }
+
+    private static String asString(Object[] values) {
+        StringBuilder result = new StringBuilder();
+        for (Object value : values) {
+            result.append(value instanceof TagNode ? ((TagNode) value).getName() + ((TagNode) value).getAttributes() : value).append(';');
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,100 @@
+package org.htmlcleaner;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Testing store of cleaned trees.
+ */
+public class DocumentStoreTest extends TestCase {
+
+    private static final String[] FILES = {"test1.html", "test2.html", "test3.html", "test9.html", "test30.html"};
+
+    private File directory;
+    private HtmlCleaner cleaner;
+    private SimpleXmlSerializer serializer;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("htmlcleaner", "store");
+        directory.delete();
+        cleaner = new HtmlCleaner();
+        serializer = new SimpleXmlSerializer(cleaner.getProperties());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    public void testStoreAndReopen() throws IOException, XPatherException {
+        // small segments, so that trees are spread over several of them
+        DocumentStore store = new DocumentStore(directory, 20000);
+        String[] expected = new String[FILES.length];
+        for (int i = 0; i < FILES.length; i++) {
+            TagNode node = cleaner.clean(new File("src/test/resources/" + FILES[i]), "UTF-8");
+            expected[i] = serializer.getAsString(node);
+            assertEquals(i, store.add(node));
+        }
+        assertEquals(FILES.length, store.size());
+        for (int i = 0; i < FILES.length; i++) {
+            assertEquals(FILES[i], expected[i], serializer.getAsString(store.get(i)));
+        }
+        store.close();
+        assertTrue(directory.listFiles().length > 2);
+
+        store = new DocumentStore(directory, 20000);
+        assertEquals(FILES.length, store.size());
+        int added = store.add(cleaner.clean("<html><head><title>added</title></head></html>"));
+        assertEquals(FILES.length, added);
+        for (int i = 0; i < FILES.length; i++) {
+            assertEquals(FILES[i], expected[i], serializer.getAsString(store.get(i)));
+        }
+        Object[] titles = store.evaluateXPath(added, "//title/text()");
+        assertEquals(1, titles.length);
+        assertEquals("added", titles[0].toString());
+        store.close();
+    }
+
+    public void testViewsAreIndependent() throws IOException, XPatherException {
+        DocumentStore store = new DocumentStore(directory);
+        try {
+            int number = store.add(cleaner.clean("<div id='a'><p>one</p><p>two</p></div>"));
+            TagNode view = store.get(number);
+            TagNode div = view.findElementByAttValue("id", "a", true, true);
+            assertEquals("onetwo", div.getText().toString());
+            div.getChildTags()[0].removeFromTree();
+            assertEquals("two", div.getText().toString());
+            assertEquals("onetwo", store.get(number).getText().toString());
+            assertEquals(2, store.evaluateXPath(number, "//p").length);
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testInvalidDocumentNumber() throws IOException {
+        DocumentStore store = new DocumentStore(directory);
+        try {
+            store.get(0);
+            fail("IndexOutOfBoundsException expected");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        } finally {
+            store.close();
+        }
+        try {
+            store.add(new TagNode("div"));
+            fail("closed store should not be changed");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.htmlcleaner;
+
+import java.io.File;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Testing that indexed searches give the same results as full tree walks.
+ */
+public class ElementIndexTest extends TestCase {
+
+    private static final String[] EXPRESSIONS = {
+        "//div//a", "//div//a[@id][@class]", "//div[3]//a[@id]", "//div[3]//a[@id][@href='r/n4']",
+        "//body//div[3][@class]//span[2]/@id", "(//div[last() >= 4]//./div[position() = last()])[position() > 22]//li[2]//a",
+        "//*[@class][@id]//*[@style]", "//div//@class", "//li[1]", "//a[last()]", "//div[@class]//li[position() > 1]"
+    };
+
+    private TagNode plainNode;
+    private TagNode indexedNode;
+
+    @Override
+    protected void setUp() throws Exception {
+        HtmlCleaner cleaner = new HtmlCleaner();
+        plainNode = cleaner.clean(new File("src/test/resources/test5.html"));
+        indexedNode = cleaner.clean(new File("src/test/resources/test5.html"));
+        indexedNode.setIndexed(true);
+    }
+
+    public void testXPath() throws XPatherException {
+        for (String expression : EXPRESSIONS) {
+            assertEquals(expression, asString(plainNode.evaluateXPath(expression)), asString(indexedNode.evaluateXPath(expression)));
+        }
+    }
+
+    public void testMalformedExpressions() {
+        String[] malformed = {"//nothing[@href=", "//nothing[1", "//a[@href=", "//div//nothing[@id"};
+        for (String expression : malformed) {
+            for (TagNode node : new TagNode[] {plainNode, indexedNode}) {
+                try {
+                    node.evaluateXPath(expression);
+                    fail(expression + (node == indexedNode ? " indexed" : " plain"));
+                } catch (XPatherException e) {
+                    // expected
+                }
+            }
+        }
+    }
+
+    public void testElementSearches() {
+        assertEquals(asString(plainNode.getElementsByName("LI", true)), asString(indexedNode.getElementsByName("LI", true)));
+        assertEquals(asString(plainNode.getElementsHavingAttribute("style", true)), asString(indexedNode.getElementsHavingAttribute("style", true)));
+        assertEquals(asString(plainNode.getAllElements(true)), asString(indexedNode.getAllElements(true)));
+        assertEquals(asString(plainNode.getElementsByClass("video", true)), asString(indexedNode.getElementsByClass("video", true)));
+        assertTrue(indexedNode.getElementsByClass("video", true).length > 0);
+
+        TagNode plainFeatured = plainNode.findElementByAttValue("id", "featured4ct", true, true);
+        TagNode indexedFeatured = indexedNode.findElementByAttValue("id", "featured4ct", true, true);
+        assertNotNull(indexedFeatured);
+        assertEquals(plainFeatured.getText().toString(), indexedFeatured.getText().toString());
+    }
+
+    public void testIndexFollowsChanges() throws XPatherException {
+        int count = indexedNode.getElementsByName("li", true).length;
+        TagNode li = indexedNode.findElementByName("li", true);
+
+        TagNode added = new TagNode("li");
+        added.addAttribute("class", "added");
+        li.getParent().insertChild(0, added);
+        assertEquals(count + 1, indexedNode.getElementsByName("li", true).length);
+        assertSame(added, indexedNode.findElementByClass("added", true));
+        assertEquals(count + 1, indexedNode.evaluateXPath("//li").length);
+
+        added.removeAttribute("class");
+        assertNull(indexedNode.findElementByClass("added", true));
+
+        li.getParent().removeChild(added);
+        assertEquals(count, indexedNode.getElementsByName("li", true).length);
+    }
+
+    private String asString(Object[] array) {
+        Object[] strings = new Object[array.length];
+        for (int i = 0; i < array.length; i++) {
+            strings[i] = array[i] instanceof TagNode ? ((TagNode) array[i]).getText().toString() : array[i];
+        }
+        return Arrays.asList(strings).toString();
+    }
+
+}
@@ -0,0 +1,83 @@
+package org.htmlcleaner;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Testing the flat document representation and its TagNode views.
+ */
+public class FlatDocumentTest extends TestCase {
+
+    private static final String[] FILES = {
+        "test1.html", "test2.html", "test3.html", "test9.html", "test21.html", "test30.html", "script_test.html"
+    };
+
+    public void testViewsSerializeLikeOriginal() throws IOException {
+        for (String fileName : FILES) {
+            HtmlCleaner cleaner = new HtmlCleaner();
+            TagNode node = cleaner.clean(new File("src/test/resources/" + fileName), "UTF-8");
+            FlatDocument document = new FlatDocument(node);
+            SimpleXmlSerializer serializer = new SimpleXmlSerializer(cleaner.getProperties());
+            assertEquals(fileName, serializer.getAsString(node), serializer.getAsString(document.getRootNode()));
+        }
+    }
+
+    public void testNavigation() {
+        TagNode node = new HtmlCleaner().clean("<div id='a' CLASS='b'>text<!--note--><p>x</p></div>");
+        FlatDocument document = new FlatDocument(node);
+
+        assertEquals("html", document.getName(0));
+        assertEquals(-1, document.getParent(0));
+
+        int div = 0;
+        for (int i = 0; i < document.getNodeCount(); i++) {
+            if ("div".equals(document.getName(i))) {
+                div = i;
+            }
+        }
+        assertEquals(2, document.getAttributeCount(div));
+        assertEquals("b", document.getAttributeByName(div, "class"));
+        assertEquals("a", document.getAttributeValue(div, 0));
+
+        int text = document.getFirstChild(div);
+        assertEquals(FlatDocument.TEXT, document.getKind(text));
+        assertEquals("text", document.getContent(text));
+        int comment = document.getNextSibling(text);
+        assertEquals(FlatDocument.COMMENT, document.getKind(comment));
+        assertEquals("note", document.getContent(comment));
+        int p = document.getNextSibling(comment);
+        assertEquals("p", document.getName(p));
+        assertEquals(-1, document.getNextSibling(p));
+        assertEquals(div, document.getParent(p));
+    }
+
+    public void testViewsAreIndependent() throws XPatherException {
+        TagNode node = new HtmlCleaner().clean("<div><p>one</p><p>two</p></div>");
+        FlatDocument document = new FlatDocument(node);
+
+        TagNode view = document.getRootNode();
+        TagNode p = (TagNode) view.evaluateXPath("//p[2]")[0];
+        assertEquals("two", p.getText().toString());
+        assertEquals("div", p.getParent().getName());
+        p.removeFromTree();
+
+        assertEquals(1, view.evaluateXPath("//p").length);
+        assertEquals(2, document.getRootNode().evaluateXPath("//p").length);
+        assertEquals(2, node.evaluateXPath("//p").length);
+    }
+
+    public void testNamespaceDeclarationsAreCopied() {
+        TagNode node = new HtmlCleaner().clean("<div>x</div>");
+        TagNode div = node.findElementByName("div", true);
+        div.addNamespaceDeclaration("x", "http://x.org");
+        FlatDocument document = new FlatDocument(node);
+
+        div.addNamespaceDeclaration("y", "http://y.org");
+        TagNode view = document.getRootNode().findElementByName("div", true);
+        assertEquals("http://x.org", view.getNamespaceDeclarations().get("x"));
+        assertFalse(view.getNamespaceDeclarations().containsKey("y"));
+    }
+
+}
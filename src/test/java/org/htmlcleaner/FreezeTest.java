@@ -0,0 +1,219 @@
+package org.htmlcleaner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Testing frozen trees and their modifiable copies.
+ */
+public class FreezeTest extends TestCase {
+
+    private HtmlCleaner cleaner;
+    private SimpleXmlSerializer serializer;
+
+    @Override
+    protected void setUp() throws Exception {
+        cleaner = new HtmlCleaner();
+        serializer = new SimpleXmlSerializer(cleaner.getProperties());
+    }
+
+    public void testFrozenTreeIsEqualAndImmutable() throws IOException, XPatherException {
+        TagNode node = cleaner.clean(new File("src/test/resources/test2.html"));
+        TagNode frozen = node.freeze();
+
+        assertTrue(frozen.isFrozen());
+        assertFalse(node.isFrozen());
+        assertSame(frozen, frozen.freeze());
+        assertEquals(serializer.getAsString(node), serializer.getAsString(frozen));
+        assertEquals(node.getText().toString(), frozen.getText().toString());
+
+        TagNode table = (TagNode) frozen.evaluateXPath("//table[1]")[0];
+        assertTrue(table.isFrozen());
+        try {
+            table.addAttribute("id", "x");
+            fail("frozen node should not be modified");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        try {
+            table.removeFromTree();
+            fail("frozen node should not be modified");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        try {
+            frozen.getAllChildren().clear();
+            fail("children of frozen node should not be modified");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    public void testThawedCopyIsIndependent() throws XPatherException {
+        TagNode frozen = cleaner.clean("<div id='a'><p>one</p><p>two</p></div>").freeze();
+        String original = serializer.getAsString(frozen);
+
+        TagNode copy = frozen.thaw();
+        assertFalse(copy.isFrozen());
+        TagNode p = (TagNode) copy.evaluateXPath("//p[2]")[0];
+        assertFalse(p.isFrozen());
+        p.removeFromTree();
+        ((TagNode) copy.evaluateXPath("//div")[0]).addAttribute("class", "b");
+
+        assertEquals(1, copy.evaluateXPath("//p").length);
+        assertEquals("b", ((TagNode) copy.evaluateXPath("//div")[0]).getAttributeByName("class"));
+        assertEquals(original, serializer.getAsString(frozen));
+    }
+
+    public void testDeepCopySharesUntilChanged() throws IOException, XPatherException {
+        TagNode node = cleaner.clean("<table border='1' class='t'><tr><td>a</td></tr></table><table><tr><td>b</td></tr></table>");
+        String original = serializer.getAsString(node);
+        TagNode copy = node.makeDeepCopy();
+        assertEquals(original, serializer.getAsString(copy));
+        assertNull(copy.getParent());
+
+        TagNode table = (TagNode) node.evaluateXPath("//table[1]")[0];
+        TagNode tableCopy = (TagNode) copy.evaluateXPath("//table[1]")[0];
+        assertNotSame(table, tableCopy);
+        assertEquals(table.getAttributes(), tableCopy.getAttributes());
+        tableCopy.addAttribute("id", "copy");
+        table.removeAttribute("border");
+        assertNull(table.getAttributeByName("id"));
+        assertEquals("t", table.getAttributeByName("class"));
+        assertEquals("copy", tableCopy.getAttributeByName("id"));
+        assertEquals("1", tableCopy.getAttributeByName("border"));
+
+        tableCopy.removeFromTree();
+        assertEquals(2, node.evaluateXPath("//table").length);
+        assertEquals(1, copy.evaluateXPath("//table").length);
+
+        TagNode single = tableCopy.makeCopy();
+        single.addAttribute("id", "single");
+        assertEquals("copy", tableCopy.getAttributeByName("id"));
+        assertTrue(single.getAllChildren().isEmpty());
+    }
+
+    public void testDeepTree() {
+        // built from the innermost node, so that adding a child does not walk a long ancestor chain
+        int depth = 100000;
+        TagNode node = new TagNode("b");
+        node.addChild(new ContentNode("x"));
+        for (int i = 1; i < depth; i++) {
+            TagNode parent = new TagNode(i % 2 == 0 ? "b" : "i");
+            parent.addChild(node);
+            node = parent;
+        }
+        TagNode frozen = node.freeze();
+        assertTrue(frozen.isFrozen());
+        int frozenDepth = 0;
+        TagNode deepest = frozen;
+        for (TagNode child = frozen; child != null; child = child.getChildTags().length > 0 ? child.getChildTags()[0] : null) {
+            assertTrue(child.isFrozen());
+            deepest = child;
+            frozenDepth++;
+        }
+        assertEquals(depth, frozenDepth);
+        assertEquals("x", deepest.getText().toString());
+        assertEquals("x", frozen.getText().toString());
+        assertTrue(frozen.thaw().freeze().isFrozen());
+    }
+
+    public void testSiblingsOfWideTree() {
+        // walking all siblings of a frozen node takes linear time, as for a modifiable one
+        int width = 100000;
+        TagNode node = new TagNode("ul");
+        node.addChild(new ContentNode("x"));
+        for (int i = 0; i < width; i++) {
+            node.addChild(new TagNode("li"));
+        }
+        TagNode frozen = node.freeze();
+        TagNode first = frozen.getChildTags()[0];
+        TagNode last = first;
+        int count = 1;
+        for (BaseToken sibling = first.getNextSibling(); sibling != null; sibling = ((TagNode) sibling).getNextSibling()) {
+            last = (TagNode) sibling;
+            count++;
+        }
+        assertEquals(width, count);
+        assertEquals(width, frozen.getChildIndex(last));
+        count = 1;
+        for (BaseToken sibling = last.getPreviousSibling(); sibling instanceof TagNode; sibling = ((TagNode) sibling).getPreviousSibling()) {
+            count++;
+        }
+        assertEquals(width, count);
+        assertSame(frozen.getAllChildren().get(0), first.getPreviousSibling());
+        assertSame(first, frozen.getChildAfter(frozen.getAllChildren().get(0)));
+    }
+
+    public void testSetAttributesOfCopies() {
+        TagNode node = cleaner.clean("<b class=k>x<p>y</p>");
+        TagNode b = node.findElementByName("b", true);
+        TagNode copy = b.makeCopy();
+        TagNode deepCopy = b.makeDeepCopy();
+        Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("id", "i");
+
+        b.setAttributes(attributes);
+        assertEquals(attributes, b.getAttributes());
+        assertEquals("k", copy.getAttributeByName("class"));
+        assertEquals("k", deepCopy.getAttributeByName("class"));
+        copy.setAttributes(attributes);
+        assertNull(copy.getAttributeByName("class"));
+        assertEquals("k", deepCopy.getAttributeByName("class"));
+
+        TagNode thawed = cleaner.clean("<b class=k>x</b>").freeze().thaw();
+        thawed.findElementByName("b", true).setAttributes(attributes);
+        assertEquals("i", thawed.findElementByName("b", true).getAttributeByName("id"));
+    }
+
+    public void testTemplateInstances() throws XPatherException {
+        TagNode template = cleaner.clean("<div class='item'><h1>title</h1><p>text</p></div>").freeze();
+        String original = serializer.getAsString(template);
+        for (int i = 0; i < 3; i++) {
+            TagNode instance = template.makeDeepCopy();
+            TagNode h1 = (TagNode) instance.evaluateXPath("//h1")[0];
+            h1.removeAllChildren();
+            h1.addChild(new ContentNode("title " + i));
+            h1.addAttribute("class", "title");
+            assertEquals("title " + i + "text", instance.getText().toString());
+        }
+        assertEquals(original, serializer.getAsString(template));
+    }
+
+    public void testConcurrentReads() throws Exception {
+        final TagNode frozen = cleaner.clean(new File("src/test/resources/test3.html")).freeze();
+        final String expected = serializer.getAsString(frozen);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 20; j++) {
+                            assertEquals(expected, new SimpleXmlSerializer(new CleanerProperties()).getAsString(frozen));
+                            frozen.evaluateXPath("//a[@href]");
+                            frozen.getText();
+                        }
+                    } catch (Throwable t) {
+                        synchronized (failures) {
+                            failures.add(t);
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+    }
+
+}
@@ -0,0 +1,139 @@
+package org.htmlcleaner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Testing that edits applied to an incremental document give the same tree as cleaning the whole
+ * edited source.
+ */
+public class IncrementalDocumentTest extends TestCase {
+
+    private static final String HTML = "<html><head><title>t</title></head><body>\n"
+            + "<div id=\"first\"><h2>First</h2><p>Some <b>bold</b> text.</p></div>\n"
+            + "<div id=\"second\"><ul><li>one</li><li>two</li></ul>"
+            + "<table><tr><td>cell</td><td>other cell</td></tr></table></div>\n"
+            + "<p>Last paragraph.</p>\n</body></html>";
+
+    private HtmlCleaner cleaner;
+    private SimpleXmlSerializer serializer;
+
+    @Override
+    protected void setUp() throws Exception {
+        cleaner = new HtmlCleaner();
+        serializer = new SimpleXmlSerializer(cleaner.getProperties());
+    }
+
+    public void testTextEditsChangeTreeInPlace() {
+        IncrementalDocument document = new IncrementalDocument(cleaner, HTML);
+        TagNode root = document.getRoot();
+
+        assertSame(root, edit(document, document.getContent().indexOf("text."), 4, "words"));
+        assertSame(root, edit(document, document.getContent().indexOf("other cell") + 6, 0, "table "));
+        assertSame(root, edit(document, document.getContent().indexOf("Last"), 0, "The "));
+        assertSame(root, edit(document, document.getContent().indexOf("bold") + 4, 0, "er"));
+        assertEquals(4, document.getIncrementalEditCount());
+        assertEquals(1, document.getFullCleanCount());
+
+        TagNode[] cells = root.getElementsByName("td", true);
+        assertEquals("other table cell", cells[1].getText().toString());
+        assertEquals("Some bolder words.", root.findElementByAttValue("id", "first", true, true)
+            .findElementByName("p", false).getText().toString());
+    }
+
+    public void testMarkupEdits() {
+        IncrementalDocument document = new IncrementalDocument(cleaner, HTML);
+        TagNode root = document.getRoot();
+
+        // well formed markup inside an element is re-cleaned in place
+        assertSame(root, edit(document, document.getContent().indexOf("Some"), 0, "<i>More</i> <br/>"));
+        assertSame(root, edit(document, document.getContent().indexOf("<li>two"), 0, "<li><a href='#'>zero</a></li>"));
+        assertEquals(2, document.getIncrementalEditCount());
+
+        // tags that end outside of the edited element or go to the head need the whole source
+        edit(document, document.getContent().indexOf("two"), 0, "</div>");
+        edit(document, document.getContent().indexOf("Last"), 0, "<p>unclosed");
+        edit(document, document.getContent().indexOf("Some"), 0, "<title>other</title>");
+        edit(document, document.getContent().indexOf("<h2>"), 4, "");
+        assertEquals(2, document.getIncrementalEditCount());
+        assertEquals(5, document.getFullCleanCount());
+    }
+
+    public void testReopenedFormattingTags() {
+        // b is closed by the paragraph and reopened inside it, so the paragraph can't be cleaned alone
+        IncrementalDocument document = new IncrementalDocument(cleaner, "<div><b>x<p>Some words</p></div>");
+        TagNode root = edit(document, document.getContent().indexOf("words"), 0, "new ");
+        TagNode b = root.findElementByName("p", true).findElementByName("b", false);
+        assertNotNull(b);
+        assertEquals("Some new words", b.getText().toString());
+
+        // an empty paragraph gets the reopened tag too
+        document = new IncrementalDocument(cleaner, "<div><i>x<p></p></div>");
+        root = edit(document, document.getContent().indexOf("</p>"), 0, "text");
+        assertEquals("text", root.findElementByName("p", true).findElementByName("i", false).getText().toString());
+        assertEquals(0, document.getIncrementalEditCount());
+
+        // explicitly closed formatting tags are not reopened
+        document = new IncrementalDocument(cleaner, "<div><b>x</b><p>Some words</p></div>");
+        edit(document, document.getContent().indexOf("words"), 0, "new ");
+        assertEquals(1, document.getIncrementalEditCount());
+    }
+
+    public void testBlankTextCopiedToHead() {
+        // blank text after a head tag and before body is copied to head, wherever it is
+        IncrementalDocument document = new IncrementalDocument(cleaner, "<head><meta><div>  \n<p></p></div>");
+        TagNode root = edit(document, 17, 3, "abc");
+        assertEquals(1, root.findElementByName("head", false).getAllChildren().size());
+        assertEquals(0, document.getIncrementalEditCount());
+
+        // as long as the copied text stays the same, the element is re-cleaned alone
+        document = new IncrementalDocument(cleaner, "<head><meta><div> <p>a</p></div>");
+        edit(document, document.getContent().indexOf("a</p>"), 1, "b");
+        edit(document, document.getContent().indexOf("<p>"), 0, "<head>");
+        edit(document, document.getContent().indexOf("b</p>"), 1, " ");
+        assertEquals(2, document.getIncrementalEditCount());
+        assertEquals(2, document.getFullCleanCount());
+    }
+
+    public void testRandomEdits() throws IOException {
+        String[] insertions = {
+            "x", " ", "abc def", "&amp;", "<b>", "</b>", "<p>", "</p>", "<i>y</i>", "</div>", "<td>",
+            "<li>", "<br/>", "<!--", "-->", "<meta name=a>", "<body class=q>", "<svg:g>z</svg:g>", "<head>", "<body>", " \n "
+        };
+        Random random = new Random(7);
+        for (String fileName: new String[] {"test2.html", "test21.html"}) {
+            String html = Utils.readUrl(new File("src/test/resources/" + fileName).toURI().toURL(), "UTF-8").toString();
+            IncrementalDocument document = new IncrementalDocument(cleaner, html + HTML);
+            for (int i = 0; i < 150; i++) {
+                int length = document.getContent().length();
+                int offset = random.nextInt(length + 1);
+                int removed = random.nextInt(4) == 0 ? random.nextInt(Math.min(10, length - offset) + 1) : 0;
+                edit(document, offset, removed, insertions[random.nextInt(insertions.length)]);
+            }
+        }
+    }
+
+    public void testInvalidRange() {
+        IncrementalDocument document = new IncrementalDocument(cleaner, HTML);
+        try {
+            document.edit(HTML.length(), 1, "x");
+            fail("range outside of the source should not be accepted");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        assertEquals(HTML, document.getContent());
+    }
+
+    private TagNode edit(IncrementalDocument document, int offset, int removedLength, String insertedText) {
+        String content = document.getContent();
+        String expectedContent = content.substring(0, offset) + insertedText + content.substring(offset + removedLength);
+        TagNode root = document.edit(offset, removedLength, insertedText);
+        assertEquals(expectedContent, document.getContent());
+        assertSame(root, document.getRoot());
+        assertEquals(serializer.getAsString(new HtmlCleaner().clean(expectedContent)), serializer.getAsString(root));
+        return root;
+    }
+}
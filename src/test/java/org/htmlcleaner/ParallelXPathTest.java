@@ -0,0 +1,109 @@
+package org.htmlcleaner;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Testing that parallel XPath evaluation gives the results of serial evaluation.
+ */
+public class ParallelXPathTest extends TestCase {
+
+    private static final String[] EXPRESSIONS = {
+        "//tr", "//tr/td[2]", "//tr[td/@class='odd']/td[1]", "//tr[position() > 10][position() < 2000]//a/@href",
+        "//td[3]//span", "//table//tr[last()]", "//tr/td[@class]/@class", "count(//td)", "//tr/td[a][2]",
+        "//tr[3]/..//td[span='s7']", "data(//tr[td[2]/span = 's5']/td[1])"
+    };
+
+    private static TagNode frozenNode;
+
+    private final AtomicInteger taskCount = new AtomicInteger();
+    private ExecutorService executor;
+
+    @Override
+    protected void setUp() throws Exception {
+        if (frozenNode == null) {
+            StringBuilder html = new StringBuilder("<table>");
+            for (int i = 0; i < 3000; i++) {
+                html.append("<tr><td class='").append(i % 2 == 0 ? "even" : "odd").append("'>").append(i).append("</td>");
+                html.append("<td><span>s").append(i % 10).append("</span></td>");
+                html.append("<td><a href='p").append(i).append("'>").append(i).append("</a></td></tr>");
+            }
+            html.append("</table>");
+            frozenNode = new HtmlCleaner().clean(html.toString()).freeze();
+        }
+        executor = new ThreadPoolExecutor(4, 4, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>()) {
+            @Override
+            protected void beforeExecute(Thread t, Runnable r) {
+                taskCount.incrementAndGet();
+            }
+        };
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    public void testSameResultsAsSerial() throws XPatherException {
+        for (String expression : EXPRESSIONS) {
+            XPather xPather = new XPather(expression);
+            assertEquals(expression, Arrays.asList(xPather.evaluateAgainstNode(frozenNode)),
+                    Arrays.asList(xPather.evaluateAgainstNode(frozenNode, executor)));
+        }
+        assertTrue(taskCount.get() > 0);
+    }
+
+    public void testIndexedTree() throws XPatherException {
+        TagNode node = frozenNode.thaw();
+        node.setIndexed(true);
+        node = node.freeze();
+        node.setIndexed(true);
+        for (String expression : EXPRESSIONS) {
+            XPather xPather = new XPather(expression);
+            assertEquals(expression, asString(xPather.evaluateAgainstNode(frozenNode)),
+                    asString(xPather.evaluateAgainstNode(node, executor)));
+        }
+    }
+
+    public void testSmallContextsAreSerial() throws XPatherException {
+        TagNode node = new HtmlCleaner().clean("<table><tr><td>1</td></tr><tr><td>2</td></tr></table>").freeze();
+        assertEquals(2, new XPather("//tr/td").evaluateAgainstNode(node, executor).length);
+        assertEquals(0, taskCount.get());
+    }
+
+    public void testRequiresFrozenTree() throws XPatherException {
+        try {
+            new XPather("//td").evaluateAgainstNode(frozenNode.thaw(), executor);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testErrorsArePassed() {
+        ExecutorService cachedExecutor = Executors.newCachedThreadPool();
+        try {
+            new XPather("//tr/td[unknown()]").evaluateAgainstNode(frozenNode, cachedExecutor);
+            fail("XPatherException expected");
+        } catch (XPatherException e) {
+            // expected
+        } finally {
+            cachedExecutor.shutdownNow();
+        }
+    }
+
+    private static String asString(Object[] values) {
+        StringBuilder result = new StringBuilder();
+        for (Object value : values) {
+            result.append(value instanceof TagNode ? ((TagNode) value).getName() + ((TagNode) value).getText() : value).append(';');
+        }
+        return result.toString();
+    }
+}
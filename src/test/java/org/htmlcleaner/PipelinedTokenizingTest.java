@@ -0,0 +1,65 @@
+package org.htmlcleaner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that pipelined tokenizing produces exactly the same trees as sequential tokenizing.
+ */
+public class PipelinedTokenizingTest extends TestCase {
+
+    private static final String[] FILES = {
+        "test1.html", "test2.html", "test3.html", "test5.html", "test9.html", "test14.html",
+        "test21.html", "test30.html", "script_test.html", "test-chinese-issue-64.html", "oome_70.html"
+    };
+
+    public void testSameResultAsSequential() throws IOException {
+        for (String fileName : FILES) {
+            File file = new File("src/test/resources/" + fileName);
+            assertEquals(fileName, clean(file, false), clean(file, true));
+        }
+    }
+
+    public void testSpecialContent() throws IOException {
+        String html = "<table><script>var a = 1;<!-- x --></script><tr><td>a<b>b</td></tr></table>"
+                + "<style>/* <!-- */ p {}</style><p>text";
+        assertEquals(clean(html, false), clean(html, true));
+    }
+
+    public void testReaderFailureIsPropagated() {
+        CleanerProperties props = new CleanerProperties();
+        props.setPipelinedTokenizing(true);
+        HtmlCleaner cleaner = new HtmlCleaner(props);
+        try {
+            cleaner.clean(new Reader() {
+                public int read(char[] cbuf, int off, int len) throws IOException {
+                    throw new IOException("broken stream");
+                }
+                public void close() {
+                }
+            });
+            fail("IOException expected");
+        } catch (IOException e) {
+            assertEquals("broken stream", e.getMessage());
+        }
+    }
+
+    private String clean(File file, boolean pipelined) throws IOException {
+        HtmlCleaner cleaner = new HtmlCleaner(newProperties(pipelined));
+        return new SimpleXmlSerializer(cleaner.getProperties()).getAsString(cleaner.clean(file, "UTF-8"));
+    }
+
+    private String clean(String html, boolean pipelined) {
+        HtmlCleaner cleaner = new HtmlCleaner(newProperties(pipelined));
+        return new SimpleXmlSerializer(cleaner.getProperties()).getAsString(cleaner.clean(html));
+    }
+
+    private CleanerProperties newProperties(boolean pipelined) {
+        CleanerProperties props = new CleanerProperties();
+        props.setPipelinedTokenizing(pipelined);
+        return props;
+    }
+}
@@ -0,0 +1,227 @@
+package org.htmlcleaner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Testing extraction of XPath results while cleaning.
+ */
+public class StreamingExtractorTest extends TestCase {
+
+    private static final String[] FILES = {
+        "test1.html", "test3.html", "test4.html", "test5.html", "test6.html", "test23.html", "test30.html", "test31.html", "oome_70.html"
+    };
+
+    private static final String[] EXPRESSIONS = {
+        "//a", "//a/@href", "//div//p", "//table//td[@class]", "//li", "/body/div", "/head/title",
+        "//img/@src", "//span[@class='x']", "//meta/@content", "//script", "//div/*[@id]", "//p//@class",
+        "//tr/td//a/@href", "//form//input/@name", "//div[@class != 'x']//a[@href]"
+    };
+
+    public void testSameResultsAsTree() throws IOException, XPatherException {
+        HtmlCleaner cleaner = new HtmlCleaner();
+        StreamingExtractor extractor = newExtractor(cleaner, EXPRESSIONS);
+        assertTrue(extractor.isStreaming());
+        for (String fileName : FILES) {
+            String html = read(new File("src/test/resources/" + fileName));
+            Map<String, Object[]> expected = evaluateInDocumentOrder(cleaner.clean(html), EXPRESSIONS);
+            Map<String, Object[]> actual = extractor.extract(html);
+            assertEquals(Arrays.asList(EXPRESSIONS), new ArrayList<String>(actual.keySet()));
+            for (String expression : EXPRESSIONS) {
+                assertSameResult(fileName + " " + expression, expected.get(expression), actual.get(expression));
+            }
+        }
+    }
+
+    public void testPipelinedTokenizing() throws IOException, XPatherException {
+        CleanerProperties props = new CleanerProperties();
+        props.setPipelinedTokenizing(true);
+        HtmlCleaner cleaner = new HtmlCleaner(props);
+        String html = read(new File("src/test/resources/test3.html"));
+        Map<String, Object[]> expected = evaluateInDocumentOrder(cleaner.clean(html), EXPRESSIONS);
+        Map<String, Object[]> actual = newExtractor(cleaner, EXPRESSIONS).extract(html);
+        for (String expression : EXPRESSIONS) {
+            assertSameResult(expression, expected.get(expression), actual.get(expression));
+        }
+    }
+
+    public void testHeadAndPruning() throws XPatherException {
+        CleanerProperties props = new CleanerProperties();
+        props.setPruneTags("script,b");
+        HtmlCleaner cleaner = new HtmlCleaner(props);
+        String html = "<title>T</title><div id='a'><p>1<b>2<i>3</i></b></p><script>x()</script></div><div id='b'><i>4</i></div>";
+        Map<String, Object[]> results = newExtractor(cleaner, "//div", "/head/title", "/body/title", "//script", "//i", "//div/@id")
+                .extract(html);
+        assertEquals(2, results.get("//div").length);
+        TagNode first = (TagNode) results.get("//div")[0];
+        assertEquals(1, first.getChildTags().length);
+        assertEquals("1", first.getText().toString());
+        assertEquals(1, results.get("/head/title").length);
+        assertEquals(0, results.get("/body/title").length);
+        assertEquals(0, results.get("//script").length);
+        assertEquals(1, results.get("//i").length);
+        assertEquals(Arrays.asList("a", "b"), Arrays.asList(results.get("//div/@id")));
+    }
+
+    public void testHeadOpenedLater() throws XPatherException {
+        HtmlCleaner cleaner = new HtmlCleaner();
+        String[] expressions = {"/head/meta", "/body/meta", "/head/link/@rel", "/body/script", "/head/title"};
+        String[] documents = {
+            "<html><meta name=m><head><title>T</title></head></html>",
+            "<html><meta name=m><head><title>T</title></head><body><p>x</p></body></html>",
+            "<link rel=r><script>s()</script><head></head><p>x</p>",
+            "<meta name=m><script>s()</script><body><head><meta name=n></head>",
+        };
+        for (String html : documents) {
+            Map<String, Object[]> expected = evaluateInDocumentOrder(cleaner.clean(html), expressions);
+            Map<String, Object[]> actual = newExtractor(cleaner, expressions).extract(html);
+            for (String expression : expressions) {
+                assertSameResult(html + " " + expression, expected.get(expression), actual.get(expression));
+            }
+        }
+        assertEquals(1, newExtractor(cleaner, "/head/meta").extract(documents[0]).get("/head/meta").length);
+    }
+
+    public void testSameNodesAsTree() throws XPatherException {
+        HtmlCleaner cleaner = new HtmlCleaner();
+        String[] expressions = {"/body/style", "/body/*", "//table//tr", "//div/@id", "/body//@id", "/head/title"};
+        String[] documents = {
+            "<head><meta xmlns='http://p'><style>a {}</style><body><p>x</p>",
+            "<a class=x><table><td class=c><tr>b <a class=y></tr></table>",
+            "<script>s()</script><p>x</p><style>a {}</style><div>y</div>",
+            "<div id=a><div id=b>x</div>y</div><div id=c></div>",
+            "<head><div><title>a<b>x</b></title></div>",
+        };
+        for (String html : documents) {
+            Map<String, Object[]> expected = evaluateInDocumentOrder(cleaner.clean(html), expressions);
+            Map<String, Object[]> actual = newExtractor(cleaner, expressions).extract(html);
+            for (String expression : expressions) {
+                assertSameResult(html + " " + expression, expected.get(expression), actual.get(expression));
+            }
+        }
+    }
+
+    public void testSelectedElementsAreDetached() throws XPatherException {
+        String html = "<table><tr><td class='c'><a href='1'>one</a></td><td><a href='2'>two</a></td></tr></table>";
+        Object[] cells = newExtractor(new HtmlCleaner(), "//td[@class='c']", "//a").extract(html).get("//td[@class='c']");
+        assertEquals(1, cells.length);
+        TagNode cell = (TagNode) cells[0];
+        assertNull(cell.getParent());
+        assertEquals("one", cell.getText().toString());
+        assertEquals(1, cell.getElementsByName("a", true).length);
+    }
+
+    public void testFirstValuesStopReading() throws IOException, XPatherException {
+        StringBuilder html = new StringBuilder("<html><head><title>Title</title></head><body>");
+        for (int i = 0; i < 20000; i++) {
+            html.append("<div class='item'><a href='").append(i).append("'>").append(i).append("</a></div>");
+        }
+        final int length = html.length();
+        final int[] read = new int[1];
+        Reader reader = new StringReader(html.toString()) {
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException {
+                int count = super.read(cbuf, off, len);
+                read[0] += Math.max(count, 0);
+                return count;
+            }
+        };
+        StreamingExtractor extractor = new StreamingExtractor(new HtmlCleaner())
+                .addFirstValueExpression("//title")
+                .addFirstValueExpression("//div[@class='item']/a/@href")
+                .addFirstValueExpression("//div[@class='item']/a");
+        Map<String, Object[]> results = extractor.extract(reader);
+        assertEquals("Title", ((TagNode) results.get("//title")[0]).getText().toString());
+        assertEquals(Collections.singletonList("0"), Arrays.asList(results.get("//div[@class='item']/a/@href")));
+        assertEquals("0", ((TagNode) results.get("//div[@class='item']/a")[0]).getText().toString());
+        assertTrue(read[0] < length / 10);
+    }
+
+    public void testOtherExpressionsUseTree() throws XPatherException {
+        String html = "<div><a href='1'>one</a><a href='2'>two</a></div><div><span>three</span></div>";
+        String[] expressions = {"//div/a[2]", "count(//a)", "//div[span]", "/body/div", "//a/@href"};
+        StreamingExtractor extractor = newExtractor(new HtmlCleaner(), expressions);
+        assertFalse(extractor.isStreaming());
+        Map<String, Object[]> expected = new XPathSet(expressions).evaluateAgainstNode(new HtmlCleaner().clean(html));
+        Map<String, Object[]> actual = extractor.extract(html);
+        for (String expression : expressions) {
+            assertSameResult(expression, expected.get(expression), actual.get(expression));
+        }
+
+        assertFalse(newExtractor(new HtmlCleaner(), "/body").isStreaming());
+        assertFalse(newExtractor(new HtmlCleaner(), "//@id").isStreaming());
+        assertTrue(newExtractor(new HtmlCleaner(), "/body/div/@id", "/body//@id").isStreaming());
+
+        try {
+            newExtractor(new HtmlCleaner(), "//a[@href=").extract(html);
+            fail("XPatherException expected");
+        } catch (XPatherException e) {
+            // expected
+        }
+    }
+
+    private static StreamingExtractor newExtractor(HtmlCleaner cleaner, String... expressions) {
+        StreamingExtractor extractor = new StreamingExtractor(cleaner);
+        for (String expression : expressions) {
+            extractor.addExpression(expression);
+        }
+        return extractor;
+    }
+
+    /**
+     * XPather lists the children selected by a step for each element of the previous step in
+     * turn, extraction lists elements in document order.
+     */
+    private static Map<String, Object[]> evaluateInDocumentOrder(TagNode tree, String... expressions) throws XPatherException {
+        final Map<TagNode, Integer> positions = new IdentityHashMap<TagNode, Integer>();
+        for (TagNode element : tree.getAllElements(true)) {
+            positions.put(element, Integer.valueOf(positions.size()));
+        }
+        Map<String, Object[]> results = new XPathSet(expressions).evaluateAgainstNode(tree);
+        for (Object[] values : results.values()) {
+            if (values.length > 0 && values[0] instanceof TagNode) {
+                Arrays.sort(values, new Comparator<Object>() {
+                    public int compare(Object o1, Object o2) {
+                        return positions.get(o1).compareTo(positions.get(o2));
+                    }
+                });
+            }
+        }
+        return results;
+    }
+
+    private static String read(File file) throws IOException {
+        return Utils.readUrl(file.toURI().toURL(), "UTF-8").toString();
+    }
+
+    /**
+     * Elements are compared by name, attributes and text, in document order.
+     */
+    private static void assertSameResult(String message, Object[] expected, Object[] actual) {
+        assertEquals(message, describe(expected), describe(actual));
+    }
+
+    private static List<String> describe(Object[] values) {
+        List<String> result = new ArrayList<String>();
+        for (Object value : values) {
+            if (value instanceof TagNode) {
+                TagNode node = (TagNode) value;
+                result.add(node.getName() + node.getAttributes() + node.getText());
+            } else {
+                result.add(String.valueOf(value));
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,94 @@
+package org.htmlcleaner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Testing structural hashes of subtrees.
+ */
+public class StructuralHashTest extends TestCase {
+
+    private HtmlCleaner cleaner;
+
+    @Override
+    protected void setUp() throws Exception {
+        cleaner = new HtmlCleaner();
+    }
+
+    public void testEqualSubtreesHaveEqualHashes() throws XPatherException {
+        TagNode node = cleaner.clean("<div id='a'><ul class='nav' title='t'><li>One</li><li><a href='/x'>Two</a></li></ul></div>"
+                + "<div id='b'><ul title='t' CLASS='nav'><li>One</li><li><a href='/x'>Two</a></li></ul></div>"
+                + "<div id='c'><ul class='nav' title='t'><li>One</li><li><a href='/y'>Two</a></li></ul></div>");
+        Object[] lists = node.evaluateXPath("//ul");
+        long first = ((TagNode) lists[0]).getStructuralHash();
+        assertEquals(first, ((TagNode) lists[1]).getStructuralHash());
+        assertFalse(first == ((TagNode) lists[2]).getStructuralHash());
+
+        Object[] divs = node.evaluateXPath("//div");
+        assertFalse(((TagNode) divs[0]).getStructuralHash() == ((TagNode) divs[1]).getStructuralHash());
+    }
+
+    public void testContentKindsAndOrderMatter() {
+        TagNode text = cleaner.clean("<p>a<b>b</b></p>").findElementByName("p", true);
+        TagNode comment = cleaner.clean("<p><!--a--><b>b</b></p>").findElementByName("p", true);
+        TagNode reordered = cleaner.clean("<p><b>b</b>a</p>").findElementByName("p", true);
+        TagNode renamed = cleaner.clean("<p>a<i>b</i></p>").findElementByName("p", true);
+        long hash = text.getStructuralHash();
+        assertFalse(hash == comment.getStructuralHash());
+        assertFalse(hash == reordered.getStructuralHash());
+        assertFalse(hash == renamed.getStructuralHash());
+        assertEquals(hash, cleaner.clean("<P>a<B>b</B></P>").findElementByName("p", true).getStructuralHash());
+    }
+
+    public void testHashFollowsChanges() {
+        TagNode root = cleaner.clean("<div><p>one</p><p>two</p></div><div><p>one</p><p>two</p></div>");
+        TagNode[] divs = root.getElementsByName("div", true);
+        long rootHash = root.getStructuralHash();
+        long divHash = divs[0].getStructuralHash();
+        assertEquals(divHash, divs[1].getStructuralHash());
+
+        TagNode p = divs[0].getChildTags()[1];
+        p.addAttribute("class", "x");
+        assertFalse(divHash == divs[0].getStructuralHash());
+        assertFalse(rootHash == root.getStructuralHash());
+        assertEquals(divHash, divs[1].getStructuralHash());
+
+        p.removeAttribute("class");
+        assertEquals(divHash, divs[0].getStructuralHash());
+        assertEquals(rootHash, root.getStructuralHash());
+
+        p.addChild(new ContentNode("!"));
+        assertFalse(divHash == divs[0].getStructuralHash());
+        divs[1].getChildTags()[1].addChild(new ContentNode("!"));
+        assertEquals(divs[0].getStructuralHash(), divs[1].getStructuralHash());
+    }
+
+    public void testCopiesAndFrozenTrees() throws IOException {
+        TagNode root = cleaner.clean(new File("src/test/resources/test2.html"));
+        long hash = root.getStructuralHash();
+        assertEquals(hash, root.makeDeepCopy().getStructuralHash());
+        TagNode frozen = root.freeze();
+        assertEquals(hash, frozen.getStructuralHash());
+        assertEquals(hash, frozen.thaw().getStructuralHash());
+        assertEquals(hash, cleaner.clean(new File("src/test/resources/test2.html")).getStructuralHash());
+    }
+
+    public void testDuplicateBlocks() throws IOException {
+        TagNode root = cleaner.clean(new File("src/test/resources/test3.html"));
+        SimpleXmlSerializer serializer = new SimpleXmlSerializer(cleaner.getProperties());
+        // equal hashes within a page should mean equal markup
+        Map<Long, String> markup = new HashMap<Long, String>();
+        for (TagNode element: root.getAllElements(true)) {
+            String html = serializer.getAsString(element);
+            String previous = markup.put(element.getStructuralHash(), html);
+            if (previous != null) {
+                assertEquals(previous, html);
+            }
+        }
+        assertTrue(markup.size() < root.getAllElements(true).length);
+    }
+}
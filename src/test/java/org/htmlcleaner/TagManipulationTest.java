@@ -4,6 +4,12 @@ import junit.framework.TestCase;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.htmlcleaner.conditional.TagNodeAttExistsCondition;
 
 /**
  * Testing node manipulation after cleaning.
@@ -49,4 +55,117 @@ public class TagManipulationTest extends TestCase {
         assertEquals("<p><h2></h2>TEST BEFORE H3 AND AFTER H2<h3></h3><h4></h4>LAST_ONE</p>", pNodeAsString);
     }
 
-}
\ No newline at end of file
+    public void testAttributes() {
+        TagNode node = new TagNode("a");
+        node.addAttribute("HREF", "first");
+        node.addAttribute("title", "t");
+        node.addAttribute("href", "second");
+
+        assertEquals("second", node.getAttributeByName("Href"));
+        assertTrue(node.hasAttribute("TITLE"));
+        assertNull(node.getAttributeByName("id"));
+
+        Map<String, String> attributes = node.getAttributes();
+        assertEquals(3, attributes.size());
+        assertEquals("first", attributes.get("HREF"));
+        try {
+            attributes.put("id", "x");
+            fail("attributes view should be read-only");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        node.removeAttribute("TITLE");
+        assertEquals(2, attributes.size());
+        assertEquals("[HREF, href]", attributes.keySet().toString());
+
+        node.setForeignMarkup(false);
+        assertEquals("{href=second}", attributes.toString());
+    }
+
+
+    public void testBulkChildRemoval() {
+        TagNode list = new TagNode("ul");
+        List<TagNode> items = new ArrayList<TagNode>();
+        for (int i = 0; i < 10; i++) {
+            TagNode item = new TagNode("li");
+            if (i % 3 == 0) {
+                item.addAttribute("class", "odd");
+            }
+            item.addChild(new ContentNode(String.valueOf(i)));
+            list.addChild(item);
+            items.add(item);
+        }
+
+        assertEquals(4, list.removeChildrenIf(new TagNodeAttExistsCondition("class")));
+        assertEquals("124578", list.getText().toString());
+        assertNull(items.get(0).getParent());
+        assertSame(list, items.get(1).getParent());
+        assertEquals(2, list.getChildIndex(items.get(4)));
+
+        assertEquals(2, list.removeChildren(Arrays.asList(items.get(2), items.get(7), items.get(0))));
+        assertEquals("1458", list.getText().toString());
+        assertEquals(2, list.retainChildren(Arrays.asList(items.get(5), items.get(8))));
+        assertEquals("58", list.getText().toString());
+        assertEquals(0, list.removeChildren(Arrays.asList(items.get(1))));
+
+        list.replaceChildren(0, 1, Arrays.asList(items.get(1), items.get(2)));
+        assertEquals("128", list.getText().toString());
+        assertNull(items.get(5).getParent());
+        assertSame(list, items.get(2).getParent());
+        assertEquals(2, list.getChildIndex(items.get(8)));
+    }
+
+    public void testChildIndexAfterRemovals() {
+        TagNode table = new TagNode("table");
+        List<TagNode> rows = new ArrayList<TagNode>();
+        for (int i = 0; i < 100; i++) {
+            TagNode row = new TagNode("tr");
+            table.addChild(row);
+            rows.add(row);
+        }
+        List<TagNode> expected = new ArrayList<TagNode>(rows);
+        // removals going forward, backward and from the middle, each checked against a plain list
+        int[] removals = {0, 2, 4, 6, 99, 97, 95, 50, 49, 51, 10, 90, 11, 89};
+        for (int removal : removals) {
+            TagNode row = rows.get(removal);
+            assertTrue(row.removeFromTree());
+            expected.remove(row);
+            assertFalse(table.removeChild(row));
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(i, table.getChildIndex(expected.get(i)));
+            }
+        }
+        table.insertChild(3, rows.get(0));
+        expected.add(3, rows.get(0));
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(i, table.getChildIndex(expected.get(i)));
+        }
+    }
+
+    public void testSiblings() {
+        TagNode node = cleaner.clean("<div>text<b>bold</b><!--comment--><i>italic</i></div>");
+        TagNode div = node.findElementByName("div", true);
+        TagNode b = div.findElementByName("b", false);
+        TagNode i = div.findElementByName("i", false);
+
+        BaseToken text = div.getFirstChild();
+        assertEquals("text", ((ContentNode) text).getContent());
+        assertSame(i, div.getLastChild());
+        assertSame(text, b.getPreviousSibling());
+        assertTrue(b.getNextSibling() instanceof CommentNode);
+        assertSame(i, div.getChildAfter(b.getNextSibling()));
+        assertSame(b, div.getChildAfter(text));
+        assertNull(div.getChildBefore(text));
+        assertNull(i.getNextSibling());
+        assertNull(node.getNextSibling());
+        assertNull(div.getChildAfter(new ContentNode("not a child")));
+
+        b.removeFromTree();
+        assertNull(b.getNextSibling());
+        assertTrue(i.getPreviousSibling() instanceof CommentNode);
+        assertEquals("bold", ((ContentNode) b.getFirstChild()).getContent());
+        assertSame(b.getFirstChild(), b.getLastChild());
+        assertNull(new TagNode("empty").getFirstChild());
+    }
+}
@@ -0,0 +1,52 @@
+package org.htmlcleaner;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Testing text extraction with TagNode.appendText().
+ */
+public class TextExtractionTest extends TestCase {
+
+    public void testDefaultsGiveSameTextAsGetText() throws IOException {
+        TagNode node = new HtmlCleaner().clean(new File("src/test/resources/test5.html"));
+        StringBuilder text = new StringBuilder();
+        node.appendText(text, null);
+        assertEquals(recursiveText(node), text.toString());
+        assertEquals(recursiveText(node), node.getText().toString());
+    }
+
+    public void testOptions() throws IOException {
+        CleanerProperties props = new CleanerProperties();
+        props.setDeserializeEntities(false);
+        TagNode node = new HtmlCleaner(props).clean(
+                "<div>One <b>two</b></div><script>var x;</script><style>p {}</style><p>A &amp; B</p>three<ul><li>four</li></ul>");
+
+        TextOptions options = new TextOptions();
+        options.setSkipScriptAndStyle(true);
+        options.setDecodeEntities(true);
+        options.setBlockSeparator("\n");
+        StringBuilder text = new StringBuilder();
+        node.appendText(text, options);
+        assertEquals("One two\nA & B\nthree\nfour", text.toString());
+
+        text.setLength(0);
+        node.appendText(text, new TextOptions());
+        assertEquals("One twovar x;p {}A &amp; Bthreefour", text.toString());
+    }
+
+    private String recursiveText(TagNode node) {
+        StringBuilder text = new StringBuilder();
+        for (Object item : node.getAllChildren()) {
+            if (item instanceof ContentNode) {
+                text.append(((ContentNode) item).getContent());
+            } else if (item instanceof TagNode) {
+                text.append(recursiveText((TagNode) item));
+            }
+        }
+        return text.toString();
+    }
+
+}
@@ -0,0 +1,97 @@
+package org.htmlcleaner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Testing that text predicates give the same results with and without the text index.
+ */
+public class TextIndexTest extends TestCase {
+
+    private static final String HTML =
+        "<html><head><title>Terms</title></head><body>" +
+        "<div id='a'>intro <p>terms of <b>use</b> apply</p><p>terms of service</p></div>" +
+        "<div id='b'><a href='http://x.org'>x</a><a href='/local'>local use</a>" +
+        "<table><tr><td>v</td><td>w</td><td>v</td></tr></table></div>" +
+        "<div id='c'>use</div></body></html>";
+
+    private static final String[] EXPRESSIONS = {
+        "//p[contains(., 'terms of use')]",
+        "//p[contains(text(), 'service')]",
+        "//div[contains(., 'use')]",
+        "//div[contains(., 'intro terms')]",
+        "//*[contains(., 'of use apply')]",
+        "//p[starts-with(., 'terms')]",
+        "//b[starts-with(text(), 'us')]",
+        "//a[starts-with(@href, 'http')]",
+        "//a[contains(@href, 'local')]/@href",
+        "//td[. = 'v']",
+        "//td[text() = 'w']",
+        "//div[contains(., '')]",
+        "//p[contains(., 'missing')]",
+        "//div[starts-with(., 'intro terms of use apply terms')]",
+    };
+
+    private TagNode plain;
+    private TagNode indexed;
+
+    @Override
+    protected void setUp() throws Exception {
+        HtmlCleaner cleaner = new HtmlCleaner();
+        plain = cleaner.clean(HTML);
+        indexed = cleaner.clean(HTML);
+        indexed.setIndexed(true);
+    }
+
+    public void testSameResults() throws XPatherException {
+        for (String expression : EXPRESSIONS) {
+            assertEquals(expression, describe(plain.evaluateXPath(expression)), describe(indexed.evaluateXPath(expression)));
+        }
+    }
+
+    public void testResults() throws XPatherException {
+        assertEquals("[p:terms of use apply]", describe(indexed.evaluateXPath("//p[contains(., 'terms of use')]")));
+        assertEquals("[div:intro terms of use applyterms of service, div:xlocal usevwv, div:use]",
+                describe(indexed.evaluateXPath("//div[contains(., 'use')]")));
+        assertEquals("[a:x]", describe(indexed.evaluateXPath("//a[starts-with(@href, 'http')]")));
+        assertEquals("[td:v, td:v]", describe(indexed.evaluateXPath("//td[. = 'v']")));
+        assertEquals(0, indexed.evaluateXPath("//p[contains(., 'missing')]").length);
+    }
+
+    public void testChangesOfText() throws XPatherException {
+        assertEquals(1, indexed.evaluateXPath("//p[contains(., 'of use')]").length);
+        TagNode b = indexed.findElementByName("b", true);
+        b.removeAllChildren();
+        b.addChild(new ContentNode("abuse"));
+        plain.findElementByName("b", true).removeAllChildren();
+        plain.findElementByName("b", true).addChild(new ContentNode("abuse"));
+        assertEquals(0, indexed.evaluateXPath("//p[contains(., 'of use')]").length);
+        assertEquals(1, indexed.evaluateXPath("//p[contains(., 'of abuse')]").length);
+        for (String expression : EXPRESSIONS) {
+            assertEquals(expression, describe(plain.evaluateXPath(expression)), describe(indexed.evaluateXPath(expression)));
+        }
+    }
+
+    public void testWrongArguments() {
+        try {
+            indexed.evaluateXPath("//p[contains(.)]");
+            fail("contains() with one argument");
+        } catch (XPatherException e) {
+            // expected
+        }
+    }
+
+    private static String describe(Object[] result) {
+        List<String> items = new ArrayList<String>();
+        for (Object item : result) {
+            if (item instanceof TagNode) {
+                items.add(((TagNode) item).getName() + ":" + ((TagNode) item).getText());
+            } else {
+                items.add(String.valueOf(item));
+            }
+        }
+        return items.toString();
+    }
+}
@@ -0,0 +1,104 @@
+package org.htmlcleaner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Testing non-recursive traversal of trees.
+ */
+public class TraversalTest extends TestCase {
+
+    private HtmlCleaner cleaner = new HtmlCleaner();
+
+    public void testDocumentOrder() {
+        TagNode node = cleaner.clean("<div><p>a<!-- c --><b>b</b></p><p>d</p></div>");
+        List<String> visited = new ArrayList<String>();
+        for (TagNodeIterator iterator = node.nodeIterator(); iterator.hasNext();) {
+            visited.add(describe(iterator.next()));
+        }
+        assertEquals("[html, head, body, div, p, a, # c , b, b, p, d]", visited.toString());
+    }
+
+    public void testSkipChildren() {
+        TagNode node = cleaner.clean("<div><p>a<b>b</b></p><p skip=\"1\">d<i>e</i></p></div>");
+        List<String> visited = new ArrayList<String>();
+        TagNodeIterator iterator = node.findElementByName("div", true).nodeIterator();
+        while (iterator.hasNext()) {
+            HtmlNode current = iterator.next();
+            visited.add(describe(current));
+            if (current instanceof TagNode && ((TagNode) current).hasAttribute("skip")) {
+                iterator.skipChildren();
+            }
+        }
+        assertEquals("[div, p, a, b, b, p]", visited.toString());
+    }
+
+    public void testChangesDuringIteration() {
+        TagNode node = cleaner.clean("<div><p>a</p><span>b</span><p>c</p><i>d</i></div>");
+        TagNode div = node.findElementByName("div", true);
+        List<String> visited = new ArrayList<String>();
+        for (TagNodeIterator iterator = div.nodeIterator(); iterator.hasNext();) {
+            HtmlNode current = iterator.next();
+            visited.add(describe(current));
+            if (current instanceof TagNode && "p".equals(((TagNode) current).getName())) {
+                // siblings are still visited as they were when the iteration reached the div,
+                // but the removed node is not entered
+                div.removeChild(current);
+                div.addChild(new ContentNode("x"));
+            }
+        }
+        assertEquals("[div, p, span, b, p, i, d]", visited.toString());
+        assertEquals(4, div.getAllChildren().size());
+        assertEquals("bdxx", div.getText().toString());
+    }
+
+    public void testTraverseStopsAndReleasesLists() {
+        TagNode node = cleaner.clean("<div><p>a</p><p>b</p></div>");
+        final TagNode div = node.findElementByName("div", true);
+        final List<String> visited = new ArrayList<String>();
+        node.traverse(new TagNodeVisitor() {
+            public boolean visit(TagNode parentNode, HtmlNode htmlNode) {
+                visited.add(describe(htmlNode));
+                return !(htmlNode instanceof ContentNode);
+            }
+        });
+        assertEquals("[html, head, body, div, p, a]", visited.toString());
+        // no traversal is active any more, so changes go to the same list
+        List<? extends BaseToken> children = div.getAllChildren();
+        div.addChild(new ContentNode("c"));
+        assertSame(children, div.getAllChildren());
+        assertEquals(3, children.size());
+    }
+
+    public void testDeepTree() {
+        int depth = 100000;
+        // built bottom up, so that no change has to go through a long chain of ancestors
+        TagNode root = new TagNode("div");
+        root.addChild(new ContentNode("deep"));
+        for (int i = 0; i < depth; i++) {
+            TagNode parent = new TagNode("div");
+            parent.addChild(root);
+            root = parent;
+        }
+        final int[] counts = new int[2];
+        root.traverse(new TagNodeVisitor() {
+            public boolean visit(TagNode parentNode, HtmlNode htmlNode) {
+                counts[htmlNode instanceof TagNode ? 0 : 1]++;
+                return true;
+            }
+        });
+        assertEquals(depth + 1, counts[0]);
+        assertEquals(1, counts[1]);
+    }
+
+    private static String describe(HtmlNode node) {
+        if (node instanceof TagNode) {
+            return ((TagNode) node).getName();
+        } else if (node instanceof CommentNode) {
+            return "#" + ((CommentNode) node).getContent();
+        }
+        return node.toString();
+    }
+}
@@ -0,0 +1,95 @@
+package org.htmlcleaner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Testing that cached XPath results follow changes of the tree.
+ */
+public class XPathResultCacheTest extends TestCase {
+
+    private static final String HTML =
+        "<html><head><meta name='robots' content='noindex'><title>T</title></head>" +
+        "<body><div id='a'><p class='x'>1</p><p>2</p></div><div id='b'><span>3</span></div></body></html>";
+
+    private TagNode node;
+
+    @Override
+    protected void setUp() throws Exception {
+        node = new HtmlCleaner().clean(HTML);
+        node.setXPathResultsCached(true);
+    }
+
+    public void testRepeatedEvaluation() throws XPatherException {
+        String expression = "//meta[@name='robots']/@content";
+        assertNull(node.getXPathResultCache().get(expression, node));
+        Object[] first = node.evaluateXPath(expression);
+        assertEquals(Arrays.asList("noindex"), Arrays.asList(first));
+        assertNotNull(node.getXPathResultCache().get(expression, node));
+
+        first[0] = "changed";
+        Object[] second = XPather.compile(expression).evaluateAgainstNode(node);
+        assertEquals(Arrays.asList("noindex"), Arrays.asList(second));
+        assertNotSame(first, second);
+
+        TagNode body = node.findElementByName("body", false);
+        assertNull(node.getXPathResultCache().get("//p", body));
+        assertEquals(2, body.evaluateXPath("//p").length);
+        assertNotNull(body.getXPathResultCache().get("//p", body));
+        assertNull(body.getXPathResultCache().get("//p", node));
+    }
+
+    public void testChangesDropResults() throws XPatherException {
+        TagNode divA = node.findElementByAttValue("id", "a", true, true);
+        TagNode divB = node.findElementByAttValue("id", "b", true, true);
+        TagNode p = divA.findElementByName("p", false);
+        assertEquals(Arrays.asList("x"), Arrays.asList(node.evaluateXPath("//p/@class")));
+
+        p.addAttribute("class", "y");
+        assertEquals(Arrays.asList("y"), Arrays.asList(node.evaluateXPath("//p/@class")));
+
+        p.removeAttribute("class");
+        assertEquals(0, node.evaluateXPath("//p/@class").length);
+
+        assertEquals(2, divA.evaluateXPath("p").length);
+        divA.addChild(new TagNode("p"));
+        assertEquals(3, divA.evaluateXPath("p").length);
+
+        divA.removeChild(p);
+        assertEquals(2, divA.evaluateXPath("p").length);
+
+        assertEquals(1, node.evaluateXPath("//span").length);
+        List<BaseToken> children = new ArrayList<BaseToken>();
+        divB.setChildren(children);
+        assertEquals(0, node.evaluateXPath("//span").length);
+
+        assertEquals(1, divB.evaluateXPath("..").length);
+        divB.removeFromTree();
+        assertEquals(0, divB.evaluateXPath("..").length);
+    }
+
+    public void testTurningOff() throws XPatherException {
+        assertTrue(node.isXPathResultsCached());
+        node.evaluateXPath("//p");
+        node.setXPathResultsCached(false);
+        assertFalse(node.isXPathResultsCached());
+        assertNull(node.getXPathResultCache());
+        assertEquals(2, node.evaluateXPath("//p").length);
+
+        TagNode body = node.findElementByName("body", false);
+        body.setXPathResultsCached(true);
+        assertNull(body.getXPathResultCache());
+    }
+
+    public void testFrozenTree() throws XPatherException {
+        TagNode frozen = node.freeze();
+        frozen.setXPathResultsCached(true);
+        Object[] first = frozen.evaluateXPath("//div[@id='b']/span");
+        assertEquals(1, first.length);
+        assertSame(first[0], frozen.evaluateXPath("//div[@id='b']/span")[0]);
+        assertNotNull(frozen.getXPathResultCache().get("//div[@id='b']/span", frozen));
+    }
+}
@@ -0,0 +1,89 @@
+package org.htmlcleaner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Testing evaluation of many XPath expressions together.
+ */
+public class XPathSetTest extends TestCase {
+
+    private static final String[] EXPRESSIONS = {
+        "//div//a", "//div//a[@id][@class]", "/body/*[1]/@type", "//div[3]//a[@id]",
+        "//div[3]//a[@id][@href='r/n4']", "//div[3]//a['video'=@class]", "//body//div[3][@class]//span[2]/@id",
+        "//div/@class", "//div//@class", "//div[2]/@*[2]", "//li[2]//a", "//span[last()<=4]/@id",
+        "//a", "//A[@href]", "//img", "//div[@id]//li[1]", "count(//div//img)", "data(//div//a[@id][@class])",
+        "(//div[@id]//@class)[position() < 5]", "//p/last()"
+    };
+
+    private TagNode rootNode;
+
+    @Override
+    protected void setUp() throws Exception {
+        rootNode = new HtmlCleaner().clean(new File("src/test/resources/test5.html"));
+    }
+
+    public void testSameResultsAsSeparateEvaluation() throws XPatherException {
+        XPathSet set = new XPathSet(EXPRESSIONS);
+        Map<String, Object[]> results = set.evaluateAgainstNode(rootNode);
+        assertEquals(Arrays.asList(EXPRESSIONS), new ArrayList<String>(results.keySet()));
+        for (String expression : EXPRESSIONS) {
+            assertSameResult(expression, rootNode.evaluateXPath(expression), results.get(expression));
+        }
+    }
+
+    public void testIndexedDocument() throws XPatherException {
+        Map<String, Object[]> expected = new XPathSet(EXPRESSIONS).evaluateAgainstNode(rootNode);
+        rootNode.setIndexed(true);
+        Map<String, Object[]> actual = new XPathSet(EXPRESSIONS).evaluateAgainstNode(rootNode);
+        for (String expression : EXPRESSIONS) {
+            assertSameResult(expression, expected.get(expression), actual.get(expression));
+        }
+    }
+
+    public void testDuplicatesAndPositionalFilters() throws XPatherException {
+        TagNode node = new HtmlCleaner().clean("<ul><li>1</li><li>2<ul><li>3</li><li>4</li></ul></li></ul><p><li>5</li></p>");
+        List<String> expressions = Arrays.asList("//li[2]", "//li[1]", "//li", "//li[2]", "//ul//li[last()]");
+        XPathSet set = new XPathSet(expressions);
+        assertEquals(4, set.getExpressions().size());
+        Map<String, Object[]> results = set.evaluateAgainstNode(node);
+        assertEquals(4, results.size());
+        assertTexts(results.get("//li[2]"), "2", "4");
+        assertTexts(results.get("//li[1]"), "1", "3", "5");
+        assertTexts(results.get("//li"), "1", "2", "3", "4", "5");
+        assertTexts(results.get("//ul//li[last()]"), "2", "4", "5");
+    }
+
+    public void testErrors() {
+        try {
+            new XPathSet("//a", "//div[foo()]").evaluateAgainstNode(rootNode);
+            fail("XPatherException expected");
+        } catch (XPatherException e) {
+            assertEquals("Unknown function foo!", e.getMessage());
+        }
+    }
+
+    private void assertSameResult(String expression, Object[] expected, Object[] actual) {
+        assertEquals(expression, expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            if (expected[i] instanceof TagNode) {
+                assertSame(expression, expected[i], actual[i]);
+            } else {
+                // texts are returned as string builders
+                assertEquals(expression, expected[i].toString(), actual[i].toString());
+            }
+        }
+    }
+
+    private void assertTexts(Object[] nodes, String... texts) {
+        assertEquals(texts.length, nodes.length);
+        for (int i = 0; i < texts.length; i++) {
+            assertTrue(((TagNode) nodes[i]).getText().toString().startsWith(texts[i]));
+        }
+    }
+}
@@ -3,6 +3,7 @@ package org.htmlcleaner;
 import junit.framework.TestCase;
 
 import java.io.File;
+import java.util.Iterator;
 
 /**
  * Testing XPath expressions against TagNodes results from cleaning process.
@@ -113,6 +114,118 @@ public class XPatherTest extends TestCase {
         );
     }
 
+    public void testCompiledExpressionIsReusable() throws Exception {
+        XPather xPather = new XPather("//div[3]//a[@id]");
+        assertStringArray(xPather.evaluateAgainstNode(rootNode), rootNode.evaluateXPath("//div[3]//a[@id]"));
+        assertStringArray(xPather.evaluateAgainstNode(rootNode), new Object[] { "In the News", "World", "Local", "Finance" });
+
+        TagNode other = new HtmlCleaner().clean("<div/><div/><div><a id='x'>X</a><a>Y</a></div>");
+        assertStringArray(xPather.evaluateAgainstNode(other), new Object[] { "X" });
+
+        assertSame(XPather.compile("//div[3]//a[@id]"), XPather.compile("//div[3]//a[@id]"));
+        assertEquals("//div[3]//a[@id]", XPather.compile("//div[3]//a[@id]").toString());
+    }
+
+    public void testMalformedExpressionFailsOnEvaluation() {
+        XPather xPather = new XPather("//div[@id");
+        try {
+            xPather.evaluateAgainstNode(rootNode);
+            fail("XPatherException expected");
+        } catch (XPatherException e) {
+            // expected
+        }
+        try {
+            rootNode.evaluateXPath("//div/foo()");
+            fail("XPatherException expected");
+        } catch (XPatherException e) {
+            assertEquals("Unknown function foo!", e.getMessage());
+        }
+    }
+
+    public void testConcurrentEvaluation() throws Exception {
+        final TagNode frozen = rootNode.freeze();
+        final XPather xPather = XPather.compile("(//div[last() >= 4]//./div[position() = last()])[position() > 22]//li[2]//a");
+        final int expected = xPather.evaluateAgainstNode(frozen).length;
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 20; j++) {
+                            assertEquals(expected, xPather.evaluateAgainstNode(frozen).length);
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure[0] != null) {
+            throw new AssertionError(failure[0]);
+        }
+        assertEquals(3, expected);
+    }
+
+    public void testIterateGivesSameResults() throws XPatherException {
+        String[] expressions = {
+            "//div//a", "//div[3]//a[@id][@href='r/n4']", "//div[2]/@*[2]", "//div//@class",
+            "//body//div[3][@class]//span[last()<=4]/@id", "//div//../span[position() = 2]/@id",
+            "//a['v' < @id]/@id", "//div[2]//a[. = \"Images\"]/@href", "/body/*[1]/@type",
+            "(//div[@id]//@class)[position() < 5]", "count(//a)"
+        };
+        for (String expression : expressions) {
+            XPather xPather = XPather.compile(expression);
+            Object[] expected = xPather.evaluateAgainstNode(rootNode);
+            Iterator<Object> iterator = xPather.iterate(rootNode);
+            for (int i = 0; i < expected.length; i++) {
+                assertTrue(expression, iterator.hasNext());
+                Object next = iterator.next();
+                if (next instanceof TagNode) {
+                    assertSame(expression, expected[i], next);
+                } else {
+                    assertEquals(expression, expected[i], next);
+                }
+            }
+            assertFalse(expression, iterator.hasNext());
+        }
+    }
+
+    public void testSelectFirst() throws XPatherException {
+        assertEquals("r/n4", new XPather("//div[3]//a[@id][@href='r/n4']/@href").selectFirst(rootNode));
+        assertEquals(rootNode.evaluateXPath("//div[3]//a[@id]/@href")[0], new XPather("//div[3]//a[@id]/@href").selectFirst(rootNode));
+        assertSame(rootNode.evaluateXPath("//div//a")[0], new XPather("//div//a").selectFirst(rootNode));
+        assertNull(new XPather("//div//blink").selectFirst(rootNode));
+        assertEquals(Integer.valueOf(160), new XPather("count(//a)").selectFirst(rootNode));
+        try {
+            new XPather("//div[foo()]").selectFirst(rootNode);
+            fail("XPatherException expected");
+        } catch (XPatherException e) {
+            assertEquals("Unknown function foo!", e.getMessage());
+        }
+    }
+
+    public void testDeepTree() throws XPatherException {
+        TagNode root = new TagNode("div");
+        TagNode parent = root;
+        for (int i = 0; i < 10000; i++) {
+            TagNode child = new TagNode(i % 2 == 0 ? "span" : "div");
+            parent.addChild(child);
+            parent = child;
+        }
+        parent.addAttribute("id", "last");
+        assertEquals(5000, new XPather("//div").evaluateAgainstNode(root).length);
+        assertEquals(10000, new XPather("//*").evaluateAgainstNode(root).length);
+        assertSame(parent, new XPather("/span//*[@id='last']").evaluateAgainstNode(root)[0]);
+    }
+
     private void assertNumber(Object array[], double number) {
         assertTrue(array != null);
         assertTrue(array.length == 1);